@@ -0,0 +1,457 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+
+/**
+ * An immutable IPv4 routing table, built once from a set of routes, whose
+ * lookups don't allocate nor synchronize.
+ *
+ * The destination prefixes are stored in a multi-bit trie with a fixed
+ * stride of 8 bits, whose nodes are compressed as in a poptrie: a node
+ * covers 256 entries, one for every value of the next byte of the address,
+ * but only stores two 256-bit bitmaps. The first bitmap marks the entries
+ * that have a child node, and the children of a node are stored
+ * contiguously, such that the child of an entry is found by counting the
+ * bits set before it. Every entry holds the index of the longest prefix that
+ * covers it at that level, and since consecutive entries mostly hold the
+ * same prefix, the second bitmap marks the entries where the prefix changes,
+ * and only those prefixes are stored. A lookup therefore reads at most four
+ * nodes, and a node costs tens of bytes rather than two 256-entry tables.
+ *
+ * For every destination prefix, the routes are grouped by source prefix and
+ * the routes with the minimum weight of each group are precomputed into an
+ * immutable list, which is returned as the ECMP route set when a single
+ * group matches the source address. When no route of the longest matching
+ * prefix matches the source address, the lookup falls back to the next
+ * shorter destination prefix, as the {@link RoutingTable} does.
+ *
+ * The table is meant to be rebuilt, and replaced, by the router mapper when
+ * the routes of a router change. Building the table visits the prefixes in
+ * address order and only allocates the compressed nodes.
+ */
+public final class CompressedRoutingTable {
+
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
+
+    private static final int STRIDE = 8;
+    private static final int NODE_SIZE = 1 << STRIDE;
+    private static final int LEVELS = 32 / STRIDE;
+    // The number of 64-bit words of a node bitmap.
+    private static final int WORDS = NODE_SIZE / 64;
+    private static final int NO_PREFIX = -1;
+
+    /**
+     * The routes for a given destination prefix, grouped by source prefix.
+     */
+    private static final class Prefix {
+        final int addr;
+        final int length;
+        int parent = NO_PREFIX;
+        int[] srcAddrs;
+        int[] srcLengths;
+        int[] minWeights;
+        List<Route>[] routes;
+
+        Prefix(int addr, int length) {
+            this.addr = addr;
+            this.length = length;
+        }
+    }
+
+    private final Prefix[] prefixes;
+    private final int defaultPrefix;
+    private final int numRoutes;
+
+    // The compressed trie nodes. For every node, the child and leaf bitmaps
+    // take WORDS words, and the bases are the positions of the node's first
+    // child in the nodes and of its first leaf in the leaves. The root node
+    // is the node 0.
+    private final long[] childBits;
+    private final long[] leafBits;
+    private final int[] childBases;
+    private final int[] leafBases;
+    private final int[] leaves;
+    private final int numNodes;
+
+    // The state of the trie while it is being built.
+    private long[] buildChildBits;
+    private long[] buildLeafBits;
+    private int[] buildChildBases;
+    private int[] buildLeafBases;
+    private int[] buildLeaves;
+    private int nodeCount;
+    private int leafCount;
+
+    public CompressedRoutingTable(Collection<Route> routes) {
+        numRoutes = routes.size();
+
+        // Group the routes by destination prefix.
+        Map<Long, List<Route>> byPrefix = new HashMap<>();
+        for (Route route : routes) {
+            Long key = prefixKey(route.dstNetworkAddr, route.dstNetworkLength);
+            List<Route> list = byPrefix.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                byPrefix.put(key, list);
+            }
+            list.add(route);
+        }
+
+        // Sort the prefixes by length, such that the parent of a prefix is
+        // indexed before it.
+        List<Long> keys = new ArrayList<>(byPrefix.keySet());
+        Collections.sort(keys, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                int diff = (int) (a >>> 32) - (int) (b >>> 32);
+                return diff != 0 ? diff : Long.compare(a, b);
+            }
+        });
+
+        prefixes = new Prefix[keys.size()];
+        Map<Long, Integer> indices = new HashMap<>();
+        int defaultIndex = NO_PREFIX;
+        for (int index = 0; index < prefixes.length; index++) {
+            long key = keys.get(index);
+            Prefix prefix = new Prefix((int) key, (int) (key >>> 32));
+            buildGroups(prefix, byPrefix.get(key));
+            prefix.parent = findParent(prefix, indices);
+            prefixes[index] = prefix;
+            indices.put(key, index);
+            if (prefix.length == 0)
+                defaultIndex = index;
+        }
+        defaultPrefix = defaultIndex;
+
+        // Sort the other prefixes by address, and by length for the same
+        // address: a prefix then comes before all the prefixes it contains.
+        Integer[] order = new Integer[prefixes.length];
+        int count = 0;
+        for (int index = 0; index < prefixes.length; index++) {
+            if (prefixes[index].length > 0)
+                order[count++] = index;
+        }
+        order = Arrays.copyOf(order, count);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                Prefix pa = prefixes[a];
+                Prefix pb = prefixes[b];
+                int diff = Integer.compare(pa.addr ^ Integer.MIN_VALUE,
+                                           pb.addr ^ Integer.MIN_VALUE);
+                return diff != 0 ? diff : pa.length - pb.length;
+            }
+        });
+        int[] sorted = new int[order.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = order[i];
+        }
+
+        // Build the trie.
+        int capacity = 16;
+        buildChildBits = new long[capacity * WORDS];
+        buildLeafBits = new long[capacity * WORDS];
+        buildChildBases = new int[capacity];
+        buildLeafBases = new int[capacity];
+        buildLeaves = new int[capacity * 4];
+        nodeCount = 1;
+        leafCount = 0;
+        buildNode(0, 0, sorted, 0, sorted.length, new int[LEVELS][NODE_SIZE]);
+
+        numNodes = nodeCount;
+        childBits = Arrays.copyOf(buildChildBits, numNodes * WORDS);
+        leafBits = Arrays.copyOf(buildLeafBits, numNodes * WORDS);
+        childBases = Arrays.copyOf(buildChildBases, numNodes);
+        leafBases = Arrays.copyOf(buildLeafBases, numNodes);
+        leaves = Arrays.copyOf(buildLeaves, leafCount);
+        buildChildBits = buildLeafBits = null;
+        buildChildBases = buildLeafBases = buildLeaves = null;
+    }
+
+    /**
+     * Builds the given node at the given level from the prefixes at the
+     * given range of the sorted prefixes, which are all longer than the
+     * level's first bit and contained in the node.
+     */
+    private void buildNode(int node, int level, int[] sorted, int from,
+                           int to, int[][] scratch) {
+        // Expand the prefixes ending at this level over the entries they
+        // cover: since a prefix is sorted before the prefixes it contains,
+        // the longer prefixes override the shorter ones.
+        int[] entries = scratch[level];
+        Arrays.fill(entries, NO_PREFIX);
+        int maxLength = (level + 1) * STRIDE;
+        int numChildren = 0;
+        int lastChild = -1;
+        for (int i = from; i < to; i++) {
+            Prefix prefix = prefixes[sorted[i]];
+            int entry = stride(prefix.addr, level);
+            if (prefix.length <= maxLength) {
+                int count = 1 << (maxLength - prefix.length);
+                Arrays.fill(entries, entry, entry + count, sorted[i]);
+            } else if (entry != lastChild) {
+                numChildren++;
+                lastChild = entry;
+            }
+        }
+
+        // Store the entries where the prefix changes.
+        int leafBase = leafCount;
+        for (int entry = 0; entry < NODE_SIZE; entry++) {
+            if (entry == 0 || entries[entry] != entries[entry - 1]) {
+                if (leafCount == buildLeaves.length) {
+                    buildLeaves = Arrays.copyOf(buildLeaves, leafCount * 2);
+                }
+                buildLeaves[leafCount++] = entries[entry];
+                setBit(buildLeafBits, node, entry);
+            }
+        }
+        buildLeafBases[node] = leafBase;
+
+        // Allocate the children contiguously, and build them.
+        int childBase = nodeCount;
+        buildChildBases[node] = childBase;
+        nodeCount += numChildren;
+        if (nodeCount > buildChildBases.length) {
+            int capacity = Math.max(nodeCount, buildChildBases.length * 2);
+            buildChildBits = Arrays.copyOf(buildChildBits, capacity * WORDS);
+            buildLeafBits = Arrays.copyOf(buildLeafBits, capacity * WORDS);
+            buildChildBases = Arrays.copyOf(buildChildBases, capacity);
+            buildLeafBases = Arrays.copyOf(buildLeafBases, capacity);
+        }
+        int child = childBase;
+        int i = from;
+        while (i < to) {
+            Prefix prefix = prefixes[sorted[i]];
+            if (prefix.length <= maxLength) {
+                i++;
+                continue;
+            }
+            int entry = stride(prefix.addr, level);
+            int end = i + 1;
+            while (end < to &&
+                   stride(prefixes[sorted[end]].addr, level) == entry) {
+                end++;
+            }
+            // The prefixes ending at this level for the same entry have the
+            // entry's first address, and are sorted before this range.
+            setBit(buildChildBits, node, entry);
+            buildNode(child++, level + 1, sorted, i, end, scratch);
+            i = end;
+        }
+    }
+
+    public int size() {
+        return numRoutes;
+    }
+
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+        return lookup(src.toInt(), dst.toInt(), log);
+    }
+
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst, Logger logger) {
+        return lookup(src.toInt(), dst.toInt(), logger);
+    }
+
+    /**
+     * Returns the routes with the minimum weight among those for the longest
+     * destination prefix matching the destination address, and whose source
+     * prefix matches the source address. The returned list is immutable.
+     */
+    public List<Route> lookup(int src, int dst, Logger logger) {
+        int index = defaultPrefix;
+        int node = 0;
+        for (int level = 0; level < LEVELS; level++) {
+            int entry = stride(dst, level);
+            int leaf =
+                leaves[leafBases[node] + rank(leafBits, node, entry) - 1];
+            if (leaf != NO_PREFIX)
+                index = leaf;
+            if (!isSet(childBits, node, entry))
+                break;
+            node = childBases[node] + rank(childBits, node, entry) - 1;
+        }
+
+        List<Route> ret = Collections.emptyList();
+        while (index != NO_PREFIX) {
+            ret = routesFor(prefixes[index], src);
+            if (!ret.isEmpty())
+                break;
+            index = prefixes[index].parent;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("lookup: return %s for src %s dst %s",
+                                       ret.toString(),
+                                       IPv4Addr.intToString(src),
+                                       IPv4Addr.intToString(dst)));
+        }
+        return ret;
+    }
+
+    private static List<Route> routesFor(Prefix prefix, int src) {
+        int minWeight = Integer.MAX_VALUE;
+        int group = -1;
+        int matches = 0;
+        for (int i = 0; i < prefix.srcAddrs.length; i++) {
+            if (IPv4Subnet.addrMatch(src, prefix.srcAddrs[i],
+                                     prefix.srcLengths[i])) {
+                if (prefix.minWeights[i] < minWeight) {
+                    minWeight = prefix.minWeights[i];
+                    group = i;
+                    matches = 1;
+                } else if (prefix.minWeights[i] == minWeight) {
+                    matches++;
+                }
+            }
+        }
+        if (matches == 0)
+            return Collections.emptyList();
+        if (matches == 1)
+            return prefix.routes[group];
+
+        // Several source prefixes match with the same weight: this is
+        // uncommon, and the only case in which a lookup allocates.
+        List<Route> ret = new ArrayList<>();
+        for (int i = group; i < prefix.srcAddrs.length; i++) {
+            if (prefix.minWeights[i] == minWeight &&
+                IPv4Subnet.addrMatch(src, prefix.srcAddrs[i],
+                                     prefix.srcLengths[i])) {
+                ret.addAll(prefix.routes[i]);
+            }
+        }
+        return Collections.unmodifiableList(ret);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void buildGroups(Prefix prefix, List<Route> routes) {
+        Map<Long, List<Route>> bySource = new HashMap<>();
+        for (Route route : routes) {
+            Long key = prefixKey(route.srcNetworkAddr, route.srcNetworkLength);
+            List<Route> list = bySource.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                bySource.put(key, list);
+            }
+            list.add(route);
+        }
+        int size = bySource.size();
+        prefix.srcAddrs = new int[size];
+        prefix.srcLengths = new int[size];
+        prefix.minWeights = new int[size];
+        prefix.routes = new List[size];
+        int group = 0;
+        for (Map.Entry<Long, List<Route>> entry : bySource.entrySet()) {
+            int minWeight = Integer.MAX_VALUE;
+            List<Route> minRoutes = new ArrayList<>();
+            for (Route route : entry.getValue()) {
+                if (route.weight < minWeight) {
+                    minRoutes.clear();
+                    minWeight = route.weight;
+                }
+                if (route.weight == minWeight)
+                    minRoutes.add(route);
+            }
+            long key = entry.getKey();
+            prefix.srcAddrs[group] = (int) key;
+            prefix.srcLengths[group] = (int) (key >>> 32);
+            prefix.minWeights[group] = minWeight;
+            prefix.routes[group] = Collections.unmodifiableList(minRoutes);
+            group++;
+        }
+    }
+
+    /**
+     * Finds the index of the longest prefix shorter than the given one that
+     * contains it, among the prefixes already indexed.
+     */
+    private static int findParent(Prefix prefix, Map<Long, Integer> indices) {
+        for (int length = prefix.length - 1; length >= 0; length--) {
+            Integer index = indices.get(prefixKey(prefix.addr, length));
+            if (index != null)
+                return index;
+        }
+        return NO_PREFIX;
+    }
+
+    private static long prefixKey(int addr, int length) {
+        return ((long) length << 32) | (mask(addr, length) & 0xffffffffL);
+    }
+
+    private static int mask(int addr, int length) {
+        return length == 0 ? 0 : addr & (~0 << (32 - length));
+    }
+
+    private static int stride(int addr, int level) {
+        return (addr >>> (32 - (level + 1) * STRIDE)) & (NODE_SIZE - 1);
+    }
+
+    private static void setBit(long[] bits, int node, int entry) {
+        bits[node * WORDS + (entry >>> 6)] |= 1L << entry;
+    }
+
+    private static boolean isSet(long[] bits, int node, int entry) {
+        return (bits[node * WORDS + (entry >>> 6)] & (1L << entry)) != 0;
+    }
+
+    /**
+     * Returns the number of bits set in a node's bitmap up to, and including,
+     * the given entry. This is one more than the position of the entry's
+     * child among the node's children, and of the entry's leaf among the
+     * node's leaves.
+     */
+    private static int rank(long[] bits, int node, int entry) {
+        int word = node * WORDS;
+        int last = word + (entry >>> 6);
+        int count = 0;
+        while (word < last) {
+            count += Long.bitCount(bits[word++]);
+        }
+        long mask = -1L >>> (63 - (entry & 63));
+        return count + Long.bitCount(bits[last] & mask);
+    }
+
+    /**
+     * Returns the approximate number of bytes used by the trie, excluding
+     * the prefixes and their routes.
+     */
+    public long trieSize() {
+        return 8L * (childBits.length + leafBits.length) +
+               4L * (childBases.length + leafBases.length + leaves.length);
+    }
+
+    @Override
+    public String toString() {
+        return "CompressedRoutingTable [routes=" + numRoutes + ", prefixes=" +
+               prefixes.length + ", nodes=" + numNodes + "]";
+    }
+}
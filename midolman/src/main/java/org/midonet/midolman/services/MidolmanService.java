@@ -28,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.midolman.host.services.HostService;
+import org.midonet.midolman.monitoring.FlowRecorder;
 import org.midonet.midolman.state.PeerResolver;
 import org.midonet.midolman.topology.VirtualToPhysicalMapper;
 
@@ -63,6 +64,9 @@ public class MidolmanService extends AbstractService {
     @Inject
     PeerResolver resolver;
 
+    @Inject
+    FlowRecorder flowRecorder;
+
     private JmxReporter jmxReporter = null;
 
     @Override
@@ -129,6 +133,13 @@ public class MidolmanService extends AbstractService {
             }
         }
 
+        // The packet workers stopped with the actors service.
+        try {
+            flowRecorder.close();
+        } catch (Exception e) {
+            log.error("Could not close the flow recorder", e);
+        }
+
         if (state() != State.FAILED)
             notifyStopped();
     }
@@ -16,25 +16,41 @@
 
 package org.midonet.midolman.state;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.Ids;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.cluster.backend.Directory;
 import org.midonet.cluster.backend.DirectoryCallback;
 import org.midonet.cluster.backend.zookeeper.ZkConnectionAwareWatcher;
+import org.midonet.util.concurrent.NamedThreadFactory;
 
 public abstract class ReplicatedMap<K, V> {
     private final static Logger log =
@@ -42,6 +58,32 @@ public abstract class ReplicatedMap<K, V> {
 
     protected ZkConnectionAwareWatcher connectionWatcher;
 
+    /** The version of a local entry not yet published to storage. */
+    private static final int LOCAL_VERSION = -1;
+
+    /** The number of records kept in the change log of a map. */
+    static final int CHANGE_LOG_SIZE = 256;
+    /** A client trims the change log after writing this many records. */
+    static final int CHANGE_LOG_TRIM_INTERVAL = 64;
+    /** The interval in milliseconds between the audits of a map that uses
+     * a change log. */
+    static final long CHANGE_LOG_AUDIT_INTERVAL = 10000L;
+
+    /** The number of times the version of the children of a map is read
+     * again when the entries change while it is compared. */
+    static final int AUDIT_ATTEMPTS = 3;
+
+    private static final String RECORD_PREFIX = "r";
+    private static final long NO_RECORD = -1L;
+    private static final int UNKNOWN_VERSION = -1;
+
+    /** Audits and trims the change logs of all the maps. */
+    private static class ChangeLogExecutor {
+        static final ScheduledExecutorService INSTANCE =
+            Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("replicated-map-change-log", true));
+    }
+
     /*
      * TODO(pino): don't allow deletes to be lost.
      *
@@ -61,10 +103,63 @@ public abstract class ReplicatedMap<K, V> {
         void processChange(K1 key, V1 oldValue, V1 newValue);
     }
 
+    /**
+     * Publishes the updates of the replicated maps in local-first mode.
+     *
+     * In local-first mode, a map applies its updates to the local map and
+     * notifies its watchers immediately, and the publisher writes them to
+     * storage in the background. The pending updates of a map are coalesced
+     * by key, such that only the last update of a key is written, and they
+     * are published in batches of at most <pre>batchSize</pre> operations,
+     * with at least <pre>interval</pre> milliseconds between two batches of
+     * the same map. A publisher can be shared by several maps.
+     */
+    public static final class Publisher {
+        private final ScheduledExecutorService executor;
+        private final long interval;
+        private final int batchSize;
+
+        public Publisher(ScheduledExecutorService executor, long interval,
+                         int batchSize) {
+            this.executor = executor;
+            this.interval = interval;
+            this.batchSize = Math.max(batchSize, 1);
+        }
+    }
+
     public void setConnectionWatcher(ZkConnectionAwareWatcher watcher) {
         connectionWatcher = watcher;
     }
 
+    /**
+     * Enables the local-first mode, where the updates of this map are
+     * published to storage asynchronously by the given publisher. The mode
+     * only applies to maps that create ephemeral entries, and it must be set
+     * before the map is used.
+     */
+    public void setPublisher(Publisher publisher) {
+        this.publisher = createsEphemeralNode ? publisher : null;
+    }
+
+    /**
+     * Enables the change log of this map: a directory where the clients of
+     * the map record the entries they add and remove. The map then watches
+     * the change log instead of its entries, and reads only the records
+     * written since the last record it applied. It reads all the entries
+     * when it starts, and when the records following the last applied record
+     * were trimmed from the log.
+     *
+     * The entries and their records are written in the same transaction.
+     * Changes that are not recorded, such as the ephemeral entries removed
+     * when a session expires or the entries written by other clients, are
+     * detected by a periodic audit comparing the version of the children of
+     * the map directory with the changes applied by the map. The change log
+     * must be set before the map is started.
+     */
+    public void setChangeLog(Directory changeLog) {
+        this.changeLog = changeLog;
+    }
+
     private static class Notification<K1, V1> {
         K1 key;
         V1 oldValue, newValue;
@@ -100,35 +195,26 @@ public abstract class ReplicatedMap<K, V> {
         }
 
         /**
-         * Takes the curPaths set and populates the given newMap with them,
-         * using only the highest versioned entry for each key, and adding to
-         * cleanupPaths all that need to be purged.
+         * Applies the difference between the current paths and the paths
+         * seen by the previous run, such that only the added and removed
+         * entries are decoded and compared with the local map. For every
+         * key, the entry with the highest version is used, and the older
+         * entries that belong to this ZK client are added to cleanupPaths.
          */
-        void populateNewMap(final Map<K, MapValue> newMap,
-                            final Set<String> curPaths,
-                            final List<Path> cleanupPaths) {
+        void applyChanges(final Set<String> curPaths,
+                          final List<Notification<K, V>> notifications,
+                          final List<Path> cleanupPaths) {
+            for (String path : knownPaths) {
+                if (!curPaths.contains(path)) {
+                    remoteRemoved(decodePath(path), notifications);
+                }
+            }
             for (String path : curPaths) {
-                Path p = decodePath(path);
-                MapValue mv = newMap.get(p.key);
-                if (mv == null)
-                    newMap.put(p.key, new MapValue(p.value, p.version));
-                else if (mv.version < p.version) {
-                    // The one currently in newMap needs to be replaced.
-                    // Also clean it up if it belongs to this ZK client.
-                    newMap.put(p.key, new MapValue(p.value, p.version));
-
-                    if (ownedVersions.contains(mv.version)) {
-                        p.value = mv.value;
-                        p.version = mv.version;
-                        cleanupPaths.add(p);
-                    }
-                } else if (mv.version > p.version &&
-                           ownedVersions.contains(p.version)) {
-                    // The one currently in newMap is newer and the other
-                    // one belongs to this ZK client. Clean it up.
-                    cleanupPaths.add(p);
+                if (!knownPaths.contains(path)) {
+                    remoteAdded(decodePath(path), notifications, cleanupPaths);
                 }
             }
+            knownPaths = curPaths;
         }
 
         /**
@@ -141,7 +227,10 @@ public abstract class ReplicatedMap<K, V> {
         void cleanup(final List<Path> paths) {
             for (Path path : paths) {
                 try {
-                    dir.delete(encodePath(path.key, path.value, path.version));
+                    deleteEntry(encodePath(path.key, path.value,
+                                           path.version));
+                } catch (KeeperException.NoNodeException e) {
+                    log.debug("Entry {} already deleted", path.key);
                 } catch (KeeperException e) {
                     log.error("DirectoryWatcher.run", e);
                     // TODO (guillermo) connectionWatcher.handleError()?
@@ -158,66 +247,230 @@ public abstract class ReplicatedMap<K, V> {
             }
         }
 
+        public void run() {
+            if (!running.get()) {
+                return;
+            }
+            Set<String> curPaths = getCurPaths();
+            if (curPaths == null)
+                return;
+
+            List<Path> cleanupPaths = new ArrayList<>();
+            List<Notification<K,V>> notifications = new ArrayList<>();
+
+            synchronized(ReplicatedMap.this) {
+                if (!running.get()) {
+                    return;
+                }
+                applyChanges(curPaths, notifications, cleanupPaths);
+            }
+
+            notifyWatchers(notifications);
+            cleanup(cleanupPaths);
+        }
+    }
+
+    /**
+     * Watches the change log of the map, and applies the changes recorded
+     * since the last record applied. All the entries are read instead when
+     * the watcher has no baseline, or when there is a gap between the last
+     * applied record and the records in the log. The runs are serialized,
+     * such that the records are applied in order.
+     *
+     * The watcher also tracks the version of the children of the map
+     * directory, which storage increments for every entry created or
+     * deleted: the version read with the baseline, plus the number of
+     * changes applied since. The version differs from storage when an entry
+     * was changed without a record.
+     */
+    private class ChangeLogWatcher implements Runnable {
+        // Whether the known paths are a baseline for the records following
+        // the last applied record.
+        private boolean synced = false;
+        private long lastRecord = NO_RECORD;
+        private int childrenVersion = UNKNOWN_VERSION;
+        // Whether the watcher waits for the writer to complete a record.
+        private boolean waiting = false;
+        private long waitingRecord = NO_RECORD;
+        // The record the watcher waited for at the last audit.
+        private long auditedRecord = NO_RECORD;
+
+        public synchronized void run() {
+            try {
+                update();
+            } catch (KeeperException e) {
+                log.warn("ChangeLogWatcher.run {}", e);
+                if (connectionWatcher == null) {
+                    throw new RuntimeException(e);
+                }
+                connectionWatcher.handleError("ReplicatedMap", this, e);
+            } catch (InterruptedException e) {
+                log.error("ChangeLogWatcher.run {}", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Reads all the entries of the map, and the change log from the
+         * last record in the log. */
+        synchronized void resync() {
+            synced = false;
+            run();
+        }
+
         /**
-         * Compiles notifications to be sent after the newMap has been compiled.
+         * Applies the change log, and returns whether the version of the
+         * children of the map matches storage. The comparison is retried if
+         * the entries change meanwhile, and the method returns true if they
+         * keep changing, such that the next audit compares them again.
          *
-         * @param notifications where to accumulate the notifications
-         * @param newMap the new map generated from the last set of paths
+         * While the watcher waits for the writer to complete a record, the
+         * versions are not compared, and the method returns true. However,
+         * if the same record is still incomplete at the next audit, the
+         * writer may have failed before completing it, and the method
+         * returns false, such that the map reads all the entries and skips
+         * the record.
          */
-        void collectNotifications(final Set<Notification<K, V>> notifications,
-                                  final Map<K, MapValue> newMap) {
-
-            Set<K> oldKeys = new HashSet<>(localMap.keySet());
-            oldKeys.removeAll(newMap.keySet());
-            for (K deletedKey : oldKeys) {
-                MapValue mv = localMap.get(deletedKey);
-                notifications.add(new Notification<>(
-                    deletedKey, mv.value, null));
+        synchronized boolean matches()
+            throws KeeperException, InterruptedException {
+            for (int attempt = 0; attempt < AUDIT_ATTEMPTS; attempt++) {
+                int version = dir.getChildrenVersion("/");
+                update();
+                if (!running.get())
+                    return true;
+                if (waiting) {
+                    if (waitingRecord == auditedRecord) {
+                        log.info("Replicated map {} record {} was not " +
+                                 "completed since the last audit",
+                                 dir.getPath(), waitingRecord);
+                        auditedRecord = NO_RECORD;
+                        return false;
+                    }
+                    auditedRecord = waitingRecord;
+                    return true;
+                }
+                auditedRecord = NO_RECORD;
+                if (dir.getChildrenVersion("/") == version)
+                    return childrenVersion == version;
             }
+            return true;
+        }
 
-            for (Map.Entry<K, MapValue> entry : newMap.entrySet()) {
-                K key = entry.getKey();
-                V value = entry.getValue().value;
-                MapValue mv = localMap.get(key);
-                if (mv == null) {
-                    notifications.add(new Notification<>(
-                        key, null, value));
-                } else if (mv.version != entry.getValue().version) {
-                    // We compare versions because the 'value' members
-                    // might not implement .equals accurately.
-                    notifications.add(new Notification<>(
-                        key, mv.value, value));
-                } // else mv == entry:  No notification.
+        private boolean isGap(SortedMap<Long, String> records) {
+            if (lastRecord == NO_RECORD) {
+                // The log was empty: records may have been trimmed only if
+                // it filled up since.
+                return records.size() >= CHANGE_LOG_SIZE;
             }
-
+            return !records.containsKey(lastRecord);
         }
 
-        public void run() {
+        private void update() throws KeeperException, InterruptedException {
             if (!running.get()) {
                 return;
             }
-            Set<String> curPaths = getCurPaths();
-            if (curPaths == null)
+            List<Path> cleanupPaths = new ArrayList<>();
+            List<Notification<K,V>> notifications = new ArrayList<>();
+
+            if (synced) {
+                SortedMap<Long, String> records = getRecords(this);
+                if (isGap(records)) {
+                    log.info("Replicated map {} missed records of its " +
+                             "change log, reading all the entries",
+                             dir.getPath());
+                    synced = false;
+                } else if (!applyRecords(records, notifications,
+                                         cleanupPaths)) {
+                    return;
+                }
+            }
+            if (!synced && !baseline(notifications, cleanupPaths)) {
                 return;
+            }
 
-            List<Path> cleanupPaths = new LinkedList<>();
-            Set<Notification<K,V>> notifications = new HashSet<>();
+            notifyWatchers(notifications);
+            myWatcher.cleanup(cleanupPaths);
+        }
 
-            synchronized(ReplicatedMap.this) {
-                if (!running.get()) {
-                    return;
+        /**
+         * Applies the records following the last applied record, stopping at
+         * a record the writer has not completed yet, which is read again
+         * when completed. Returns false if the map was stopped.
+         */
+        private boolean applyRecords(SortedMap<Long, String> records,
+                                     List<Notification<K, V>> notifications,
+                                     List<Path> cleanupPaths)
+            throws KeeperException, InterruptedException {
+            waiting = false;
+            for (Map.Entry<Long, String> record :
+                    records.tailMap(lastRecord + 1).entrySet()) {
+                String path = "/" + record.getValue();
+                byte[] data;
+                try {
+                    data = changeLog.get(path, null);
+                    if (isIncomplete(data)) {
+                        data = changeLog.get(path, this);
+                    }
+                } catch (KeeperException.NoNodeException e) {
+                    // Trimmed since listed.
+                    synced = false;
+                    return true;
+                }
+                if (isIncomplete(data)) {
+                    waiting = true;
+                    waitingRecord = record.getKey();
+                    return true;
+                }
+                synchronized(ReplicatedMap.this) {
+                    if (!running.get()) {
+                        return false;
+                    }
+                    applyRecord(data, notifications, cleanupPaths);
+                }
+                lastRecord = record.getKey();
+                if (childrenVersion != UNKNOWN_VERSION) {
+                    childrenVersion += changeCount(data);
                 }
-                ConcurrentMap<K,MapValue> newMap = new ConcurrentHashMap<>();
-                populateNewMap(newMap, curPaths, cleanupPaths);
-                collectNotifications(notifications, newMap);
-                localMap = newMap;
             }
+            return true;
+        }
 
-            for (Notification<K,V> notice : notifications) {
-                notifyWatchers(notice.key, notice.oldValue, notice.newValue);
+        /**
+         * Reads all the entries of the map, and takes the last record of the
+         * change log as the last applied record. The records are listed
+         * between two reads of the version of the children, such that the
+         * version includes exactly the changes of the listed records. If
+         * the entries keep changing, the version is unknown, and the next
+         * audit reads all the entries again. Returns false if the map was
+         * stopped.
+         */
+        private boolean baseline(List<Notification<K, V>> notifications,
+                                 List<Path> cleanupPaths)
+            throws KeeperException, InterruptedException {
+            int version = UNKNOWN_VERSION;
+            SortedMap<Long, String> records = null;
+            for (int attempt = 0;
+                 attempt < AUDIT_ATTEMPTS && version == UNKNOWN_VERSION;
+                 attempt++) {
+                int before = dir.getChildrenVersion("/");
+                records = getRecords(this);
+                if (dir.getChildrenVersion("/") == before) {
+                    version = before;
+                }
             }
-
-            cleanup(cleanupPaths);
+            // The entries are read after the records were listed, such that
+            // they include the changes of the listed records.
+            Set<String> curPaths = dir.getChildren("/", null);
+            synchronized(ReplicatedMap.this) {
+                if (!running.get()) {
+                    return false;
+                }
+                myWatcher.applyChanges(curPaths, notifications, cleanupPaths);
+            }
+            lastRecord = records.isEmpty() ? NO_RECORD : records.lastKey();
+            childrenVersion = version;
+            waiting = false;
+            synced = true;
+            return true;
         }
     }
 
@@ -227,8 +480,45 @@ public abstract class ReplicatedMap<K, V> {
     private Set<Integer> ownedVersions;
     private Set<Watcher<K, V>> watchers;
     private DirectoryWatcher myWatcher;
+    private ChangeLogWatcher logWatcher;
     private boolean createsEphemeralNode;
 
+    // The paths seen by the last run of the directory watcher.
+    private Set<String> knownPaths = Collections.emptySet();
+    // Entries in storage superseded by a newer version of the same key, that
+    // do not belong to this ZK client.
+    private Map<K, List<MapValue>> shadowed = new HashMap<>();
+
+    // Local-first mode: the keys with local updates not yet published, and
+    // the storage entries of the keys with pending or in-flight updates,
+    // which are hidden by the local map until the updates are published.
+    private Publisher publisher;
+    private Set<K> pendingKeys = new LinkedHashSet<>();
+    private Map<K, MapValue> hidden = new HashMap<>();
+    private boolean scheduled = false;
+    private long lastPublished = 0L;
+    private final Runnable publishTask = new Runnable() {
+        public void run() {
+            publish();
+        }
+    };
+
+    // Change log mode: the change log directory, the number of records
+    // written by this client, and the periodic audit of the entries.
+    private Directory changeLog;
+    private final AtomicInteger recordsWritten = new AtomicInteger();
+    private ScheduledFuture<?> audit;
+    private final Runnable auditTask = new Runnable() {
+        public void run() {
+            audit();
+        }
+    };
+    private final Runnable trimTask = new Runnable() {
+        public void run() {
+            trim();
+        }
+    };
+
     public ReplicatedMap(Directory dir) {
         this(dir, true);
     }
@@ -249,6 +539,7 @@ public abstract class ReplicatedMap<K, V> {
         this.ownedVersions = new HashSet<>();
         this.watchers = new HashSet<>();
         this.myWatcher = new DirectoryWatcher();
+        this.logWatcher = new ChangeLogWatcher();
         this.createsEphemeralNode = ephemeral;
     }
 
@@ -262,15 +553,32 @@ public abstract class ReplicatedMap<K, V> {
 
     public void start() {
         if (running.compareAndSet(false, true)) {
-            myWatcher.run();
+            if (changeLog == null) {
+                myWatcher.run();
+                return;
+            }
+            logWatcher.resync();
+            synchronized(this) {
+                audit = ChangeLogExecutor.INSTANCE.scheduleWithFixedDelay(
+                    auditTask, CHANGE_LOG_AUDIT_INTERVAL,
+                    CHANGE_LOG_AUDIT_INTERVAL, TimeUnit.MILLISECONDS);
+            }
         }
     }
 
     public synchronized void stop() {
         running.set(false);
+        if (audit != null) {
+            audit.cancel(false);
+            audit = null;
+        }
         Map<K, MapValue> oldMap = localMap;
         localMap = new ConcurrentHashMap<>();
         oldMap.clear();
+        knownPaths = Collections.emptySet();
+        shadowed.clear();
+        pendingKeys.clear();
+        hidden.clear();
     }
 
     public V get(K key) {
@@ -348,6 +656,10 @@ public abstract class ReplicatedMap<K, V> {
         }
 
         public void onSuccess(Void result) {
+            deleted();
+        }
+
+        private void deleted() {
             synchronized(ReplicatedMap.this) {
                 /* The map entry that was just removed from Zookeeper was or
                    will be deleted from the local map in method run(). This is
@@ -362,12 +674,16 @@ public abstract class ReplicatedMap<K, V> {
             final DeleteCallBack thisCb = this;
             return new Runnable() {
                 public void run() {
-                    dir.asyncDelete(encodePath(key, value, version), thisCb);
+                    deleteEntry(encodePath(key, value, version), thisCb);
                 }
             };
         }
 
         public void onError(KeeperException ex) {
+            if (ex instanceof KeeperException.NoNodeException) {
+                deleted();
+                return;
+            }
             String opDesc = "Replicated map deletion of key: " + key;
             connectionWatcher.handleError(opDesc, deleteRunnable(), ex);
         }
@@ -383,16 +699,31 @@ public abstract class ReplicatedMap<K, V> {
      * map.
      *
      * Our notifies for this change are called from the update notification to
-     * the DirectoryWatcher after ZK has accepted it.
+     * the DirectoryWatcher after ZK has accepted it. In local-first mode, the
+     * local map and the watchers are updated immediately, and the entry is
+     * published later.
      */
     public void put(final K key, final V value) {
+        if (publisher != null) {
+            MapValue old;
+            synchronized (this) {
+                if (!hidden.containsKey(key)) {
+                    hidden.put(key, localMap.get(key));
+                }
+                old = localMap.put(key, new MapValue(value, LOCAL_VERSION));
+                pendingKeys.add(key);
+                schedule();
+            }
+            notifyWatchers(key, (old == null) ? null : old.value, value);
+            return;
+        }
         String path = this.createsEphemeralNode ? encodePath(key, value)
                 : encodeFullPath(key.toString(), value.toString(),
                                  Integer.MAX_VALUE);
         CreateMode mode = this.createsEphemeralNode ?
                 CreateMode.EPHEMERAL_SEQUENTIAL : CreateMode.PERSISTENT;
 
-        dir.asyncAdd(path, null, mode, new PutCallback(key, value));
+        addEntry(path, mode, new PutCallback(key, value));
     }
 
     /**
@@ -404,7 +735,12 @@ public abstract class ReplicatedMap<K, V> {
      */
     public synchronized boolean isKeyOwner(K key) {
         MapValue mv = localMap.get(key);
-        return null != mv && ownedVersions.contains(mv.version);
+        return null != mv && isOwned(mv);
+    }
+
+    private boolean isOwned(MapValue mv) {
+        return mv.version == LOCAL_VERSION ||
+               ownedVersions.contains(mv.version);
     }
 
     /**
@@ -417,7 +753,9 @@ public abstract class ReplicatedMap<K, V> {
      * new value for <pre>key</pre> is null.
      *
      * The get and verifications are performed synchronously blocking on the
-     * map itself. Notifications and deletion from the ZK directory are not.
+     * map itself. Notifications and deletion from the ZK directory are not,
+     * except in local-first mode, where the watchers are notified
+     * immediately.
      *
      * NOTE: when val is null, the behaviour will be the same as removeIfOwner,
      * that is, it'll delete whatever value is there.
@@ -437,14 +775,25 @@ public abstract class ReplicatedMap<K, V> {
             mv = localMap.get(key);
             if (null == mv)
                 return null;
-            if (!ownedVersions.contains(mv.version))
+            if (!isOwned(mv))
                 return null;
             if ((ensureVal != null) && !mv.value.equals(ensureVal))
                 return null;
-
+            if (publisher != null) {
+                if (!hidden.containsKey(key)) {
+                    hidden.put(key, mv);
+                }
+                localMap.remove(key);
+                pendingKeys.add(key);
+                schedule();
+            }
         }
-        dir.asyncDelete(encodePath(key, mv.value, mv.version),
-                        new DeleteCallBack(key, mv.value, mv.version));
+        if (publisher != null) {
+            notifyWatchers(key, mv.value, null);
+            return mv.value;
+        }
+        deleteEntry(encodePath(key, mv.value, mv.version),
+                    new DeleteCallBack(key, mv.value, mv.version));
         return mv.value;
     }
 
@@ -470,6 +819,598 @@ public abstract class ReplicatedMap<K, V> {
         }
     }
 
+    private void notifyWatchers(final List<Notification<K, V>> notifications) {
+        for (Notification<K, V> notice : notifications) {
+            notifyWatchers(notice.key, notice.oldValue, notice.newValue);
+        }
+    }
+
+    /**
+     * Adds a notification for a change of the local map, unless the entry
+     * did not change. We compare versions because the 'value' members might
+     * not implement .equals accurately.
+     */
+    private void changed(K key, MapValue oldMv, MapValue newMv,
+                         List<Notification<K, V>> notifications) {
+        if (oldMv == newMv)
+            return;
+        if (oldMv != null && newMv != null &&
+            (oldMv.version == newMv.version || oldMv.value == newMv.value))
+            return;
+        notifications.add(new Notification<>(
+            key, (oldMv == null) ? null : oldMv.value,
+            (newMv == null) ? null : newMv.value));
+    }
+
+    /*
+     * The following methods maintain the storage entries as seen by this map,
+     * and must be called while holding the map lock. The storage entry of a
+     * key is the entry in the local map, unless the key has pending local
+     * updates, in which case it is hidden by the local entry.
+     */
+
+    private MapValue remoteGet(K key) {
+        return hidden.containsKey(key) ? hidden.get(key) : localMap.get(key);
+    }
+
+    private void remoteSet(K key, MapValue mv,
+                           List<Notification<K, V>> notifications) {
+        if (hidden.containsKey(key)) {
+            hidden.put(key, mv);
+        } else {
+            MapValue old = (mv == null) ? localMap.remove(key)
+                                        : localMap.put(key, mv);
+            changed(key, old, mv, notifications);
+        }
+    }
+
+    private boolean isSameEntry(MapValue mv, Path p) {
+        return mv.version == p.version &&
+               encodeValue(mv.value).equals(encodeValue(p.value));
+    }
+
+    private void remoteAdded(Path p, List<Notification<K, V>> notifications,
+                             List<Path> cleanupPaths) {
+        MapValue mv = remoteGet(p.key);
+        if (mv == null) {
+            remoteSet(p.key, new MapValue(p.value, p.version), notifications);
+        } else if (mv.version < p.version) {
+            superseded(p.key, mv, cleanupPaths);
+            remoteSet(p.key, new MapValue(p.value, p.version), notifications);
+        } else if (!isSameEntry(mv, p)) {
+            superseded(p.key, new MapValue(p.value, p.version), cleanupPaths);
+        } // else the entry is already known, when published by this map.
+    }
+
+    private void remoteRemoved(Path p, List<Notification<K, V>> notifications) {
+        MapValue mv = remoteGet(p.key);
+        if (mv != null && isSameEntry(mv, p)) {
+            remoteSet(p.key, takeShadowed(p.key), notifications);
+            return;
+        }
+        List<MapValue> versions = shadowed.get(p.key);
+        if (versions == null)
+            return;
+        for (Iterator<MapValue> it = versions.iterator(); it.hasNext();) {
+            if (isSameEntry(it.next(), p)) {
+                it.remove();
+                break;
+            }
+        }
+        if (versions.isEmpty())
+            shadowed.remove(p.key);
+    }
+
+    /**
+     * An older entry of a key is cleaned up if it belongs to this ZK client,
+     * otherwise it is kept in case the newer entries are removed.
+     */
+    private void superseded(K key, MapValue mv, List<Path> cleanupPaths) {
+        if (ownedVersions.contains(mv.version)) {
+            cleanupPaths.add(new Path(key, mv.value, mv.version));
+            return;
+        }
+        List<MapValue> versions = shadowed.get(key);
+        if (versions == null) {
+            versions = new ArrayList<>(1);
+            shadowed.put(key, versions);
+        }
+        versions.add(mv);
+    }
+
+    private MapValue takeShadowed(K key) {
+        List<MapValue> versions = shadowed.get(key);
+        if (versions == null)
+            return null;
+        int newest = 0;
+        for (int index = 1; index < versions.size(); index++) {
+            if (versions.get(index).version > versions.get(newest).version)
+                newest = index;
+        }
+        MapValue mv = versions.remove(newest);
+        if (versions.isEmpty())
+            shadowed.remove(key);
+        return mv;
+    }
+
+    /**
+     * Replaces the local entry of a key without pending updates with its
+     * storage entry. The watchers are not notified when the storage entry
+     * is the published local entry.
+     */
+    private void settle(K key, List<Notification<K, V>> notifications) {
+        MapValue mv = hidden.remove(key);
+        MapValue old = (mv == null) ? localMap.remove(key)
+                                    : localMap.put(key, mv);
+        if (old != null && mv != null && old.version == LOCAL_VERSION &&
+            old.value.equals(mv.value))
+            return;
+        changed(key, old, mv, notifications);
+    }
+
+    /** Schedules the publication of the pending updates in local-first mode.
+     * Must be called while holding the map lock. */
+    private void schedule() {
+        if (scheduled || pendingKeys.isEmpty())
+            return;
+        long delay = lastPublished + publisher.interval -
+                     System.currentTimeMillis();
+        try {
+            publisher.executor.schedule(publishTask, Math.max(delay, 0L),
+                                        TimeUnit.MILLISECONDS);
+            scheduled = true;
+        } catch (RejectedExecutionException e) {
+            log.warn("Cannot publish the updates of the replicated map {}",
+                     dir.getPath());
+        }
+    }
+
+    /**
+     * Publishes a batch of pending updates with a single multi request. If
+     * the request fails, the updates of the batch are published one by one,
+     * such that a failed update does not affect the others.
+     */
+    void publish() {
+        List<Publication> batch = new ArrayList<>();
+        List<Notification<K, V>> notifications = new ArrayList<>();
+        synchronized (this) {
+            scheduled = false;
+            lastPublished = System.currentTimeMillis();
+            Iterator<K> it = pendingKeys.iterator();
+            while (it.hasNext() && batch.size() < publisher.batchSize) {
+                K key = it.next();
+                it.remove();
+                MapValue local = localMap.get(key);
+                MapValue remote = hidden.get(key);
+                if (local != null && local.version == LOCAL_VERSION) {
+                    batch.add(new Publication(key, local, null));
+                } else if (local == null && remote != null &&
+                           ownedVersions.contains(remote.version)) {
+                    batch.add(new Publication(key, null, remote));
+                } else {
+                    settle(key, notifications);
+                }
+            }
+            schedule();
+        }
+        notifyWatchers(notifications);
+        if (batch.isEmpty())
+            return;
+
+        List<Op> ops = new ArrayList<>(batch.size());
+        for (Publication pub : batch) {
+            ops.add(pub.op());
+        }
+        List<OpResult> results;
+        try {
+            results = multi(ops);
+        } catch (KeeperException e) {
+            log.info("Publishing {} updates of replicated map {} failed, " +
+                     "publishing them individually: {}", batch.size(),
+                     dir.getPath(), e.getMessage());
+            results = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            results = null;
+        }
+        if (results == null) {
+            for (Publication pub : batch) {
+                pub.publishAsync();
+            }
+            return;
+        }
+        for (int index = 0; index < batch.size(); index++) {
+            Publication pub = batch.get(index);
+            if (results.get(index) instanceof OpResult.CreateResult) {
+                pub.published(
+                    ((OpResult.CreateResult) results.get(index)).getPath());
+            } else {
+                pub.published(null);
+            }
+        }
+    }
+
+    /**
+     * Adds an entry to storage, together with its change log record if
+     * enabled. The callback receives the path of the entry relative to the
+     * map directory.
+     */
+    private void addEntry(String path, CreateMode mode,
+                          final DirectoryCallback<String> cb) {
+        if (changeLog == null) {
+            dir.asyncAdd(path, null, mode, cb);
+            return;
+        }
+        final List<Op> ops = Collections.singletonList(
+            Op.create(absolutePath(path), null, Ids.OPEN_ACL_UNSAFE, mode));
+        dir.asyncMulti(withRecord(ops),
+                       new DirectoryCallback<List<OpResult>>() {
+            public void onSuccess(List<OpResult> results) {
+                recorded(ops, results);
+                cb.onSuccess(entryName(
+                    ((OpResult.CreateResult) results.get(0)).getPath()));
+            }
+            public void onError(KeeperException ex) {
+                cb.onError(ex);
+            }
+            public void onTimeout() {
+                cb.onTimeout();
+            }
+        });
+    }
+
+    /** Deletes an entry from storage, together with its change log record
+     * if enabled. */
+    private void deleteEntry(String path, final DirectoryCallback<Void> cb) {
+        if (changeLog == null) {
+            dir.asyncDelete(path, cb);
+            return;
+        }
+        final List<Op> ops = Collections.singletonList(
+            Op.delete(absolutePath(path), -1));
+        dir.asyncMulti(withRecord(ops),
+                       new DirectoryCallback<List<OpResult>>() {
+            public void onSuccess(List<OpResult> results) {
+                recorded(ops, results);
+                cb.onSuccess(null);
+            }
+            public void onError(KeeperException ex) {
+                cb.onError(ex);
+            }
+            public void onTimeout() {
+                cb.onTimeout();
+            }
+        });
+    }
+
+    /** Deletes an entry from storage synchronously, together with its
+     * change log record if enabled. */
+    private void deleteEntry(String path)
+        throws KeeperException, InterruptedException {
+        if (changeLog == null) {
+            dir.delete(path);
+            return;
+        }
+        multi(Collections.singletonList(Op.delete(absolutePath(path), -1)));
+    }
+
+    /** Applies the given entry operations with a single multi request,
+     * which also writes their change log record if enabled. */
+    private List<OpResult> multi(List<Op> ops)
+        throws KeeperException, InterruptedException {
+        if (changeLog == null) {
+            return dir.multi(ops);
+        }
+        List<OpResult> results = dir.multi(withRecord(ops));
+        recorded(ops, results);
+        return results;
+    }
+
+    /**
+     * Returns the given entry operations followed by the creation of their
+     * change log record, such that the entries and the record are written in
+     * the same transaction, and the records are in the order of the changes.
+     * The names of the sequential entries are not known before the
+     * transaction, and their record is completed by {@link #recorded}.
+     */
+    private List<Op> withRecord(List<Op> ops) {
+        List<String> changes = new ArrayList<>(ops.size());
+        for (Op op : ops) {
+            changes.add(change(op.getType() == ZooDefs.OpCode.create,
+                               op.getPath()));
+        }
+        List<Op> all = new ArrayList<>(ops.size() + 1);
+        all.addAll(ops);
+        all.add(Op.create(changeLogPath(), encodeRecord(changes),
+                          Ids.OPEN_ACL_UNSAFE,
+                          CreateMode.PERSISTENT_SEQUENTIAL));
+        return all;
+    }
+
+    /**
+     * Completes the record written with the given entry operations with the
+     * names of the sequential entries, and trims the change log after every
+     * CHANGE_LOG_TRIM_INTERVAL records written by this client. Until it is
+     * completed, the clients of the map stop reading the change log at the
+     * record, and the audit reads all the entries if the record is never
+     * completed.
+     */
+    private void recorded(List<Op> ops, List<OpResult> results) {
+        List<String> changes = new ArrayList<>(ops.size());
+        boolean incomplete = false;
+        for (int index = 0; index < ops.size(); index++) {
+            Op op = ops.get(index);
+            if (results.get(index) instanceof OpResult.CreateResult) {
+                String path =
+                    ((OpResult.CreateResult) results.get(index)).getPath();
+                incomplete |= !path.equals(op.getPath());
+                changes.add(change(true, path));
+            } else {
+                changes.add(change(false, op.getPath()));
+            }
+        }
+        String record =
+            ((OpResult.CreateResult) results.get(ops.size())).getPath();
+        if (incomplete) {
+            try {
+                changeLog.update(entryName(record), encodeRecord(changes));
+            } catch (KeeperException e) {
+                log.warn("Recording {} changes of replicated map {} " +
+                         "failed: {}", changes.size(), dir.getPath(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (recordsWritten.incrementAndGet() % CHANGE_LOG_TRIM_INTERVAL == 0) {
+            ChangeLogExecutor.INSTANCE.execute(trimTask);
+        }
+    }
+
+    private static String change(boolean added, String path) {
+        return (added ? "+" : "-") + path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static byte[] encodeRecord(List<String> changes) {
+        StringBuilder builder = new StringBuilder();
+        for (String change : changes) {
+            builder.append(change).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Whether a record lists an added entry without its sequence number,
+     * because the writer has not completed it yet. */
+    private static boolean isIncomplete(byte[] data) {
+        if (data == null)
+            return false;
+        for (String change : new String(data, StandardCharsets.UTF_8)
+                                 .split("\n")) {
+            if (change.startsWith("+") && change.endsWith(","))
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns the number of changes listed by a record. */
+    private static int changeCount(byte[] data) {
+        if (data == null)
+            return 0;
+        int count = 0;
+        for (String change : new String(data, StandardCharsets.UTF_8)
+                                 .split("\n")) {
+            if (change.length() >= 2)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Applies the changes listed by a record of the change log, skipping the
+     * entries already added or removed. Must be called while holding the map
+     * lock.
+     */
+    private void applyRecord(byte[] data,
+                             List<Notification<K, V>> notifications,
+                             List<Path> cleanupPaths) {
+        if (data == null)
+            return;
+        for (String change : new String(data, StandardCharsets.UTF_8)
+                                 .split("\n")) {
+            if (change.length() < 2)
+                continue;
+            String path = change.substring(1);
+            if (change.charAt(0) == '+') {
+                if (knownPaths.add(path))
+                    remoteAdded(decodePath(path), notifications, cleanupPaths);
+            } else if (change.charAt(0) == '-') {
+                if (knownPaths.remove(path))
+                    remoteRemoved(decodePath(path), notifications);
+            }
+        }
+    }
+
+    /** Returns the records of the change log by sequence number. */
+    private SortedMap<Long, String> getRecords(Runnable watcher)
+        throws KeeperException, InterruptedException {
+        SortedMap<Long, String> records = new TreeMap<>();
+        for (String name : changeLog.getChildren("/", watcher)) {
+            if (name.startsWith(RECORD_PREFIX)) {
+                records.put(Long.parseLong(
+                    name.substring(RECORD_PREFIX.length())), name);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Compares the version of the children of the map directory in storage
+     * with the changes applied by this map, to detect the changes missing
+     * from the change log: the entries changed by other writers, or the
+     * ephemeral entries removed when a session expires. Unlike the number of
+     * entries, the version also detects an entry replaced by another. On a
+     * mismatch, the map reads all the entries.
+     */
+    void audit() {
+        if (!running.get())
+            return;
+        try {
+            if (logWatcher.matches())
+                return;
+            log.info("Replicated map {} missed changes not recorded in its " +
+                     "change log, reading all the entries", dir.getPath());
+            logWatcher.resync();
+        } catch (KeeperException e) {
+            log.warn("Audit of replicated map {} failed: {}", dir.getPath(),
+                     e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Deletes the oldest records of the change log, keeping the newest
+     * CHANGE_LOG_SIZE records. */
+    void trim() {
+        try {
+            SortedMap<Long, String> records = getRecords(null);
+            int excess = records.size() - CHANGE_LOG_SIZE;
+            for (String name : records.values()) {
+                if (excess-- <= 0)
+                    break;
+                changeLog.asyncDelete("/" + name,
+                                      new DirectoryCallback<Void>() {
+                    public void onSuccess(Void result) {
+                    }
+                    public void onError(KeeperException ex) {
+                        // Concurrent trims delete the same records.
+                        if (!(ex instanceof KeeperException.NoNodeException))
+                            log.warn("Trimming the change log of replicated " +
+                                     "map {} failed: {}", dir.getPath(), ex);
+                    }
+                    public void onTimeout() {
+                    }
+                });
+            }
+        } catch (KeeperException e) {
+            log.warn("Trimming the change log of replicated map {} failed: {}",
+                     dir.getPath(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A local update taken for publication: either a local entry to create,
+     * or an owned storage entry to delete.
+     */
+    private class Publication {
+        final K key;
+        final MapValue created;
+        final MapValue deleted;
+
+        Publication(K key, MapValue created, MapValue deleted) {
+            this.key = key;
+            this.created = created;
+            this.deleted = deleted;
+        }
+
+        Op op() {
+            if (created != null) {
+                return Op.create(absolutePath(encodePath(key, created.value)),
+                                 null, Ids.OPEN_ACL_UNSAFE,
+                                 CreateMode.EPHEMERAL_SEQUENTIAL);
+            }
+            return Op.delete(absolutePath(encodePath(key, deleted.value,
+                                                     deleted.version)), -1);
+        }
+
+        void publishAsync() {
+            if (created != null) {
+                addEntry(encodePath(key, created.value),
+                         CreateMode.EPHEMERAL_SEQUENTIAL,
+                         new DirectoryCallback<String>() {
+                    public void onSuccess(String result) {
+                        published(result);
+                    }
+                    public void onError(KeeperException ex) {
+                        log.error("Put {} => {} failed: {}", key,
+                                  created.value, ex);
+                        failed();
+                    }
+                    public void onTimeout() {
+                        log.error("Put {} => {} timed out.", key,
+                                  created.value);
+                        failed();
+                    }
+                });
+            } else {
+                deleteEntry(encodePath(key, deleted.value, deleted.version),
+                            new DirectoryCallback<Void>() {
+                    public void onSuccess(Void result) {
+                        published(null);
+                    }
+                    public void onError(KeeperException ex) {
+                        if (ex instanceof KeeperException.NoNodeException) {
+                            published(null);
+                        } else {
+                            log.error("Delete {} failed: {}", key, ex);
+                            failed();
+                        }
+                    }
+                    public void onTimeout() {
+                        log.error("Delete {} timed out.", key);
+                        failed();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Applies the published update to the storage entries of the key,
+         * as the directory watcher will when notified, and reveals the
+         * storage entry if the key has no further local updates.
+         */
+        void published(String result) {
+            List<Notification<K, V>> notifications = new ArrayList<>();
+            List<Path> cleanupPaths = new ArrayList<>();
+            synchronized (ReplicatedMap.this) {
+                if (created != null) {
+                    Path p = decodePath(
+                        result.substring(result.lastIndexOf('/')));
+                    ownedVersions.add(p.version);
+                    if (!running.get())
+                        return;
+                    remoteAdded(new Path(key, created.value, p.version),
+                                notifications, cleanupPaths);
+                } else {
+                    ownedVersions.remove(deleted.version);
+                    if (!running.get())
+                        return;
+                    remoteRemoved(new Path(key, deleted.value,
+                                           deleted.version), notifications);
+                }
+                if (!pendingKeys.contains(key))
+                    settle(key, notifications);
+            }
+            notifyWatchers(notifications);
+            for (Path path : cleanupPaths) {
+                deleteEntry(encodePath(path.key, path.value, path.version),
+                            new DeleteCallBack(path.key, path.value,
+                                               path.version));
+            }
+        }
+
+        /** Reverts the local entry of the key to its storage entry. */
+        void failed() {
+            List<Notification<K, V>> notifications = new ArrayList<>();
+            synchronized (ReplicatedMap.this) {
+                if (!running.get() || pendingKeys.contains(key))
+                    return;
+                settle(key, notifications);
+            }
+            notifyWatchers(notifications);
+        }
+    }
+
     private class MapValue {
         V value;
         int version;
@@ -520,6 +1461,23 @@ public abstract class ReplicatedMap<K, V> {
         return encodePathPrefix(encodeKey(key), encodeValue(value));
     }
 
+    private String absolutePath(String relativePath) {
+        String base = dir.getPath();
+        return base.endsWith("/") ? base + relativePath.substring(1)
+                                  : base + relativePath;
+    }
+
+    private String changeLogPath() {
+        String base = changeLog.getPath();
+        return base.endsWith("/") ? base + RECORD_PREFIX
+                                  : base + "/" + RECORD_PREFIX;
+    }
+
+    /** Returns the last element of a path, with a leading slash. */
+    private static String entryName(String path) {
+        return path.substring(path.lastIndexOf('/'));
+    }
+
     protected static String[] getKeyValueVersion(String encodedPath) {
         // Need to skip the '/' at the beginning of the path
         if (encodedPath.startsWith("/"))
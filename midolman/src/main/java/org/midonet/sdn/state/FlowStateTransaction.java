@@ -56,6 +56,7 @@ public class FlowStateTransaction<K, V> {
     private ArrayList<K> touchKeys = new ArrayList<>();
     private ArrayList<V> touchVals = new ArrayList<>();
     private HashSet<K> deletes = new HashSet<>();
+    private boolean read = false;
 
     public FlowStateTransaction(FlowStateTable<K, V> underlyingState) {
         parent = underlyingState;
@@ -65,6 +66,13 @@ public class FlowStateTransaction<K, V> {
         return keys.size() + refs.size();
     }
 
+    /**
+     * Whether a key was looked up since the transaction was last flushed.
+     */
+    public boolean hasReads() {
+        return read;
+    }
+
     /**
      * Discards the ongoing transaction, clearing all state in it.
      */
@@ -75,6 +83,7 @@ public class FlowStateTransaction<K, V> {
         deletes.clear();
         touchKeys.clear();
         touchVals.clear();
+        read = false;
     }
 
     /**
@@ -113,6 +122,7 @@ public class FlowStateTransaction<K, V> {
         }
         keys.add(key);
         values.add(value);
+        read = true;
         return parent.get(key);
     }
 
@@ -124,6 +134,7 @@ public class FlowStateTransaction<K, V> {
     }
 
     public V get(K key) {
+        read = true;
         if (deletes.contains(key))
             return null;
 
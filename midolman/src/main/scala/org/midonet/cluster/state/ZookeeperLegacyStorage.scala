@@ -16,38 +16,58 @@
 package org.midonet.cluster.state
 
 import java.util.UUID
+import java.util.concurrent.Executors
 
 import javax.annotation.Nonnull
 
 import com.google.inject.Inject
 import org.midonet.cluster.backend.Directory
 import org.midonet.cluster.backend.zookeeper.{ZkConnectionAwareWatcher, StateAccessException}
+import org.midonet.cluster.data.storage.StateTable.ChangeLogSuffix
+import org.midonet.cluster.storage.MidonetBackendConfig
 import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.midolman.serialization.Serializer
 import org.midonet.midolman.simulation.Bridge.UntaggedVlanId
+import org.midonet.midolman.state.ReplicatedMap.Publisher
 import org.midonet.midolman.state._
+import org.midonet.util.concurrent.NamedThreadFactory
 
 /**
  * An implementation of the [[LegacyStorage]] trait using the legacy ZooKeeper
- * managers as backend.
+ * managers as backend. When the state tables are configured as local-first,
+ * the replicated maps share a publisher thread that writes their updates to
+ * ZooKeeper in batches. When the change logs are enabled, every replicated map
+ * records its changes in a change log next to the map path.
  */
 class ZookeeperLegacyStorage @Inject()(connectionWatcher: ZkConnectionAwareWatcher,
                                        serializer: Serializer,
                                        zkManager: ZkManager,
-                                       pathBuilder: PathBuilder)
+                                       pathBuilder: PathBuilder,
+                                       config: MidonetBackendConfig)
         extends LegacyStorage with MidolmanLogging {
 
     override def logSource = "org.midonet.cluster.state"
 
+    private lazy val publisher =
+        if (config.stateTablesLocalFirst) {
+            new Publisher(
+                Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("state-table-publisher",
+                                           isDaemon = true)),
+                config.stateTablesPublishInterval,
+                config.stateTablesPublishBatch)
+        } else null
+
     @throws[StateAccessException]
     override def bridgeMacTable(@Nonnull bridgeId: UUID, vlanId: Short,
                                 ephemeral: Boolean): MacPortMap = {
         ensureBridgePaths(bridgeId)
         ensureBridgeVlanPaths(bridgeId, vlanId)
-        val map = new MacPortMap(
-            zkManager.getSubDirectory(pathBuilder.getBridgeMacPortsPath(bridgeId, vlanId)),
-            ephemeral)
+        val path = pathBuilder.getBridgeMacPortsPath(bridgeId, vlanId)
+        val map = new MacPortMap(zkManager.getSubDirectory(path), ephemeral)
         map.setConnectionWatcher(connectionWatcher)
+        map.setPublisher(publisher)
+        map.setChangeLog(changeLog(path))
         map
     }
 
@@ -63,18 +83,33 @@ class ZookeeperLegacyStorage @Inject()(connectionWatcher: ZkConnectionAwareWatch
         ensureBridgePaths(bridgeId)
         val map = new Ip4ToMacReplicatedMap(getIP4MacMapDirectory(bridgeId))
         map.setConnectionWatcher(connectionWatcher)
+        map.setPublisher(publisher)
+        map.setChangeLog(changeLog(pathBuilder.getBridgeIP4MacMapPath(bridgeId)))
         map
     }
 
     @throws[StateAccessException]
     override def routerArpTable(@Nonnull routerId: UUID): ArpTable = {
         ensureRouterPaths(routerId)
-        val arpTable = new ArpTable(zkManager.getSubDirectory(
-                pathBuilder.getRouterArpTablePath(routerId)))
+        val path = pathBuilder.getRouterArpTablePath(routerId)
+        val arpTable = new ArpTable(zkManager.getSubDirectory(path))
         arpTable.setConnectionWatcher(connectionWatcher)
+        arpTable.setPublisher(publisher)
+        arpTable.setChangeLog(changeLog(path))
         arpTable
     }
 
+    /** Returns the change log directory of the replicated map at the given
+      * path, or null if the change logs are disabled. */
+    @throws[StateAccessException]
+    private def changeLog(path: String): Directory = {
+        if (!config.stateTablesChangeLog)
+            return null
+        val logPath = path + ChangeLogSuffix
+        createPath(logPath)
+        zkManager.getSubDirectory(logPath)
+    }
+
     /** Ensures that the path for the specified bridge is created in the
       * legacy storage. */
     @throws[StateAccessException]
@@ -27,7 +27,7 @@ import org.midonet.cluster.backend.zookeeper.{ZkConnectionAwareWatcher, StateAcc
 import org.midonet.cluster.data.storage.StateTable
 import org.midonet.cluster.data.storage.StateTable.Update
 import org.midonet.cluster.storage.Ip4MacStateTable.OnTableSubscribe
-import org.midonet.midolman.state.ReplicatedMap.Watcher
+import org.midonet.midolman.state.ReplicatedMap.{Publisher, Watcher}
 import org.midonet.midolman.state.Ip4ToMacReplicatedMap
 import org.midonet.packets.{IPv4Addr, MAC}
 import org.midonet.util.functors.makeAction0
@@ -76,15 +76,35 @@ object Ip4MacStateTable {
   * because the underlying implementation uses the same entry version number.
   * Therefore, to modify an existing persisting entry, first delete the entry
   * and then add a new one with the same IP address.
+  *
+  * With a [[Publisher]], the learned entries are added and removed locally
+  * at once, and published to ZooKeeper asynchronously in batches. With a
+  * change log directory, the table reads only the changes recorded since its
+  * last read, instead of all the entries.
   */
 final class Ip4MacStateTable(directory: Directory,
-                             zkConnWatcher: ZkConnectionAwareWatcher)
+                             zkConnWatcher: ZkConnectionAwareWatcher,
+                             publisher: Publisher,
+                             changeLog: Directory)
     extends StateTable[IPv4Addr, MAC] {
 
+    def this(directory: Directory, zkConnWatcher: ZkConnectionAwareWatcher) =
+        this(directory, zkConnWatcher, null, null)
+
+    def this(directory: Directory, zkConnWatcher: ZkConnectionAwareWatcher,
+             changeLog: Directory) =
+        this(directory, zkConnWatcher, null, changeLog)
+
+    def this(directory: Directory, zkConnWatcher: ZkConnectionAwareWatcher,
+             publisher: Publisher) =
+        this(directory, zkConnWatcher, publisher, null)
+
     private val map = new Ip4ToMacReplicatedMap(directory)
     private val onSubscribe = new OnTableSubscribe(this)
     if (zkConnWatcher ne null)
         map.setConnectionWatcher(zkConnWatcher)
+    map.setPublisher(publisher)
+    map.setChangeLog(changeLog)
 
     /**
       * Starts the synchronization of the state table.
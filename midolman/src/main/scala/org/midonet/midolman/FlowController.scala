@@ -68,6 +68,12 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         Util.findNextPositivePowerOfTwo(maxFlows))
     private var mask = indexToFlow.length - 1
 
+    override protected val flowExpirationBudget =
+        config.datapath.flowExpirationBudget
+
+    override protected def flowsExpired(expired: Int, deferred: Int): Unit =
+        metrics.flowsExpired(expired, deferred)
+
     val meters = new MeterRegistry(maxFlows)
     Metering.registerAsMXBean(meters)
 
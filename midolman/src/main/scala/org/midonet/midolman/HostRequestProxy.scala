@@ -69,14 +69,17 @@ object HostRequestProxy {
 
 /**
   * This actor creates a host subscription in the VTPM on behalf of another
-  * subscriber. It will proxy requests making sure per-flow state for the
-  * host's ports is fetched from Cassandra before the subscriber receives
-  * the host object.
+  * subscriber. It will proxy requests, fetching the per-flow state for the
+  * host's newly bound ports from Cassandra. The subscriber receives the host
+  * object right away, so that traffic flows while the state is streamed to
+  * the packet processing threads: flows created before their state arrives
+  * are tagged with the missing keys, and invalidated as the keys arrive.
   */
 class HostRequestProxy(hostId: UUID,
                        backChannel: SimulationBackChannel,
                        storageFuture: Future[FlowStateStorage],
-                       subscriber: ActorRef) extends ReactiveActor[DevicesHost]
+                       subscriber: ActorRef,
+                       pageSize: Int = 1000) extends ReactiveActor[DevicesHost]
                                              with ActorLogWithoutPath
                                              with SingleThreadExecutionContextProvider {
 
@@ -103,23 +106,31 @@ class HostRequestProxy(hostId: UUID,
         }
     }
 
+    /**
+     * Streams the flow state of a port from storage, sending each page of
+     * state to the packet processing threads as soon as it is fetched, so
+     * that it is applied while the following pages are being fetched.
+     */
     private def stateForPort(storage: FlowStateStorage,
-                             port: UUID): Future[FlowStateBatch] = {
-        val scf = storage.fetchStrongConnTrackRefs(port)
-        val wcf = storage.fetchWeakConnTrackRefs(port)
-        val snf = storage.fetchStrongNatRefs(port)
-        val wnf = storage.fetchWeakNatRefs(port)
-
-        ((scf zip wcf) zip (snf zip wnf)) map {
-            case ((sc, wc) , (sn, wn)) => FlowStateBatch(sc, wc, sn, wn)
+                             port: UUID): Future[Int] = {
+        val scf = storage.streamConnTrackRefs(port, strong = true, pageSize) {
+            keys => backChannel tell EmptyFlowStateBatch().copy(strongConnTrack = keys)
+        }
+        val wcf = storage.streamConnTrackRefs(port, strong = false, pageSize) {
+            keys => backChannel tell EmptyFlowStateBatch().copy(weakConnTrack = keys)
+        }
+        val snf = storage.streamNatRefs(port, strong = true, pageSize) {
+            bindings => backChannel tell EmptyFlowStateBatch().copy(strongNat = bindings)
         }
+        val wnf = storage.streamNatRefs(port, strong = false, pageSize) {
+            bindings => backChannel tell EmptyFlowStateBatch().copy(weakNat = bindings)
+        }
+        Future.sequence(Seq(scf, wcf, snf, wnf)) map (_.sum)
     }
 
     private def stateForPorts(storage: FlowStateStorage,
-                              ports: Iterable[UUID]): Future[FlowStateBatch] =
-        Future.fold(ports map (stateForPort(storage, _)))(EmptyFlowStateBatch()) {
-            (batch: FlowStateBatch, v: FlowStateBatch) => batch.merge(v)
-        }
+                              ports: Iterable[UUID]): Future[Int] =
+        Future.sequence(ports.toSeq map (stateForPort(storage, _))) map (_.sum)
 
     /* Resolve all ports into UUIDs, creating a ResolvedHost object.
      *
@@ -172,9 +183,8 @@ class HostRequestProxy(hostId: UUID,
                 val ps = h.portBindings.keySet -- lastPorts
                 lastPorts = h.portBindings.keySet
                 storageFuture.flatMap(stateForPorts(_, ps)).andThen {
-                    case Success(stateBatch) =>
-                        log.debug(s"Fetched ${stateBatch.size()} pieces of flow state for ports $ps")
-                        backChannel tell stateBatch
+                    case Success(count) =>
+                        log.debug(s"Fetched $count pieces of flow state for ports $ps")
                     case Failure(e) =>
                         log.warn("Failed to fetch state", e)
                 }(singleThreadExecutionContext)
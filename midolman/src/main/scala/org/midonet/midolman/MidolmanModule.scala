@@ -46,7 +46,7 @@ import org.midonet.midolman.host.services.HostService
 import org.midonet.midolman.io._
 import org.midonet.midolman.logging.{FlowTracingSchema, FlowTracingAppender}
 import org.midonet.midolman.monitoring._
-import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.monitoring.metrics.{JmxFlowStateStorageMetrics, PacketPipelineMetrics}
 import org.midonet.midolman.openstack.metadata.{DatapathInterface, Plumber}
 import org.midonet.midolman.services._
 import org.midonet.midolman.state._
@@ -215,7 +215,10 @@ class MidolmanModule(injector: Injector,
             channelFactory,
             SelectorProvider.provider,
             backChannel,
-            NanoClock.DEFAULT)
+            NanoClock.DEFAULT,
+            maxBatchedFlows = config.datapath.flowCreateBatchSize,
+            maxBatchBytes = config.datapath.flowCreateBatchMaxBytes,
+            maxBatchLatencyNanos = config.datapath.flowCreateBatchMaxLatency)
 
     protected def createProcessors(
             ringBuffer: RingBuffer[PacketContextHolder],
@@ -287,9 +290,14 @@ class MidolmanModule(injector: Injector,
             "MidonetFlowState",
             FlowStateStorage.SCHEMA,
             FlowStateStorage.SCHEMA_TABLE_NAMES)
+        val metrics = new JmxFlowStateStorageMetrics(metricRegistry)
+        val dp = config.datapath
         new FlowStateStorageFactory() {
             override def create(): Future[FlowStateStorage] =
-                cass.connect().map(FlowStateStorage(_))(ExecutionContext.callingThread)
+                cass.connect().map(FlowStateStorage(
+                    _, dp.stateStorageMaxInFlight, dp.stateStorageMaxPending,
+                    dp.stateStorageBatchSize, dp.stateStorageDedupWindow,
+                    metrics))(ExecutionContext.callingThread)
         }
     }
 
@@ -341,7 +349,7 @@ class MidolmanModule(injector: Injector,
     }
 
     protected def flowRecorder(hostId: UUID): FlowRecorder =
-        FlowRecorder(config, hostId)
+        FlowRecorder(config, hostId, metricRegistry)
 
     protected def flowTracingAppender() = {
         val cass = new CassandraClient(
@@ -379,9 +387,18 @@ class MidolmanModule(injector: Injector,
             simBackChannel,
             metricRegistry,
             Executors.newSingleThreadScheduledExecutor(
-                new NamedThreadFactory("devices-service", isDaemon = true)),
-            () => vtThread.get < 0 || vtThread.get == Thread.currentThread.getId,
-            Executors.newCachedThreadPool(new NamedThreadFactory("devices-io-", true)))
+                new NamedThreadFactory("devices-service", isDaemon = true) {
+                    override def newThread(r: Runnable): Thread = {
+                        val thread = super.newThread(r)
+                        vtThread.set(thread.getId)
+                        thread
+                    }
+                }),
+            () => vtThread.get == Thread.currentThread.getId,
+            Executors.newCachedThreadPool(new NamedThreadFactory("devices-io-", true)),
+            (1 until config.topologyThreads).map(index =>
+                Executors.newSingleThreadExecutor(new NamedThreadFactory(
+                    s"devices-service-$index", isDaemon = true))))
     }
 
     protected def virtualToPhysicalMapper(hostId: UUID, vt: VirtualTopology) =
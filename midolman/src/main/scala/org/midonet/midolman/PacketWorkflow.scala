@@ -181,7 +181,8 @@ class PacketWorkflow(
             val metrics: PacketPipelineMetrics,
             val flowRecorder: FlowRecorder,
             val vt: VirtualTopology,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val resultCache: SimulationResultCache = null)
         extends Actor with ActorLogWithoutPath with Stash with DisruptorBackChannel
         with UnderlayTrafficHandler with FlowTranslator with RoutingWorkflow
         with MetadataServiceWorkflow with FlowController {
@@ -211,7 +212,11 @@ class PacketWorkflow(
             peerResolver,
             dpState,
             this,
-            config.datapath.controlPacketTos)
+            config.datapath.controlPacketTos,
+            dpChannel,
+            config.datapath.stateReplicationCoalesceWindow,
+            config.datapath.stateReplicationOrdered,
+            clock)
 
     protected val datapathId = dpState.datapath.getIndex
 
@@ -251,11 +256,23 @@ class PacketWorkflow(
     override def shouldProcess(): Boolean =
         super.shouldProcess() ||
         backChannel.hasMessages ||
-        arpBroker.shouldProcess()
+        arpBroker.shouldProcess() ||
+        replicator.shouldProcess()
+
+    override def invalidateFlowsFor(tag: FlowTag): Unit = {
+        if (resultCache ne null)
+            resultCache.invalidate(tag)
+        super.invalidateFlowsFor(tag)
+    }
 
     private def invalidateRoutedFlows(msg: InvalidateFlows) {
         val InvalidateFlows(id, added, deleted) = msg
 
+        // The cached results don't hold the destinations that new routes
+        // may invalidate, so they are all discarded.
+        if ((resultCache ne null) && added.nonEmpty)
+            resultCache.clear()
+
         for (route <- deleted) {
             invalidateFlowsFor(FlowTagger.tagForRoute(route))
         }
@@ -279,7 +296,8 @@ class PacketWorkflow(
         case tag: FlowTag => invalidateFlowsFor(tag)
         case RestartWorkflow(pktCtx, error) => restart(pktCtx, error)
         case m: GeneratedPacket => startWorkflow(generatedPacketContext(m))
-        case m: FlowStateBatch => replicator.importFromStorage(m)
+        case m: FlowStateBatch =>
+            replicator.importFromStorage(m, workerId, numWorkers)
         case DuplicateFlow(index) => duplicateFlow(index)
     }
 
@@ -292,6 +310,7 @@ class PacketWorkflow(
         natLeaser.obliterateUnusedBlocks()
         traceStateTable.expireIdleEntries()
         arpBroker.process()
+        replicator.process()
         waitingRoom.doExpirations(giveUpWorkflow)
     }
 
@@ -490,10 +509,21 @@ class PacketWorkflow(
                 UserspaceFlow
             } else {
                 addFlow(context, expiration)
+                if (isCacheable(context, expiration))
+                    resultCache.put(context, context.cacheGeneration)
                 FlowCreated
             }
         }
 
+    private def isCacheable(context: PacketContext,
+                            expiration: Expiration): Boolean =
+        context.cacheGeneration >= 0 &&
+        (expiration eq FlowExpirationIndexer.FLOW_EXPIRATION) &&
+        context.replayable &&
+        !context.isRecirc &&
+        !context.containsFlowState &&
+        !context.readsFlowState
+
     private def applyState(context: PacketContext): Unit = {
         context.log.debug("Applying connection state")
         replicator.accumulateNewKeys(context)
@@ -518,7 +548,7 @@ class PacketWorkflow(
             if (result ne null) {
                 processSimulationResult(context, result)
             } else {
-                processSimulationResult(context, simulatePacketIn(context))
+                simulateOrReplay(context)
             }
         } else {
             val result = handleMetadataEgress(context)
@@ -598,6 +628,28 @@ class PacketWorkflow(
         }
     }
 
+    /**
+     * Reuses the cached result of a previous simulation for the packet if
+     * there is one, or simulates the packet otherwise.
+     */
+    private def simulateOrReplay(context: PacketContext): SimulationResult =
+        if ((resultCache eq null) ||
+            context.packet.getReason == Packet.Reason.FlowActionUserspace) {
+            processSimulationResult(context, simulatePacketIn(context))
+        } else if (handleDHCP(context)) {
+            processSimulationResult(context, NoOp)
+        } else {
+            val entry = resultCache.get(context.origMatch)
+            if (entry eq null) {
+                context.cacheGeneration = resultCache.generation
+                processSimulationResult(context, Simulator.simulate(context))
+            } else {
+                context.log.debug("Replaying cached simulation result")
+                entry.replay(context)
+                addTranslatedFlow(context, FlowExpirationIndexer.FLOW_EXPIRATION)
+            }
+        }
+
     protected def simulatePacketIn(context: PacketContext): SimulationResult =
         if (handleDHCP(context)) {
             NoOp
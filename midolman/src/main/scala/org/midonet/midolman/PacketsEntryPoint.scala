@@ -32,12 +32,12 @@ import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.FlowRecorder
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.services.HostIdProvider
-import org.midonet.midolman.simulation.DhcpConfigFromNsdb
+import org.midonet.midolman.simulation.{DhcpConfigFromNsdb, SimulationResultCache}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.midolman.topology.RouterMapper.InvalidateFlows
-import org.midonet.midolman.state.{PeerResolver, FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
+import org.midonet.midolman.state.{CompactFlowState, PeerResolver, FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
 import org.midonet.midolman.topology.VirtualTopology
 import org.midonet.sdn.state.ShardedFlowStateTable
 import org.midonet.util.StatisticalCounter
@@ -119,19 +119,28 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     var natStateTable: ShardedFlowStateTable[NatKey, NatBinding] = _
     var natLeaser: NatLeaser = _
     var traceStateTable: ShardedFlowStateTable[TraceKey, TraceContext] = _
+    var resultCache: SimulationResultCache = _
 
     override def preStart(): Unit = {
         super.preStart()
         NUM_WORKERS = config.simulationThreads
 
-        connTrackStateTable = new ShardedFlowStateTable(clock)
-        natStateTable = new ShardedFlowStateTable(clock)
+        val partitioned = config.partitionedFlowState
+        val compact = config.compactFlowState
+        connTrackStateTable = new ShardedFlowStateTable(clock, partitioned,
+            if (compact) CompactFlowState.ConnTrackCodec else null)
+        natStateTable = new ShardedFlowStateTable(clock, partitioned,
+            if (compact) CompactFlowState.NatCodec else null)
         natLeaser = new NatLeaser {
             val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
             val allocator = natBlockAllocator
             val clock = PacketsEntryPoint.this.clock
         }
-        traceStateTable = new ShardedFlowStateTable(clock)
+        metrics.natLeaser(natLeaser)
+        traceStateTable = new ShardedFlowStateTable(clock, partitioned)
+        if (config.simulationCacheSize > 0)
+            resultCache = new SimulationResultCache(config.simulationCacheSize,
+                                                    clock)
 
         for (i <- 0 until NUM_WORKERS) {
             workers :+= startWorker(i)
@@ -185,7 +194,8 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
             metrics,
             flowRecorder,
             vt,
-            counter.addAndGet(index, _: Int)))
+            counter.addAndGet(index, _: Int),
+            resultCache))
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
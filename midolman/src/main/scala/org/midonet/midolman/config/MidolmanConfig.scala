@@ -76,6 +76,18 @@ class MidolmanConfig(_conf: Config, val schema: Config = ConfigFactory.empty())
 
     def dhcpMtu: Short = getInt(s"$PREFIX.midolman.dhcp_mtu").toShort
     def simulationThreads = getInt(s"$PREFIX.midolman.simulation_threads")
+    def partitionedFlowState = getBoolean(s"$PREFIX.midolman.partitioned_flow_state")
+    def compactFlowState = getBoolean(s"$PREFIX.midolman.compact_flow_state")
+    def simulationCacheSize = getInt(s"$PREFIX.midolman.simulation_cache_size")
+    def topologyThreads = getInt(s"$PREFIX.midolman.topology_threads")
+    def topologyPrefetch = getBoolean(s"$PREFIX.midolman.topology_prefetch")
+    def topologySnapshot = getString(s"$PREFIX.midolman.topology_snapshot")
+    def topologySnapshotInterval =
+        getDuration(s"$PREFIX.midolman.topology_snapshot_interval", TimeUnit.MILLISECONDS) millis
+    def topologySnapshotWarmUp =
+        getDuration(s"$PREFIX.midolman.topology_snapshot_warm_up", TimeUnit.MILLISECONDS) millis
+    def topologyCoalescingWindow =
+        getDuration(s"$PREFIX.midolman.topology_coalescing_window", TimeUnit.MILLISECONDS)
     def outputChannels = getInt(s"$PREFIX.midolman.output_channels")
     def inputChannelThreading = getString(s"$PREFIX.midolman.input_channel_threading")
     def datapathName = Try(getString(s"$PREFIX.midolman.datapath")).getOrElse("midonet")
@@ -119,6 +131,7 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def sendBufferPoolBufSizeKb = getInt(s"$PREFIX.send_buffer_pool_buf_size_kb")
 
     def maxFlowCount = getInt(s"$PREFIX.max_flow_count")
+    def flowExpirationBudget = getInt(s"$PREFIX.flow_expiration_budget")
 
     def vxlanVtepUdpPort = getInt(s"$PREFIX.vxlan_vtep_udp_port")
     def vxlanOverlayUdpPort = getInt(s"$PREFIX.vxlan_overlay_udp_port")
@@ -134,6 +147,22 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def vtepIncomingBurstCapacity = getInt(s"$PREFIX.vtep_incoming_burst_capacity")
 
     def controlPacketTos: Byte = getInt(s"$PREFIX.control_packet_tos").toByte
+
+    def flowCreateBatchSize = getInt(s"$PREFIX.flow_create_batch_size")
+    def flowCreateBatchMaxBytes = getInt(s"$PREFIX.flow_create_batch_max_bytes")
+    def flowCreateBatchMaxLatency =
+        getDuration(s"$PREFIX.flow_create_batch_max_latency", TimeUnit.NANOSECONDS)
+
+    def stateReplicationCoalesceWindow =
+        getDuration(s"$PREFIX.state_replication_coalesce_window", TimeUnit.NANOSECONDS)
+    def stateReplicationOrdered = getBoolean(s"$PREFIX.state_replication_ordered")
+
+    def stateStorageMaxInFlight = getInt(s"$PREFIX.state_storage_max_in_flight")
+    def stateStorageMaxPending = getInt(s"$PREFIX.state_storage_max_pending")
+    def stateStorageBatchSize = getInt(s"$PREFIX.state_storage_batch_size")
+    def stateStorageDedupWindow =
+        getDuration(s"$PREFIX.state_storage_dedup_window", TimeUnit.MILLISECONDS)
+    def stateStorageImportPageSize = getInt(s"$PREFIX.state_storage_import_page_size")
 }
 
 class RecircConfig(recircCidr: IPv4Subnet) {
@@ -193,6 +222,9 @@ class FlowHistoryConfig(val conf: Config, val schema: Config) extends TypeFailur
     def enabled = getBoolean("agent.flow_history.enabled")
     def encoding = getString("agent.flow_history.encoding")
     def udpEndpoint = getString("agent.flow_history.udp_endpoint")
+    def sampling = getInt("agent.flow_history.sampling")
+    def exportQueueSize = getInt("agent.flow_history.export_queue_size")
+    def recordsPerDatagram = getInt("agent.flow_history.records_per_datagram")
 }
 
 class ContainerConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
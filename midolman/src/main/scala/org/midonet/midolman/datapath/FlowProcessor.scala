@@ -53,6 +53,12 @@ object FlowProcessor {
 
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
 
+    /**
+     * Flow create messages are packed into a single Netlink write, which
+     * the kernel processes message by message. The batch must fit within
+     * the socket's send buffer, so we cap it well below the default wmem.
+     */
+    private val MAX_BATCH_CAPACITY = 128 * 1024
 }
 
 class FlowProcessor(dpState: DatapathState,
@@ -62,7 +68,10 @@ class FlowProcessor(dpState: DatapathState,
                     channelFactory: NetlinkChannelFactory,
                     selectorProvider: SelectorProvider,
                     backChannel: SimulationBackChannel,
-                    clock: NanoClock)
+                    clock: NanoClock,
+                    maxBatchedFlows: Int = 1,
+                    maxBatchBytes: Int = 64 * 1024,
+                    maxBatchLatencyNanos: Long = 0L)
     extends EventPoller.Handler[PacketContextHolder]
     with DisruptorBackChannel
     with LifecycleAware {
@@ -103,6 +112,21 @@ class FlowProcessor(dpState: DatapathState,
 
     private var lastSequence = Sequencer.INITIAL_CURSOR_VALUE
 
+    /*
+     * When batching is enabled, flow create messages are accumulated in
+     * batchBuf and written with a single syscall. The lastSequence field is
+     * only advanced once the batch containing a flow has been written, so
+     * tryEject() keeps refusing to delete flows that are still pending.
+     */
+    private val batching = maxBatchedFlows > 1
+    private val batchBuf =
+        if (batching) BytesUtil.instance.allocateDirect(
+                          Math.min(maxBatchBytes, MAX_BATCH_CAPACITY))
+        else null
+    private var batchedFlows = 0
+    private var batchedSequence = Sequencer.INITIAL_CURSOR_VALUE
+    private var batchStartTime = 0L
+
     override def onEvent(event: PacketContextHolder, sequence: Long,
                          endOfBatch: Boolean): Boolean = {
         val context = event.flowCreateRef
@@ -123,7 +147,16 @@ class FlowProcessor(dpState: DatapathState,
                 context.log.error("Failed to create datapath flow", t)
             }
 
-            lastSequence = sequence
+            if (batching && batchedFlows > 0)
+                batchedSequence = sequence
+            else
+                lastSequence = sequence
+        }
+        if (batching && batchedFlows > 0 &&
+            (endOfBatch || batchedFlows >= maxBatchedFlows ||
+             (maxBatchLatencyNanos > 0 &&
+              clock.tick - batchStartTime >= maxBatchLatencyNanos))) {
+            flushBatch()
         }
         true
     }
@@ -150,7 +183,10 @@ class FlowProcessor(dpState: DatapathState,
             createProtocol.prepareFlowCreate(
                 datapathId, keys, actions, mask, writeBuf)
             writeBuf.putInt(NetlinkMessage.NLMSG_SEQ_OFFSET, index)
-            writer.write(writeBuf)
+            if (batching)
+                appendToBatch(writeBuf)
+            else
+                writer.write(writeBuf)
         } catch { case e: BufferOverflowException =>
             val capacity = writeBuf.capacity()
             if (capacity >= MAX_BUF_CAPACITY)
@@ -163,6 +199,39 @@ class FlowProcessor(dpState: DatapathState,
             writeBuf.clear()
         }
 
+    /**
+     * Appends a finalized Netlink message to the current batch, writing out
+     * the batch first if the message doesn't fit. Messages that don't fit
+     * in an empty batch are written on their own.
+     */
+    private def appendToBatch(msg: ByteBuffer): Unit = {
+        val size = NetlinkMessage.align(msg.remaining())
+        if (size > batchBuf.remaining()) {
+            flushBatch()
+            if (size > batchBuf.remaining()) {
+                writer.write(msg)
+                return
+            }
+        }
+        if (batchedFlows == 0)
+            batchStartTime = clock.tick
+        batchBuf.put(msg)
+        NetlinkMessage.alignBuffer(batchBuf)
+        batchedFlows += 1
+    }
+
+    private def flushBatch(): Unit =
+        if (batchedFlows > 0) try {
+            batchBuf.flip()
+            writer.write(batchBuf)
+        } catch { case NonFatal(e) =>
+            log.error(s"Failed to write a batch of $batchedFlows datapath flows", e)
+        } finally {
+            batchBuf.clear()
+            batchedFlows = 0
+            lastSequence = batchedSequence
+        }
+
     def capacity = broker.capacity
 
     /**
@@ -282,6 +351,8 @@ class FlowProcessor(dpState: DatapathState,
     }
 
     override def onShutdown(): Unit = {
+        if (batching)
+            flushBatch()
         createChannel.close()
         brokerChannel.close()
         selector.wakeup()
@@ -96,7 +96,15 @@ sealed class PacketExecutor(dpState: DatapathState,
             event.packetExecRef = null
             val actions = context.packetActions
             val packet = context.packet
-            if (actions.size > 0 && packet.getReason != Packet.Reason.FlowActionUserspace) {
+            if (packet eq null) {
+                // State coalesced by the flow state replicator, which is
+                // not associated with any packet.
+                try {
+                    maybeExecuteStatePacket(datapathId, context)
+                } catch { case t: Throwable =>
+                    log.error("Failed to execute flow state message", t)
+                }
+            } else if (actions.size > 0 && packet.getReason != Packet.Reason.FlowActionUserspace) {
                 try {
                     maybeExecuteStatePacket(datapathId, context)
                     executePacket(datapathId, packet, actions)
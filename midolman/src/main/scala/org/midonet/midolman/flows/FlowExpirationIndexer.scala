@@ -16,8 +16,6 @@
 
 package org.midonet.midolman.flows
 
-import java.util.ArrayDeque
-
 import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
@@ -45,7 +43,16 @@ object FlowExpirationIndexer {
         val typeId = 3
     }
 
-    private final val maxType = 4
+    private val expirations = Array[Expiration](
+        ERROR_CONDITION_EXPIRATION, FLOW_EXPIRATION,
+        STATEFUL_FLOW_EXPIRATION, TUNNEL_FLOW_EXPIRATION)
+
+    // A tick of the wheel lasts 2^27 nanoseconds, about 134 milliseconds.
+    private final val TickShift = 27
+    private final val SlotBits = 8
+    private final val Slots = 1 << SlotBits
+    private final val SlotMask = Slots - 1
+    private final val Levels = 3
 }
 
 /**
@@ -54,6 +61,15 @@ object FlowExpirationIndexer {
  * be removed from the kernel via another mechanism (such as flow invalidation),
  * but it is still kept in these data structures until it expires. This is to
  * avoid linear remove operations or smarter, more expensive data structures.
+ *
+ * Flows are kept in a hierarchical timing wheel of three levels of 256 slots.
+ * The slots of the first level last one tick, and those of the higher levels
+ * span all the slots of the level below, which the flows cascade into as the
+ * wheel turns. Each slot is a doubly linked list threaded through the flows,
+ * so that registering and rescheduling a flow take constant time. At most
+ * flowExpirationBudget flows are expired at a time, the remaining expired
+ * flows being deferred to the next checks, which bounds the latency that a
+ * burst of expirations adds to the packets waiting on the thread.
  */
 trait FlowExpirationIndexer extends FlowIndexer {
     import FlowExpirationIndexer._
@@ -61,69 +77,222 @@ trait FlowExpirationIndexer extends FlowIndexer {
     protected val log: Logger
     protected val maxFlows: Int
 
-    private val expirationQueues = new Array[ArrayDeque[ManagedFlow]](maxType)
+    protected def flowExpirationBudget: Int = Int.MaxValue
 
-    {
-        expirationQueues(ERROR_CONDITION_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-        expirationQueues(FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(STATEFUL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(TUNNEL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-    }
+    /**
+     * Called after each check with the number of flows that expired, and the
+     * number of flows in expired slots that were deferred.
+     */
+    protected def flowsExpired(expired: Int, deferred: Int): Unit = { }
+
+    private val heads = new Array[ManagedFlow](Levels * Slots)
+    private val tails = new Array[ManagedFlow](Levels * Slots)
+    private val sizes = new Array[Int](Levels * Slots)
+    private val levelSizes = new Array[Int](Levels)
+    private var numFlows = 0
+    private var started = false
+    private var currentTick = 0L
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
-        expirationQueues(flow.expirationType).addLast(flow)
+        if (!started) {
+            start(flow.absoluteExpirationNanos -
+                  expirations(flow.expirationType).value)
+        }
+        schedule(flow)
+        numFlows += 1
         flow.ref()
     }
 
+    /**
+     * Moves a registered flow to a new expiration time.
+     */
+    def rescheduleFlow(flow: ManagedFlow, absoluteExpirationNanos: Long): Unit = {
+        unlink(flow)
+        flow.absoluteExpirationNanos = absoluteExpirationNanos
+        schedule(flow)
+    }
+
     def checkFlowsExpiration(now: Long): Unit = {
+        if (!started)
+            start(now)
         checkHardTimeOutExpiration(now)
         manageFlowTableSize()
     }
 
+    private def start(now: Long): Unit = {
+        currentTick = now >> TickShift
+        started = true
+    }
+
     private def checkHardTimeOutExpiration(now: Long): Unit = {
-        var i = 0
-        while (i < maxType) {
-            var flow: ManagedFlow = null
-            val queue = expirationQueues(i)
-            while (({ flow = queue.peekFirst(); flow } ne null) &&
-                   now >= flow.absoluteExpirationNanos) {
+        val target = now >> TickShift
+        val budget = flowExpirationBudget
+        var expired = 0
+        var done = false
+        while (!done) {
+            expired += expireSlot(slotOf(0, currentTick), now, budget - expired)
+            if (expired >= budget) {
+                done = true
+            } else if (currentTick >= target) {
+                done = true
+            } else {
+                advance(target)
+            }
+        }
+        val deferred = if (expired >= budget) deferredFlows(target) else 0
+        if (expired > 0 || deferred > 0)
+            flowsExpired(expired, deferred)
+    }
+
+    private def expireSlot(slot: Int, now: Long, budget: Int): Int = {
+        var expired = 0
+        var flow = heads(slot)
+        while ((flow ne null) && expired < budget) {
+            val next = flow.expirationNext
+            if (now >= flow.absoluteExpirationNanos) {
                 log.debug(s"Removing flow $flow for hard expiration")
+                unlink(flow)
+                numFlows -= 1
                 flow.unref()
-                removeFlow(queue.pollFirst())
+                removeFlow(flow)
+                expired += 1
             }
-            i += 1
+            flow = next
         }
+        expired
     }
 
-    private def manageFlowTableSize(): Unit = {
-        var excessFlows = 0
-        var i = 0
-        while (i < maxType) {
-            excessFlows += expirationQueues(i).size()
-            i += 1
+    /**
+     * Advances the wheel by one tick, or to the next rotation of the first
+     * level if its slots are empty, without going past the target tick.
+     */
+    private def advance(target: Long): Unit = {
+        var level = 0
+        while (level < Levels - 1 && levelSizes(level) == 0)
+            level += 1
+        val next = if (level == 0) currentTick + 1
+                   else ((currentTick >> (level * SlotBits)) + 1) << (level * SlotBits)
+        if (next > target || numFlows == 0) {
+            currentTick = target
+        } else {
+            currentTick = next
+            var l = Levels - 1
+            while (l > 0) {
+                if ((currentTick & ((1L << (l * SlotBits)) - 1)) == 0)
+                    cascade(slotOf(l, currentTick >> (l * SlotBits)))
+                l -= 1
+            }
+        }
+    }
+
+    private def cascade(slot: Int): Unit = {
+        var flow = heads(slot)
+        while (flow ne null) {
+            val next = flow.expirationNext
+            unlink(flow)
+            schedule(flow)
+            flow = next
+        }
+    }
+
+    private def deferredFlows(target: Long): Int = {
+        var deferred = 0
+        var tick = currentTick
+        while (tick <= target && tick < currentTick + Slots) {
+            deferred += sizes(slotOf(0, tick))
+            tick += 1
+        }
+        deferred
+    }
+
+    private def schedule(flow: ManagedFlow): Unit = {
+        val tick = flow.absoluteExpirationNanos >> TickShift
+        var level = 0
+        var slot = -1
+        while (slot < 0 && level < Levels) {
+            val shift = level * SlotBits
+            if ((tick >> shift) - (currentTick >> shift) < Slots) {
+                slot = slotOf(level, Math.max(tick, currentTick) >> shift)
+            }
+            level += 1
         }
-        excessFlows -= maxFlows
+        if (slot < 0) {
+            // Beyond the span of the wheel, the flow waits in the farthest
+            // slot of the last level and is scheduled again from there.
+            level = Levels
+            slot = slotOf(Levels - 1, (currentTick >> ((Levels - 1) * SlotBits)) - 1)
+        }
+        link(flow, slot, level - 1)
+    }
 
+    private def slotOf(level: Int, tick: Long): Int =
+        level * Slots + (tick & SlotMask).toInt
+
+    private def link(flow: ManagedFlow, slot: Int, level: Int): Unit = {
+        flow.expirationSlot = slot
+        flow.expirationNext = null
+        flow.expirationPrev = tails(slot)
+        if (tails(slot) ne null)
+            tails(slot).expirationNext = flow
+        else
+            heads(slot) = flow
+        tails(slot) = flow
+        sizes(slot) += 1
+        levelSizes(level) += 1
+    }
+
+    private def unlink(flow: ManagedFlow): Unit = {
+        val slot = flow.expirationSlot
+        if (slot >= 0) {
+            if (flow.expirationPrev ne null)
+                flow.expirationPrev.expirationNext = flow.expirationNext
+            else
+                heads(slot) = flow.expirationNext
+            if (flow.expirationNext ne null)
+                flow.expirationNext.expirationPrev = flow.expirationPrev
+            else
+                tails(slot) = flow.expirationPrev
+            sizes(slot) -= 1
+            levelSizes(slot / Slots) -= 1
+            flow.expirationSlot = -1
+            flow.expirationPrev = null
+            flow.expirationNext = null
+        }
+    }
+
+    private def manageFlowTableSize(): Unit = {
+        val excessFlows = numFlows - maxFlows
         if (excessFlows > 0) {
             log.debug(s"Evicting $excessFlows excess flows")
             removeOldestDpFlows(excessFlows)
         }
     }
 
+    /**
+     * Evicts the flows closest to their expiration, visiting the slots of
+     * each level in the order in which the wheel reaches them.
+     */
     private def removeOldestDpFlows(numFlowsToEvict: Int): Unit = {
-        var i = 0
         var evicted = 0
-        while (i < maxType) {
-            val queue = expirationQueues(i)
-            var flow: ManagedFlow = null
-            while (evicted < numFlowsToEvict &&
-                   ({ flow = queue.pollFirst(); flow } ne null)) {
-                flow.unref()
-                removeFlow(flow)
-                evicted += 1
+        var level = 0
+        while (level < Levels && evicted < numFlowsToEvict) {
+            val base = currentTick >> (level * SlotBits)
+            var i = 0
+            while (i < Slots && evicted < numFlowsToEvict) {
+                val slot = slotOf(level, base + i)
+                var flow: ManagedFlow = null
+                while (evicted < numFlowsToEvict &&
+                       ({ flow = heads(slot); flow } ne null)) {
+                    unlink(flow)
+                    numFlows -= 1
+                    flow.unref()
+                    removeFlow(flow)
+                    evicted += 1
+                }
+                i += 1
             }
-            i += 1
+            level += 1
         }
     }
 }
@@ -43,6 +43,10 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     var mark = 0
     var removed = true
     var linkedFlow: ManagedFlow = null
+    // The slot of the expiration wheel holding this flow, and its neighbours
+    var expirationSlot = -1
+    var expirationPrev: ManagedFlow = null
+    var expirationNext: ManagedFlow = null
 
     def reset(flowMatch: FlowMatch, flowTags: ArrayList[FlowTag],
               flowRemovedCallbacks: ArrayList[Callback0], sequence: Long,
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+import org.midonet.Util
+
+object FlowRecordRing {
+    /** The initial size of the buffer of a slot, which grows for the larger
+      * records. */
+    final val SlotSize = 2048
+}
+
+/**
+  * A bounded, lock-free ring of direct buffers holding encoded flow records,
+  * written by the packet processing threads and read by a single exporter
+  * thread.
+  *
+  * Every slot has a sequence number: a producer claims the slot at the tail
+  * when its sequence equals the tail position, copies the record to the slot
+  * buffer, and publishes it by advancing the sequence. The consumer releases
+  * a slot by advancing its sequence to the position of the next lap. When the
+  * ring is full, [[offer()]] fails instead of waiting for the consumer.
+  */
+final class FlowRecordRing(requestedCapacity: Int) {
+
+    import FlowRecordRing._
+
+    val capacity = Util.findNextPositivePowerOfTwo(math.max(requestedCapacity, 2))
+    private val mask = capacity - 1
+    private val slots = Array.fill(capacity)(ByteBuffer.allocateDirect(SlotSize))
+    private val sequences = new AtomicLongArray(capacity)
+    private val tail = new AtomicLong()
+    // Accessed only by the consumer.
+    private var head = 0L
+
+    {
+        var index = 0
+        while (index < capacity) {
+            sequences.set(index, index)
+            index += 1
+        }
+    }
+
+    /** Copies the remaining bytes of the record to the ring. Returns false
+      * if the ring is full. */
+    def offer(record: ByteBuffer): Boolean = {
+        var position = tail.get
+        while (true) {
+            val index = (position & mask).toInt
+            val diff = sequences.get(index) - position
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    var slot = slots(index)
+                    if (slot.capacity < record.remaining) {
+                        slot = ByteBuffer.allocateDirect(record.remaining)
+                        slots(index) = slot
+                    }
+                    slot.clear()
+                    slot.put(record)
+                    slot.flip()
+                    sequences.lazySet(index, position + 1)
+                    return true
+                }
+                position = tail.get
+            } else if (diff < 0) {
+                return false
+            } else {
+                position = tail.get
+            }
+        }
+        false
+    }
+
+    /** Returns the record at the head of the ring, or null if the ring is
+      * empty. The record must be released before reading the next one. */
+    def peek(): ByteBuffer = {
+        val index = (head & mask).toInt
+        if (sequences.get(index) == head + 1) slots(index) else null
+    }
+
+    /** Releases the record at the head of the ring. */
+    def release(): Unit = {
+        val index = (head & mask).toInt
+        sequences.lazySet(index, head + capacity)
+        head += 1
+    }
+}
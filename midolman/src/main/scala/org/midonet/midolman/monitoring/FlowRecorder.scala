@@ -20,10 +20,16 @@ import scala.collection.JavaConverters._
 import java.net.{InetAddress, InetSocketAddress}
 import java.nio.ByteBuffer
 import java.nio.channels.DatagramChannel
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.locks.LockSupport
 import java.util.{ArrayList, List, UUID}
 
+import scala.util.control.NonFatal
+
 import org.slf4j.LoggerFactory
 
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.{Counter, MetricRegistry}
 import com.google.common.net.HostAndPort
 import com.typesafe.scalalogging.Logger
 
@@ -39,20 +45,25 @@ import org.midonet.sdn.flows.FlowTagger._
 
 trait FlowRecorder {
     def record(pktContext: PacketContext, simRes: MMSimRes): Unit
+
+    /** Stops the recorder and releases its resources. */
+    def close(): Unit = { }
 }
 
 object FlowRecorder {
     val log = Logger(LoggerFactory.getLogger(classOf[FlowRecorder]))
 
-    def apply(config: MidolmanConfig, hostId: UUID): FlowRecorder = {
+    def apply(config: MidolmanConfig, hostId: UUID,
+              registry: MetricRegistry = null): FlowRecorder = {
         log.info("Creating flow recorder with " +
                      s"(${config.flowHistory.encoding}) encoding")
         if (config.flowHistory.enabled) {
             config.flowHistory.encoding match {
                 case "json" => new JsonFlowRecorder(
-                    hostId, config.flowHistory)
+                    hostId, config.flowHistory, registry)
                 case "binary" => new BinaryFlowRecorder(hostId,
-                                                        config.flowHistory)
+                                                        config.flowHistory,
+                                                        registry)
                 case "none" => NullFlowRecorder
                 case other =>
                     log.error(s"Invalid encoding ($other) specified")
@@ -75,10 +86,31 @@ object NullFlowRecorder extends FlowRecorder {
     }
 }
 
+object AbstractFlowRecorder {
+    /** The maximum payload of a UDP datagram. */
+    final val MaxDatagramSize = 65507
+
+    private final val MinIdleNanos = 100000L
+    private final val MaxIdleNanos = 10000000L
+    private final val CloseTimeoutMillis = 5000L
+}
+
 /**
-  * Abstract flow recorder example that sends summaries over a udp port
+  * Abstract flow recorder example that sends summaries over a udp port.
+  *
+  * The packet processing threads only encode the sampled records into a
+  * [[FlowRecordRing]], and an exporter thread sends them to the endpoint.
+  * When the exporter cannot keep up and the ring is full, the records are
+  * dropped and counted, such that recording never blocks the simulations.
+  * Recorders whose records are self-delimiting may pack several records per
+  * datagram. The exporter thread runs until the recorder is closed.
   */
-abstract class AbstractFlowRecorder(config: FlowHistoryConfig) extends FlowRecorder {
+abstract class AbstractFlowRecorder(config: FlowHistoryConfig,
+                                    registry: MetricRegistry = null)
+        extends FlowRecorder {
+
+    import AbstractFlowRecorder._
+
     val log = Logger(LoggerFactory.getLogger("org.midonet.history"))
 
     val endpoint: InetSocketAddress = try {
@@ -95,20 +127,122 @@ abstract class AbstractFlowRecorder(config: FlowHistoryConfig) extends FlowRecor
 
     val socket = DatagramChannel.open()
 
+    private val sampling = math.max(config.sampling, 1)
+    private val recordsPerDatagram =
+        if (packsRecords) math.max(config.recordsPerDatagram, 1) else 1
+    private val ring = new FlowRecordRing(config.exportQueueSize)
+    private lazy val datagram = ByteBuffer.allocateDirect(MaxDatagramSize)
+
+    val recordsExported = counter("recordsExported")
+    val recordsDropped = counter("recordsDropped")
+    val datagramsSent = counter("datagramsSent")
+
+    @volatile private var running = true
+    private val exporter = new Thread("flow-history-exporter") {
+        override def run(): Unit = export()
+    }
+    if (endpoint != null) {
+        exporter.setDaemon(true)
+        exporter.start()
+    }
+
     final override def record(pktContext: PacketContext, simRes: MMSimRes):
             Unit = {
         try {
-            if (endpoint != null) {
+            if (running && endpoint != null &&
+                (sampling == 1 ||
+                 ThreadLocalRandom.current().nextInt(sampling) == 0)) {
                 val buffer = encodeRecord(pktContext: PacketContext, simRes)
-                socket.send(buffer, endpoint)
+                if (!ring.offer(buffer)) {
+                    recordsDropped.inc()
+                }
             }
         } catch {
-            case t: Throwable => log.warn("FlowHistory: Error sending data", t)
+            case t: Throwable => log.warn("FlowHistory: Error encoding data", t)
+        }
+    }
+
+    /** Stops the exporter thread, dropping the records not exported yet,
+      * and closes the socket. */
+    override def close(): Unit = {
+        running = false
+        exporter.interrupt()
+        try {
+            exporter.join(CloseTimeoutMillis)
+        } catch {
+            case _: InterruptedException =>
+                Thread.currentThread().interrupt()
+        }
+        try {
+            socket.close()
+        } catch {
+            case NonFatal(e) => log.warn("FlowHistory: Error closing socket", e)
         }
     }
 
     def encodeRecord(pktContext: PacketContext,
                      simRes: MMSimRes): ByteBuffer
+
+    /** Whether the encoded records can be concatenated in a datagram, and
+      * split by the receiver. */
+    protected def packsRecords: Boolean = false
+
+    private def counter(metric: String): Counter = {
+        if (registry eq null) new Counter
+        else registry.counter(name(classOf[FlowRecorder], metric))
+    }
+
+    /** Sends the records in the ring, and backs off while the ring is
+      * empty, until the recorder is closed. */
+    private def export(): Unit = {
+        var idleNanos = MinIdleNanos
+        while (running) {
+            if (exportDatagram()) {
+                idleNanos = MinIdleNanos
+            } else {
+                LockSupport.parkNanos(idleNanos)
+                idleNanos = math.min(idleNanos * 2, MaxIdleNanos)
+            }
+        }
+    }
+
+    /** Sends a datagram with the records at the head of the ring. Returns
+      * false if the ring is empty. */
+    private def exportDatagram(): Boolean = {
+        var record = ring.peek()
+        if (record eq null) {
+            return false
+        }
+        if (recordsPerDatagram == 1 || record.remaining > MaxDatagramSize) {
+            send(record, 1)
+            ring.release()
+            return true
+        }
+        datagram.clear()
+        var count = 0
+        while ((record ne null) && count < recordsPerDatagram &&
+               record.remaining <= datagram.remaining) {
+            datagram.put(record)
+            ring.release()
+            count += 1
+            record = ring.peek()
+        }
+        datagram.flip()
+        send(datagram, count)
+        true
+    }
+
+    private def send(buffer: ByteBuffer, records: Int): Unit = {
+        try {
+            socket.send(buffer, endpoint)
+            recordsExported.inc(records)
+            datagramsSent.inc()
+        } catch {
+            case NonFatal(e) if running =>
+                log.warn("FlowHistory: Error sending data", e)
+            case NonFatal(_) => // The recorder was closed.
+        }
+    }
 }
 
 object FlowRecordBuilder {
@@ -19,14 +19,17 @@ package org.midonet.midolman.monitoring
 import java.nio.ByteBuffer
 import java.util.UUID
 
+import com.codahale.metrics.MetricRegistry
+
 import org.midonet.cluster.flowhistory.JsonSerialization
 import org.midonet.midolman.PacketWorkflow
 import org.midonet.midolman.PacketWorkflow.{SimulationResult => MMSimRes}
 import org.midonet.midolman.config.FlowHistoryConfig
 import org.midonet.midolman.simulation.PacketContext
 
-class JsonFlowRecorder(hostId: UUID, config: FlowHistoryConfig)
-        extends AbstractFlowRecorder(config) {
+class JsonFlowRecorder(hostId: UUID, config: FlowHistoryConfig,
+                       registry: MetricRegistry = null)
+        extends AbstractFlowRecorder(config, registry) {
 
     val serializer = new JsonSerialization
 
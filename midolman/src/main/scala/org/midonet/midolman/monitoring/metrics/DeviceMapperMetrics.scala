@@ -15,6 +15,8 @@
  */
 package org.midonet.midolman.monitoring.metrics
 
+import java.util.concurrent.TimeUnit.NANOSECONDS
+
 import com.codahale.metrics.MetricRegistry
 import com.codahale.metrics.MetricRegistry.name
 import com.google.common.annotations.VisibleForTesting
@@ -25,11 +27,15 @@ import org.midonet.midolman.topology.VirtualTopology.Device
 trait DeviceMapperMetrics {
     def deviceUpdated(): Unit
     def deviceErrorTriggered(): Unit
+    def deviceBuilt(latencyNanos: Long): Unit
+    def deviceCoalesced(): Unit
 }
 
 object BlackHoleDeviceMapperMetrics extends DeviceMapperMetrics {
     override def deviceUpdated(): Unit = {}
     override def deviceErrorTriggered(): Unit = {}
+    override def deviceBuilt(latencyNanos: Long): Unit = {}
+    override def deviceCoalesced(): Unit = {}
 }
 
 class JmxDeviceMapperMetrics[D <: Device](dm: DeviceMapper[D], registry: MetricRegistry)
@@ -44,7 +50,21 @@ class JmxDeviceMapperMetrics[D <: Device](dm: DeviceMapper[D], registry: MetricR
     @VisibleForTesting
     val deviceErrors = registry.counter(name(deviceName, deviceId, "deviceErrors"))
 
+    @VisibleForTesting
+    val deviceCoalescedCounter =
+        registry.counter(name(deviceName, deviceId, "deviceCoalesced"))
+
+    /* The time from the first subscription to the first device, shared by
+       all the mappers of the same type. */
+    @VisibleForTesting
+    val deviceBuildLatency = registry.histogram(name(deviceName, "buildLatency"))
+
     def deviceUpdated() = deviceUpdatedMeter.mark()
 
     def deviceErrorTriggered() = deviceErrors.inc()
+
+    def deviceBuilt(latencyNanos: Long) =
+        deviceBuildLatency.update(NANOSECONDS.toMicros(latencyNanos))
+
+    def deviceCoalesced() = deviceCoalescedCounter.inc()
 }
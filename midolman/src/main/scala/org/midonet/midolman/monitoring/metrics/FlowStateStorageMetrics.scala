@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring.metrics
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+
+import org.midonet.midolman.state.FlowStateStorage
+
+/**
+ * Metrics of the writes of flow state to Cassandra. The counters aggregate
+ * the storage instances of all packet processing threads.
+ */
+trait FlowStateStorageMetrics {
+    def statementsQueued(count: Int): Unit
+    def statementsDequeued(count: Int): Unit
+    def requestStarted(): Unit
+    def requestCompleted(): Unit
+    def touchDropped(): Unit
+    def touchDeduplicated(): Unit
+}
+
+object BlackHoleFlowStateStorageMetrics extends FlowStateStorageMetrics {
+    override def statementsQueued(count: Int): Unit = {}
+    override def statementsDequeued(count: Int): Unit = {}
+    override def requestStarted(): Unit = {}
+    override def requestCompleted(): Unit = {}
+    override def touchDropped(): Unit = {}
+    override def touchDeduplicated(): Unit = {}
+}
+
+class JmxFlowStateStorageMetrics(registry: MetricRegistry)
+    extends FlowStateStorageMetrics {
+
+    private final val prefix = classOf[FlowStateStorage].getName
+
+    val pendingStatements = registry.counter(name(prefix, "pendingStatements"))
+
+    val inFlightRequests = registry.counter(name(prefix, "inFlightRequests"))
+
+    val droppedTouches = registry.meter(name(prefix, "droppedTouches"))
+
+    val deduplicatedTouches =
+        registry.meter(name(prefix, "deduplicatedTouches"))
+
+    override def statementsQueued(count: Int) = pendingStatements.inc(count)
+
+    override def statementsDequeued(count: Int) = pendingStatements.dec(count)
+
+    override def requestStarted() = inFlightRequests.inc()
+
+    override def requestCompleted() = inFlightRequests.dec()
+
+    override def touchDropped() = droppedTouches.mark()
+
+    override def touchDeduplicated() = deduplicatedTouches.mark()
+}
@@ -19,6 +19,8 @@ package org.midonet.midolman.monitoring.metrics
 import com.codahale.metrics.{Gauge, MetricRegistry}
 import com.codahale.metrics.MetricRegistry.name
 
+import org.midonet.midolman.state.NatLeaser
+
 class PacketPipelineMetrics(val registry: MetricRegistry,
                             numPipelineProcessors: Int) {
 
@@ -66,6 +68,17 @@ class PacketPipelineMetrics(val registry: MetricRegistry,
         classOf[FlowTablesMeter], "datapathFlowsRemoved",
         "datapathFlowsRemoved"))
 
+    val flowsExpiredPerCheck = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "flowsExpiredPerCheck"))
+
+    val flowsDeferredPerCheck = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "flowsDeferredPerCheck"))
+
+    def flowsExpired(expired: Int, deferred: Int) {
+        flowsExpiredPerCheck.update(expired)
+        flowsDeferredPerCheck.update(deferred)
+    }
+
     def packetSimulated(latency: Int) {
         packetsSimulated.mark()
         simulationLatency.update(latency)
@@ -76,4 +89,19 @@ class PacketPipelineMetrics(val registry: MetricRegistry,
         packetsPostponed.mark()
         packetsOnHold.inc()
     }
+
+    /** Registers the hit and miss counts of the NAT block reservoirs of the
+      * given leaser, replacing those of a previous leaser. */
+    def natLeaser(leaser: NatLeaser): Unit = {
+        val hits = name(classOf[PacketPipelineGauge], "natReservoirHits")
+        val misses = name(classOf[PacketPipelineGauge], "natReservoirMisses")
+        registry.remove(hits)
+        registry.remove(misses)
+        registry.register(hits, new Gauge[Long] {
+            override def getValue = leaser.reservoirHits
+        })
+        registry.register(misses, new Gauge[Long] {
+            override def getValue = leaser.reservoirMisses
+        })
+    }
 }
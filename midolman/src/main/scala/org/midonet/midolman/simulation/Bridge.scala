@@ -496,7 +496,7 @@ class Bridge(val id: UUID,
       * increasing the reference count for the tuple mac-vlan-port. What vlan is
       * chosen depends on the rules in Bridge::srcVlanTag.
       *
-      * This will also install a flow removed callback in the context so that
+      * This will also install a flow reference in the context so that
       * we can decrement the mac-vlan-port flow count accordingly.
       *
       * NOTE: Flow invalidations caused by MACs migrating between ports are
@@ -510,10 +510,13 @@ class Bridge(val id: UUID,
             val inPortId = context.inPortId
             context.log.debug("Increasing ref. count for MAC {}, VLAN {} on port {}",
                               srcDlAddress, vlanId, inPortId)
-            flowCount.increment(srcDlAddress, vlanId, inPortId)
-            val callback = flowRemovedCallbackGen
-                           .getCallback(srcDlAddress, vlanId, inPortId)
-            context.addFlowRemovedCallback(callback)
+            context.addFlowReference(new FlowReference {
+                override def acquire(): Callback0 = {
+                    flowCount.increment(srcDlAddress, vlanId, inPortId)
+                    flowRemovedCallbackGen.getCallback(srcDlAddress, vlanId,
+                                                       inPortId)
+                }
+            })
         }
     }
 
@@ -48,8 +48,22 @@ case class Chain(id: UUID,
     override val deviceTag: FlowTagger.FlowTag = FlowTagger.tagForChain(id)
     override def adminStateUp = true
 
+    @volatile private var classifier: ChainClassifier = null
+
     def getJumpTarget(to: UUID): Chain = jumpTargets.get(to)
 
+    /**
+     * Compiles the chain's rules into a [[ChainClassifier]], which is used
+     * from then on when applying the chain. The chain's rules and jump
+     * targets must not be modified after calling this method.
+     */
+    def compile(): Chain = {
+        classifier = new ChainClassifier(this)
+        this
+    }
+
+    @VisibleForTesting def isCompiled: Boolean = classifier ne null
+
     @VisibleForTesting def isJumpTargetsEmpty: Boolean = jumpTargets.isEmpty
 
     def process(context: PacketContext): RuleResult = {
@@ -73,6 +87,9 @@ case class Chain(id: UUID,
             traversedChains: ArrayList[UUID]): RuleResult = {
         context.addFlowTag(deviceTag)
         traversedChains.add(id)
+        val classifier = this.classifier
+        if (classifier ne null)
+            return applyCompiled(context, classifier, traversedChains)
         var i = 0
         var res = CONTINUE
         while ((i < rules.size()) && (res.action eq Action.CONTINUE)) {
@@ -94,11 +111,87 @@ case class Chain(id: UUID,
         res
     }
 
+    /**
+     * Applies the chain using its compiled classifier. Only the conditions
+     * of the candidate rules for the packet that pass the classifier's
+     * destination filters are evaluated, and the other rules are recorded
+     * as traversed without matching.
+     */
+    private def applyCompiled(
+            context: PacketContext,
+            classifier: ChainClassifier,
+            traversedChains: ArrayList[UUID]): RuleResult = {
+        val rules = classifier.rules
+        var candidates: Array[Int] = null
+        var pos = 0
+        var i = 0
+        var res = CONTINUE
+        while ((i < rules.length) && (res.action eq Action.CONTINUE)) {
+            if ((candidates eq null) && classifier.isIndexed(i)) {
+                candidates = classifier.candidates(context)
+                pos = classifier.firstCandidate(candidates, i)
+            }
+            if (candidates ne null) {
+                val next = if (pos < candidates.length) candidates(pos)
+                           else rules.length
+                pos += 1
+                while (i < next) {
+                    skipRule(context, rules(i))
+                    i += 1
+                }
+            }
+            if ((i < rules.length) && !classifier.mayMatch(i, context)) {
+                skipRule(context, rules(i))
+                i += 1
+            } else if (i < rules.length) {
+                val rule = rules(i)
+                res = rule.process(context)
+
+                if (rule.id == null) {
+                    context.log.warn(
+                        s"$rule has no id, this is a bug. Please report.")
+                } else {
+                    context.recordTraversedRule(rule.id, res)
+                }
+
+                // A jump chain, or a rule that applied without ending the
+                // chain, may have modified the packet, so the candidates
+                // must be computed again.
+                if (res.action eq Action.JUMP) {
+                    res = jump(context, res.jumpToChain,
+                               classifier.jumpTargets(i), traversedChains)
+                    candidates = null
+                } else if (res ne CONTINUE) {
+                    candidates = null
+                }
+                i += 1
+            }
+        }
+        assert(res.action ne Action.JUMP)
+        res
+    }
+
+    private[this] def skipRule(context: PacketContext, rule: Rule): Unit = {
+        context.recordMatchedRule(rule.id, false)
+        context.recordAppliedRule(rule.id, false)
+        if (rule.id == null) {
+            context.log.warn(s"$rule has no id, this is a bug. Please report.")
+        } else {
+            context.recordTraversedRule(rule.id, CONTINUE)
+        }
+    }
+
+    private[this] def jump(
+            context: PacketContext,
+            jumpToChain: UUID,
+            traversedChains: ArrayList[UUID]): RuleResult =
+        jump(context, jumpToChain, getJumpTarget(jumpToChain), traversedChains)
+
     private[this] def jump(
             context: PacketContext,
             jumpToChain: UUID,
+            jumpChain: Chain,
             traversedChains: ArrayList[UUID]): RuleResult = {
-        val jumpChain: Chain = getJumpTarget(jumpToChain)
         if (jumpChain == null) {
             context.log.error(s"ignoring jump to chain $jumpToChain : not found.")
             Chain.CONTINUE
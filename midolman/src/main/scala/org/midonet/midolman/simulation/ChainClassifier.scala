@@ -0,0 +1,245 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.{ArrayList, Arrays}
+
+import org.midonet.midolman.rules.{Condition, JumpRule, Rule}
+import org.midonet.packets.{IPv4Addr, IPv4Subnet, Unsigned}
+
+object ChainClassifier {
+
+    final val ANY = -1
+
+    /**
+     * Holds the candidate rules for a given ethertype. The candidates for a
+     * network protocol that isn't indexed are those in `anyProto`.
+     */
+    private final class EtherTypeBucket(val protos: Array[Int],
+                                        val protoCandidates: Array[Array[Int]],
+                                        val anyProto: Array[Int])
+
+    /**
+     * Whether a rule's condition can be skipped without evaluating it when
+     * one of its indexed fields doesn't match the packet. Inverted
+     * conditions are never indexed, and neither are forward and return flow
+     * conditions: evaluating them checks the connection tracking table,
+     * which marks the packet as tracked and tags the flow, even when a later
+     * field doesn't match.
+     */
+    private def isIndexable(cond: Condition): Boolean =
+        (cond ne null) && !cond.conjunctionInv && !cond.matchForwardFlow &&
+        !cond.matchReturnFlow
+
+    /**
+     * Returns the ethertype a rule's condition requires, or ANY if the rule
+     * may match packets of any ethertype or cannot be indexed.
+     */
+    private def etherTypeKey(rule: Rule): Int = {
+        val cond = rule.getCondition
+        if (!isIndexable(cond) || cond.invDlType || (cond.etherType eq null))
+            ANY
+        else Condition.unsignShort(cond.etherType).intValue()
+    }
+
+    /**
+     * Returns the network protocol a rule's condition requires, or ANY if
+     * the rule may match packets of any network protocol.
+     */
+    private def nwProtoKey(rule: Rule): Int = {
+        val cond = rule.getCondition
+        if (!isIndexable(cond) || cond.nwProtoInv || (cond.nwProto eq null))
+            ANY
+        else Unsigned.unsign(cond.nwProto.byteValue())
+    }
+
+    private def select(etherKeys: Array[Int], protoKeys: Array[Int],
+                       pred: (Int, Int) => Boolean): Array[Int] = {
+        val selected = new ArrayList[Integer]()
+        var i = 0
+        while (i < etherKeys.length) {
+            if (pred(etherKeys(i), protoKeys(i)))
+                selected.add(i)
+            i += 1
+        }
+        val result = new Array[Int](selected.size())
+        i = 0
+        while (i < result.length) {
+            result(i) = selected.get(i).intValue()
+            i += 1
+        }
+        result
+    }
+}
+
+/**
+ * A compiled representation of a chain's rules, built by the ChainMapper
+ * when it publishes a chain. Rules are indexed by the ethertype and the
+ * network protocol their conditions require, and the candidate rules for a
+ * packet are further filtered by the IPv4 destination subnet and the
+ * destination port range they require, so that the simulation only
+ * evaluates the conditions of rules that may match a packet. Jump targets
+ * are resolved to the target chains up front.
+ *
+ * The classifier doesn't change the first-match semantics of the chain:
+ * candidate rules are evaluated in the chain order, and rules that are
+ * skipped are recorded as traversed without matching. A rule is only
+ * skipped when its condition would not match the packet, and evaluating it
+ * would have no side effect on the packet context, so forward and return
+ * flow conditions are always evaluated. The ethertype and protocol are only
+ * read from the packet's wildcard match once the first indexed rule is
+ * reached, so that the resulting flow is not less general than when
+ * evaluating the rules one by one, and the destination address and port
+ * only once a candidate rule requiring them is reached.
+ */
+final class ChainClassifier(chain: Chain) {
+    import ChainClassifier._
+
+    val rules: Array[Rule] = chain.rules.toArray(new Array[Rule](0))
+
+    /** The jump target of each rule, or null if the rule is not a jump. */
+    val jumpTargets: Array[Chain] = {
+        val targets = new Array[Chain](rules.length)
+        var i = 0
+        while (i < rules.length) {
+            rules(i) match {
+                case jumpRule: JumpRule =>
+                    targets(i) = chain.getJumpTarget(jumpRule.jumpToChainID)
+                case _ =>
+            }
+            i += 1
+        }
+        targets
+    }
+
+    private val etherKeys = rules.map(etherTypeKey)
+    private val protoKeys = Array.tabulate(rules.length) { i =>
+        if (etherKeys(i) == ANY) ANY else nwProtoKey(rules(i))
+    }
+
+    // The destination filters of the indexed rules: a rule without a filter
+    // has a zero mask, or an ANY port range start.
+    private val dstAddrs = new Array[Int](rules.length)
+    private val dstMasks = new Array[Int](rules.length)
+    private val dstPortStarts = Array.fill(rules.length)(ANY)
+    private val dstPortEnds = new Array[Int](rules.length)
+
+    {
+        var i = 0
+        while (i < rules.length) {
+            val cond = rules(i).getCondition
+            if (etherKeys(i) != ANY) {
+                cond.nwDstIp match {
+                    case subnet: IPv4Subnet if !cond.nwDstInv &&
+                                               subnet.getPrefixLen > 0 =>
+                        dstMasks(i) = ~0 << (32 - subnet.getPrefixLen)
+                        dstAddrs(i) = subnet.getIntAddress & dstMasks(i)
+                    case _ =>
+                }
+                val range = cond.tpDst
+                if ((range ne null) && !cond.tpDstInv &&
+                    (range.start ne null) && (range.end ne null)) {
+                    dstPortStarts(i) = range.start.intValue()
+                    dstPortEnds(i) = range.end.intValue()
+                }
+            }
+            i += 1
+        }
+    }
+
+    private val etherTypes: Array[Int] =
+        etherKeys.filter(_ != ANY).distinct
+
+    private val anyEtherType: Array[Int] =
+        select(etherKeys, protoKeys, (e, _) => e == ANY)
+
+    private val buckets: Array[EtherTypeBucket] = etherTypes map { etherType =>
+        val protos = etherKeys.indices
+            .filter(i => etherKeys(i) == etherType && protoKeys(i) != ANY)
+            .map(i => protoKeys(i)).distinct.toArray
+        val protoCandidates = protos map { proto =>
+            select(etherKeys, protoKeys, (e, p) =>
+                e == ANY || (e == etherType && (p == ANY || p == proto)))
+        }
+        val anyProto = select(etherKeys, protoKeys, (e, p) =>
+            e == ANY || (e == etherType && p == ANY))
+        new EtherTypeBucket(protos, protoCandidates, anyProto)
+    }
+
+    /** Whether the rule at the given position is indexed. */
+    @inline def isIndexed(index: Int): Boolean = etherKeys(index) != ANY
+
+    /**
+     * Whether the candidate rule at the given position may match the packet
+     * in the given context, according to its destination subnet and port
+     * range. The destination address and port are read from the packet's
+     * wildcard match only if the rule requires them.
+     */
+    def mayMatch(index: Int, context: PacketContext): Boolean = {
+        if (dstMasks(index) != 0) {
+            context.wcmatch.getNetworkDstIP match {
+                case addr: IPv4Addr =>
+                    if ((addr.toInt & dstMasks(index)) != dstAddrs(index))
+                        return false
+                case _ => return false
+            }
+        }
+        if (dstPortStarts(index) != ANY) {
+            val port = context.wcmatch.getDstPort
+            if (port < dstPortStarts(index) || port > dstPortEnds(index))
+                return false
+        }
+        true
+    }
+
+    /**
+     * Returns the positions, in chain order, of the rules that may match
+     * the packet in the given context. This reads the ethertype, and the
+     * network protocol if any rule for that ethertype requires one, from the
+     * packet's wildcard match.
+     */
+    def candidates(context: PacketContext): Array[Int] = {
+        val etherType = Unsigned.unsign(context.wcmatch.getEtherType)
+        var i = 0
+        while (i < etherTypes.length && etherTypes(i) != etherType) {
+            i += 1
+        }
+        if (i == etherTypes.length)
+            return anyEtherType
+
+        val bucket = buckets(i)
+        if (bucket.protos.length == 0)
+            return bucket.anyProto
+
+        val proto = Unsigned.unsign(context.wcmatch.getNetworkProto)
+        i = 0
+        while (i < bucket.protos.length && bucket.protos(i) != proto) {
+            i += 1
+        }
+        if (i == bucket.protos.length) bucket.anyProto
+        else bucket.protoCandidates(i)
+    }
+
+    /**
+     * Returns the position in the candidates array of the first candidate
+     * rule at or after the given rule position.
+     */
+    def firstCandidate(candidates: Array[Int], from: Int): Int = {
+        val pos = Arrays.binarySearch(candidates, from)
+        if (pos >= 0) pos else -pos - 1
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import org.midonet.util.functors.Callback0
+
+/**
+ * A reference that a flow holds on some piece of state owned by a virtual
+ * device, such as the flow count of a learned MAC. Acquiring the reference
+ * returns the callback that releases it when the flow is removed.
+ *
+ * Unlike a bare flow removed callback, a reference can be acquired again
+ * without running the simulation, which allows a cached simulation result
+ * to be replayed for a new flow.
+ */
+trait FlowReference {
+    def acquire(): Callback0
+}
@@ -363,9 +363,26 @@ class PacketContext(val cookie: Long,
     // Stores the callback to call when this flow is removed.
     val flowRemovedCallbacks = new ArrayList[Callback0]()
     def addFlowRemovedCallback(cb: Callback0): Unit = {
+        replayable = false
         flowRemovedCallbacks.add(cb)
     }
 
+    // Stores the references acquired by this flow, whose release callbacks
+    // are also among the flow removed callbacks.
+    val flowReferences = new ArrayList[FlowReference]()
+    def addFlowReference(ref: FlowReference): Unit = {
+        flowReferences.add(ref)
+        flowRemovedCallbacks.add(ref.acquire())
+    }
+
+    // Whether the simulation has side effects other than the flow references,
+    // such as generated packets, which prevent its result from being replayed.
+    var replayable = true
+
+    // The generation of the simulation result cache when the simulation
+    // started, or -1 if the result is not to be cached.
+    var cacheGeneration = -1L
+
     def ethernet = packet.getEthernet
 
     def isGenerated = (egressPort ne null) || (egressPortNo ne null)
@@ -382,12 +399,15 @@ class PacketContext(val cookie: Long,
     override def clear(): Unit = {
         super.clear()
         flowRemovedCallbacks.runAndClear()
+        flowReferences.clear()
     }
 
     def prepareForSimulation() {
         idle = false
         runs += 1
         devicesTraversed = 0
+        replayable = true
+        cacheGeneration = -1L
         currentDevice = null
         routeTo = null
         origMatch.clearSeenFields()
@@ -410,12 +430,16 @@ class PacketContext(val cookie: Long,
         clear()
     }
 
-    def addGeneratedPacket(uuid: UUID, ethernet: Ethernet): Unit =
+    def addGeneratedPacket(uuid: UUID, ethernet: Ethernet): Unit = {
+        replayable = false
         backChannel.tell(GeneratedLogicalPacket(uuid, ethernet, cookie))
+    }
 
     def addGeneratedPhysicalPacket(portNo: JInteger,
-                                   ethernet: Ethernet): Unit =
+                                   ethernet: Ethernet): Unit = {
+        replayable = false
         backChannel.tell(GeneratedPhysicalPacket(portNo, ethernet, cookie))
+    }
 
     def markUserspaceOnly(): Unit =
         wcmatch.markUserspaceOnly()
@@ -152,9 +152,12 @@ class Router(override val id: UUID,
 
                 val dstIp = context.wcmatch.getNetworkDstIP.asInstanceOf[IPv4Addr]
                 context.addFlowTag(FlowTagger.tagForDestinationIp(id, dstIp))
-                routerMgrTagger.addIPv4Tag(dstIp, matchLen)
-                context.addFlowRemovedCallback(
-                        routerMgrTagger.getFlowRemovalCallback(dstIp))
+                context.addFlowReference(new FlowReference {
+                    override def acquire(): Callback0 = {
+                        routerMgrTagger.addIPv4Tag(dstIp, matchLen)
+                        routerMgrTagger.getFlowRemovalCallback(dstIp)
+                    }
+                })
         }
     }
 
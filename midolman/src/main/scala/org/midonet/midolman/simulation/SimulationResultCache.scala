@@ -0,0 +1,314 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.{ArrayList, HashMap, IdentityHashMap, UUID, Set => JSet}
+import java.util.Collections.newSetFromMap
+import java.util.concurrent.ConcurrentHashMap
+
+import org.midonet.midolman.flows.FlowExpirationIndexer.FLOW_EXPIRATION
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.flows.FlowAction
+import org.midonet.sdn.flows.FlowTagger.{FlowStateTag, FlowTag}
+import org.midonet.util.concurrent.NanoClock
+
+object SimulationResultCache {
+
+    private final val Fields = Field.values()
+    private final val MaxMasks = 32
+    private final val SweepIntervalNanos = 1000000000L
+
+    /**
+     * The key of a cached result: the fields of the flow match that were
+     * seen by the simulation, and their values. Lookups reuse a per-thread
+     * key that refers to the match of the packet being processed, while
+     * cached keys refer to a copy of the original match.
+     */
+    private final class Key(var mask: Long, var fmatch: FlowMatch) {
+        var hash = 0
+
+        def rehash(): Key = {
+            var h = mask.hashCode
+            var bits = mask
+            while (bits != 0) {
+                h = 31 * h +
+                    Fields(java.lang.Long.numberOfTrailingZeros(bits))
+                        .hashCode(fmatch)
+                bits &= bits - 1
+            }
+            hash = h
+            this
+        }
+
+        override def hashCode = hash
+
+        override def equals(other: Any): Boolean = other match {
+            case that: Key if (that.mask == mask) && (that.hash == hash) =>
+                var bits = mask
+                while (bits != 0) {
+                    val field = Fields(java.lang.Long.numberOfTrailingZeros(bits))
+                    if (!field.equals(fmatch, that.fmatch))
+                        return false
+                    bits &= bits - 1
+                }
+                true
+            case _ => false
+        }
+    }
+
+    final class Entry private[SimulationResultCache](
+            private[SimulationResultCache] val key: Key,
+            val flowActions: Array[FlowAction],
+            val packetActions: Array[FlowAction],
+            val tags: Array[FlowTag],
+            val references: Array[FlowReference],
+            val outPorts: Array[UUID],
+            val created: Long) {
+
+        /**
+         * Applies the cached result to a new packet context, acquiring again
+         * the references of the original simulation.
+         */
+        def replay(context: PacketContext): Unit = {
+            context.flowTags.clear()
+            var i = 0
+            while (i < tags.length) {
+                context.addFlowTag(tags(i))
+                i += 1
+            }
+            i = 0
+            while (i < flowActions.length) {
+                context.flowActions.add(flowActions(i))
+                i += 1
+            }
+            i = 0
+            while (i < packetActions.length) {
+                context.packetActions.add(packetActions(i))
+                i += 1
+            }
+            i = 0
+            while (i < outPorts.length) {
+                context.outPorts.add(outPorts(i))
+                i += 1
+            }
+            i = 0
+            while (i < references.length) {
+                context.addFlowReference(references(i))
+                i += 1
+            }
+            var bits = key.mask
+            while (bits != 0) {
+                context.origMatch.fieldSeen(
+                    Fields(java.lang.Long.numberOfTrailingZeros(bits)))
+                bits &= bits - 1
+            }
+        }
+    }
+}
+
+/**
+ * A cache of simulation results shared by all the packet processing threads.
+ * Results are keyed by the values of the flow match fields that the
+ * simulation has seen, which are the same fields that key the datapath flow.
+ * A packet matching a cached result skips the simulation: the recorded flow
+ * actions and tags are reused, and the flow references are acquired again.
+ *
+ * Only the results whose outcome depends on the virtual topology alone are
+ * cached, that is, results that don't read or write flow state, generate
+ * packets, or register flow removed callbacks other than flow references.
+ * Entries are therefore invalidated by the same tags that invalidate the
+ * datapath flows, and expire after the hard expiration of a flow.
+ *
+ * Because tags are processed independently by each thread, a result is only
+ * cached if no invalidation took place since its simulation started. This
+ * prevents a result computed from a stale topology from being cached after
+ * the corresponding tag has been processed.
+ */
+class SimulationResultCache(val maxEntries: Int, clock: NanoClock) {
+
+    import SimulationResultCache._
+
+    private val entries = new ConcurrentHashMap[Key, Entry]()
+    private val entriesByTag = new HashMap[FlowTag, JSet[Entry]]()
+
+    @volatile private var masks = new Array[Long](0)
+    @volatile private var currentGeneration = 0L
+    private var lastSweep = clock.tick
+
+    private val probes = new ThreadLocal[Key] {
+        override def initialValue = new Key(0L, null)
+    }
+
+    /**
+     * The current generation of the cache, which changes with every
+     * invalidation. Simulations record it before starting.
+     */
+    def generation: Long = currentGeneration
+
+    def size: Int = entries.size()
+
+    /**
+     * Returns the cached result for the given match, or null.
+     */
+    def get(fmatch: FlowMatch): Entry = {
+        val probe = probes.get()
+        val used = fmatch.getUsedFields
+        val now = clock.tick
+        val ms = masks
+        var i = 0
+        try {
+            while (i < ms.length) {
+                if ((ms(i) & used) == ms(i)) {
+                    probe.mask = ms(i)
+                    probe.fmatch = fmatch
+                    val entry = entries.get(probe.rehash())
+                    if ((entry ne null) &&
+                        now - entry.created < FLOW_EXPIRATION.value) {
+                        return entry
+                    }
+                }
+                i += 1
+            }
+            null
+        } finally {
+            probe.fmatch = null
+        }
+    }
+
+    /**
+     * Caches the result of the simulation in the given context, provided
+     * that the cache was not invalidated since the given generation.
+     */
+    def put(context: PacketContext, generation: Long): Unit = {
+        val fmatch = context.origMatch
+        val mask = fmatch.getSeenFields & fmatch.getUsedFields
+        val entry = new Entry(new Key(mask, fmatch.clone()).rehash(),
+                              context.flowActions.toArray(new Array[FlowAction](0)),
+                              context.packetActions.toArray(new Array[FlowAction](0)),
+                              context.flowTags.toArray(new Array[FlowTag](0)),
+                              context.flowReferences.toArray(new Array[FlowReference](0)),
+                              context.outPorts.toArray(new Array[UUID](0)),
+                              clock.tick)
+        synchronized {
+            if (generation == currentGeneration && hasRoom(entry) &&
+                addMask(mask)) {
+                val previous = entries.put(entry.key, entry)
+                if (previous ne null)
+                    unindex(previous)
+                index(entry)
+            }
+        }
+    }
+
+    /**
+     * Removes the results tagged with the given tag. Results are never
+     * tagged with flow state tags, which are ignored.
+     */
+    def invalidate(tag: FlowTag): Unit =
+        if (!tag.isInstanceOf[FlowStateTag]) synchronized {
+            currentGeneration += 1
+            val set = entriesByTag.remove(tag)
+            if (set ne null) {
+                val it = set.iterator()
+                while (it.hasNext) {
+                    val entry = it.next()
+                    if (entries.remove(entry.key, entry))
+                        unindex(entry)
+                }
+            }
+        }
+
+    /**
+     * Removes all cached results.
+     */
+    def clear(): Unit = synchronized {
+        currentGeneration += 1
+        entries.clear()
+        entriesByTag.clear()
+        masks = new Array[Long](0)
+    }
+
+    private def addMask(mask: Long): Boolean = {
+        val ms = masks
+        var i = 0
+        while (i < ms.length) {
+            if (ms(i) == mask)
+                return true
+            i += 1
+        }
+        if (ms.length == MaxMasks)
+            return false
+        val newMasks = java.util.Arrays.copyOf(ms, ms.length + 1)
+        newMasks(ms.length) = mask
+        masks = newMasks
+        true
+    }
+
+    private def hasRoom(entry: Entry): Boolean =
+        if (entries.size() < maxEntries || entries.containsKey(entry.key)) {
+            true
+        } else {
+            sweep(entry.created)
+            entries.size() < maxEntries
+        }
+
+    private def index(entry: Entry): Unit = {
+        var i = 0
+        while (i < entry.tags.length) {
+            var set = entriesByTag.get(entry.tags(i))
+            if (set eq null) {
+                set = newSetFromMap(new IdentityHashMap[Entry, java.lang.Boolean]())
+                entriesByTag.put(entry.tags(i), set)
+            }
+            set.add(entry)
+            i += 1
+        }
+    }
+
+    private def unindex(entry: Entry): Unit = {
+        var i = 0
+        while (i < entry.tags.length) {
+            val set = entriesByTag.get(entry.tags(i))
+            if (set ne null) {
+                set.remove(entry)
+                if (set.isEmpty)
+                    entriesByTag.remove(entry.tags(i))
+            }
+            i += 1
+        }
+    }
+
+    private def sweep(now: Long): Unit =
+        if (now - lastSweep >= SweepIntervalNanos) {
+            lastSweep = now
+            val expired = new ArrayList[Entry]()
+            val it = entries.values().iterator()
+            while (it.hasNext) {
+                val entry = it.next()
+                if (now - entry.created >= FLOW_EXPIRATION.value)
+                    expired.add(entry)
+            }
+            var i = 0
+            while (i < expired.size()) {
+                val entry = expired.get(i)
+                if (entries.remove(entry.key, entry))
+                    unindex(entry)
+                i += 1
+            }
+        }
+}
@@ -54,6 +54,9 @@ trait StateContext extends Clearable
     def containsFlowState =
         conntrackTx.size() > 0 || natTx.size() > 0 || tracingEnabled
 
+    def readsFlowState =
+        conntrackTx.hasReads || natTx.hasReads
+
     def commitStateTransactions(): Unit ={
         conntrackTx.commit()
         natTx.commit()
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState._
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.concurrent.CompactExpirationMap.Codec
+
+/**
+ * Codecs storing the connection tracking and NAT state in a
+ * [[org.midonet.util.concurrent.CompactExpirationMap]].
+ *
+ * The keys are encoded in four words:
+ *  - the source and destination IPv4 addresses;
+ *  - the NAT key type, the source and destination ports, as 24-bit signed
+ *    integers so that ICMP identifiers and wildcards fit, and the protocol;
+ *  - the most and least significant bits of the device identifier.
+ * Keys with IPv6 addresses or ports that don't fit are not encodable.
+ */
+object CompactFlowState {
+
+    private final val PortMin = -(1 << 23)
+    private final val PortMax = (1 << 23) - 1
+
+    private def fitsPort(port: Int): Boolean =
+        port >= PortMin && port <= PortMax
+
+    private def addresses(src: IPv4Addr, dst: IPv4Addr): Long =
+        (src.toInt.toLong << 32) | (dst.toInt & 0xffffffffL)
+
+    private def transport(keyType: Int, src: Int, dst: Int,
+                          protocol: Byte): Long =
+        (keyType.toLong << 56) | ((src & 0xffffffL) << 32) |
+        ((dst & 0xffffffL) << 8) | (protocol & 0xffL)
+
+    private def src(words: Array[Long], offset: Int): IPv4Addr =
+        IPv4Addr.fromInt((words(offset) >>> 32).toInt)
+
+    private def dst(words: Array[Long], offset: Int): IPv4Addr =
+        IPv4Addr.fromInt(words(offset).toInt)
+
+    private def srcPort(words: Array[Long], offset: Int): Int =
+        ((words(offset + 1) << 8) >> 40).toInt
+
+    private def dstPort(words: Array[Long], offset: Int): Int =
+        ((words(offset + 1) << 32) >> 40).toInt
+
+    private def protocol(words: Array[Long], offset: Int): Byte =
+        words(offset + 1).toByte
+
+    private def device(words: Array[Long], offset: Int): UUID =
+        new UUID(words(offset + 2), words(offset + 3))
+
+    object ConnTrackCodec extends Codec[ConnTrackKey, ConnTrackValue] {
+
+        override def encodable(key: ConnTrackKey): Boolean =
+            key.networkSrc.isInstanceOf[IPv4Addr] &&
+            key.networkDst.isInstanceOf[IPv4Addr] &&
+            fitsPort(key.icmpIdOrTransportSrc) &&
+            fitsPort(key.icmpIdOrTransportDst) &&
+            (key.deviceId ne null)
+
+        override def keyWord(key: ConnTrackKey, index: Int): Long =
+            index match {
+                case 0 => addresses(key.networkSrc.asInstanceOf[IPv4Addr],
+                                    key.networkDst.asInstanceOf[IPv4Addr])
+                case 1 => transport(0, key.icmpIdOrTransportSrc,
+                                    key.icmpIdOrTransportDst,
+                                    key.networkProtocol)
+                case 2 => key.deviceId.getMostSignificantBits
+                case 3 => key.deviceId.getLeastSignificantBits
+            }
+
+        override def decodeKey(words: Array[Long], offset: Int): ConnTrackKey =
+            ConnTrackKey(src(words, offset), srcPort(words, offset),
+                         dst(words, offset), dstPort(words, offset),
+                         protocol(words, offset), device(words, offset))
+
+        override def encodeValue(value: ConnTrackValue): Long =
+            if (value.booleanValue()) 1L else 0L
+
+        override def decodeValue(value: Long): ConnTrackValue =
+            java.lang.Boolean.valueOf(value != 0L)
+    }
+
+    object NatCodec extends Codec[NatKey, NatBinding] {
+
+        private val keyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT,
+                                              FWD_STICKY_DNAT, REV_SNAT,
+                                              REV_DNAT, REV_STICKY_DNAT)
+
+        private def ordinal(keyType: KeyType): Int = {
+            var i = 0
+            while (keyTypes(i) ne keyType) {
+                i += 1
+            }
+            i
+        }
+
+        override def encodable(key: NatKey): Boolean =
+            (key.keyType ne null) && (key.networkSrc ne null) &&
+            (key.networkDst ne null) && fitsPort(key.transportSrc) &&
+            fitsPort(key.transportDst) && (key.deviceId ne null)
+
+        override def keyWord(key: NatKey, index: Int): Long =
+            index match {
+                case 0 => addresses(key.networkSrc, key.networkDst)
+                case 1 => transport(ordinal(key.keyType), key.transportSrc,
+                                    key.transportDst, key.networkProtocol)
+                case 2 => key.deviceId.getMostSignificantBits
+                case 3 => key.deviceId.getLeastSignificantBits
+            }
+
+        override def decodeKey(words: Array[Long], offset: Int): NatKey =
+            NatKey(keyTypes((words(offset + 1) >>> 56).toInt),
+                   src(words, offset), srcPort(words, offset),
+                   dst(words, offset), dstPort(words, offset),
+                   protocol(words, offset), device(words, offset))
+
+        override def encodeValue(value: NatBinding): Long =
+            (value.networkAddress.toInt.toLong << 32) |
+            (value.transportPort & 0xffffffffL)
+
+        override def decodeValue(value: Long): NatBinding =
+            NatBinding(IPv4Addr.fromInt((value >>> 32).toInt), value.toInt)
+    }
+}
@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.state
 
-import java.util.{ArrayList, Collection, HashSet => JHashSet, Iterator => JIterator, Set => JSet, UUID}
+import java.util.{ArrayList, Collection, HashMap => JHashMap, HashSet => JHashSet, Iterator => JIterator, Set => JSet, UUID}
 
 import scala.concurrent.{ExecutionContext, Future}
 
@@ -26,16 +26,18 @@ import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.flowstate.proto.{FlowState => FlowStateSbe}
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
+import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.midolman.flows.FlowTagIndexer
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.midolman.{NotYetException, UnderlayResolver}
+import org.midonet.odp.FlowMatch
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp.flows.FlowActions.setKey
 import org.midonet.odp.flows.FlowKeys.tunnel
-import org.midonet.packets.Ethernet
+import org.midonet.packets.{Ethernet, FlowStateEthernet}
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.state.FlowStateTable
 import org.midonet.util.collection.Reducer
@@ -87,6 +89,25 @@ import org.midonet.util.functors.Callback0
  *
  *   5 Other threads' read operations will spill over to this shard for the
  *     received keys.
+ *
+ *          COALESCING
+ *          **********
+ *
+ * By default, the state of a flow is sent to its peers in a state packet of
+ * its own, executed right before the packet that created it. When a
+ * coalescing window is configured, the conntrack and NAT entries are instead
+ * appended to a buffer per peer, and each buffer is sent as a single state
+ * packet when it would exceed the MTU, or when its oldest entry has waited
+ * for the coalescing window. Expired buffers are flushed from process(),
+ * which the owning packet processing thread calls when shouldProcess()
+ * returns true.
+ *
+ * If ordering is requested, the state of a flow that creates new entries,
+ * that is the first packet of a connection, is still sent in its own state
+ * packet ahead of the packet, so that a peer never sees a return packet
+ * before the state that allows it. Only the entries that peers already know
+ * about, such as those refreshed when a flow is simulated again, are
+ * coalesced. Trace state is never coalesced.
  */
 class FlowStateReplicator(
         conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
@@ -97,8 +118,13 @@ class FlowStateReplicator(
         peerResolver: PeerResolver,
         underlay: UnderlayResolver,
         flowInvalidation: FlowTagIndexer,
-        tos: Byte) {
+        tos: Byte,
+        dpChannel: DatapathChannel = null,
+        coalesceWindowNanos: Long = 0L,
+        orderedFirstPacket: Boolean = true,
+        clock: NanoClock = NanoClock.DEFAULT) {
     import FlowStatePackets._
+    import FlowStateReplicator._
 
     private val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
 
@@ -109,7 +135,14 @@ class FlowStateReplicator(
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
 
-    private[this] var storage: FlowStateStorage = _
+    // Read by shouldProcess() from other threads.
+    @volatile private[this] var storage: FlowStateStorage = _
+
+    /* Used for coalescing */
+    private[this] val coalescing = (dpChannel ne null) && coalesceWindowNanos > 0
+    private[this] val peerBuffers = new JHashMap[UUID, PeerBuffer]()
+    // Read by shouldProcess() from other threads.
+    @volatile private[this] var nextDeadline = Long.MaxValue
 
     storageFuture.onSuccess { case s => storage = s }(ExecutionContext.callingThread)
 
@@ -160,6 +193,38 @@ class FlowStateReplicator(
         }
     }
 
+    private val _conntrackBuffer = new Reducer[ConnTrackKey, ConnTrackValue,
+                                               PeerBuffer] {
+        override def apply(buffer: PeerBuffer, k: ConnTrackKey,
+                           v: ConnTrackValue): PeerBuffer = {
+            log.debug("coalesce conntrack key: {}", k)
+            buffer.conntrackKeys.add(k)
+            buffer
+        }
+    }
+
+    private val _natBuffer = new Reducer[NatKey, NatBinding, PeerBuffer] {
+        override def apply(buffer: PeerBuffer, k: NatKey,
+                           v: NatBinding): PeerBuffer = {
+            log.debug("coalesce nat key: {}", k)
+            buffer.natKeys.add(k)
+            buffer.natBindings.add(v)
+            buffer
+        }
+    }
+
+    private val _newConntrackKeys = new Reducer[ConnTrackKey, ConnTrackValue,
+                                                Boolean] {
+        override def apply(found: Boolean, k: ConnTrackKey,
+                           v: ConnTrackValue): Boolean =
+            found || (conntrackTable.get(k) eq null)
+    }
+
+    private val _newNatKeys = new Reducer[NatKey, NatBinding, Boolean] {
+        override def apply(found: Boolean, k: NatKey, v: NatBinding): Boolean =
+            found || (natTable.get(k) eq null)
+    }
+
     private def addTraceState(flowStateMessage: FlowStateSbe,
                               k: TraceKey, ctx: TraceContext): Unit = {
         log.debug("push trace key: {}", k)
@@ -175,29 +240,49 @@ class FlowStateReplicator(
         }
     }
 
-    def importFromStorage(batch: FlowStateBatch) {
-        importConnTrack(batch.strongConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
-        importConnTrack(batch.weakConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
-        importNat(batch.strongNat.entrySet().iterator())
-        importNat(batch.weakNat.entrySet().iterator())
+    /**
+     * Imports state fetched from storage. The batches are delivered to all
+     * the packet processing threads, which split the work: every thread
+     * invalidates the flows tagged with the keys, but only stores the keys
+     * assigned to it, such that each key is stored in a single shard.
+     */
+    def importFromStorage(batch: FlowStateBatch, workerId: Int = 0,
+                          numWorkers: Int = 1) {
+        importConnTrack(batch.strongConnTrack.iterator(), ConnTrackState.RETURN_FLOW,
+                        workerId, numWorkers)
+        importConnTrack(batch.weakConnTrack.iterator(), ConnTrackState.RETURN_FLOW,
+                        workerId, numWorkers)
+        importNat(batch.strongNat.entrySet().iterator(), workerId, numWorkers)
+        importNat(batch.weakNat.entrySet().iterator(), workerId, numWorkers)
     }
 
-    private def importConnTrack(keys: JIterator[ConnTrackKey], v: ConnTrackState.ConnTrackValue) {
+    @inline private def isAssigned(k: AnyRef, workerId: Int,
+                                   numWorkers: Int): Boolean =
+        (k.hashCode & Int.MaxValue) % numWorkers == workerId
+
+    private def importConnTrack(keys: JIterator[ConnTrackKey],
+                                v: ConnTrackState.ConnTrackValue,
+                                workerId: Int, numWorkers: Int) {
         while (keys.hasNext) {
             val k = keys.next()
-            log.debug("importing state key from storage: {}", k)
-            conntrackTable.putAndRef(k, v)
-            conntrackTable.unref(k)
+            if (isAssigned(k, workerId, numWorkers)) {
+                log.debug("importing state key from storage: {}", k)
+                conntrackTable.putAndRef(k, v)
+                conntrackTable.unref(k)
+            }
             flowInvalidation.invalidateFlowsFor(k)
         }
     }
 
-    private def importNat(entries: JIterator[java.util.Map.Entry[NatKey, NatBinding]]) {
+    private def importNat(entries: JIterator[java.util.Map.Entry[NatKey, NatBinding]],
+                          workerId: Int, numWorkers: Int) {
         while (entries.hasNext) {
             val e = entries.next()
-            log.debug("importing state key from storage: {}", e.getKey)
-            natTable.putAndRef(e.getKey, e.getValue)
-            natTable.unref(e.getKey)
+            if (isAssigned(e.getKey, workerId, numWorkers)) {
+                log.debug("importing state key from storage: {}", e.getKey)
+                natTable.putAndRef(e.getKey, e.getValue)
+                natTable.unref(e.getKey)
+            }
             flowInvalidation.invalidateFlowsFor(e.getKey)
         }
     }
@@ -225,10 +310,141 @@ class FlowStateReplicator(
         context.natTx.fold(callbacks, _natAdder)
 
         if (!txPeers.isEmpty) {
-            replicateFlowState(context)
+            if (shouldCoalesce(context))
+                coalesceFlowState(context)
+            else
+                replicateFlowState(context)
+        }
+    }
+
+    private def shouldCoalesce(context: PacketContext): Boolean =
+        coalescing && !context.tracingEnabled &&
+        PeerBuffer.fitsEmpty(context.conntrackTx.size, context.natTx.size) &&
+        !(orderedFirstPacket && hasNewKeys(context))
+
+    /**
+     * Whether the flow creates conntrack or NAT entries that are not yet in
+     * the local tables, and therefore that its peers don't know about.
+     */
+    private def hasNewKeys(context: PacketContext): Boolean =
+        context.conntrackTx.fold(false, _newConntrackKeys) ||
+        context.natTx.fold(false, _newNatKeys)
+
+    /**
+     * Appends the state of the flow to the buffer of each of its peers,
+     * flushing the buffers that cannot hold it.
+     */
+    private def coalesceFlowState(context: PacketContext): Unit = {
+        val conntracks = context.conntrackTx.size
+        val nats = context.natTx.size
+        val now = clock.tick
+        val peers = txPeers.iterator
+        while (peers.hasNext) {
+            val peer = peers.next()
+            var buffer = peerBuffers.get(peer)
+            if (buffer eq null) {
+                buffer = new PeerBuffer(peer)
+                peerBuffers.put(peer, buffer)
+            }
+            if (!buffer.fits(conntracks, nats))
+                flush(buffer)
+            if (buffer.isEmpty) {
+                buffer.deadline = now + coalesceWindowNanos
+                if (buffer.deadline < nextDeadline)
+                    nextDeadline = buffer.deadline
+            }
+            context.conntrackTx.fold(buffer, _conntrackBuffer)
+            context.natTx.fold(buffer, _natBuffer)
+            buffer.length += conntracks * ConntrackLength + nats * NatLength
         }
     }
 
+    /**
+     * Sends the coalesced state of a peer in a state packet of its own,
+     * handed off to the datapath without an associated packet.
+     */
+    private def flush(buffer: PeerBuffer): Unit = {
+        if (buffer.isEmpty)
+            return
+        underlay.peerTunnelInfo(buffer.peer) match {
+            case Some(route) =>
+                val context = new PacketContext(0, null, new FlowMatch())
+                val flowStateMessage = flowStateEncoder.encodeTo(
+                    context.stateMessage)
+                uuidToSbe(hostId, flowStateMessage.sender)
+
+                val conntrack = flowStateMessage.conntrackCount(
+                    buffer.conntrackKeys.size)
+                var i = 0
+                while (i < buffer.conntrackKeys.size) {
+                    connTrackKeyToSbe(buffer.conntrackKeys.get(i),
+                                      conntrack.next())
+                    i += 1
+                }
+                val nat = flowStateMessage.natCount(buffer.natKeys.size)
+                i = 0
+                while (i < buffer.natKeys.size) {
+                    natToSbe(buffer.natKeys.get(i), buffer.natBindings.get(i),
+                             nat.next())
+                    i += 1
+                }
+                flowStateMessage.traceCount(0)
+
+                context.stateMessageLength = flowStateEncoder.encodedLength
+                context.stateActions.add(
+                    setKey(tunnel(TUNNEL_KEY, route.srcIp, route.dstIp, tos)))
+                context.stateActions.add(route.output)
+                log.debug("push coalesced state to {}: {} conntrack and {} " +
+                          "nat keys", buffer.peer,
+                          Int.box(buffer.conntrackKeys.size),
+                          Int.box(buffer.natKeys.size))
+                dpChannel.handoff(context)
+            case None =>
+        }
+        buffer.clear()
+    }
+
+    /**
+     * Whether a coalesced state buffer has waited for the coalescing window,
+     * or the storage has queued writes that it can send.
+     *
+     * EXPECTED CALLING THREADS: any.
+     */
+    def shouldProcess(): Boolean = {
+        val s = storage
+        (coalescing && clock.tick >= nextDeadline) ||
+        ((s ne null) && s.shouldSubmit())
+    }
+
+    /**
+     * Flushes the coalesced state buffers that have waited for the
+     * coalescing window, and submits the writes queued by the storage.
+     *
+     * EXPECTED CALLING THREADS: only the packet processing thread that owns
+     * this replicator.
+     */
+    def process(): Unit = {
+        if ((storage ne null) && storage.shouldSubmit())
+            storage.submit()
+        if (!coalescing || nextDeadline == Long.MaxValue)
+            return
+        val now = clock.tick
+        if (now < nextDeadline)
+            return
+        var deadline = Long.MaxValue
+        val buffers = peerBuffers.values.iterator
+        while (buffers.hasNext) {
+            val buffer = buffers.next()
+            if (!buffer.isEmpty) {
+                if (buffer.deadline <= now)
+                    flush(buffer)
+                else if (buffer.deadline < deadline)
+                    deadline = buffer.deadline
+            }
+        }
+        nextDeadline = deadline
+    }
+
     def replicateFlowState(context: PacketContext): Unit = {
         val flowStateMessage = flowStateEncoder.encodeTo(
             context.stateMessage)
@@ -362,3 +578,48 @@ class FlowStateReplicator(
         log.debug("Resolved peers {}", hosts)
     }
 }
+
+object FlowStateReplicator {
+
+    /* The encoded length of a state message without entries: the message
+     * header, the sender and the dimensions of its four repeating groups.
+     * See flowstate.schema.xml. */
+    private val MessageOverhead = 8 + 16 + 4 * 3
+    private val ConntrackLength = 55
+    private val NatLength = 75
+    private val MaxGroupEntries = 255
+    private val MaxMessageLength = FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH
+
+    /**
+     * The conntrack and NAT entries waiting to be sent to a peer.
+     */
+    private final class PeerBuffer(val peer: UUID) {
+        val conntrackKeys = new ArrayList[ConnTrackKey]()
+        val natKeys = new ArrayList[NatKey]()
+        val natBindings = new ArrayList[NatBinding]()
+        var length = MessageOverhead
+        var deadline = 0L
+
+        def isEmpty = conntrackKeys.isEmpty && natKeys.isEmpty
+
+        def fits(conntracks: Int, nats: Int): Boolean =
+            conntrackKeys.size + conntracks <= MaxGroupEntries &&
+            natKeys.size + nats <= MaxGroupEntries &&
+            length + conntracks * ConntrackLength + nats * NatLength <=
+                MaxMessageLength
+
+        def clear(): Unit = {
+            conntrackKeys.clear()
+            natKeys.clear()
+            natBindings.clear()
+            length = MessageOverhead
+        }
+    }
+
+    private object PeerBuffer {
+        def fitsEmpty(conntracks: Int, nats: Int): Boolean =
+            conntracks <= MaxGroupEntries && nats <= MaxGroupEntries &&
+            MessageOverhead + conntracks * ConntrackLength +
+                nats * NatLength <= MaxMessageLength
+    }
+}
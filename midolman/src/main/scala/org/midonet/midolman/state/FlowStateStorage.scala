@@ -18,21 +18,25 @@ package org.midonet.midolman.state
 
 import java.lang.{Integer => JInt}
 import java.net.InetAddress
-import java.util.{UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
-                  HashSet => JHashSet, Iterator => JIterator}
-import java.util.concurrent.{TimeoutException, TimeUnit}
+import java.util.{ArrayDeque, ArrayList, UUID, Set => JSet, Map => JMap,
+                  HashMap => JHashMap, HashSet => JHashSet,
+                  Iterator => JIterator, LinkedHashMap => JLinkedHashMap}
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeoutException, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
 
 import scala.concurrent.{ExecutionContext, Promise, Future}
 import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
 import com.datastax.driver.core._
-import com.google.common.util.concurrent.{FutureCallback, Futures}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
 import org.slf4j.{Logger, LoggerFactory}
 
+import org.midonet.midolman.monitoring.metrics.{BlackHoleFlowStateStorageMetrics, FlowStateStorageMetrics}
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.NatState.{KeyType, NatKey, NatBinding}
 import org.midonet.packets.{IPv4Addr, IPAddr}
+import org.midonet.util.UnixClock
 import org.midonet.util.collection.Bimap
 
 object FlowStateStorage {
@@ -131,6 +135,33 @@ object FlowStateStorage {
             transportPort = r.getInt("translatePort"))
 
     def apply(session: Session): FlowStateStorage = new FlowStateStorageImpl(session)
+
+    def apply(session: Session, maxInFlight: Int, maxPending: Int,
+              batchSize: Int, dedupWindowMillis: Long,
+              metrics: FlowStateStorageMetrics): FlowStateStorage =
+        new FlowStateStorageImpl(session, maxInFlight, maxPending, batchSize,
+                                 dedupWindowMillis, metrics)
+
+    /**
+     * Identifies a row written to Cassandra, to skip writing it again while
+     * its TTL was recently refreshed.
+     */
+    private case class Touch(statement: PreparedStatement, port: UUID,
+                             key: AnyRef, value: AnyRef)
+
+    /** The last write time of a touch whose write hasn't completed yet. */
+    private final val Pending = Long.MaxValue
+
+    /**
+     * A batch of statements and, when de-duplicating, the touches they
+     * write.
+     */
+    private final class Batch {
+        val statement = new BatchStatement(BatchStatement.Type.UNLOGGED)
+        val touches = new ArrayList[Touch]()
+        var sentAt = 0L
+        var succeeded = false
+    }
 }
 
 trait FlowStateStorage {
@@ -146,10 +177,39 @@ trait FlowStateStorage {
     def fetchWeakNatRefs(portId: UUID)
         (implicit ec: ExecutionContext, as: ActorSystem): Future[JMap[NatKey, NatBinding]]
 
+    /**
+     * Fetches the conntrack keys for which a port is ingress, when `strong`,
+     * or egress, in pages of up to `pageSize` keys. Each page is passed to
+     * `onPage` as soon as it is received, while the next one is fetched.
+     * Returns the total number of keys once all the pages were received.
+     */
+    def streamConnTrackRefs(portId: UUID, strong: Boolean, pageSize: Int)
+                           (onPage: JSet[ConnTrackKey] => Unit)
+                           (implicit ec: ExecutionContext,
+                                     as: ActorSystem): Future[Int]
+
+    /**
+     * Fetches the NAT bindings for which a port is ingress, when `strong`,
+     * or egress, in pages of up to `pageSize` bindings. Each page is passed
+     * to `onPage` as soon as it is received, while the next one is fetched.
+     * Returns the total number of bindings once all the pages were received.
+     */
+    def streamNatRefs(portId: UUID, strong: Boolean, pageSize: Int)
+                     (onPage: JMap[NatKey, NatBinding] => Unit)
+                     (implicit ec: ExecutionContext,
+                               as: ActorSystem): Future[Int]
+
     def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID, weakRefs: JIterator[UUID])
     def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID, weakRefs: JIterator[UUID])
 
     def submit()
+
+    /**
+     * Whether touches are waiting to be sent by submit(), and can be sent
+     * now. This may be called from any thread, so that the owning thread is
+     * woken up to submit them when no more packets arrive.
+     */
+    def shouldSubmit(): Boolean
 }
 
 
@@ -164,13 +224,47 @@ trait FlowStateStorage {
  *
  * All operations are asynchronous, submit is meant to be fire-and-forget with
  * no error control and for this reason, returns Unit.
+ *
+ * Writes are grouped by port in unlogged batches of up to `batchSize`
+ * statements, and at most `maxInFlight` batches are outstanding at any time.
+ * When Cassandra falls behind, the statements wait in a queue, where they
+ * are coalesced into larger batches, and the queue is capped at `maxPending`
+ * statements, past which new touches are dropped. Statements left in the
+ * queue are sent by the next call to submit(), which the owner also makes
+ * when shouldSubmit() returns true. Because the keys are written with a TTL,
+ * touching a row again before a fraction of the TTL has elapsed is
+ * redundant: such touches are skipped during the de-duplication window, or
+ * half the TTL of the key if shorter. A row counts as written only once its
+ * write succeeded, and a row whose write is queued or outstanding is not
+ * queued again. Touches that are dropped or whose write fails are written
+ * again by the next touch.
  */
-class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
+class FlowStateStorageImpl(val session: Session,
+                           maxInFlight: Int = 16,
+                           maxPending: Int = 20000,
+                           batchSize: Int = 32,
+                           dedupWindowMillis: Long = 0L,
+                           metrics: FlowStateStorageMetrics =
+                               BlackHoleFlowStateStorageMetrics,
+                           clock: UnixClock = UnixClock.DEFAULT)
+    extends FlowStateStorage {
     private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
 
     import FlowStateStorage._
 
-    var batch: BatchStatement = new BatchStatement()
+    // Batches not yet full, by port, and full batches ready to be sent.
+    private val pendingByPort = new JLinkedHashMap[UUID, Batch]()
+    private val ready = new ArrayDeque[Batch]()
+    // Read by shouldSubmit() from other threads.
+    @volatile private var pending = 0
+    private val inFlight = new AtomicInteger()
+
+    // The time of the last successful write of each touch, and the batches
+    // of touches whose write completed, to be recorded by the owner thread.
+    private val touched = new JHashMap[Touch, java.lang.Long]()
+    private val completed = new ConcurrentLinkedQueue[Batch]()
+    private var lastSweep = 0L
+
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
 
     def fetchByPortStatement(table: String) =
@@ -227,10 +321,18 @@ class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
      */
     override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
             weakRefs: JIterator[UUID]): Unit = {
-        if (strongRef ne null)
-            batch.add(bind(touchIngressConnTrack, strongRef, k))
+        recordCompleted()
+        if (strongRef ne null) {
+            val touch = touchFor(touchIngressConnTrack, strongRef, k, null)
+            if (shouldTouch(touch, k))
+                enqueue(strongRef, bind(touchIngressConnTrack, strongRef, k),
+                        touch)
+        }
         while (weakRefs.hasNext) {
-            batch.add(bind(touchEgressConnTrack, weakRefs.next(), k))
+            val port = weakRefs.next()
+            val touch = touchFor(touchEgressConnTrack, port, k, null)
+            if (shouldTouch(touch, k))
+                enqueue(port, bind(touchEgressConnTrack, port, k), touch)
         }
     }
 
@@ -244,21 +346,153 @@ class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
      */
     override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
             weakRefs: JIterator[UUID]): Unit = {
-        if (strongRef ne null)
-            batch.add(bind(touchIngressNat, strongRef, k, v))
+        recordCompleted()
+        if (strongRef ne null) {
+            val touch = touchFor(touchIngressNat, strongRef, k, v)
+            if (shouldTouch(touch, k))
+                enqueue(strongRef, bind(touchIngressNat, strongRef, k, v), touch)
+        }
         while (weakRefs.hasNext) {
-            batch.add(bind(touchEgressNat, weakRefs.next(), k, v))
+            val port = weakRefs.next()
+            val touch = touchFor(touchEgressNat, port, k, v)
+            if (shouldTouch(touch, k))
+                enqueue(port, bind(touchEgressNat, port, k, v), touch)
         }
     }
 
+    /** Returns the touch of a row, or null when not de-duplicating. */
+    private def touchFor(statement: PreparedStatement, port: UUID,
+                         k: FlowState.FlowStateKey, v: AnyRef): Touch =
+        if (dedupWindowMillis <= 0) null
+        else Touch(statement, port, k, v)
+
     /**
-     * Sends all state accumulated through touchConnTrackKey() and touchNatKey()
-     * to Cassandra, asynchronously. Errors will be logged but ignored.
+     * Whether a row must be written, because its write isn't queued nor
+     * outstanding, and it wasn't written during the de-duplication window.
+     */
+    private def shouldTouch(touch: Touch, k: FlowState.FlowStateKey): Boolean = {
+        if (touch eq null)
+            return true
+        val last = touched.get(touch)
+        if (last eq null)
+            return true
+        val window = Math.min(dedupWindowMillis, k.expiresAfter.toMillis / 2)
+        if (last == Pending || clock.time - last < window) {
+            metrics.touchDeduplicated()
+            false
+        } else {
+            true
+        }
+    }
+
+    private def enqueue(port: UUID, statement: BoundStatement,
+                        touch: Touch): Unit = {
+        if (pending >= maxPending) {
+            metrics.touchDropped()
+            return
+        }
+        var batch = pendingByPort.get(port)
+        if (batch eq null) {
+            batch = new Batch
+            pendingByPort.put(port, batch)
+        }
+        batch.statement.add(statement)
+        if (touch ne null) {
+            batch.touches.add(touch)
+            touched.put(touch, Pending)
+        }
+        pending += 1
+        metrics.statementsQueued(1)
+        if (batch.statement.size >= batchSize) {
+            pendingByPort.remove(port)
+            ready.add(batch)
+        }
+    }
+
+    /**
+     * Sends the state accumulated through touchConnTrackKey() and
+     * touchNatKey() to Cassandra, asynchronously, as long as the number of
+     * outstanding requests allows it. The rest is sent by the following
+     * calls. Errors will be logged but ignored.
      */
     override def submit(): Unit = {
-        val result = session.executeAsync(batch)
-        Futures.addCallback(result, touchCallback)
-        batch = new BatchStatement()
+        recordCompleted()
+        while (!ready.isEmpty && inFlight.get < maxInFlight) {
+            execute(ready.poll())
+        }
+        val batches = pendingByPort.values.iterator()
+        while (batches.hasNext && inFlight.get < maxInFlight) {
+            val batch = batches.next()
+            batches.remove()
+            execute(batch)
+        }
+        sweepTouched()
+    }
+
+    override def shouldSubmit(): Boolean =
+        pending > 0 && inFlight.get < maxInFlight
+
+    private def execute(batch: Batch): Unit = {
+        val size = batch.statement.size
+        pending -= size
+        metrics.statementsDequeued(size)
+        inFlight.incrementAndGet()
+        metrics.requestStarted()
+        batch.sentAt = clock.time
+        val result = session.executeAsync(batch.statement)
+        Futures.addCallback(result, new FutureCallback[ResultSet] {
+            override def onSuccess(result: ResultSet): Unit = {
+                inFlight.decrementAndGet()
+                metrics.requestCompleted()
+                log.debug("key touch success: {}", result)
+                batch.succeeded = true
+                if (!batch.touches.isEmpty)
+                    completed.add(batch)
+            }
+
+            override def onFailure(t: Throwable): Unit = {
+                inFlight.decrementAndGet()
+                metrics.requestCompleted()
+                log.warn("failed to touch keys", t)
+                if (!batch.touches.isEmpty)
+                    completed.add(batch)
+            }
+        })
+    }
+
+    /**
+     * Records the rows of the completed writes as written when they
+     * succeeded, or forgets them when they failed, such that they are
+     * written again by the next touch.
+     */
+    private def recordCompleted(): Unit = {
+        var batch = completed.poll()
+        while (batch ne null) {
+            var i = 0
+            while (i < batch.touches.size) {
+                if (batch.succeeded)
+                    touched.put(batch.touches.get(i), batch.sentAt)
+                else
+                    touched.remove(batch.touches.get(i))
+                i += 1
+            }
+            batch = completed.poll()
+        }
+    }
+
+    private def sweepTouched(): Unit = {
+        if (dedupWindowMillis <= 0)
+            return
+        val now = clock.time
+        if (now - lastSweep < dedupWindowMillis)
+            return
+        lastSweep = now
+        val it = touched.values.iterator()
+        while (it.hasNext) {
+            val last = it.next()
+            if (last != Pending && now - last >= dedupWindowMillis)
+                it.remove()
+        }
     }
 
     /**
@@ -285,6 +519,41 @@ class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
     override def fetchWeakNatRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
         fetch(fetchEgressNat, port, resultSetToNatBindings)
 
+    override def streamConnTrackRefs(port: UUID, strong: Boolean, pageSize: Int)
+                                    (onPage: JSet[ConnTrackKey] => Unit)
+                                    (implicit ec: ExecutionContext,
+                                              as: ActorSystem) =
+        stream(if (strong) fetchIngressConnTrack else fetchEgressConnTrack,
+               port, pageSize, pageToConnTrackKeys, onPage)
+
+    override def streamNatRefs(port: UUID, strong: Boolean, pageSize: Int)
+                              (onPage: JMap[NatKey, NatBinding] => Unit)
+                              (implicit ec: ExecutionContext,
+                                        as: ActorSystem) =
+        stream(if (strong) fetchIngressNat else fetchEgressNat,
+               port, pageSize, pageToNatBindings, onPage)
+
+    private def pageToConnTrackKeys(rs: ResultSet, rows: Int): JSet[ConnTrackKey] = {
+        val keys = new JHashSet[ConnTrackKey]()
+        var i = 0
+        while (i < rows) {
+            keys.add(rowToConnTrack(rs.one()))
+            i += 1
+        }
+        keys
+    }
+
+    private def pageToNatBindings(rs: ResultSet, rows: Int): JMap[NatKey, NatBinding] = {
+        val bindings = new JHashMap[NatKey, NatBinding]()
+        var i = 0
+        while (i < rows) {
+            val row = rs.one()
+            bindings.put(rowToNatKey(row), rowToNatBinding(row))
+            i += 1
+        }
+        bindings
+    }
+
     private def resultSetToConnTrackKeys(rs: ResultSet): JSet[ConnTrackKey] = {
         val keys = new JHashSet[ConnTrackKey]()
         val rows = rs.iterator()
@@ -313,27 +582,52 @@ class FlowStateStorageImpl(val session: Session) extends FlowStateStorage {
     private def fetch[U](statement: PreparedStatement, portId: UUID, transform: (ResultSet) => U)
                 (implicit ec: ExecutionContext, as: ActorSystem): Future[U] = {
         peelResult (Option(session) map { s =>
-            toScalaFuture(s.executeAsync(statement.bind(portId))) map transform
+            toScalaFuture[ResultSet](s.executeAsync(statement.bind(portId))) map transform
         })
     }
 
-    private val touchCallback = new FutureCallback[ResultSet] {
-        override def onSuccess(result: ResultSet): Unit = {
-            log.debug("key touch success: {}", result)
-        }
+    private def stream[U](statement: PreparedStatement, portId: UUID,
+                          pageSize: Int, toPage: (ResultSet, Int) => U,
+                          onPage: U => Unit)
+                         (implicit ec: ExecutionContext,
+                                   as: ActorSystem): Future[Int] = {
+        peelResult (Option(session) map { s =>
+            val bound = statement.bind(portId)
+            bound.setFetchSize(pageSize)
+            toScalaFuture[ResultSet](s.executeAsync(bound)) flatMap {
+                drain(_, toPage, onPage, 0)
+            }
+        })
+    }
 
-        override def onFailure(t: Throwable): Unit = {
-            log.warn("failed to touch keys", t)
-        }
+    /**
+     * Passes the rows fetched so far to the consumer, and then fetches the
+     * next page, if any. The result set holds one page at a time, but the
+     * consumer is not waited for: the pages passed to a consumer that is
+     * slower than the fetches are held in memory until it applies them.
+     */
+    private def drain[U](rs: ResultSet, toPage: (ResultSet, Int) => U,
+                         onPage: U => Unit, count: Int)
+                        (implicit ec: ExecutionContext,
+                                  as: ActorSystem): Future[Int] = {
+        val rows = rs.getAvailableWithoutFetching
+        if (rows > 0)
+            onPage(toPage(rs, rows))
+        if (rs.isFullyFetched)
+            Future.successful(count + rows)
+        else
+            toScalaFuture(rs.fetchMoreResults()) flatMap { _ =>
+                drain(rs, toPage, onPage, count + rows)
+            }
     }
 
-    private def toScalaFuture(f: ResultSetFuture)
+    private def toScalaFuture[T](f: ListenableFuture[T])
             (implicit ec: ExecutionContext,
-                      as: ActorSystem): Future[ResultSet] = {
+                      as: ActorSystem): Future[T] = {
 
-        val p: Promise[ResultSet] = Promise[ResultSet]()
-        Futures.addCallback(f, new FutureCallback[ResultSet](){
-            override def onSuccess(result: ResultSet): Unit = {
+        val p: Promise[T] = Promise[T]()
+        Futures.addCallback(f, new FutureCallback[T](){
+            override def onSuccess(result: T): Unit = {
                 if(!p.trySuccess(result)) {
                     log.warn("failed to complete future with success {}", result)
                 }
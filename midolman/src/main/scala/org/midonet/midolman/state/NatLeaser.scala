@@ -18,11 +18,12 @@ package org.midonet.midolman.state
 
 import java.lang.{Integer => JInt, Long => JLong}
 import java.util.UUID
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong}
 import java.util.concurrent.{ThreadLocalRandom, ConcurrentHashMap}
 
 import scala.concurrent.{ExecutionContext, Future}
 import scala.concurrent.duration._
-import scala.util.Success
+import scala.util.{Failure, Success}
 
 import com.typesafe.scalalogging.Logger
 
@@ -42,6 +43,21 @@ object NatLeaser {
     val BLOCK_EXPIRATION = 5 minutes
     private val OBLITERATION_CYCLE = (1 minute).toNanos
 
+    // The occupancy bitmap of a leased block is a single long.
+    assert(BLOCK_SIZE <= 64)
+
+    // The initial number of slots of the lease table of a block, a power of
+    // 2. The table grows when it is half full.
+    private val MIN_LEASE_SLOTS = 16
+    // The offset between two consecutive port allocations in a block, such
+    // that the allocated ports are not sequential.
+    private val CURSOR_STRIDE = 31
+
+    // The maximum number of blocks claimed ahead of demand and not yet used.
+    private val RESERVOIR_MAX_BLOCKS = 4
+    private val RESERVOIR_RATE_WINDOW = (10 seconds).toNanos
+    private val RESERVOIR_RETRY_DELAY = (10 seconds).toNanos
+
     private def blend(ip: IPv4Addr, port: Int): Long =
         (ip.toInt.toLong << 32) | port
 
@@ -51,25 +67,222 @@ object NatLeaser {
 
     /**
      * This type represents a block of BLOCK_SIZE ports. Each port, identified
-     * by the NatBlock's tpPortStart plus the offset given by the position in
-     * the leasedPorts array, can be oversubscribed based on a unique number,
-     * a combination of the destination IP and port.
-     * It also holds a port index to enable round-robin allocation
-     * of the ports in the block.
+     * by the NatBlock's tpPortStart plus an offset, can be oversubscribed
+     * based on a unique number, a combination of the destination IP and port.
+     *
+     * The block keeps an occupancy bitmap with the ports leased at least once,
+     * such that a free port is found with a few bit operations, and a count
+     * of leases per port. The leases are stored in an open-addressed table,
+     * where each entry packs the uniquefier and the port offset in a long, and
+     * the table is searched for a port only when all ports in the requested
+     * range are in use. A cursor rotates the allocation through the block.
      */
     sealed class LeasedBlock(val block: NatBlock) {
-        val leasedPorts = new Array[ConcurrentHashMap[JLong, AnyRef]](BLOCK_SIZE)
-        var portIndex = ThreadLocalRandom.current().nextLong()
+        private var used = 0L
+        private val counts = new Array[Int](BLOCK_SIZE)
+        private var leases = new Array[Long](MIN_LEASE_SLOTS)
+        private var size = 0
+        private var cursor = ThreadLocalRandom.current().nextInt(BLOCK_SIZE)
+        // The reservoir that claimed this block ahead of demand, until the
+        // block is first used.
+        @volatile private var reservoir: Reservoir = null
+
+        /**
+         * Leases to the uniquefier a port with an offset in the given range,
+         * preferring a port not leased to any other uniquefier. Returns the
+         * offset of the port, or -1 if every port in the range is already
+         * leased to this uniquefier.
+         */
+        def lease(uniquefier: Long, fromOffset: Int, toOffset: Int): Int =
+            synchronized {
+                val range = (-1L >>> (63 - toOffset)) & (-1L << fromOffset)
+                val free = ~used & range
+                if (free != 0L) {
+                    val offset = (JLong.numberOfTrailingZeros(
+                        JLong.rotateRight(free, cursor)) + cursor) & 63
+                    insert(entry(uniquefier, offset))
+                    take(offset)
+                    return offset
+                }
+                var i = 0
+                while (i < BLOCK_SIZE) {
+                    val offset = (cursor + i) & BLOCK_MASK
+                    if (offset >= fromOffset && offset <= toOffset &&
+                        insert(entry(uniquefier, offset))) {
+                        take(offset)
+                        return offset
+                    }
+                    i += 1
+                }
+                -1
+            }
+
+        /** Releases the lease of the port with the given offset to the
+          * uniquefier. */
+        def release(uniquefier: Long, offset: Int): Unit = synchronized {
+            if (remove(entry(uniquefier, offset))) {
+                counts(offset) -= 1
+                if (counts(offset) == 0) {
+                    used &= ~(1L << offset)
+                }
+                if (size == 0 && leases.length > MIN_LEASE_SLOTS) {
+                    leases = new Array[Long](MIN_LEASE_SLOTS)
+                }
+            }
+        }
+
+        /** The number of leases in this block. */
+        def leaseCount: Int = synchronized { size }
+
+        /** Whether a reservoir claimed this block and it was not used yet. */
+        def isReserved: Boolean = reservoir ne null
+
+        def reserve(reservoir: Reservoir): Unit = synchronized {
+            reservoir.reserved.incrementAndGet()
+            this.reservoir = reservoir
+        }
+
+        /** Returns this block to its reservoir as used, returning false if
+          * the block was not reserved. */
+        def unreserve(): Boolean = synchronized {
+            val r = reservoir
+            if (r ne null) {
+                r.reserved.decrementAndGet()
+                reservoir = null
+                true
+            } else false
+        }
+
+        /** Whether the port with the given offset has at least one lease. */
+        def isLeased(offset: Int): Boolean = synchronized {
+            (used & (1L << offset)) != 0L
+        }
+
+        private def take(offset: Int): Unit = {
+            counts(offset) += 1
+            used |= 1L << offset
+            cursor = (offset + CURSOR_STRIDE) & BLOCK_MASK
+        }
+
+        // Packs the port offset in the bits of the uniquefier between the
+        // destination port and the destination IP, which are always zero.
+        // The offset is stored plus one, such that an entry is never zero,
+        // which marks an empty slot.
+        private def entry(uniquefier: Long, offset: Int): Long =
+            (uniquefier & 0xFFFFFFFF0000FFFFL) | ((offset + 1).toLong << 16)
+
+        private def slot(entry: Long, mask: Int): Int = {
+            val h = entry * 0x9E3779B97F4A7C15L
+            (h ^ (h >>> 32)).toInt & mask
+        }
 
-        {
+        /** Inserts an entry in the lease table, returning false if the table
+          * already contains the entry. */
+        private def insert(entry: Long): Boolean = {
+            if ((size + 1) * 2 > leases.length) {
+                grow()
+            }
+            val mask = leases.length - 1
+            var i = slot(entry, mask)
+            while (leases(i) != 0L) {
+                if (leases(i) == entry) {
+                    return false
+                }
+                i = (i + 1) & mask
+            }
+            leases(i) = entry
+            size += 1
+            true
+        }
+
+        /** Removes an entry from the lease table, shifting back the entries
+          * that follow it in the same probe sequence. */
+        private def remove(entry: Long): Boolean = {
+            val mask = leases.length - 1
+            var hole = slot(entry, mask)
+            while (leases(hole) != entry) {
+                if (leases(hole) == 0L) {
+                    return false
+                }
+                hole = (hole + 1) & mask
+            }
+            var i = (hole + 1) & mask
+            while (leases(i) != 0L) {
+                val home = slot(leases(i), mask)
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    leases(hole) = leases(i)
+                    hole = i
+                }
+                i = (i + 1) & mask
+            }
+            leases(hole) = 0L
+            size -= 1
+            true
+        }
+
+        private def grow(): Unit = {
+            val old = leases
+            leases = new Array[Long](old.length * 2)
+            size = 0
             var i = 0
-            while (i < BLOCK_SIZE) {
-                leasedPorts(i) = new ConcurrentHashMap[JLong, AnyRef]
+            while (i < old.length) {
+                if (old(i) != 0L) {
+                    insert(old(i))
+                }
                 i += 1
             }
         }
     }
 
+    /**
+     * Tracks the consumption of NAT blocks for a device and target IP, such
+     * that blocks are claimed ahead of demand, before the packets have to
+     * wait for a block. A block is consumed when an allocation waits for a
+     * new block, or when it uses a reserved block. The reservoir keeps as
+     * many reserved blocks as were consumed per RESERVOIR_RATE_WINDOW on
+     * average, or one less than the blocks consumed in the current window,
+     * up to RESERVOIR_MAX_BLOCKS. A device that consumes a single block does
+     * not reserve any.
+     */
+    final class Reservoir(now: Long) {
+        // The port range of the last allocation that waited for a block.
+        @volatile var range: NatRange = null
+        val reserved = new AtomicInteger
+        val claiming = new AtomicBoolean
+        @volatile var retryAt = 0L
+
+        private var consumedInWindow = 0
+        private var windowStart = now
+        private var rate = 0.0 // Blocks per window
+
+        def consumed(now: Long): Unit = synchronized {
+            roll(now)
+            consumedInWindow += 1
+        }
+
+        /** The number of blocks the reservoir should keep reserved. */
+        def level(now: Long): Int = synchronized {
+            roll(now)
+            val blocks = Math.max(consumedInWindow - 1, rate.toInt)
+            Math.min(blocks, RESERVOIR_MAX_BLOCKS)
+        }
+
+        private def roll(now: Long): Unit = {
+            var windows = (now - windowStart) / RESERVOIR_RATE_WINDOW
+            if (windows > 0) {
+                rate = (rate + consumedInWindow) / 2
+                consumedInWindow = 0
+                windows -= 1
+                // Decay the rate for the idle windows.
+                while (windows > 0 && rate >= 1.0) {
+                    rate /= 2
+                    windows -= 1
+                }
+                windowStart = now
+            }
+        }
+    }
+
     /**
      * This type is a TimedExpirationMap of port block indexes to LeasedBLocks,
      * where the first port in that block is given by the port index * BLOCK_SIZE.
@@ -94,6 +307,12 @@ object NatLeaser {
      */
     type DeviceLeases = ConcurrentHashMap[UUID, IpLeases]
 
+    /**
+     * This type is a map of device IDs to block reservoirs scoped by IP.
+     */
+    type DeviceReservoirs =
+        ConcurrentHashMap[UUID, ConcurrentHashMap[IPv4Addr, Reservoir]]
+
     object NoNatBindingException extends Exception {
         override def fillInStackTrace(): Throwable = this
     }
@@ -103,6 +322,11 @@ object NatLeaser {
  * Allocates a particular NatBinding for an SNAT operation. NatBindings are
  * scoped by device and by NatTarget IP and they are oversubscribed based on
  * both destination IP and destination port.
+ *
+ * When a device and IP consume blocks in bursts, further blocks are claimed
+ * from the allocator ahead of demand, such that the following allocations
+ * do not wait for them. Reserved blocks that are not used expire and are
+ * released like any other idle block.
  */
 trait NatLeaser {
     import NatLeaser._
@@ -111,8 +335,22 @@ trait NatLeaser {
     val allocator: NatBlockAllocator
     val clock: NanoClock
     private val deviceLeases = new DeviceLeases
+    private val deviceReservoirs = new DeviceReservoirs
     private var lastObliterated = 0L
 
+    private val reservoirHitCounter = new AtomicLong
+    private val reservoirMissCounter = new AtomicLong
+
+    /** The number of reserved blocks used before any allocation had to wait
+      * for them. */
+    def reservoirHits: Long = reservoirHitCounter.get
+
+    /** The number of allocations that had to wait for a block. */
+    def reservoirMisses: Long = reservoirMissCounter.get
+
+    /** The number of devices with block reservoirs. */
+    private[state] def reservoirDevices: Int = deviceReservoirs.size
+
     /**
      *  Allocates a NatBinding for a particular device. We further scope the
      *  NatBinding by the destination IP and port. This method is optimized
@@ -141,6 +379,13 @@ trait NatLeaser {
             i += 1
         }
 
+        reservoirMissCounter.incrementAndGet()
+        val target = natTargets(0)
+        val reservoir = getReservoir(deviceId, target.nwStart)
+        reservoir.range = new NatRange(deviceId, target.nwStart,
+                                       target.tpStart, target.tpEnd)
+        reservoir.consumed(clock.tick)
+        replenish(reservoir)
         throw new NotYetException(
             fetchNatBlock(deviceId, natTargets, natTargets(0).nwStart, 0))
     }
@@ -167,7 +412,7 @@ trait NatLeaser {
         if (leasedBlock ne null) {
             val portOffset = binding.transportPort - leasedBlock.block.tpPortStart
             val uniquefier = blend(destinationIp, destinationPort)
-            leasedBlock.leasedPorts(portOffset).remove(uniquefier)
+            leasedBlock.release(uniquefier, portOffset)
         }
     }
 
@@ -175,25 +420,42 @@ trait NatLeaser {
         override def apply(acc: NatBlockAllocator, key: JInt,
                            value: LeasedBlock): NatBlockAllocator = {
             val block = value.block
-            log.debug("Releasing NAT block {}", block)
+            if (value.unreserve()) {
+                log.debug("Releasing unused reserved NAT block {}", block)
+            } else {
+                log.debug("Releasing NAT block {}", block)
+            }
             acc.freeBlock(block)
             acc
         }
     }
 
+    private val blockCounter = new Reducer[JInt, LeasedBlock, Int]() {
+        override def apply(acc: Int, key: JInt, value: LeasedBlock): Int =
+            acc + 1
+    }
+
     /**
-     * Returns any expired NatBlocks to the underlying allocator.
+     * Returns any expired NatBlocks to the underlying allocator, and removes
+     * the reservoirs of the devices left without blocks.
      * Thread-safe for concurrent callers.
      */
     def obliterateUnusedBlocks(): Unit = {
         val now = clock.tick
         if (now - lastObliterated > OBLITERATION_CYCLE) {
-            val itDevs = deviceLeases.values().iterator()
+            val itDevs = deviceLeases.entrySet().iterator()
             while (itDevs.hasNext) {
-                val itIps = itDevs.next().values().iterator()
+                val device = itDevs.next()
+                var blocks = 0
+                val itIps = device.getValue.values().iterator()
                 while (itIps.hasNext) {
-                    itIps.next().obliterateIdleEntries(clock.tick, allocator,
+                    val leasedBlocks = itIps.next()
+                    leasedBlocks.obliterateIdleEntries(clock.tick, allocator,
                                                        blockObliterator)
+                    blocks += leasedBlocks.fold(0, blockCounter)
+                }
+                if (blocks == 0) {
+                    removeReservoirs(device.getKey)
                 }
             }
 
@@ -201,48 +463,95 @@ trait NatLeaser {
         }
     }
 
+    /**
+     * Allocates a binding in the blocks leased in the given port range. The
+     * reserved blocks are used only when the other blocks are exhausted,
+     * such that a reserved block counts as consumed only when it is needed.
+     */
     private def allocateInPortRange(leasedBlocks: LeasedBlocks, uniquefier: Long,
                                     targetIp: IPv4Addr, targetPortStart: Int,
                                     targetPortEnd: Int): NatBinding = {
-        var port = targetPortStart
-        while (port <= targetPortEnd) {
-            val block = blockOf(port)
-            val firstPortInNextBlock = firstPortIn(block + 1)
-            val leasedBlock = leasedBlocks.ref(block)
-            if (leasedBlock ne null) {
-                val endPort = Math.min(targetPortEnd, firstPortInNextBlock - 1)
-                val binding = allocateInPortBlock(leasedBlock, uniquefier,
-                                                  targetIp, port, endPort)
-                if (binding ne null) {
-                    return binding
+        var reserved = false
+        var hasReserved = false
+        do {
+            var port = targetPortStart
+            while (port <= targetPortEnd) {
+                val block = blockOf(port)
+                val firstPortInNextBlock = firstPortIn(block + 1)
+                val leasedBlock = leasedBlocks.ref(block)
+                if (leasedBlock ne null) {
+                    if (leasedBlock.isReserved == reserved) {
+                        val endPort = Math.min(targetPortEnd,
+                                               firstPortInNextBlock - 1)
+                        val binding = allocateInPortBlock(
+                            leasedBlock, uniquefier, targetIp, port, endPort)
+                        if (binding ne null) {
+                            return binding
+                        }
+                    } else {
+                        hasReserved = true
+                    }
+                    leasedBlocks.unref(block, clock.tick)
                 }
-
-                leasedBlocks.unref(block, clock.tick)
+                port = firstPortInNextBlock
             }
-            port = firstPortInNextBlock
-        }
+            reserved = !reserved
+        } while (reserved && hasReserved)
         null
     }
 
     private def allocateInPortBlock(lease: LeasedBlock, uniquefier: Long,
                                     ip: IPv4Addr, tpStart: Int, tpEnd: Int)
     : NatBinding = {
-        val index = lease.portIndex
         val firstPortInBlock = lease.block.tpPortStart
-        var i = 0
-        while (i < BLOCK_SIZE) { // Search all ports
-            val portOffset = (index + i).toInt & BLOCK_MASK
-            val port = firstPortInBlock + portOffset
-            if (port >= tpStart && port <= tpEnd) {
-                val sharedBinding = lease.leasedPorts(portOffset)
-                if (sharedBinding.putIfAbsent(uniquefier, this) eq null) {
-                    lease.portIndex += i + 31
-                    return NatBinding(ip, port)
-                }
+        val offset = lease.lease(uniquefier,
+                                 Math.max(tpStart - firstPortInBlock, 0),
+                                 Math.min(tpEnd - firstPortInBlock, BLOCK_MASK))
+        if (offset >= 0) {
+            if (lease.isReserved && lease.unreserve()) {
+                reservoirHit(lease.block)
             }
-            i += 1
+            NatBinding(ip, firstPortInBlock + offset)
+        } else null
+    }
+
+    private def reservoirHit(block: NatBlock): Unit = {
+        reservoirHitCounter.incrementAndGet()
+        val reservoir = getReservoir(block.deviceId, block.ip)
+        reservoir.consumed(clock.tick)
+        replenish(reservoir)
+    }
+
+    /**
+     * Claims blocks in the background for the device and target IP of the
+     * given reservoir, until it has as many reserved blocks as its level.
+     * There is at most one claim in flight per device and IP, and a failed
+     * claim is retried after a delay.
+     */
+    private def replenish(reservoir: Reservoir): Unit = {
+        val range = reservoir.range
+        val now = clock.tick
+        if ((range eq null) ||
+            reservoir.reserved.get >= reservoir.level(now) ||
+            now < reservoir.retryAt ||
+            !reservoir.claiming.compareAndSet(false, true)) {
+            return
+        }
+
+        log.debug("Reserving a NAT block for device {} and IP {}",
+                  range.deviceId, range.ip)
+        implicit val ec = ExecutionContext.callingThread
+        allocator.allocateBlockInRange(range) onComplete {
+            case Success(block) =>
+                registerNewBlock(block, reservoir)
+                reservoir.claiming.set(false)
+                replenish(reservoir)
+            case Failure(e) =>
+                log.debug("Failed to reserve a NAT block for device {} and " +
+                          "IP {}", range.deviceId, range.ip, e)
+                reservoir.retryAt = clock.tick + RESERVOIR_RETRY_DELAY
+                reservoir.claiming.set(false)
         }
-        null
     }
 
     private def fetchNatBlock(deviceId: UUID, targets: Array[NatTarget],
@@ -267,10 +576,14 @@ trait NatLeaser {
         }
     }
 
-    private def registerNewBlock(block: NatBlock): Unit = {
+    private def registerNewBlock(block: NatBlock,
+                                 reservoir: Reservoir = null): Unit = {
         log.debug("Acquiring NAT block {}", block)
         val leasedBlocks = getLeasedBlocks(block.deviceId, block.ip)
         val leasedBlock = new LeasedBlock(block)
+        if (reservoir ne null) {
+            leasedBlock.reserve(reservoir)
+        }
         leasedBlocks.putAndRef(block.blockIndex, leasedBlock)
         leasedBlocks.unref(block.blockIndex, clock.tick)
     }
@@ -280,6 +593,38 @@ trait NatLeaser {
         getOrCreateIpLeases(ipLeases, targetIp)
     }
 
+    private def getReservoir(deviceId: UUID, ip: IPv4Addr): Reservoir = {
+        var ipReservoirs = deviceReservoirs.get(deviceId)
+        if (ipReservoirs eq null) {
+            ipReservoirs = new ConcurrentHashMap[IPv4Addr, Reservoir]
+            val cur = deviceReservoirs.putIfAbsent(deviceId, ipReservoirs)
+            if (cur ne null)
+                ipReservoirs = cur
+        }
+        var value = ipReservoirs.get(ip)
+        if (value eq null) {
+            value = new Reservoir(clock.tick)
+            val cur = ipReservoirs.putIfAbsent(ip, value)
+            if (cur ne null)
+                value = cur
+        }
+        value
+    }
+
+    /** Removes the reservoirs of a device that are not claiming a block. */
+    private def removeReservoirs(deviceId: UUID): Unit = {
+        val ipReservoirs = deviceReservoirs.get(deviceId)
+        if (ipReservoirs eq null)
+            return
+        val it = ipReservoirs.values().iterator()
+        while (it.hasNext) {
+            if (!it.next().claiming.get)
+                it.remove()
+        }
+        if (ipReservoirs.isEmpty)
+            deviceReservoirs.remove(deviceId, ipReservoirs)
+    }
+
     private def getOrCreateDeviceLeases(deviceId: UUID) = {
         var value = deviceLeases.get(deviceId)
         if (value eq null) {
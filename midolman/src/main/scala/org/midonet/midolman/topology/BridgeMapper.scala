@@ -360,8 +360,8 @@ final class BridgeMapper(bridgeId: UUID, implicit override val vt: VirtualTopolo
         .filter(makeFunc1(isPortKnown))
         .map[TopologyBridge](makeFunc1(portUpdated))
 
-    private lazy val bridgeObservable = vt.store
-        .observable(classOf[TopologyBridge], bridgeId)
+    private lazy val bridgeObservable = vt
+        .storeObservable(classOf[TopologyBridge], bridgeId)
         .observeOn(vt.vtScheduler)
         .doOnCompleted(makeAction0(bridgeDeleted()))
         .doOnNext(makeAction1(bridgeUpdated))
@@ -67,7 +67,7 @@ object ChainMapper {
             })
 
         /** The observable emitting Rule updates. */
-        val observable = vt.store.observable(classOf[TopologyRule],ruleId)
+        val observable = vt.storeObservable(classOf[TopologyRule],ruleId)
             .observeOn(vt.vtScheduler)
             .onErrorResumeNext(notFoundHandler)
             .takeUntil(mark)
@@ -371,12 +371,13 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology, metricRegistry: Metr
             chainMap.put(id, chain)
         }
         val chain = new SimChain(chainId, ruleList, chainMap, chainProto.getName)
+            .compile()
         log.debug("Emitting {}", chain)
         chain
     }
 
     private lazy val chainObservable =
-        vt.store.observable(classOf[TopologyChain], chainId)
+        vt.storeObservable(classOf[TopologyChain], chainId)
             .observeOn(vt.vtScheduler)
             .map[TopologyChain](makeFunc1(chainUpdated))
             .doOnCompleted(makeAction0(chainDeleted()))
@@ -420,7 +421,8 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology, metricRegistry: Metr
                                    (t: Throwable) => {
                                        traceChainMap.get(chainId) match {
                                            case Some(subject) =>
-                                               subject.doOnTerminate(
+                                               subject.observeOn(vt.vtScheduler)
+                                                      .doOnTerminate(
                                                    makeAction0(chainDeleted()))
                                            case None => throw t
                                        }
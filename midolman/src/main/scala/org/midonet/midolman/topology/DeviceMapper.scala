@@ -16,6 +16,7 @@
 package org.midonet.midolman.topology
 
 import java.util.UUID
+import java.util.concurrent.TimeUnit.MILLISECONDS
 import javax.annotation.Nullable
 
 import com.typesafe.scalalogging.Logger
@@ -27,10 +28,10 @@ import scala.reflect.ClassTag
 import com.codahale.metrics.MetricRegistry
 import com.google.common.annotations.VisibleForTesting
 import com.google.protobuf.Message
-import rx.Observable.OnSubscribe
+import rx.Observable.{OnSubscribe, Operator}
 import rx.observers.Subscribers
 import rx.subjects.{BehaviorSubject, PublishSubject}
-import rx.{Observable, Observer, Subscriber}
+import rx.{Observable, Observer, Scheduler, Subscriber}
 
 import org.midonet.cluster.data.ZoomConvert.fromProto
 import org.midonet.cluster.data.ZoomObject
@@ -62,6 +63,68 @@ object DeviceMapper {
         }
     }
 
+    /**
+     * An operator that coalesces the devices emitted by a mapper in bursts.
+     * A device emitted after a quiet period is emitted immediately, and opens
+     * a coalescing window. The devices received during the window replace
+     * each other, and only the last one is emitted when the window expires,
+     * which opens a new window. The operator must receive the notifications on
+     * the thread of the given scheduler, which is also used for the window
+     * timer.
+     */
+    private[topology] final class CoalesceOperator[D](window: Long,
+                                                      scheduler: Scheduler,
+                                                      onCoalesced: () => Unit)
+        extends Operator[D, D] {
+
+        override def call(child: Subscriber[_ >: D]): Subscriber[_ >: D] = {
+            val worker = scheduler.createWorker()
+            child.add(worker)
+
+            new Subscriber[D](child) {
+                private var open = false
+                private var hasPending = false
+                private var pending: D = _
+
+                private val expire = makeAction0 {
+                    if (hasPending) {
+                        val device = pending
+                        hasPending = false
+                        pending = null.asInstanceOf[D]
+                        child.onNext(device)
+                        worker.schedule(expire, window, MILLISECONDS)
+                    } else {
+                        open = false
+                    }
+                }
+
+                override def onNext(device: D): Unit = {
+                    if (!open) {
+                        open = true
+                        child.onNext(device)
+                        worker.schedule(expire, window, MILLISECONDS)
+                    } else {
+                        if (hasPending) onCoalesced()
+                        hasPending = true
+                        pending = device
+                    }
+                }
+
+                override def onCompleted(): Unit = {
+                    if (hasPending) {
+                        hasPending = false
+                        child.onNext(pending)
+                    }
+                    child.onCompleted()
+                }
+
+                override def onError(e: Throwable): Unit = {
+                    child.onError(e)
+                }
+            }
+        }
+    }
+
     /**
       * The state of the mapper subscription to the underlying storage
       * observables.
@@ -142,7 +205,9 @@ abstract class DeviceMapper[D <: Device](val id: UUID, val vt: VirtualTopology,
     import DeviceMapper.MapperClosedException
 
     private final val key = Key(tag, id)
+    protected final val partition = vt.partitionOf(key)
     private final var state = MapperState.Unsubscribed
+    private final var subscribeTime = 0L
     private final val cache = BehaviorSubject.create[D]()
     private final val subscriber = Subscribers.from(cache)
 
@@ -167,7 +232,7 @@ abstract class DeviceMapper[D <: Device](val id: UUID, val vt: VirtualTopology,
     protected def observable: Observable[D]
 
     override final def call(child: Subscriber[_ >: D]): Unit =
-        vt.vtExecutor.submit(makeRunnable {
+        partition.submit(makeRunnable {
             // If the mapper is in any terminal state, complete the child
             // immediately and return.
             if (handleSubscriptionIfTerminal(child)) {
@@ -176,7 +241,8 @@ abstract class DeviceMapper[D <: Device](val id: UUID, val vt: VirtualTopology,
 
             if (state == MapperState.Unsubscribed) {
                 state = MapperState.Subscribed
-                observable.doOnEach(this).subscribe(subscriber)
+                subscribeTime = System.nanoTime()
+                coalesced(observable).doOnEach(this).subscribe(subscriber)
             }
             cache subscribe child
         })
@@ -209,18 +275,32 @@ abstract class DeviceMapper[D <: Device](val id: UUID, val vt: VirtualTopology,
         assertThread()
         log.debug("Device {}/{} notification: {}", tag, id, device)
         metrics.deviceUpdated()
+        if (subscribeTime != 0L) {
+            metrics.deviceBuilt(System.nanoTime() - subscribeTime)
+            subscribeTime = 0L
+        }
         vt.devices.put(id, device)
         onDeviceChanged(device)
     }
 
     protected def onDeviceChanged(device: D): Unit = {}
 
+    /** Coalesces the devices emitted by the given observable, if the virtual
+      * topology has a coalescing window. */
+    private def coalesced(observable: Observable[D]): Observable[D] = {
+        if (vt.coalescingWindow > 0)
+            observable.lift(new CoalesceOperator[D](
+                vt.coalescingWindow, vt.vtScheduler,
+                () => metrics.deviceCoalesced()))
+        else observable
+    }
+
     /**
-     * Checks that this method is executed on the same thread as the one used
-     * during the initialization of the mapper.
+     * Checks that this method is executed on the thread of the partition
+     * running the mapper.
      */
     @throws[DeviceMapperException]
-    @inline protected def assertThread(): Unit = vt.assertThread()
+    @inline protected def assertThread(): Unit = vt.assertThread(partition)
 
     /**
      * Synchronize devices with the new list of deviceIds. Complete and remove
@@ -288,8 +368,8 @@ abstract class DeviceMapper[D <: Device](val id: UUID, val vt: VirtualTopology,
             devicesObserver: Observer[Observable[T]], vt: VirtualTopology)
             (implicit tTag: ClassTag[T], uTag: ClassTag[U]): Unit = {
         updateDeviceState(deviceIds, devices, devicesObserver) { id =>
-            new DeviceState[T](id, vt.store
-                .observable(uTag.runtimeClass.asInstanceOf[Class[U]], id)
+            new DeviceState[T](id, vt
+                .storeObservable(uTag.runtimeClass.asInstanceOf[Class[U]], id)
                 .distinctUntilChanged()
                 .observeOn(vt.vtScheduler)
                 .map[T](makeFunc1(
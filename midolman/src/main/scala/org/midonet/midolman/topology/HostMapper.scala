@@ -197,7 +197,7 @@ final class HostMapper(hostId: UUID, vt: VirtualTopology, metricRegistry: Metric
     // Ownership changes modify the version of the host and will thus
     // trigger a host update, hence the 'distinctUntilChanged'.
     private lazy val hostObservable =
-        vt.store.observable(classOf[TopologyHost], hostId)
+        vt.storeObservable(classOf[TopologyHost], hostId)
             .observeOn(vt.vtScheduler)
             .distinctUntilChanged
             .doOnCompleted(makeAction0(hostDeleted()))
@@ -40,7 +40,7 @@ class IPAddrGroupMapper(addrGroupId: UUID, vt: VirtualTopology, metricRegistry:
     }
 
     protected override lazy val observable =
-        vt.store.observable(classOf[TopologyIPAddrGroup], addrGroupId)
+        vt.storeObservable(classOf[TopologyIPAddrGroup], addrGroupId)
             .map[SimIPAddrGroup](makeFunc1(toSimIPAddrGroup))
             .observeOn(vt.vtScheduler)
 }
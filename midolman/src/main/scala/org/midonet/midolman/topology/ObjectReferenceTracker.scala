@@ -59,8 +59,11 @@ abstract class ObjectReferenceTrackerBase[D >: Null, StateType <: ObjectStateBas
     val vt: VirtualTopology
     protected def newState(id: UUID): StateType
 
+    // The tracker is created by its mapper, on the partition of the mapper.
+    private val partition = vt.callerPartition
+
     @throws[DeviceMapperException]
-    @inline private def assertThread(): Unit = vt.assertThread()
+    @inline private def assertThread(): Unit = vt.assertThread(partition)
 
     private val refsSubject = PublishSubject.create[Observable[D]]
     private val refs = new mutable.HashMap[UUID, StateType]
@@ -164,7 +167,7 @@ class StoreObjectState[D >: Null](val clazz: Class[D],
                                   val id: UUID,
                                   val vt: VirtualTopology)
         extends ObjectStateBase[D] {
-    override val observable = vt.store.observable(clazz, id)
+    override val observable = vt.storeObservable(clazz, id)
         .observeOn(vt.vtScheduler)
         .doOnNext(makeAction1(currentObj = _))
         .takeUntil(mark)
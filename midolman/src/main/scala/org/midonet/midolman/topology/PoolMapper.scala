@@ -75,8 +75,8 @@ final class PoolMapper(poolId: UUID, vt: VirtualTopology, metricRegistry: Metric
             pool
         })
 
-    private lazy val poolObservable = vt.store
-        .observable(classOf[TopologyPool], poolId)
+    private lazy val poolObservable = vt
+        .storeObservable(classOf[TopologyPool], poolId)
         .observeOn(vt.vtScheduler)
         .doOnCompleted(makeAction0(poolDeleted()))
         .doOnNext(makeAction1(poolUpdated))
@@ -35,7 +35,7 @@ class PortGroupMapper(id: UUID, vt: VirtualTopology, metricRegistry: MetricRegis
     override def logSource = s"org.midonet.devices.port-group.port-group-$id"
 
     protected override def observable =
-        vt.store.observable(classOf[TopologyPortGroup], id)
+        vt.storeObservable(classOf[TopologyPortGroup], id)
             .distinctUntilChanged
             .map[SimulationPortGroup](makeFunc1(toSimPortGroup))
             .doOnNext(makeAction1(
@@ -118,7 +118,7 @@ final class PortMapper(id: UUID, vt: VirtualTopology,
                                  .observeOn(vt.vtScheduler)
                                  .filter(makeFunc1(areL2InsertionsReady))
                                  .map[JList[UUID]](makeFunc1(makeServicePortList))),
-            vt.store.observable(classOf[TopologyPort], id)
+            vt.storeObservable(classOf[TopologyPort], id)
                 .observeOn(vt.vtScheduler)
                 .doOnNext(makeAction1(topologyPortUpdated))
                 .doOnCompleted(makeAction0(topologyPortDeleted()))
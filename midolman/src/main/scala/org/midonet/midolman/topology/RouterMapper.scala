@@ -34,7 +34,7 @@ import org.midonet.cluster.data.ZoomConvert
 import org.midonet.cluster.models.Topology.{Route => TopologyRoute, Router => TopologyRouter}
 import org.midonet.cluster.state.RoutingTableStorage._
 import org.midonet.cluster.util.UUIDUtil._
-import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.{CompressedRoutingTable, Route}
 import org.midonet.midolman.simulation.Router.{Config, RoutingTable, TagManager}
 import org.midonet.midolman.simulation.{Router => SimulationRouter, Mirror, RouterPort, Chain, LoadBalancer}
 import org.midonet.midolman.SimulationBackChannel.{Broadcast, BackChannelMessage}
@@ -76,6 +76,9 @@ object RouterMapper {
         @Nullable private var currentPort: RouterPort = null
         private val mark = PublishSubject.create[RouteUpdates]
 
+        // The state is created by the mapper, on the partition of the mapper.
+        private val partition = vt.callerPartition
+
         private val routes = new mutable.HashMap[UUID, RouteState]
         private val routesSubject = PublishSubject
             .create[Observable[RouteUpdates]]
@@ -152,7 +155,7 @@ object RouterMapper {
          * - If the port was and remains inactive, then do not emit any updates.
          */
         private def portUpdated(port: RouterPort): RouteUpdates = {
-            vt.assertThread()
+            vt.assertThread(partition)
 
             log.debug("Router port updated: {}", port)
 
@@ -221,7 +224,7 @@ object RouterMapper {
         /** A method called when a route is updated. It publishes routes if the
           * port is interior, or exterior and active. */
         private def routeUpdated(updates: RouteUpdates): RouteUpdates = {
-            vt.assertThread()
+            vt.assertThread(partition)
             log.debug("Port route updated: {}", updates)
 
             routesCache ++= updates.added
@@ -235,7 +238,7 @@ object RouterMapper {
           * and this one, and returns a [[RouteUpdates]] instance with the
           * difference. */
         private def learnedRoutesUpdated(routes: Set[Route]): RouteUpdates = {
-            vt.assertThread()
+            vt.assertThread(partition)
             log.debug("Learned port routes updated: {} routes",
                       Int.box(routes.size))
             portStateReady = true
@@ -284,7 +287,7 @@ object RouterMapper {
         @Nullable private var currentRoute: Route = null
         private val mark = PublishSubject.create[RouteUpdates]
 
-        val observable = vt.store.observable(classOf[TopologyRoute], routeId)
+        val observable = vt.storeObservable(classOf[TopologyRoute], routeId)
             .observeOn(vt.vtScheduler)
             .flatMap[RouteUpdates](makeFunc1(routeUpdated))
             .onErrorResumeNext(makeFunc1(routeError))
@@ -355,16 +358,13 @@ object RouterMapper {
 
     /**
      * Provides an implementation for a router's [[RoutingTable]], wrapping an
-     * underlying IPv4 routing table.
+     * underlying IPv4 routing table. The table is immutable, and it is built
+     * again every time the router's routes change.
      */
     private class RouterRoutingTable(routes: mutable.Set[Route])
         extends RoutingTable {
 
-        private val ipv4RoutingTable = new IPv4RoutingTable()
-
-        for (route <- routes) {
-            ipv4RoutingTable.addRoute(route)
-        }
+        private val ipv4RoutingTable = new CompressedRoutingTable(routes.asJava)
 
         override def lookup(flowMatch: FlowMatch): java.util.List[Route] = {
             ipv4RoutingTable.lookup(
@@ -443,7 +443,7 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         PublishSubject.create[Observable[LoadBalancer]]
 
     private lazy val routerObservable =
-        vt.store.observable(classOf[TopologyRouter], routerId)
+        vt.storeObservable(classOf[TopologyRouter], routerId)
             .observeOn(vt.vtScheduler)
             .doOnCompleted(makeAction0(routerDeleted()))
             .map[Config](makeFunc1(routerUpdated))
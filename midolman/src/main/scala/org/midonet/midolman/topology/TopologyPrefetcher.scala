@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.util.{List => JList, UUID}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.collection.JavaConverters._
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.reflect.ClassTag
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success}
+
+import rx.{Observer, Subscription}
+
+import org.midonet.midolman.logging.MidolmanLogging
+import org.midonet.midolman.simulation._
+import org.midonet.midolman.topology.VirtualTopology.Device
+import org.midonet.midolman.topology.devices.Host
+import org.midonet.util.concurrent._
+
+object TopologyPrefetcher {
+
+    /** The maximum number of peer links crossed from a bound port. */
+    final val MaxHops = 2
+
+}
+
+/**
+ * Preloads into the virtual topology the devices reachable from the ports
+ * bound to the local host, such that the first packets received from a
+ * port are simulated without waiting for the devices to load one hop at a
+ * time.
+ *
+ * When a port is bound to the host, the prefetcher walks the device graph
+ * starting from that port: the port, its bridge or router, their filter
+ * chains, mirrors and port groups, and the peers of the interior ports, up to
+ * [[TopologyPrefetcher.MaxHops]] peer links away. The devices at the same
+ * distance are requested in parallel. The chain mappers load the jump chains
+ * and the IP address groups of a chain before emitting it, such that they are
+ * loaded with the chain.
+ *
+ * The prefetched devices remain in the virtual topology cache, since the
+ * device mappers are not closed when their subscribers unsubscribe.
+ */
+class TopologyPrefetcher(hostId: UUID) extends MidolmanLogging {
+
+    import TopologyPrefetcher._
+
+    override def logSource = "org.midonet.devices.prefetch"
+
+    private implicit val ec = ExecutionContext.callingThread
+
+    private val boundPorts = ConcurrentHashMap.newKeySet[UUID]()
+    @volatile private var subscription: Subscription = null
+
+    private val hostObserver = new Observer[Host] {
+        override def onNext(host: Host): Unit = {
+            for (portId <- host.portIds if boundPorts.add(portId)) {
+                prefetch(portId)
+            }
+            boundPorts.retainAll(host.portIds.asJava)
+        }
+
+        override def onError(e: Throwable): Unit = {
+            log.warn("Host {} error: topology prefetch disabled", hostId, e)
+        }
+
+        override def onCompleted(): Unit = {
+            log.debug("Host {} deleted: topology prefetch stopped", hostId)
+        }
+    }
+
+    /** Starts prefetching the devices for the ports bound to the host. */
+    def start(): Unit = {
+        subscription = VirtualToPhysicalMapper.hosts(hostId)
+                                              .subscribe(hostObserver)
+    }
+
+    /** Stops prefetching the devices for newly bound ports. */
+    def stop(): Unit = {
+        val s = subscription
+        if (s ne null) {
+            s.unsubscribe()
+            subscription = null
+        }
+        boundPorts.clear()
+    }
+
+    /**
+     * Preloads the devices reachable from the given port. The returned future
+     * completes with the number of devices requested, when all of them have
+     * been loaded or have failed to load.
+     */
+    def prefetch(portId: UUID): Future[Int] = {
+        val startTime = System.nanoTime()
+        val future = new Walk().start(portId)
+        future.onSuccess { case count =>
+            log.debug("Prefetched {} devices for port {} in {} ms",
+                      Int.box(count), portId,
+                      Long.box((System.nanoTime() - startTime) / 1000000L))
+        }
+        future
+    }
+
+    /**
+     * A walk through the devices reachable from a port. Every device is
+     * requested at most once, and the walk completes when there are no more
+     * pending device requests.
+     */
+    private class Walk {
+
+        private val visited = ConcurrentHashMap.newKeySet[UUID]()
+        // The initial count accounts for the start of the walk, such that
+        // the walk does not complete while the first request is issued.
+        private val pending = new AtomicInteger(1)
+        private val promise = Promise[Int]()
+
+        def start(portId: UUID): Future[Int] = {
+            port(portId, 0)
+            done()
+            promise.future
+        }
+
+        private def port(id: UUID, hops: Int): Unit = fetch[Port](id) { port =>
+            chains(port.inboundFilters)
+            chains(port.outboundFilters)
+            mirrors(port.inboundMirrors)
+            mirrors(port.outboundMirrors)
+            for (portGroupId <- port.portGroups.asScala) {
+                fetch[PortGroup](portGroupId)(_ => {})
+            }
+            port match {
+                case p: RouterPort => router(p.routerId, hops)
+                case p: BridgePort => bridge(p.networkId, hops)
+                case p: VxLanPort => bridge(p.networkId, hops)
+                case _ =>
+            }
+            if (port.isInterior && hops < MaxHops) {
+                this.port(port.peerId, hops + 1)
+            }
+        }
+
+        private def bridge(id: UUID, hops: Int): Unit = fetch[Bridge](id) {
+            bridge =>
+                chains(bridge.infilters)
+                chains(bridge.outfilters)
+                mirrors(bridge.inboundMirrors)
+                mirrors(bridge.outboundMirrors)
+                for (portId <- bridge.macToLogicalPortId.values) {
+                    port(portId, hops)
+                }
+                for (portId <- bridge.vlanPortId) {
+                    port(portId, hops)
+                }
+        }
+
+        private def router(id: UUID, hops: Int): Unit = fetch[Router](id) {
+            router =>
+                chains(router.cfg.inboundFilters)
+                chains(router.cfg.outboundFilters)
+                mirrors(router.cfg.inboundMirrors)
+                mirrors(router.cfg.outboundMirrors)
+                if (router.cfg.loadBalancer ne null) {
+                    fetch[LoadBalancer](router.cfg.loadBalancer)(_ => {})
+                }
+        }
+
+        private def chains(ids: JList[UUID]): Unit = {
+            for (id <- ids.asScala) fetch[Chain](id)(_ => {})
+        }
+
+        private def mirrors(ids: JList[UUID]): Unit = {
+            for (id <- ids.asScala) fetch[Mirror](id)(_ => {})
+        }
+
+        /** Requests a device not yet visited by this walk, and calls the
+          * given function when the device is loaded. */
+        private def fetch[D <: Device](id: UUID)(f: D => Unit)
+                                      (implicit tag: ClassTag[D]): Unit = {
+            if ((id eq null) || !visited.add(id)) {
+                return
+            }
+            pending.incrementAndGet()
+            val future = try VirtualTopology.get[D](id) catch {
+                case NonFatal(e) => Future.failed(e)
+            }
+            future.onComplete {
+                case Success(device) =>
+                    try f(device) finally done()
+                case Failure(e) =>
+                    log.debug("Failed to prefetch device {}/{}",
+                              tag.runtimeClass.getSimpleName, id, e)
+                    done()
+            }
+        }
+
+        private def done(): Unit = {
+            if (pending.decrementAndGet() == 0) {
+                promise.trySuccess(visited.size)
+            }
+        }
+
+    }
+
+}
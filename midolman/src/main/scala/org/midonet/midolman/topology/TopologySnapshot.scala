@@ -0,0 +1,355 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.io.{BufferedOutputStream, DataOutputStream}
+import java.lang.reflect.Method
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.util.{HashMap, UUID}
+import java.util.concurrent.{ConcurrentHashMap, Executors, TimeUnit}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration.Duration
+import scala.util.control.NonFatal
+
+import com.google.protobuf.Message
+
+import rx.Observable
+
+import org.midonet.cluster.data.storage.NotFoundException
+import org.midonet.midolman.logging.MidolmanLogging
+import org.midonet.util.concurrent.NamedThreadFactory
+import org.midonet.util.functors.{makeAction0, makeAction1, makeRunnable}
+
+object TopologySnapshot {
+
+    /** Identifies a topology snapshot file. */
+    final val Magic = 0x4d4e5453
+    /** The version of the snapshot file format. A file written with a
+      * different version is ignored. */
+    final val Version = 1
+
+    private case class Key(className: String, id: UUID)
+
+    /** The position of an object in the memory-mapped snapshot file. */
+    private case class Entry(offset: Int, length: Int)
+
+    /** The last version of an object emitted by storage, and the number of
+      * observables subscribed to the object. */
+    private final class Recorded(var message: Message, var refs: Int)
+
+    /* The cleaner of the JDK direct buffers, resolved by reflection since it
+     * is not a public API. If it is not available, the snapshot file is
+     * unmapped when the buffer is garbage collected. */
+    private val cleanerMethod: Method = try {
+        Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner")
+    } catch {
+        case NonFatal(e) => null
+    }
+    private val cleanMethod: Method = try {
+        Class.forName("sun.misc.Cleaner").getMethod("clean")
+    } catch {
+        case NonFatal(e) => null
+    }
+
+    /** Releases the memory mapping of the given buffer, and returns whether
+      * the mapping was released or is left to the garbage collector. */
+    private def release(buffer: ByteBuffer): Boolean = {
+        if ((cleanerMethod eq null) || (cleanMethod eq null) ||
+            !buffer.isDirect) {
+            return false
+        }
+        try {
+            val cleaner = cleanerMethod.invoke(buffer)
+            if (cleaner ne null) cleanMethod.invoke(cleaner)
+            cleaner ne null
+        } catch {
+            case NonFatal(e) => false
+        }
+    }
+
+}
+
+/**
+ * A snapshot on local disk of the topology objects loaded by the virtual
+ * topology, used to serve the devices immediately after the agent restarts.
+ *
+ * While the agent is running, the snapshot records the last version of every
+ * storage object emitted to the device mappers, and periodically writes them
+ * to the snapshot file, replacing the previous file atomically. When the
+ * agent starts, the previous file is memory-mapped and indexed, and the
+ * first storage observable for each object emits the object from the
+ * snapshot, before the notifications from storage. Each snapshot object is
+ * served only once, and only objects loaded again by the agent are written
+ * to the next snapshot. The objects not requested during the warm-up period
+ * after the start are discarded, and the snapshot file is unmapped.
+ *
+ * An object is written to the snapshot while there are subscribers to its
+ * storage observable: it is removed when the last subscriber unsubscribes,
+ * when the observable completes, or when the object is deleted.
+ *
+ * A snapshot object that is stale is replaced by the storage notifications,
+ * through the same path as any other update: the mappers receive the current
+ * version of the object, or a [[NotFoundException]] if the object no longer
+ * exists.
+ *
+ * The file contains a header with the magic number, the format version, the
+ * creation time and the number of objects, followed by the objects, each
+ * with its class name, identifier and protocol buffer encoding.
+ */
+class TopologySnapshot(path: Path, interval: Duration, warmUp: Duration)
+    extends MidolmanLogging {
+
+    import TopologySnapshot._
+
+    override def logSource = "org.midonet.devices.snapshot"
+
+    private val loaded = new ConcurrentHashMap[Key, Entry]()
+    @volatile private var buffer: ByteBuffer = null
+
+    // Protected by the lock of the map.
+    private val objects = new HashMap[Key, Recorded]()
+    @volatile private var dirty = false
+
+    private val executor = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("topology-snapshot", isDaemon = true))
+
+    load()
+    if (buffer ne null) {
+        executor.schedule(makeRunnable { unmap() }, warmUp.toMillis,
+                          TimeUnit.MILLISECONDS)
+    }
+    executor.scheduleWithFixedDelay(makeRunnable { write() },
+                                    interval.toMillis, interval.toMillis,
+                                    TimeUnit.MILLISECONDS)
+
+    /**
+     * Returns an observable that emits the given storage object from the
+     * snapshot, if the snapshot contains the object and the object was not
+     * served before, followed by the notifications of the storage
+     * observable. The snapshot records the objects emitted by storage.
+     */
+    def observable[T](clazz: Class[T], id: UUID,
+                      storage: Observable[T]): Observable[T] = {
+        if (!classOf[Message].isAssignableFrom(clazz)) {
+            return storage
+        }
+        val key = Key(clazz.getName, id)
+        val recorded = storage
+            .doOnSubscribe(makeAction0 { acquire(key) })
+            .doOnNext(makeAction1 { obj: T =>
+                record(key, obj.asInstanceOf[Message])
+            })
+            .doOnError(makeAction1 { e: Throwable =>
+                if (e.isInstanceOf[NotFoundException]) forget(key)
+            })
+            .doOnCompleted(makeAction0 { forget(key) })
+            .doOnUnsubscribe(makeAction0 { release(key) })
+
+        val obj = take(key, clazz)
+        if (obj == null) recorded
+        else recorded.startWith(obj)
+    }
+
+    /** Returns the number of objects that can still be served from the
+      * snapshot loaded at startup. */
+    def size: Int = loaded.size
+
+    /** Writes the snapshot, stops writing it periodically and unmaps the
+      * snapshot loaded at startup. */
+    def close(): Unit = {
+        executor.shutdown()
+        unmap()
+        write()
+    }
+
+    /**
+     * Writes the objects loaded by the agent to the snapshot file, if they
+     * changed since the last write. The objects are written to a temporary
+     * file, which then replaces the snapshot file.
+     */
+    private[topology] def write(): Unit = synchronized {
+        if (!dirty) {
+            return
+        }
+        dirty = false
+        val tmp = path.resolveSibling(s"${path.getFileName}.tmp")
+        try {
+            val entries = objects.synchronized {
+                objects.asScala.toSeq.collect {
+                    case (key, recorded) if recorded.message ne null =>
+                        (key, recorded.message)
+                }
+            }
+            val out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmp)))
+            try {
+                out.writeInt(Magic)
+                out.writeInt(Version)
+                out.writeLong(System.currentTimeMillis())
+                out.writeInt(entries.size)
+                for ((key, message) <- entries) {
+                    val className = key.className.getBytes(UTF_8)
+                    val data = message.toByteArray
+                    out.writeShort(className.length)
+                    out.write(className)
+                    out.writeLong(key.id.getMostSignificantBits)
+                    out.writeLong(key.id.getLeastSignificantBits)
+                    out.writeInt(data.length)
+                    out.write(data)
+                }
+            } finally {
+                out.close()
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE)
+            log.debug("Wrote {} objects to the topology snapshot {}",
+                      Int.box(entries.size), path)
+        } catch {
+            case NonFatal(e) =>
+                log.warn("Failed to write the topology snapshot {}", path, e)
+                dirty = true
+                Files.deleteIfExists(tmp)
+        }
+    }
+
+    /**
+     * Memory-maps and indexes the snapshot file written by the previous run
+     * of the agent. The snapshot is ignored if the file is missing, has a
+     * different format version or is corrupted.
+     */
+    private def load(): Unit = {
+        if (!Files.isRegularFile(path)) {
+            return
+        }
+        try {
+            val channel = FileChannel.open(path, StandardOpenOption.READ)
+            val map = try channel.map(MapMode.READ_ONLY, 0, channel.size())
+                      finally channel.close()
+            if (map.getInt() != Magic || map.getInt() != Version) {
+                log.info("Ignoring the topology snapshot {} with an " +
+                         "unsupported format", path)
+                return
+            }
+            val timestamp = map.getLong()
+            val count = map.getInt()
+            for (index <- 0 until count) {
+                val className = new Array[Byte](map.getShort())
+                map.get(className)
+                val id = new UUID(map.getLong(), map.getLong())
+                val length = map.getInt()
+                loaded.put(Key(new String(className, UTF_8), id),
+                           Entry(map.position(), length))
+                map.position(map.position() + length)
+            }
+            buffer = map
+            log.info("Loaded {} objects from the topology snapshot {} " +
+                     "created at {}", Int.box(count), path,
+                     new java.util.Date(timestamp))
+        } catch {
+            case NonFatal(e) =>
+                log.warn("Ignoring the corrupted topology snapshot {}",
+                         path, e)
+                loaded.clear()
+        }
+    }
+
+    /** Removes an object from the snapshot loaded at startup, and returns
+      * the decoded object, or null if the snapshot does not contain it. */
+    private def take[T](key: Key, clazz: Class[T]): T = loaded.synchronized {
+        // The buffer is read under the same lock that unmaps it, since
+        // reading an unmapped buffer crashes the JVM.
+        val map = buffer
+        val entry = loaded.remove(key)
+        if ((entry eq null) || (map eq null)) {
+            return null.asInstanceOf[T]
+        }
+        try {
+            val data = new Array[Byte](entry.length)
+            val view = map.duplicate()
+            view.position(entry.offset)
+            view.get(data)
+            val prototype = clazz.getMethod("getDefaultInstance")
+                                 .invoke(null).asInstanceOf[Message]
+            prototype.getParserForType.parseFrom(data).asInstanceOf[T]
+        } catch {
+            case NonFatal(e) =>
+                log.warn("Failed to decode {}/{} from the topology snapshot",
+                         clazz.getSimpleName, key.id, e)
+                null.asInstanceOf[T]
+        } finally {
+            if (loaded.isEmpty) {
+                unmap()
+            }
+        }
+    }
+
+    /** Discards the objects not served from the snapshot loaded at startup,
+      * and unmaps the snapshot file. */
+    private def unmap(): Unit = loaded.synchronized {
+        val map = buffer
+        if (map eq null) {
+            return
+        }
+        buffer = null
+        if (!loaded.isEmpty) {
+            log.debug("Discarding {} objects not requested from the " +
+                      "topology snapshot", Int.box(loaded.size))
+            loaded.clear()
+        }
+        if (!release(map)) {
+            log.debug("Topology snapshot file is unmapped when the buffer " +
+                      "is garbage collected")
+        }
+    }
+
+    private def acquire(key: Key): Unit = objects.synchronized {
+        val recorded = objects.get(key)
+        if (recorded eq null) objects.put(key, new Recorded(null, 1))
+        else recorded.refs += 1
+    }
+
+    private def record(key: Key, message: Message): Unit = objects.synchronized {
+        val recorded = objects.get(key)
+        if (recorded ne null) {
+            recorded.message = message
+            dirty = true
+        }
+    }
+
+    private def release(key: Key): Unit = objects.synchronized {
+        val recorded = objects.get(key)
+        if (recorded ne null) {
+            recorded.refs -= 1
+            if (recorded.refs <= 0) {
+                objects.remove(key)
+                dirty = true
+            }
+        }
+    }
+
+    private def forget(key: Key): Unit = objects.synchronized {
+        if (objects.remove(key) ne null) {
+            dirty = true
+        }
+    }
+
+}
@@ -35,7 +35,7 @@ final class TunnelZoneMapper(id: UUID, vt: VirtualTopology, metricRegistry: Metr
     override def logSource = s"org.midonet.devices.tunnelzone.tunnelzone-$id"
 
     protected override val observable =
-        vt.store.observable(classOf[TunnelZone], id)
+        vt.storeObservable(classOf[TunnelZone], id)
             .map[SimTunnelZone](
                 makeFunc1(ZoomConvert.fromProto(_, classOf[SimTunnelZone])))
             .observeOn(vt.vtScheduler)
@@ -194,6 +194,9 @@ class VirtualToPhysicalMapper(backend: MidonetBackend,
         new ContainerService(vt, hostId, containersExecutor, ioExecutor,
                              reflections)
 
+    private val prefetcher =
+        if (vt.config.topologyPrefetch) new TopologyPrefetcher(hostId) else null
+
     private val activePorts = new ConcurrentHashMap[UUID, Boolean]
     private val portsActiveSubject = PublishSubject.create[LocalPortActive]
 
@@ -220,11 +223,20 @@ class VirtualToPhysicalMapper(backend: MidonetBackend,
                 doStop()
                 return
         }
+        if (prefetcher ne null) {
+            prefetcher.start()
+        }
 
         notifyStarted()
     }
 
     override def doStop(): Unit = {
+        if (prefetcher ne null) {
+            prefetcher.stop()
+        }
+        if (vt.snapshot ne null) {
+            vt.snapshot.close()
+        }
         clearPortsActive().await()
 
         try {
@@ -15,19 +15,20 @@
  */
 package org.midonet.midolman.topology
 
+import java.nio.file.Paths
 import java.util.UUID
-import java.util.concurrent.{ConcurrentHashMap, ExecutorService}
+import java.util.concurrent.{ConcurrentHashMap, Executor, ExecutorService}
 
-import scala.collection.mutable
+import scala.collection.concurrent.TrieMap
 import scala.concurrent.{Future, Promise}
 import scala.reflect._
 import scala.util.control.NonFatal
 
 import com.codahale.metrics.{Gauge, MetricRegistry}
 import com.google.common.annotations.VisibleForTesting
-import rx.Observable
 import rx.Observable.OnSubscribe
 import rx.schedulers.Schedulers
+import rx.{Observable, Scheduler}
 import rx.subjects.Subject
 
 import org.midonet.cluster.backend.zookeeper.ZkConnectionAwareWatcher
@@ -60,6 +61,50 @@ object VirtualTopology extends MidolmanLogging {
 
     case class Key(tag: ClassTag[_], id: UUID)
 
+    /** The device types whose mappers may run on any partition of the
+      * virtual topology. The remaining mappers schedule work on the virtual
+      * topology thread from outside their device streams, and always run on
+      * the first partition. */
+    private val partitionedTags = Set[ClassTag[_]](
+        classTag[Bridge], classTag[BridgePort], classTag[Chain],
+        classTag[Host], classTag[IPAddrGroup], classTag[LoadBalancer],
+        classTag[Mirror], classTag[Pool], classTag[Port], classTag[PortGroup],
+        classTag[Router], classTag[RouterPort], classTag[TunnelZone],
+        classTag[VxLanPort])
+
+    /**
+     * A partition of the virtual topology: a single-threaded executor that
+     * runs the device mappers assigned to it. Tasks executed by a partition
+     * record it as the current partition of the thread, which determines
+     * the thread used by the virtual topology scheduler.
+     */
+    private[topology] final class Partition(val vt: VirtualTopology,
+                                            val index: Int,
+                                            executor: ExecutorService)
+        extends Executor {
+
+        val scheduler = Schedulers.from(this)
+
+        override def execute(task: Runnable): Unit =
+            executor.execute(wrap(task))
+
+        def submit(task: Runnable): Unit = executor.submit(wrap(task))
+
+        /** Runs the given function with this partition as the current
+          * partition of the calling thread. */
+        def enter[T](f: => T): T = {
+            val previous = currentPartition.get
+            currentPartition.set(this)
+            try f finally currentPartition.set(previous)
+        }
+
+        private def wrap(task: Runnable): Runnable = new Runnable {
+            override def run(): Unit = enter(task.run())
+        }
+    }
+
+    private val currentPartition = new ThreadLocal[Partition]
+
     private[topology] var self: VirtualTopology = null
 
     @throws[NotYetException]
@@ -142,6 +187,16 @@ object VirtualTopology extends MidolmanLogging {
  * enclosing observable receives at least one subscriber. For more information
  * on the [[DeviceMapper]], see its ScalaDoc.
  *
+ * The device mappers run on one or more partitions, which are single-threaded
+ * executors: the `vtExecutor` and the optional `mapperExecutors`. A device is
+ * assigned to a partition by the hash of its identifier, such that mappers of
+ * different devices build in parallel, while each mapper still processes its
+ * notifications on a single thread. The `vtScheduler` schedules on the
+ * partition of the calling thread, or of the mapper being created, and
+ * device observables requested from a mapper are observed on the partition
+ * of the requesting mapper. Mappers hand off their devices through the
+ * concurrent device map.
+ *
  * To improve lookup performance, simulation devices are cached by the device
  * observables in a complementary map. Cached copies are updated for every
  * device notification from storage, and cleared when the device stream
@@ -172,14 +227,30 @@ class VirtualTopology(
         val metricRegistry: MetricRegistry,
         val vtExecutor: ExecutorService,
         vtExecutorCheck: () => Boolean,
-        ioExecutor: ExecutorService)
+        ioExecutor: ExecutorService,
+        mapperExecutors: Seq[ExecutorService] = Seq.empty)
     extends MidolmanLogging {
 
     import VirtualTopology._
 
     override def logSource = "org.midonet.devices.devices-service"
 
-    private[topology] val vtScheduler = Schedulers.from(vtExecutor)
+    private val partitions: Array[Partition] =
+        (vtExecutor +: mapperExecutors).zipWithIndex.map {
+            case (executor, index) => new Partition(this, index, executor)
+        }.toArray
+
+    /** A scheduler for the partition of the calling thread, or for the
+      * virtual topology thread if the calling thread does not belong to a
+      * partition. */
+    private[topology] val vtScheduler: Scheduler = new Scheduler {
+        override def createWorker(): Scheduler.Worker =
+            callerPartition.scheduler.createWorker()
+    }
+
+    /** The window in milliseconds during which the updates of a device are
+      * coalesced, or zero if disabled. */
+    private[topology] val coalescingWindow = config.topologyCoalescingWindow
 
     private[topology] val devices =
         new ConcurrentHashMap[UUID, Device]()
@@ -196,7 +267,7 @@ class VirtualTopology(
         MetricRegistry.name(this.getClass.getName, "observables"),
         new Gauge[Int] { override def getValue: Int = observables.size })
 
-    private val traceChains = mutable.Map[UUID,Subject[Chain,Chain]]()
+    private val traceChains = TrieMap[UUID,Subject[Chain,Chain]]()
 
     private val factories = Map[ClassTag[_], DeviceFactory](
         classTag[BgpPort] -> (new BgpPortMapper(_, this)),
@@ -222,15 +293,59 @@ class VirtualTopology(
 
     def store = backend.store
 
+    /** The local snapshot of the topology objects, or null if disabled. */
+    private[midolman] val snapshot =
+        if (config.topologySnapshot.isEmpty) null
+        else new TopologySnapshot(Paths.get(config.topologySnapshot),
+                                  config.topologySnapshotInterval,
+                                  config.topologySnapshotWarmUp)
+
+    /** Returns the storage observable for the given object, which starts
+      * with the object from the topology snapshot, when available. */
+    private[topology] def storeObservable[T](clazz: Class[T],
+                                             id: UUID): Observable[T] = {
+        if (snapshot eq null) store.observable(clazz, id)
+        else snapshot.observable(clazz, id, store.observable(clazz, id))
+    }
+
     def stateStore = backend.stateStore
 
     def stateTables = backend.stateTableStore
 
+    /** Returns the partition running the mapper for the given device. */
+    private[topology] def partitionOf(key: Key): Partition = {
+        if (partitions.length == 1 || !partitionedTags.contains(key.tag))
+            partitions(0)
+        else
+            partitions((key.id.hashCode & Int.MaxValue) % partitions.length)
+    }
+
+    /** Returns the partition of the calling thread, or the first partition
+      * if the thread does not belong to this virtual topology. */
+    private[topology] def callerPartition: Partition = {
+        val partition = currentPartition.get
+        if ((partition ne null) && (partition.vt eq this)) partition
+        else partitions(0)
+    }
+
     private def observableOf[D <: Device](key: Key): Observable[D] = {
+        val caller = currentPartition.get
+        val observable = deviceObservableOf[D](key)
+        if ((caller ne null) && (caller.vt eq this) &&
+            (caller ne partitionOf(key))) {
+            observable.observeOn(caller.scheduler)
+        } else {
+            observable
+        }
+    }
+
+    private def deviceObservableOf[D <: Device](key: Key): Observable[D] = {
         var observable = observables get key
         if (observable eq null) {
+            val partition = partitionOf(key)
             observable = factories get key.tag match {
-                case Some(factory) => Observable.create(factory(key.id))
+                case Some(factory) =>
+                    Observable.create(partition.enter(factory(key.id)))
                 case None =>
                     throw new RuntimeException(s"Unknown factory for ${key.tag}")
             }
@@ -243,7 +358,7 @@ class VirtualTopology(
                   .onErrorResumeNext(makeFunc1((t: Throwable) => t match {
             case DeviceMapper.MapperClosedException =>
                 observables.remove(key, observable)
-                observableOf(key)
+                deviceObservableOf(key)
             case e: Throwable => Observable.error(e)
         }))
     }
@@ -255,7 +370,7 @@ class VirtualTopology(
 
     /** Safely executes a task on the virtual topology thread. */
     private[topology] def executeVt(task: => Unit) = {
-        vtExecutor.execute(makeRunnable {
+        partitions(0).execute(makeRunnable {
             try {
                 task
             } catch {
@@ -282,12 +397,24 @@ class VirtualTopology(
      */
     @throws[DeviceMapperException]
     @inline
-    private[topology] def assertThread(): Unit = {
-        if (!vtExecutorCheck()) {
+    private[topology] def assertThread(): Unit = assertThread(partitions(0))
+
+    /**
+     * Checks that this method is executed on the thread of the given
+     * partition. A thread that is not running a partition task may only
+     * pass for the first partition, if it is the virtual topology thread.
+     */
+    @throws[DeviceMapperException]
+    private[topology] def assertThread(partition: Partition): Unit = {
+        val current = currentPartition.get
+        val valid =
+            if ((current ne null) && (current.vt eq this)) current eq partition
+            else partition.index == 0 && vtExecutorCheck()
+        if (!valid) {
             val curThread = Thread.currentThread()
             throw new DeviceMapperException(
-                s"Call expected on vtExecutor thread but received on " +
-                s"${curThread.getId} - ${curThread.getName}")
+                s"Call expected on partition ${partition.index} thread but " +
+                s"received on ${curThread.getId} - ${curThread.getName}")
         }
     }
 
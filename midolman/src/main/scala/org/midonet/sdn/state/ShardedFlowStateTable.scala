@@ -23,7 +23,7 @@ import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.util.collection.Reducer
-import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
+import org.midonet.util.concurrent.{CompactExpirationMap, ExpirationMap, NanoClock, TimedExpirationMap}
 
 object ShardedFlowStateTable {
     def create[K <: IdleExpiration, V >: Null](): ShardedFlowStateTable[K, V] =
@@ -31,6 +31,17 @@ object ShardedFlowStateTable {
 
     def create[K <: IdleExpiration, V >: Null](clock: NanoClock):
             ShardedFlowStateTable[K, V] = new ShardedFlowStateTable[K, V](clock)
+
+    def create[K <: IdleExpiration, V >: Null](clock: NanoClock,
+                                               partitioned: Boolean):
+            ShardedFlowStateTable[K, V] =
+        new ShardedFlowStateTable[K, V](clock, partitioned)
+
+    def create[K <: IdleExpiration, V >: Null](
+            clock: NanoClock, partitioned: Boolean,
+            codec: CompactExpirationMap.Codec[K, V]):
+            ShardedFlowStateTable[K, V] =
+        new ShardedFlowStateTable[K, V](clock, partitioned, codec)
 }
 
 /**
@@ -52,9 +63,38 @@ object ShardedFlowStateTable {
  *
  * unref() calls may require coordination, but they are meant to happen in an
  * external thread or pool, not a shard-owning thread.
+ *
+ * PARTITIONED MODE:
+ *
+ * Scanning all the shards on a miss costs a lookup per shard, and thus per
+ * simulation thread. When the table is partitioned, every key is owned by
+ * the shard chosen by the hash of the key, and all the operations on a key,
+ * from any shard, go to the owner shard only: a lookup is a single probe.
+ *
+ * Writes to a key owned by another shard are handed off directly to the
+ * owner's map, which supports concurrent writers, so that they are visible
+ * to all threads as soon as they complete. Expiring idle entries is still
+ * done by each thread on its own shard, so the keys a thread writes may be
+ * expired by another thread. Because the state received from peers is
+ * delivered to every thread, touch() is only applied by the owner shard.
+ *
+ * All shards must be added before the table is used.
+ *
+ * COMPACT MODE:
+ *
+ * When the table is given a codec for its keys and values, the shards store
+ * their entries in a [[CompactExpirationMap]], which encodes them in
+ * primitive arrays instead of holding several objects per entry. This
+ * reduces the memory and GC cost of tables with millions of entries, at the
+ * price of decoding the keys and values when they are read.
  */
 class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
-        (val clock: NanoClock = NanoClock.DEFAULT) extends FlowStateTable[K, V] {
+        (val clock: NanoClock = NanoClock.DEFAULT,
+         val partitioned: Boolean = false,
+         codec: CompactExpirationMap.Codec[K, V] = null)
+    extends FlowStateTable[K, V] {
+
+    def this(clock: NanoClock) = this(clock, false)
 
     private val shards = new ArrayList[FlowStateShard]()
     private val SHARD_NONE: Int = -1
@@ -68,6 +108,12 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         s
     }
 
+    /**
+     * Returns the shard that owns the given key in partitioned mode.
+     */
+    private def ownerOf(key: K): FlowStateShard =
+        shards.get((key.hashCode & Int.MaxValue) % shards.size)
+
     /**
      * Fetches a the value associated with a key, skipping the given shard
      * index.
@@ -90,9 +136,13 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
 
     override def putAndRef(key: K, value: V): V = throw new IllegalArgumentException
 
-    override def get(key: K): V = get(key, SHARD_NONE)
+    override def get(key: K): V =
+        if (partitioned) ownerOf(key).shallowGet(key)
+        else get(key, SHARD_NONE)
 
     override def ref(key: K): V = {
+        if (partitioned)
+            return ownerOf(key).ref(key)
         var i = 0
         while (i < shards.size) {
             val v = shards.get(i).ref(key)
@@ -104,6 +154,10 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     }
 
     override def touch(key: K, value: V) {
+        if (partitioned) {
+            ownerOf(key).touch(key, value)
+            return
+        }
         var i: Int = 0
         while (i < shards.size) {
             shards.get(i).touch(key, value)
@@ -112,6 +166,8 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     }
 
     override def getRefCount(key: K): Int = {
+        if (partitioned)
+            return ownerOf(key).getRefCount(key)
         var count = 0
         var i = 0
         while (i < shards.size) {
@@ -122,6 +178,10 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     }
 
     override def unref(key: K) {
+        if (partitioned) {
+            ownerOf(key).unref(key)
+            return
+        }
         var i: Int = 0
         while (i < shards.size) {
             val v: V = shards.get(i).shallowGet(key)
@@ -163,40 +223,52 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
      * A shard within a ShardedFlowStateTable.
      *
      * It stores entries locally but forwards queries to the parent table for
-     * aggregation. Reference counting is also delegated on the parent.
+     * aggregation. Reference counting is also delegated on the parent. In
+     * partitioned mode, all operations go to the shard that owns the key.
      */
     class FlowStateShard(workerId: Int, log: Logger) extends FlowStateTable[K, V] {
-        private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+        private val map: ExpirationMap[K, V] =
+            if (codec eq null)
+                new TimedExpirationMap[K, V](log, _.expiresAfter)
+            else
+                new CompactExpirationMap[K, V](codec, log, _.expiresAfter)
+
+        @inline private def owner(key: K): FlowStateShard =
+            if (partitioned) ownerOf(key) else this
 
         override def putAndRef(key: K, value: V): V =
-            map.putAndRef(key, value)
+            owner(key).map.putAndRef(key, value)
 
-        override def get(key: K) = {
-            val v = map.get(key)
-            if (v != null)
-                v
-            else
-                ShardedFlowStateTable.this.get(key, workerId)
-        }
+        override def get(key: K) =
+            if (partitioned) {
+                ownerOf(key).map.get(key)
+            } else {
+                val v = map.get(key)
+                if (v != null)
+                    v
+                else
+                    ShardedFlowStateTable.this.get(key, workerId)
+            }
 
         def shallowGet(key: K): V =
             map.get(key)
 
         override def ref(key: K): V =
-            map.ref(key)
+            owner(key).map.ref(key)
 
         override def getRefCount(key: K): Int =
-            map.getRefCount(key)
+            owner(key).map.getRefCount(key)
 
-        override def touch(key: K, value: V): Unit = {
-            putAndRef(key, value)
-            unref(key)
-        }
+        override def touch(key: K, value: V): Unit =
+            if (!partitioned || (ownerOf(key) eq this)) {
+                map.putAndRef(key, value)
+                map.unref(key, tickMillis)
+            }
 
         private def tickMillis = TimeUnit.NANOSECONDS.toMillis(clock.tick)
 
         override def unref(key: K) =
-            map.unref(key, tickMillis)
+            owner(key).map.unref(key, tickMillis)
 
         override def fold[U](seed: U, func: Reducer[K, V, U]): U =
             map.fold(seed, func)
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman
+
+import java.util.{ArrayList, HashMap, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule, RuleResult}
+import org.midonet.midolman.simulation.{Chain, PacketContext}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets._
+import org.midonet.util.Range
+
+/**
+ * Compares applying a chain rule by rule with applying its compiled
+ * classifier. The chain resembles the ingress chain of a port with
+ * security groups: rules accept IPv4 TCP, UDP and ICMP, and IPv6 TCP
+ * traffic from a source subnet to a destination subnet and port range. The
+ * simulated IPv4 TCP packet only matches the last TCP rule, so most of the
+ * rules differ from it by their ethertype, protocol, destination subnet or
+ * destination port.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 5)
+@State(Scope.Benchmark)
+class ChainBenchmark {
+
+    @Param(Array("10", "100", "1000"))
+    var rules: Int = _
+
+    @Param(Array("false", "true"))
+    var compiled: Boolean = _
+
+    var chain: Chain = _
+    var context: PacketContext = _
+
+    private val protocols = Array(TCP.PROTOCOL_NUMBER, UDP.PROTOCOL_NUMBER,
+                                  ICMP.PROTOCOL_NUMBER, TCP.PROTOCOL_NUMBER)
+
+    @JmhSetup
+    def setup(): Unit = {
+        val chainId = UUID.randomUUID()
+        val ruleList = new ArrayList[Rule](rules)
+        for (index <- 0 until rules) {
+            val cond = new Condition()
+            val proto = protocols(index % protocols.length)
+            cond.nwProto = proto
+            if (index % 10 == 9) {
+                cond.etherType = IPv6.ETHERTYPE.toInt
+                cond.nwSrcIp =
+                    new IPv6Subnet(s"2001:db8:$index:0:0:0:0:0", 48)
+            } else {
+                cond.etherType = IPv4.ETHERTYPE.toInt
+                cond.nwSrcIp = new IPv4Subnet(s"10.${index % 256}.0.0", 16)
+                cond.nwDstIp = new IPv4Subnet(s"192.168.${index % 4}.0", 24)
+            }
+            if (proto != ICMP.PROTOCOL_NUMBER) {
+                cond.tpDst = new Range[Integer](1024 + 16 * index,
+                                                1024 + 16 * index + 15)
+            }
+            val rule = new LiteralRule(cond, RuleResult.Action.ACCEPT, chainId)
+            rule.id = UUID.randomUUID()
+            ruleList.add(rule)
+        }
+        val last = (rules - 1) - ((rules - 1) % protocols.length)
+        chain = new Chain(chainId, ruleList, new HashMap[UUID, Chain](),
+                          "benchmark")
+        if (compiled)
+            chain.compile()
+
+        val fmatch = new FlowMatch()
+        fmatch.setEtherType(IPv4.ETHERTYPE)
+        fmatch.setNetworkProto(TCP.PROTOCOL_NUMBER)
+        fmatch.setNetworkSrc(IPv4Addr.fromString(s"10.${last % 256}.0.1"))
+        fmatch.setNetworkDst(IPv4Addr.fromString(s"192.168.${last % 4}.2"))
+        fmatch.setSrcPort(5003)
+        fmatch.setDstPort(1024 + 16 * last)
+        context = new PacketContext(1, null, fmatch)
+    }
+
+    @Benchmark
+    def benchmarkChain(): RuleResult = {
+        context.clear()
+        context.prepareForSimulation()
+        chain.process(context)
+    }
+}
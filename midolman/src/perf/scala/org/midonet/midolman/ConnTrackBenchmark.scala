@@ -35,7 +35,8 @@ import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.odp.flows.FlowActionOutput
 import org.midonet.packets.{IPv4Addr, MAC}
 import org.midonet.packets.util.PacketBuilder._
-import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
+import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction, IdleExpiration, ShardedFlowStateTable}
+import org.midonet.util.concurrent.NanoClock
 
 @BenchmarkMode(Array(Mode.AverageTime))
 @OutputTimeUnit(TimeUnit.MICROSECONDS)
@@ -59,12 +60,20 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
         override def tunnelRecircOutputAction: FlowActionOutput = null
         override def hostRecircOutputAction: FlowActionOutput = null
     }
-    val conntrackTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue].addShard()
-    val natTable = new ShardedFlowStateTable[NatKey, NatBinding].addShard()
-    val traceTable = new ShardedFlowStateTable[TraceKey, TraceContext].addShard()
-    implicit val conntrackTx = new FlowStateTransaction(conntrackTable)
-    implicit val natTx = new FlowStateTransaction(natTable)
-    implicit val traceTx = new FlowStateTransaction(traceTable)
+
+    // The number of simulation threads, each owning a shard of the tables.
+    @Param(Array("1", "8", "32"))
+    var shards: Int = _
+
+    @Param(Array("false", "true"))
+    var partitioned: Boolean = _
+
+    var conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var natTable: FlowStateTable[NatKey, NatBinding] = _
+    var traceTable: FlowStateTable[TraceKey, TraceContext] = _
+    implicit var conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue] = _
+    implicit var natTx: FlowStateTransaction[NatKey, NatBinding] = _
+    implicit var traceTx: FlowStateTransaction[TraceKey, TraceContext] = _
 
     val packet = { { eth addr leftMac -> rightMac } <<
                    { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
@@ -73,8 +82,26 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
     var replicator: FlowStateReplicator = _
     var packetContext: PacketContext = _
 
+    private def shardedTable[K <: IdleExpiration, V >: Null]
+            : FlowStateTable[K, V] = {
+        val table = new ShardedFlowStateTable[K, V](NanoClock.DEFAULT,
+                                                    partitioned)
+        val shard = table.addShard()
+        for (_ <- 1 until shards) {
+            table.addShard()
+        }
+        shard
+    }
+
     @JmhSetup
     def setup(): Unit = {
+        conntrackTable = shardedTable[ConnTrackKey, ConnTrackValue]
+        natTable = shardedTable[NatKey, NatBinding]
+        traceTable = shardedTable[TraceKey, TraceContext]
+        conntrackTx = new FlowStateTransaction(conntrackTable)
+        natTx = new FlowStateTransaction(natTable)
+        traceTx = new FlowStateTransaction(traceTable)
+
         newHost("myself", hostId)
         val clusterBridgeId: UUID = newBridge("bridge")
         leftPortId = newBridgePort(clusterBridgeId)
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.layer3
+
+import java.util.{ArrayList, UUID}
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations._
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.layer3.Route.NextHop
+
+/**
+ * Compares route lookups in the legacy [[RoutingTable]] trie with lookups in
+ * the [[CompressedRoutingTable]], for tables resembling BGP-learned routes.
+ * The memory used by the compressed trie is printed at the end of every
+ * trial.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1)
+@State(Scope.Benchmark)
+class RoutingTableBenchmark {
+
+    @Param(Array("1000", "10000", "50000"))
+    var routes: Int = _
+
+    private final val addresses = 4096
+
+    private val random = new Random(1)
+    private var legacyTable: RoutingTable = _
+    private var compressedTable: CompressedRoutingTable = _
+    private var destinations: Array[Int] = _
+    private var index = 0
+
+    @Setup
+    def setup(): Unit = {
+        val list = new ArrayList[Route](routes)
+        legacyTable = new RoutingTable()
+        list.add(new Route(0, 0, 0, 0, NextHop.PORT, UUID.randomUUID(), 0,
+                           Route.DEFAULT_WEIGHT, null, null))
+        for (_ <- 1 until routes) {
+            // Mostly /24 prefixes, with some shorter aggregates.
+            val length = if (random.nextInt(4) == 0) 16 + random.nextInt(8)
+                         else 24
+            val route = new Route(0, 0, random.nextInt(), length, NextHop.PORT,
+                                  UUID.randomUUID(), 0, Route.DEFAULT_WEIGHT,
+                                  null, null)
+            list.add(route)
+        }
+        for (i <- 0 until list.size()) {
+            legacyTable.addRoute(list.get(i))
+        }
+        compressedTable = new CompressedRoutingTable(list)
+        destinations = Array.fill(addresses) {
+            val route = list.get(random.nextInt(list.size()))
+            route.dstNetworkAddr ^ (random.nextInt() & 0xff)
+        }
+    }
+
+    @TearDown
+    def teardown(): Unit = {
+        println(s"$compressedTable: ${compressedTable.trieSize() / 1024} " +
+                "KB in trie nodes")
+    }
+
+    private def nextDestination(): Int = {
+        index = (index + 1) & (addresses - 1)
+        destinations(index)
+    }
+
+    @Benchmark
+    def lookupLegacy(): java.util.List[Route] =
+        legacyTable.lookup(0x0a000001, nextDestination(), NOPLogger.NOP_LOGGER)
+
+    @Benchmark
+    def lookupCompressed(): java.util.List[Route] =
+        compressedTable.lookup(0x0a000001, nextDestination(),
+                               NOPLogger.NOP_LOGGER)
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.typesafe.scalalogging.Logger
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.NotYetException
+import org.midonet.midolman.rules.NatTarget
+import org.midonet.midolman.state.NatState.NatBinding
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.concurrent.MockClock
+
+/**
+ * Measures the allocation and release of NAT bindings in a single leased
+ * block, with a given number of outstanding bindings. The block is
+ * oversubscribed when there are more bindings than ports in the block.
+ *
+ * The `leaseBlock` benchmark creates an empty leased block: run it with the
+ * GC profiler (`-prof gc`) to obtain the heap allocated per leased block in
+ * `gc.alloc.rate.norm`.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class NatLeaserBenchmark {
+
+    private val deviceId = UUID.randomUUID()
+    private val targetIp = IPv4Addr("10.0.1.1")
+    // A port range matching a single block.
+    private val natTargets = Array(new NatTarget(
+        targetIp.addr, targetIp.addr, 157 * NatBlock.BLOCK_SIZE,
+        158 * NatBlock.BLOCK_SIZE - 1))
+
+    @Param(Array("16", "64", "1024"))
+    var outstanding: Int = _
+
+    var leaser: NatLeaser = _
+    var destinations: Array[IPv4Addr] = _
+    var bindings: Array[NatBinding] = _
+    var index = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        leaser = new NatLeaser {
+            override val log = Logger(NOPLogger.NOP_LOGGER)
+            override val allocator = new MockNatBlockAllocator
+            override val clock = new MockClock
+        }
+        destinations = Array.fill(outstanding)(IPv4Addr.random)
+        bindings = new Array[NatBinding](outstanding)
+        try leaser.allocateNatBinding(deviceId, destinations(0), 80, natTargets)
+        catch { case e: NotYetException => }
+        for (i <- 0 until outstanding) {
+            bindings(i) = leaser.allocateNatBinding(deviceId, destinations(i),
+                                                    80, natTargets)
+        }
+    }
+
+    @Benchmark
+    def allocateAndFree(): NatBinding = {
+        val i = index
+        index = (index + 1) % outstanding
+        leaser.freeNatBinding(deviceId, destinations(i), 80, bindings(i))
+        bindings(i) = leaser.allocateNatBinding(deviceId, destinations(i), 80,
+                                                natTargets)
+        bindings(i)
+    }
+
+    @Benchmark
+    def leaseBlock(): NatLeaser.LeasedBlock = {
+        new NatLeaser.LeasedBlock(new NatBlock(deviceId, targetIp, 157))
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.{Executors, ScheduledExecutorService, TimeUnit}
+
+import scala.util.Random
+
+import org.apache.zookeeper.CreateMode
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.backend.Directory
+import org.midonet.midolman.state.ReplicatedMap.Publisher
+
+object ReplicatedMapBenchmark {
+
+    class StringMap(dir: Directory) extends ReplicatedMap[String, String](dir) {
+        protected override def encodeKey(key: String): String = key
+        protected override def decodeKey(str: String): String = str
+        protected override def encodeValue(value: String): String = value
+        protected override def decodeValue(str: String): String = str
+    }
+
+}
+
+/**
+ * Measures the updates of a replicated map with a large number of entries,
+ * stored in a mock directory, as in `TestReplicatedMap`.
+ *
+ * The `localUpdate` benchmark measures the latency of a put by the local
+ * client. Without the local-first mode, the mock directory notifies the map
+ * synchronously, such that the latency includes processing the change. The
+ * `remoteUpdate` benchmark measures processing the changes made by another
+ * client, which adds and removes an entry. With the change log, the other
+ * client also records its changes, and the map reads only the new records
+ * instead of all the entries.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class ReplicatedMapBenchmark {
+
+    import ReplicatedMapBenchmark._
+
+    @Param(Array("100000"))
+    var entries: Int = _
+
+    @Param(Array("false", "true"))
+    var localFirst: Boolean = _
+
+    @Param(Array("false", "true"))
+    var changeLog: Boolean = _
+
+    var directory: Directory = _
+    var logDirectory: Directory = _
+    var map: StringMap = _
+    var executor: ScheduledExecutorService = _
+    val random = new Random()
+    var counter = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val root = new MockDirectory()
+        root.add("/map", null, CreateMode.PERSISTENT)
+        directory = root.getSubDirectory("/map")
+        for (index <- 0 until entries) {
+            directory.add(s"/key$index,value$index,", null,
+                          CreateMode.PERSISTENT_SEQUENTIAL)
+        }
+        map = new StringMap(directory)
+        if (changeLog) {
+            root.add("/map_log", null, CreateMode.PERSISTENT)
+            logDirectory = root.getSubDirectory("/map_log")
+            map.setChangeLog(logDirectory)
+        }
+        if (localFirst) {
+            executor = Executors.newSingleThreadScheduledExecutor()
+            map.setPublisher(new Publisher(executor, 100, 128))
+        }
+        map.start()
+    }
+
+    @TearDown
+    def teardown(): Unit = {
+        map.stop()
+        if (executor ne null) {
+            executor.shutdown()
+        }
+    }
+
+    @Benchmark
+    def localUpdate(): Unit = {
+        counter += 1
+        map.put(s"key${random.nextInt(entries)}", s"local$counter")
+    }
+
+    @Benchmark
+    def remoteUpdate(): Unit = {
+        val path = directory.add("/remote,value,", null,
+                                 CreateMode.PERSISTENT_SEQUENTIAL)
+        record(s"+${path.substring(path.lastIndexOf('/') + 1)}")
+        directory.delete(path)
+        record(s"-${path.substring(path.lastIndexOf('/') + 1)}")
+    }
+
+    private def record(change: String): Unit = {
+        if (changeLog) {
+            logDirectory.add("/r", change.getBytes(StandardCharsets.UTF_8),
+                             CreateMode.PERSISTENT_SEQUENTIAL)
+            counter += 1
+            if (counter % ReplicatedMap.CHANGE_LOG_TRIM_INTERVAL == 0) {
+                map.trim()
+            }
+        }
+    }
+}
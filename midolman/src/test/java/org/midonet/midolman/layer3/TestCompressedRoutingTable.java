@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+
+public class TestCompressedRoutingTable {
+
+    private static Route route(int src, int srcLength, int dst, int dstLength,
+                               int weight) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        CompressedRoutingTable table =
+            new CompressedRoutingTable(new ArrayList<Route>());
+        Assert.assertTrue(table.lookup(0x0a010108, 0x0a010106,
+                                       LoggerFactory.getLogger("test")).isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixWithSourceFallback() {
+        Route rt1 = route(0, 0, 0, 0, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt3 = route(0xc0a80000, 16, 0x0a140085, 25, 100);
+        Route rt4 = route(0, 0, 0x0a140096, 32, 100);
+        Route rt5 = route(0, 0, 0x0a140096, 32, 50);
+        List<Route> routes = new ArrayList<>();
+        routes.add(rt1);
+        routes.add(rt2);
+        routes.add(rt3);
+        routes.add(rt4);
+        routes.add(rt5);
+        CompressedRoutingTable table = new CompressedRoutingTable(routes);
+        org.slf4j.Logger log = LoggerFactory.getLogger("test");
+
+        Assert.assertEquals(1, table.lookup(0xc0a80101, 0x0a140081, log).size());
+        Assert.assertTrue(table.lookup(0xc0a80101, 0x0a140081, log).contains(rt3));
+        // The source doesn't match rt3, so it falls back to the /8.
+        Assert.assertTrue(table.lookup(0x01020304, 0x0a140081, log).contains(rt2));
+        // Only the route with the minimum weight is returned.
+        List<Route> matches = table.lookup(0x01020304, 0x0a140096, log);
+        Assert.assertEquals(1, matches.size());
+        Assert.assertTrue(matches.contains(rt5));
+        Assert.assertTrue(table.lookup(0x01020304, 0x0b000001, log).contains(rt1));
+    }
+
+    @Test
+    public void testMatchesLegacyRoutingTable() {
+        Random random = new Random(1);
+        RoutingTable legacy = new RoutingTable();
+        List<Route> routes = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // Use a small address space such that prefixes overlap.
+            int dst = 0x0a000000 | (random.nextInt() & 0x00ffffff);
+            int dstLength = 8 + random.nextInt(25);
+            int srcLength = random.nextInt(4) == 0 ? 8 + random.nextInt(9) : 0;
+            Route route = route(random.nextInt(), srcLength, dst, dstLength,
+                                100 + 10 * random.nextInt(3));
+            routes.add(route);
+            legacy.addRoute(route);
+        }
+        CompressedRoutingTable table = new CompressedRoutingTable(routes);
+        org.slf4j.Logger log = LoggerFactory.getLogger("test");
+
+        for (int i = 0; i < 20000; i++) {
+            int src = random.nextInt();
+            int dst = 0x0a000000 | (random.nextInt() & 0x00ffffff);
+            Set<Route> expected = new HashSet<>(legacy.lookup(src, dst));
+            Set<Route> actual = new HashSet<>(table.lookup(src, dst, log));
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testScatteredPrefixesUseCompressedNodes() {
+        Random random = new Random(1);
+        List<Route> routes = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            routes.add(route(0, 0, random.nextInt() & 0xffffff00, 24, 100));
+        }
+        CompressedRoutingTable table = new CompressedRoutingTable(routes);
+        org.slf4j.Logger log = LoggerFactory.getLogger("test");
+
+        // Uncompressed 256-entry nodes would take about 20 MB.
+        Assert.assertTrue(table.trieSize() < 2 * 1024 * 1024);
+        for (Route route : routes) {
+            Assert.assertTrue(table.lookup(0, route.dstNetworkAddr | 0x42, log)
+                                   .contains(route));
+        }
+    }
+}
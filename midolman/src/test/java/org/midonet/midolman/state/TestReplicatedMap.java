@@ -16,12 +16,17 @@
 
 package org.midonet.midolman.state;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs.Ids;
 import org.junit.Assert;
 
 import org.junit.Before;
@@ -29,6 +34,8 @@ import org.junit.Test;
 
 import org.midonet.cluster.backend.Directory;
 
+import static org.mockito.Mockito.mock;
+
 
 public class TestReplicatedMap {
 
@@ -119,13 +126,16 @@ public class TestReplicatedMap {
     }
 
     Directory mapDir;
+    Directory logDir;
 
     @Before
     public void setUp() throws Exception {
         Directory dir = new MockDirectory();
         dir.add("/one", null, CreateMode.PERSISTENT);
         dir.add("/one/two", null, CreateMode.PERSISTENT);
+        dir.add("/one/two_log", null, CreateMode.PERSISTENT);
         mapDir = dir.getSubDirectory("/one/two");
+        logDir = dir.getSubDirectory("/one/two_log");
     }
 
     @Test
@@ -389,4 +399,283 @@ public class TestReplicatedMap {
         expectedMap.clear();
         Assert.assertEquals(expectedMap, strMap.getMap());
     }
+
+    private ReplicatedStringMap localFirstMap(int batchSize) {
+        // The publisher does not run the scheduled publications, which are
+        // run by the test calling publish().
+        ReplicatedStringMap strMap = new ReplicatedStringMap(mapDir);
+        strMap.setPublisher(new ReplicatedMap.Publisher(
+            mock(ScheduledExecutorService.class), 0L, batchSize));
+        return strMap;
+    }
+
+    private int storedEntries() throws KeeperException, InterruptedException {
+        return mapDir.getChildren("/", null).size();
+    }
+
+    @Test
+    public void testShadowedVersionIsRestored()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = new ReplicatedStringMap(mapDir);
+        mapDir.add("/one,100,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        strMap.start();
+        String newer = mapDir.add("/one,200,", null,
+                                  CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals("200", strMap.get("one"));
+        // The older version, written by another client, is used again when
+        // the newer version is removed.
+        mapDir.delete(newer);
+        Assert.assertEquals("100", strMap.get("one"));
+        strMap.stop();
+    }
+
+    @Test
+    public void testLocalFirstPutIsPublishedLater()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = localFirstMap(10);
+        MyWatcher watcher = new MyWatcher();
+        strMap.addWatcher(watcher);
+        strMap.start();
+        Map<String, String> expectedMap = new HashMap<>();
+        expectedMap.put("one", "changed100");
+        expectedMap.put("two", "200");
+        strMap.put("one", "100");
+        strMap.put("two", "200");
+        strMap.put("one", "changed100");
+        // The updates are applied locally before they are published.
+        Assert.assertEquals(expectedMap, strMap.getMap());
+        Assert.assertEquals(expectedMap, watcher.map1);
+        Assert.assertTrue(strMap.isKeyOwner("one"));
+        Assert.assertEquals(0, storedEntries());
+        // The updates of the same key are coalesced.
+        strMap.publish();
+        Assert.assertEquals(2, storedEntries());
+        Assert.assertEquals(expectedMap, strMap.getMap());
+        Assert.assertTrue(strMap.isKeyOwner("one"));
+        // Other clients see the published entries.
+        ReplicatedStringMap otherMap = new ReplicatedStringMap(mapDir);
+        otherMap.start();
+        Assert.assertEquals(expectedMap, otherMap.getMap());
+        otherMap.stop();
+        strMap.stop();
+    }
+
+    @Test
+    public void testLocalFirstRemove()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = localFirstMap(10);
+        strMap.start();
+        strMap.put("one", "100");
+        strMap.put("two", "200");
+        strMap.publish();
+        Assert.assertEquals(2, storedEntries());
+        // A removed key that was not published is never written.
+        strMap.put("three", "300");
+        Assert.assertEquals("300", strMap.removeIfOwner("three"));
+        // A removed key that was published is deleted later.
+        Assert.assertEquals("100", strMap.removeIfOwner("one"));
+        Assert.assertNull(strMap.get("one"));
+        Assert.assertNull(strMap.get("three"));
+        Assert.assertEquals(2, storedEntries());
+        strMap.publish();
+        Assert.assertEquals(1, storedEntries());
+        Map<String, String> expectedMap = new HashMap<>();
+        expectedMap.put("two", "200");
+        Assert.assertEquals(expectedMap, strMap.getMap());
+        strMap.stop();
+    }
+
+    @Test
+    public void testLocalFirstBatchSize()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = localFirstMap(2);
+        strMap.start();
+        for (int index = 0; index < 5; index++) {
+            strMap.put(Integer.toString(index), "value");
+        }
+        Assert.assertEquals(5, strMap.getMap().size());
+        strMap.publish();
+        Assert.assertEquals(2, storedEntries());
+        strMap.publish();
+        Assert.assertEquals(4, storedEntries());
+        strMap.publish();
+        Assert.assertEquals(5, storedEntries());
+        Assert.assertEquals(5, strMap.getMap().size());
+        strMap.stop();
+    }
+
+    @Test
+    public void testLocalFirstRemoteUpdateOfPendingKey()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = localFirstMap(10);
+        strMap.start();
+        strMap.put("one", "100");
+        // A remote update does not replace the pending local entry.
+        String remote = mapDir.add("/one,200,", null,
+                                   CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals("100", strMap.get("one"));
+        // The published entry has a newer version than the remote one.
+        strMap.publish();
+        Assert.assertEquals("100", strMap.get("one"));
+        mapDir.delete(remote);
+        Assert.assertEquals("100", strMap.get("one"));
+        strMap.stop();
+    }
+
+    private ReplicatedStringMap changeLogMap() {
+        ReplicatedStringMap strMap = new ReplicatedStringMap(mapDir);
+        strMap.setChangeLog(logDir);
+        return strMap;
+    }
+
+    private int records() throws KeeperException, InterruptedException {
+        return logDir.getChildren("/", null).size();
+    }
+
+    @Test
+    public void testChangeLogIncrementalUpdates()
+            throws KeeperException, InterruptedException {
+        mapDir.add("/one,100,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        ReplicatedStringMap strMap = changeLogMap();
+        ReplicatedStringMap otherMap = changeLogMap();
+        MyWatcher watcher = new MyWatcher();
+        otherMap.addWatcher(watcher);
+        strMap.start();
+        otherMap.start();
+        // The existing entries are read when the map starts.
+        Assert.assertEquals("100", otherMap.get("one"));
+        // The changes are read from the change log.
+        strMap.put("two", "200");
+        Assert.assertEquals(1, records());
+        Assert.assertEquals("200", otherMap.get("two"));
+        Assert.assertEquals("200", watcher.map1.get("two"));
+        Assert.assertEquals("200", strMap.removeIfOwner("two"));
+        Assert.assertEquals(2, records());
+        Assert.assertNull(otherMap.get("two"));
+        Assert.assertNull(strMap.get("two"));
+        otherMap.stop();
+        strMap.stop();
+    }
+
+    @Test
+    public void testChangeLogAuditFindsUnrecordedChanges()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = changeLogMap();
+        strMap.start();
+        // A change not recorded in the change log is not seen.
+        String path = mapDir.add("/one,100,", null,
+                                 CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertNull(strMap.get("one"));
+        // The audit finds the entry.
+        strMap.audit();
+        Assert.assertEquals("100", strMap.get("one"));
+        mapDir.delete(path);
+        strMap.audit();
+        Assert.assertNull(strMap.get("one"));
+        strMap.stop();
+    }
+
+    @Test
+    public void testChangeLogRecordsAreWrittenWithTheEntries()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = changeLogMap();
+        strMap.start();
+        strMap.put("one", "100");
+        String entry = mapDir.getChildren("/", null).iterator().next();
+        // The record lists the entry with its sequence number.
+        String record = logDir.getChildren("/", null).iterator().next();
+        Assert.assertEquals(
+            "+" + entry + "\n",
+            new String(logDir.get("/" + record, null),
+                       StandardCharsets.UTF_8));
+        strMap.stop();
+    }
+
+    @Test
+    public void testChangeLogAuditFindsEntriesOfOtherWriters()
+            throws KeeperException, InterruptedException {
+        String path = mapDir.add("/one,100,", null,
+                                 CreateMode.PERSISTENT_SEQUENTIAL);
+        ReplicatedStringMap strMap = changeLogMap();
+        ReplicatedStringMap otherMap = changeLogMap();
+        strMap.start();
+        otherMap.start();
+        Assert.assertEquals("100", otherMap.get("one"));
+        // Another writer replaces the entry in a transaction without a
+        // record, such that the number of entries is unchanged.
+        mapDir.multi(Arrays.asList(
+            Op.delete(mapDir.getPath() + path, -1),
+            Op.create(mapDir.getPath() + "/one,101,", null,
+                      Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL)));
+        strMap.put("two", "200");
+        Assert.assertEquals("200", otherMap.get("two"));
+        Assert.assertEquals("100", otherMap.get("one"));
+        // The audit finds the replaced entry.
+        otherMap.audit();
+        Assert.assertEquals("101", otherMap.get("one"));
+        Assert.assertEquals("200", otherMap.get("two"));
+        // The records written after the audit are applied.
+        strMap.put("three", "300");
+        Assert.assertEquals("300", otherMap.get("three"));
+        otherMap.stop();
+        strMap.stop();
+    }
+
+    @Test
+    public void testChangeLogAuditSkipsRecordNeverCompleted()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = changeLogMap();
+        ReplicatedStringMap otherMap = changeLogMap();
+        strMap.start();
+        otherMap.start();
+        // A writer fails after writing an entry and its record, before
+        // completing the record with the name of the entry.
+        mapDir.multi(Arrays.asList(
+            Op.create(mapDir.getPath() + "/one,100,", null,
+                      Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL),
+            Op.create(logDir.getPath() + "/r",
+                      "+one,100,\n".getBytes(StandardCharsets.UTF_8),
+                      Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL)));
+        strMap.put("two", "200");
+        Assert.assertNull(otherMap.get("two"));
+        // The first audit waits for the record to be completed.
+        otherMap.audit();
+        Assert.assertNull(otherMap.get("two"));
+        // The next audit finds the same record incomplete, and reads all
+        // the entries.
+        otherMap.audit();
+        Assert.assertEquals("100", otherMap.get("one"));
+        Assert.assertEquals("200", otherMap.get("two"));
+        // The records written after the audit are applied.
+        strMap.put("three", "300");
+        Assert.assertEquals("300", otherMap.get("three"));
+        otherMap.stop();
+        strMap.stop();
+    }
+
+    @Test
+    public void testChangeLogGapIsResynchronized()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = changeLogMap();
+        ReplicatedStringMap otherMap = changeLogMap();
+        strMap.start();
+        otherMap.start();
+        int count = ReplicatedMap.CHANGE_LOG_SIZE + 10;
+        for (int index = 0; index < count; index++) {
+            strMap.put(Integer.toString(index), "value");
+        }
+        Assert.assertEquals(count, otherMap.getMap().size());
+        // The oldest records are trimmed.
+        strMap.trim();
+        Assert.assertEquals(ReplicatedMap.CHANGE_LOG_SIZE, records());
+        // A map missing records reads all the entries.
+        for (String record : logDir.getChildren("/", null)) {
+            logDir.delete("/" + record);
+        }
+        strMap.put("last", "value");
+        Assert.assertEquals(count + 1, otherMap.getMap().size());
+        Assert.assertEquals(strMap.getMap(), otherMap.getMap());
+        otherMap.stop();
+        strMap.stop();
+    }
 }
@@ -334,6 +334,80 @@ public class FlowStateTableTest {
         assertThat(table.get(keys[1]), nullValue());
     }
 
+    @SuppressWarnings("unchecked")
+    private List<FlowStateTable<TestKey, Integer>> partitionedShards() {
+        ShardedFlowStateTable<TestKey, Integer> partitioned =
+            new ShardedFlowStateTable<>(clock, true);
+        List<FlowStateTable<TestKey, Integer>> result = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            result.add((FlowStateTable)
+                    partitioned.addShard(Logger$.MODULE$.apply(NOPLogger.NOP_LOGGER)));
+        }
+        return result;
+    }
+
+    @Test
+    public void testPartitionedSetGet() {
+        List<FlowStateTable<TestKey, Integer>> partitioned = partitionedShards();
+        for (int i = 0; i < keys.length; i++) {
+            partitioned.get(i % SHARDS).putAndRef(keys[i], vals[i]);
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            for (int shard = 0; shard < SHARDS; shard++) {
+                assertThat(partitioned.get(shard).get(keys[i]),
+                           equalTo(vals[i]));
+                assertThat(partitioned.get(shard).getRefCount(keys[i]),
+                           equalTo(1));
+            }
+        }
+
+        // Each key is stored once, in its owner shard.
+        int entries = 0;
+        for (FlowStateTable<TestKey, Integer> shard : partitioned) {
+            entries += shard.fold(new HashSet<TestKey>(), new KeyReducer()).size();
+        }
+        assertThat(entries, equalTo(keys.length));
+    }
+
+    @Test
+    public void testPartitionedRefCount() {
+        List<FlowStateTable<TestKey, Integer>> partitioned = partitionedShards();
+        partitioned.get(0).putAndRef(keys[0], vals[0]);
+        partitioned.get(1).ref(keys[0]);
+        assertThat(partitioned.get(2).getRefCount(keys[0]), equalTo(2));
+
+        partitioned.get(2).unref(keys[0]);
+        partitioned.get(3).unref(keys[0]);
+        assertThat(partitioned.get(0).getRefCount(keys[0]), equalTo(0));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        for (FlowStateTable<TestKey, Integer> shard : partitioned) {
+            shard.expireIdleEntries();
+        }
+        for (FlowStateTable<TestKey, Integer> shard : partitioned) {
+            assertThat(shard.get(keys[0]), nullValue());
+        }
+    }
+
+    @Test
+    public void testPartitionedTouchIsAppliedOnce() {
+        List<FlowStateTable<TestKey, Integer>> partitioned = partitionedShards();
+        for (int i = 0; i < keys.length; i++) {
+            // State received from peers is touched by every shard.
+            for (FlowStateTable<TestKey, Integer> shard : partitioned) {
+                shard.touch(keys[i], vals[i]);
+            }
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            for (FlowStateTable<TestKey, Integer> shard : partitioned) {
+                assertThat(shard.get(keys[i]), equalTo(vals[i]));
+                assertThat(shard.getRefCount(keys[i]), equalTo(0));
+            }
+        }
+    }
+
     private void refCountTest(FlowStateTable<TestKey, Integer> cs) {
         for (TestKey key : keys) {
             cs.unref(key);
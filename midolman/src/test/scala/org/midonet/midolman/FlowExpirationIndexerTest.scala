@@ -81,6 +81,38 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
             flowExpiration.checkFlowsExpiration(clock.tick)
             removedFlows should have size 4
         }
+
+        scenario ("A flow is rescheduled") {
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            flowExpiration.registerFlow(flow)
+            flowExpiration.rescheduleFlow(
+                flow, FlowExpirationIndexer.FLOW_EXPIRATION.value * 2)
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should be (empty)
+            clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value * 2
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+        }
+
+        scenario ("Expirations in excess of the budget are deferred") {
+            var checks = List.empty[(Int, Int)]
+            val limited = new FlowAddRemover(removedFlows) with FlowExpirationIndexer {
+                override protected val flowExpirationBudget = 2
+                override protected def flowsExpired(expired: Int, deferred: Int) =
+                    checks :+= ((expired, deferred))
+            }
+            for (i <- 1 to 3)
+                limited.registerFlow(createFlow(FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION))
+
+            clock.time = FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION.value
+            limited.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 2
+            limited.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 3
+            checks should be (List((2, 1), (1, 0)))
+        }
     }
 
     feature ("Oversubscription results in removal of excess flows") {
@@ -140,6 +140,46 @@ class DatapathChannelTest extends MidolmanSpec {
                                      FlowActions.reader.deserializeFrom, actions)
         }
 
+        scenario ("Batches flow creations until the end of the batch") {
+            val batchingFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies,
+                maxPendingRequests = 1024, maxRequestSize = 2048, factory,
+                factory.selectorProvider, simBackChannel, clock,
+                maxBatchedFlows = 16)
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+            context.flowActions.addAll(actions)
+            context.flow = new ManagedFlow(null)
+            val holder = new PacketContextHolder(null, null)
+            val flowDelete = new FlowOperation(TestProbe().ref,
+                                               new ArrayObjectPool(0, _ => null),
+                                               new SpscArrayQueue(16))
+            flowDelete.reset(FlowOperation.DELETE, context.flow, retries = 0)
+            nlChannel.written.clear()
+            val written = nlChannel.packetsWritten.get()
+
+            for (seq <- 0 until 2) {
+                holder.flowCreateRef = context
+                batchingFp.onEvent(holder, seq, endOfBatch = false)
+            }
+            nlChannel.packetsWritten.get() should be (written)
+            batchingFp.tryEject(0, datapathId, context.origMatch,
+                                flowDelete) should be (false)
+
+            holder.flowCreateRef = context
+            batchingFp.onEvent(holder, 2, endOfBatch = true)
+            nlChannel.packetsWritten.get() should be (written + 1)
+
+            val bb = nlChannel.written.poll()
+            var messages = 0
+            while (bb.position() < bb.limit()) {
+                val len = bb.getInt(bb.position() + NetlinkMessage.NLMSG_LEN_OFFSET)
+                bb.getInt(bb.position() + NetlinkMessage.NLMSG_PID_OFFSET) should be (10)
+                bb.position(bb.position() + NetlinkMessage.align(len))
+                messages += 1
+            }
+            messages should be (3)
+        }
+
         scenario ("Channel is bounded and thread spins when ring buffer is full") {
             var i = 0
             val context = packetContextFor(ethernet, UUID.randomUUID())
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring
+
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class FlowRecordRingTest extends FeatureSpec with Matchers with GivenWhenThen {
+
+    private def record(size: Int, value: Byte): ByteBuffer = {
+        ByteBuffer.wrap(Array.fill[Byte](size)(value))
+    }
+
+    private def take(ring: FlowRecordRing): Array[Byte] = {
+        val buffer = ring.peek()
+        buffer should not be null
+        val bytes = new Array[Byte](buffer.remaining)
+        buffer.get(bytes)
+        ring.release()
+        bytes
+    }
+
+    feature("The ring queues the encoded records") {
+        scenario("Records are read in order") {
+            Given("A ring")
+            val ring = new FlowRecordRing(4)
+            ring.peek() shouldBe null
+
+            When("Adding records")
+            ring.offer(record(10, 1)) shouldBe true
+            ring.offer(record(20, 2)) shouldBe true
+
+            Then("The records are read in order")
+            take(ring) shouldBe Array.fill[Byte](10)(1)
+            take(ring) shouldBe Array.fill[Byte](20)(2)
+            ring.peek() shouldBe null
+        }
+
+        scenario("Records are rejected when the ring is full") {
+            Given("A full ring")
+            val ring = new FlowRecordRing(3)
+            ring.capacity shouldBe 4
+            for (i <- 0 until 4) {
+                ring.offer(record(8, i.toByte)) shouldBe true
+            }
+
+            Then("A new record is rejected")
+            ring.offer(record(8, 9)) shouldBe false
+
+            When("The oldest record is read")
+            take(ring) shouldBe Array.fill[Byte](8)(0)
+
+            Then("The ring accepts a new record")
+            ring.offer(record(8, 9)) shouldBe true
+            ring.offer(record(8, 10)) shouldBe false
+        }
+
+        scenario("Records larger than a slot are queued") {
+            Given("A ring")
+            val ring = new FlowRecordRing(2)
+
+            When("Adding a record larger than the slot size")
+            val size = FlowRecordRing.SlotSize * 3
+            ring.offer(record(size, 7)) shouldBe true
+
+            Then("The record is read entirely")
+            take(ring) shouldBe Array.fill[Byte](size)(7)
+        }
+    }
+}
@@ -61,6 +61,7 @@ class FlowRecorderTest extends MidolmanSpec {
             val conf = MidolmanConfig.forTests(confStr).flowHistory
             val recorder = new TestFlowRecorder(conf)
             recorder.record(newContext, PacketWorkflow.NoOp)
+            recorder.close()
         }
 
         scenario("unreachable endpoint doesn't throw error on record()") {
@@ -73,6 +74,7 @@ class FlowRecorderTest extends MidolmanSpec {
             val conf = MidolmanConfig.forTests(confStr).flowHistory
             val recorder = new TestFlowRecorder(conf)
             recorder.record(newContext, PacketWorkflow.NoOp)
+            recorder.close()
         }
 
         scenario("exception in encodeRecord doesn't propagate") {
@@ -85,6 +87,7 @@ class FlowRecorderTest extends MidolmanSpec {
             val conf = MidolmanConfig.forTests(confStr).flowHistory
             val recorder = new ErrorFlowRecorder(conf)
             recorder.record(newContext, PacketWorkflow.NoOp)
+            recorder.close()
         }
     }
 
@@ -130,6 +133,7 @@ class FlowRecorderTest extends MidolmanSpec {
                     e.getValue should not be (null)
                 }
             } finally {
+                recorder.close()
                 sock.close()
             }
         }
@@ -175,9 +179,122 @@ class FlowRecorderTest extends MidolmanSpec {
 
                 shouldMatch2 should be (binSerializer.bufferToFlowRecord(data))
             } finally {
+                recorder.close()
                 sock.close()
             }
         }
+
+        scenario("several records are packed in a datagram") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50024"
+                |agent.flow_history.records_per_datagram=4
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+
+            val recorder = FlowRecorder(conf, hostId)
+                .asInstanceOf[BinaryFlowRecorder]
+
+            val data = new Array[Byte](AbstractFlowRecorder.MaxDatagramSize)
+            val datagram = new DatagramPacket(data, data.length)
+
+            val sock = getListeningSocket(conf)
+
+            val binSerializer = new BinarySerialization
+            try {
+                val contexts = for (i <- 0 until 3) yield newContext()
+                for (ctx <- contexts) {
+                    recorder.record(ctx, PacketWorkflow.NoOp)
+                }
+
+                val records = new java.util.ArrayList[FlowRecord]
+                while (records.size < contexts.size) {
+                    sock.receive(datagram)
+                    records.addAll(binSerializer.bufferToFlowRecords(
+                        data, datagram.getLength))
+                }
+
+                records.asScala shouldBe contexts.map(
+                    FlowRecordBuilder.buildRecord(recorder.hostId, _,
+                                                  PacketWorkflow.NoOp))
+                recorder.recordsExported.getCount shouldBe 3
+                recorder.recordsDropped.getCount shouldBe 0
+            } finally {
+                recorder.close()
+                sock.close()
+            }
+        }
+
+        scenario("records are encoded by several threads") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50025"
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+
+            val recorder = FlowRecorder(conf, hostId)
+                .asInstanceOf[BinaryFlowRecorder]
+
+            val data = new Array[Byte](AbstractFlowRecorder.MaxDatagramSize)
+            val datagram = new DatagramPacket(data, data.length)
+
+            val sock = getListeningSocket(conf)
+
+            val binSerializer = new BinarySerialization
+            try {
+                val contexts = for (t <- 0 until 4)
+                    yield for (i <- 0 until 20) yield newContext()
+                val threads = for (threadContexts <- contexts) yield
+                    new Thread() {
+                        override def run(): Unit = {
+                            for (ctx <- threadContexts) {
+                                recorder.record(ctx, PacketWorkflow.NoOp)
+                            }
+                        }
+                    }
+                threads.foreach(_.start())
+                threads.foreach(_.join())
+
+                val records = new java.util.ArrayList[FlowRecord]
+                while (records.size < contexts.flatten.size) {
+                    sock.receive(datagram)
+                    records.addAll(binSerializer.bufferToFlowRecords(
+                        data, datagram.getLength))
+                }
+
+                records.asScala should contain theSameElementsAs
+                    contexts.flatten.map(
+                        FlowRecordBuilder.buildRecord(recorder.hostId, _,
+                                                      PacketWorkflow.NoOp))
+            } finally {
+                recorder.close()
+                sock.close()
+            }
+        }
+
+        scenario("closing the recorder stops the export") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50026"
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+
+            val recorder = FlowRecorder(conf, hostId)
+                .asInstanceOf[BinaryFlowRecorder]
+
+            recorder.close()
+            recorder.socket.isOpen shouldBe false
+
+            recorder.record(newContext(), PacketWorkflow.NoOp)
+            recorder.recordsExported.getCount shouldBe 0
+            recorder.recordsDropped.getCount shouldBe 0
+        }
     }
 
     private def newContext(): PacketContext = {
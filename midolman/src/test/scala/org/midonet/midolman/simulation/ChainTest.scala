@@ -18,7 +18,8 @@ package org.midonet.midolman.simulation
 import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.IPAddr
+import org.midonet.packets.{ARP, IPAddr, IPv4, IPv4Subnet, TCP, UDP, Unsigned}
+import org.midonet.util.Range
 
 import java.util.UUID
 import org.junit.runner.RunWith
@@ -272,6 +273,87 @@ class ChainTest extends Suite
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    def testCompiledChainKeepsFirstMatch() {
+        def rule(etherType: Short, proto: Byte, action: Action) = {
+            val cond = new Condition()
+            cond.etherType = Unsigned.unsign(etherType)
+            if (proto != 0)
+                cond.nwProto = proto
+            val r = new LiteralRule(cond, action)
+            r.id = UUID.randomUUID
+            r
+        }
+        pktMatch.setEtherType(IPv4.ETHERTYPE)
+        pktMatch.setNetworkProto(TCP.PROTOCOL_NUMBER)
+
+        val rules = List(rule(ARP.ETHERTYPE, 0, Action.DROP),
+                         rule(IPv4.ETHERTYPE, UDP.PROTOCOL_NUMBER, Action.DROP),
+                         continueRule,
+                         rule(IPv4.ETHERTYPE, TCP.PROTOCOL_NUMBER, Action.REJECT),
+                         rule(IPv4.ETHERTYPE, 0, Action.ACCEPT))
+        continueRule.id = UUID.randomUUID
+        val c = makeChain(rules).compile()
+        c.isCompiled shouldBe true
+
+        applyChain(c).action shouldBe Action.REJECT
+        pktCtx.traversedRules.asScala shouldBe rules.take(4).map(_.id)
+        pktCtx.traversedRulesMatched.asScala shouldBe
+            List(false, false, false, true)
+    }
+
+    def testCompiledChainJumps() {
+        val innerChain = makeChain(List(returnRule, acceptRule))
+        val outerChain = makeChain(List(makeJumpRule(innerChain), rejectRule),
+                                   List(innerChain.compile())).compile()
+        applyChain(outerChain).action shouldBe Action.REJECT
+    }
+
+    def testCompiledChainFiltersDestination() {
+        def rule(dst: String, port: Int, action: Action) = {
+            val cond = new Condition()
+            cond.etherType = Unsigned.unsign(IPv4.ETHERTYPE)
+            cond.nwProto = TCP.PROTOCOL_NUMBER
+            cond.nwDstIp = IPv4Subnet.fromCidr(dst)
+            cond.tpDst = new Range[Integer](port, port + 10)
+            val r = new LiteralRule(cond, action)
+            r.id = UUID.randomUUID
+            r
+        }
+        pktMatch.setEtherType(IPv4.ETHERTYPE)
+        pktMatch.setNetworkProto(TCP.PROTOCOL_NUMBER)
+        pktMatch.setDstPort(85)
+
+        val rules = List(rule("1.2.3.0/24", 100, Action.DROP),
+                         rule("1.2.4.0/24", 80, Action.DROP),
+                         rule("1.2.0.0/16", 80, Action.REJECT))
+        val c = makeChain(rules).compile()
+
+        applyChain(c).action shouldBe Action.REJECT
+        pktCtx.traversedRules.asScala shouldBe rules.map(_.id)
+        pktCtx.traversedRulesMatched.asScala shouldBe List(false, false, true)
+    }
+
+    def testCompiledChainEvaluatesFlowDirectionConditions() {
+        // Evaluating a forward or return flow condition has side effects on
+        // the packet context, so the rule is never skipped.
+        var evaluated = false
+        val cond = new Condition() {
+            override def matches(context: PacketContext): Boolean = {
+                evaluated = true
+                false
+            }
+        }
+        cond.matchReturnFlow = true
+        cond.etherType = Unsigned.unsign(ARP.ETHERTYPE)
+        val r = new LiteralRule(cond, Action.DROP)
+        r.id = UUID.randomUUID
+        pktMatch.setEtherType(IPv4.ETHERTYPE)
+
+        val c = makeChain(List(r, acceptRule)).compile()
+        applyChain(c).action shouldBe Action.ACCEPT
+        evaluated shouldBe true
+    }
+
     private def applyChain(c: Chain) = {
         pktCtx.currentDevice = ownerId
         if (c ne null)
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.flows.FlowExpirationIndexer.FLOW_EXPIRATION
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.flows.FlowActions.output
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.util.functors.Callback0
+
+@RunWith(classOf[JUnitRunner])
+class SimulationResultCacheTest extends MidolmanSpec {
+
+    val srcMac = MAC.random()
+    val dstMac = MAC.random()
+    val bridge = UUID.randomUUID()
+
+    var cache: SimulationResultCache = _
+    var acquired = 0
+    var released = 0
+
+    val reference = new FlowReference {
+        override def acquire(): Callback0 = {
+            acquired += 1
+            new Callback0 {
+                override def call(): Unit = released += 1
+            }
+        }
+    }
+
+    override def beforeTest(): Unit = {
+        cache = new SimulationResultCache(16, clock)
+    }
+
+    private def contextFor(dst: MAC = dstMac) =
+        packetContextFor({ eth addr srcMac -> dst } <<
+                         { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
+                         { udp ports 5003 ---> 53 } << payload("payload"),
+                         inPortNumber = 1)
+
+    private def simulate(dst: MAC = dstMac): PacketContext = {
+        val context = contextFor(dst)
+        context.origMatch.getInputPortNumber
+        context.origMatch.getEthSrc
+        context.origMatch.getEthDst
+        context.addFlowTag(FlowTagger.tagForDpPort(1))
+        context.addFlowTag(FlowTagger.tagForBridge(bridge))
+        context.addFlowReference(reference)
+        context.flowActions.add(output(2))
+        context.packetActions.add(output(2))
+        context
+    }
+
+    feature("Simulation results are cached") {
+        scenario("A result is replayed for packets with the same seen fields") {
+            val simulated = simulate()
+            cache.put(simulated, cache.generation)
+
+            val context = contextFor()
+            val entry = cache.get(context.origMatch)
+            entry should not be null
+            entry.replay(context)
+
+            context.flowActions should contain only output(2)
+            context.packetActions should contain only output(2)
+            context.flowTags should contain only (
+                FlowTagger.tagForDpPort(1), FlowTagger.tagForBridge(bridge))
+            context.flowRemovedCallbacks should have size 1
+            context.origMatch.getSeenFields should be (
+                simulated.origMatch.getSeenFields)
+            acquired should be (2)
+
+            context.clear()
+            released should be (1)
+        }
+
+        scenario("Packets that differ in a seen field miss the cache") {
+            cache.put(simulate(), cache.generation)
+            cache.get(contextFor(MAC.random()).origMatch) should be (null)
+        }
+
+        scenario("The number of results is bounded") {
+            cache = new SimulationResultCache(1, clock)
+            cache.put(simulate(), cache.generation)
+            cache.put(simulate(MAC.random()), cache.generation)
+            cache.size should be (1)
+        }
+
+        scenario("Results expire with the datapath flows") {
+            cache.put(simulate(), cache.generation)
+            clock.time = FLOW_EXPIRATION.value
+            cache.get(contextFor().origMatch) should be (null)
+        }
+    }
+
+    feature("Simulation results are invalidated") {
+        scenario("Results are invalidated by their tags") {
+            cache.put(simulate(), cache.generation)
+            cache.invalidate(FlowTagger.tagForBridge(bridge))
+            cache.get(contextFor().origMatch) should be (null)
+            cache.size should be (0)
+        }
+
+        scenario("Results are not cached after a concurrent invalidation") {
+            val generation = cache.generation
+            cache.invalidate(FlowTagger.tagForBridge(UUID.randomUUID()))
+            cache.put(simulate(), generation)
+            cache.get(contextFor().origMatch) should be (null)
+        }
+
+        scenario("Flow state tags are ignored") {
+            val generation = cache.generation
+            val context = simulate()
+            cache.invalidate(ConnTrackKey(context.origMatch, bridge))
+            cache.generation should be (generation)
+        }
+
+        scenario("Clearing the cache discards all results") {
+            cache.put(simulate(), cache.generation)
+            cache.clear()
+            cache.get(contextFor().origMatch) should be (null)
+        }
+    }
+}
@@ -36,10 +36,11 @@ import org.midonet.cluster.services.vxgw.FloodingProxyHerald.FloodingProxy
 import org.midonet.cluster.topology.TopologyBuilder
 import org.midonet.cluster.util.UUIDUtil.{fromProto, toProto}
 import org.midonet.midolman.{HostRequestProxy, UnderlayResolver}
-import org.midonet.midolman.datapath.StatePacketExecutor
+import org.midonet.midolman.datapath.{DatapathChannel, StatePacketExecutor}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
+import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.midolman.util.mock.MockDatapathChannel
 import org.midonet.midolman.topology.VirtualTopology
@@ -51,6 +52,7 @@ import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.util.concurrent.{MockClock, NanoClock}
 import org.midonet.util.functors.Callback0
 import org.midonet.util.reactivex._
 
@@ -351,6 +353,134 @@ class FlowStateReplicatorTest extends MidolmanSpec with TopologyBuilder {
         }
     }
 
+    feature("L4 flow state coalescing") {
+        val window = (100 micros).toNanos
+
+        def coalescingReplicator(ordered: Boolean, clock: NanoClock,
+                                 channel: DatapathChannel) = {
+            val replicator = new TestableFlowStateReplicator(
+                senderUnderlay, channel, window, ordered, clock)
+            connTrackTx = new ConnTrackTx(replicator.conntrackTable)
+            natTx = new NatTx(replicator.natTable)
+            replicator
+        }
+
+        def accumulate(replicator: TestableFlowStateReplicator): PacketContext = {
+            val context = packetContextFor(ethernet, ingressPort.getId)
+            context.flowActions.add(FlowActions.output(1))
+            context.outPorts.add(egressPort1.getId)
+            replicator.accumulateNewKeys(context)
+            connTrackTx.commit()
+            connTrackTx.flush()
+            natTx.commit()
+            natTx.flush()
+            context
+        }
+
+        def conntrackKey(port: Int) =
+            ConnTrackKey("10.0.0.1", port, "10.0.0.2", 22, 6, conntrackDevice)
+
+        // Records the number of conntrack keys and the length of each state
+        // packet, and accepts it in the recipient.
+        def capture(channel: MockDatapathChannel): ArrayList[(Int, Int)] = {
+            val encoder = new SbeEncoder
+            val messages = new ArrayList[(Int, Int)]()
+            channel.packetsExecuteSubscribe { (packet, actions) =>
+                val data = FlowStatePackets.parseDatagram(packet.getEthernet)
+                val message = encoder.decodeFrom(data.getData)
+                messages.add((message.conntrack.count, packet.getData.length))
+                recipient.accept(packet.getEthernet)
+            }
+            messages
+        }
+
+        scenario("Packs the state of several flows for each peer") {
+            Given("A replicator that coalesces all state")
+            val clock = new MockClock
+            val channel = new MockDatapathChannel()
+            val packets = capture(channel)
+            val replicator = coalescingReplicator(ordered = false, clock, channel)
+
+            When("Two flows create conntrack keys")
+            connTrackTx.putAndRef(conntrackKey(1000), ConnTrackState.RETURN_FLOW)
+            val context1 = accumulate(replicator)
+            connTrackTx.putAndRef(conntrackKey(1001), ConnTrackState.RETURN_FLOW)
+            val context2 = accumulate(replicator)
+
+            Then("The flows should not carry any state packet")
+            context1.stateMessageLength shouldBe 0
+            context2.stateMessageLength shouldBe 0
+            packets shouldBe empty
+            replicator.shouldProcess() shouldBe false
+
+            When("The coalescing window expires")
+            clock.time += window
+            replicator.shouldProcess() shouldBe true
+            replicator.process()
+
+            Then("A single state packet should be sent to each peer")
+            packets should have size 3
+            packets.map(_._1) shouldBe List(2, 2, 2)
+            recipient.conntrackTable.get(conntrackKey(1000)) shouldBe ConnTrackState.RETURN_FLOW
+            recipient.conntrackTable.get(conntrackKey(1001)) shouldBe ConnTrackState.RETURN_FLOW
+            replicator.shouldProcess() shouldBe false
+        }
+
+        scenario("Flushes the state of a peer before it exceeds the MTU") {
+            Given("A replicator that coalesces all state")
+            val clock = new MockClock
+            val channel = new MockDatapathChannel()
+            val packets = capture(channel)
+            val replicator = coalescingReplicator(ordered = false, clock, channel)
+
+            When("Many flows create conntrack keys within the window")
+            for (port <- 1000 until 1030) {
+                connTrackTx.putAndRef(conntrackKey(port), ConnTrackState.RETURN_FLOW)
+                accumulate(replicator)
+            }
+
+            Then("Full state packets should be sent to each peer")
+            packets should have size 3
+            packets.get(0)._1 should be > 20
+            packets.get(0)._2 should be < (FlowStateEthernet.MTU -
+                FlowStateEthernet.VXLAN_ENCAPUSULATION_OVERHEAD)
+
+            When("The coalescing window expires")
+            clock.time += window
+            replicator.process()
+
+            Then("The remaining keys should be sent to each peer")
+            packets should have size 6
+            packets.map(_._1).sum shouldBe 3 * 30
+        }
+
+        scenario("Sends the state of the first packet of a connection ahead of it") {
+            Given("A replicator that coalesces state with ordering")
+            val clock = new MockClock
+            val channel = new MockDatapathChannel()
+            val packets = capture(channel)
+            val replicator = coalescingReplicator(ordered = true, clock, channel)
+
+            When("A flow creates a new conntrack key")
+            connTrackTx.putAndRef(conntrackKey(1000), ConnTrackState.RETURN_FLOW)
+            val context1 = accumulate(replicator)
+
+            Then("The flow should carry its own state packet")
+            context1.stateMessageLength should be > 0
+            context1.stateActions should not be empty
+
+            When("The flow is simulated again and refs the existing key")
+            connTrackTx.ref(conntrackKey(1000))
+            val context2 = accumulate(replicator)
+
+            Then("The state should be coalesced")
+            context2.stateMessageLength shouldBe 0
+            clock.time += window
+            replicator.process()
+            packets should have size 3
+        }
+    }
+
     feature("Unref callbacks are correctly added") {
         scenario("For conntrack keys") {
             Given("A conntrack key and a contrack ref in a transaction")
@@ -564,17 +694,41 @@ class FlowStateReplicatorTest extends MidolmanSpec with TopologyBuilder {
             Then("Flows tagged with it should be invalidated")
             mockFlowInvalidation should haveInvalidated (connTrackKeys.head)
         }
+
+        scenario("Splits the keys among workers") {
+            Given("A flow state batch")
+            val flowState = HostRequestProxy.EmptyFlowStateBatch()
+            val keys = for (i <- 1 to 20) yield
+                ConnTrackKey("10.0.0.1", i, "10.0.0.2", 22, 1, UUID.randomUUID())
+            keys foreach flowState.strongConnTrack.add
+
+            When("Importing it as the first of two workers")
+            recipient.importFromStorage(flowState, 0, 2)
+
+            Then("Only the keys assigned to the worker are stored")
+            recipient.conntrackTable.entries.keySet should be (
+                keys.filter(k => (k.hashCode & Int.MaxValue) % 2 == 0).toSet)
+
+            And("The flows tagged with all the keys are invalidated")
+            mockFlowInvalidation should haveInvalidated (keys: _*)
+        }
     }
 
     class TestableFlowStateReplicator(
-            val underlay: UnderlayResolver) extends {
+            val underlay: UnderlayResolver,
+            dpChannel: DatapathChannel = null,
+            coalesceWindowNanos: Long = 0L,
+            orderedFirstPacket: Boolean = true,
+            clock: NanoClock = NanoClock.DEFAULT) extends {
         val conntrackTable = new MockFlowStateTable[ConnTrackKey, ConnTrackValue]()
         val natTable = new MockFlowStateTable[NatKey, NatBinding]()
         val traceTable = new MockFlowStateTable[TraceKey, TraceContext]()
     } with FlowStateReplicator(conntrackTable, natTable, traceTable,
                                Future.successful(new MockStateStorage),
                                hostId, peerResolver, underlay,
-                               mockFlowInvalidation, 0) {
+                               mockFlowInvalidation, 0, dpChannel,
+                               coalesceWindowNanos, orderedFirstPacket,
+                               clock) {
 
         override def resolvePeers(ingressPort: UUID,
                                   egressPorts: ArrayList[UUID],
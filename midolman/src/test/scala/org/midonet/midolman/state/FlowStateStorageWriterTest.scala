@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{Collections, UUID}
+import java.util.concurrent.{ExecutionException, Executor}
+
+import scala.collection.mutable.ArrayBuffer
+
+import com.datastax.driver.core._
+import org.junit.runner.RunWith
+import org.mockito.Matchers._
+import org.mockito.Mockito._
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.mock.MockitoSugar
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.MockUnixClock
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateStorageWriterTest extends FeatureSpec
+                                 with Matchers
+                                 with MockitoSugar
+                                 with OneInstancePerTest {
+
+    val clock = new MockUnixClock
+    val requests = new ArrayBuffer[(BatchStatement, Runnable)]
+    val futures = new ArrayBuffer[ResultSetFuture]
+
+    val session = mock[Session]
+    val prepared = mock[PreparedStatement]
+    when(session.prepare(anyString())).thenReturn(prepared)
+    when(prepared.bind(anyVararg[AnyRef]())).thenAnswer(new Answer[BoundStatement] {
+        override def answer(invocation: InvocationOnMock) = mock[BoundStatement]
+    })
+    when(session.executeAsync(any[Statement]())).thenAnswer(new Answer[ResultSetFuture] {
+        override def answer(invocation: InvocationOnMock) = {
+            val batch = invocation.getArguments()(0).asInstanceOf[BatchStatement]
+            val future = mock[ResultSetFuture]
+            futures += future
+            doAnswer(new Answer[Unit] {
+                override def answer(invocation: InvocationOnMock) =
+                    requests += ((batch, invocation.getArguments()(0)
+                                            .asInstanceOf[Runnable]))
+            }).when(future).addListener(any[Runnable](), any[Executor]())
+            future
+        }
+    })
+
+    val noPorts = Collections.emptyIterator[UUID]()
+
+    def storage(maxInFlight: Int = 16, maxPending: Int = 1000,
+                batchSize: Int = 32, dedupWindow: Long = 0L) =
+        new FlowStateStorageImpl(session, maxInFlight, maxPending, batchSize,
+                                 dedupWindow, clock = clock)
+
+    def key(port: Int) =
+        ConnTrackKey(IPv4Addr.fromString("10.0.0.1"), port,
+                     IPv4Addr.fromString("10.0.0.2"), 80, 6, UUID.randomUUID())
+
+    feature("Writes are grouped by port") {
+        scenario("Statements for the same port share a batch") {
+            val st = storage()
+            val port1 = UUID.randomUUID()
+            val port2 = UUID.randomUUID()
+            st.touchConnTrackKey(key(1), port1, noPorts)
+            st.touchConnTrackKey(key(2), port2, noPorts)
+            st.touchConnTrackKey(key(3), port1, noPorts)
+            st.submit()
+
+            requests.map(_._1.size) should be (Seq(2, 1))
+        }
+
+        scenario("Batches are capped in size") {
+            val st = storage(batchSize = 2)
+            val port = UUID.randomUUID()
+            for (i <- 1 to 5)
+                st.touchConnTrackKey(key(i), port, noPorts)
+            st.submit()
+
+            requests.map(_._1.size) should be (Seq(2, 2, 1))
+        }
+    }
+
+    feature("In-flight requests are bounded") {
+        scenario("Writes wait for outstanding requests to complete") {
+            val st = storage(maxInFlight = 2)
+            for (i <- 1 to 3)
+                st.touchConnTrackKey(key(i), UUID.randomUUID(), noPorts)
+            st.submit()
+            requests should have size 2
+
+            st.touchConnTrackKey(key(4), UUID.randomUUID(), noPorts)
+            st.submit()
+            requests should have size 2
+
+            requests(0)._2.run()
+            st.submit()
+            requests should have size 3
+            requests(1)._2.run()
+            requests(2)._2.run()
+            st.submit()
+            requests should have size 4
+        }
+
+        scenario("Writes past the maximum pending are dropped") {
+            val st = storage(maxInFlight = 1, maxPending = 2)
+            val port = UUID.randomUUID()
+            st.touchConnTrackKey(key(1), UUID.randomUUID(), noPorts)
+            st.submit()
+            for (i <- 2 to 5)
+                st.touchConnTrackKey(key(i), port, noPorts)
+
+            requests(0)._2.run()
+            st.submit()
+            requests.map(_._1.size) should be (Seq(1, 2))
+        }
+
+        scenario("Queued writes are submitted without new touches") {
+            val st = storage(maxInFlight = 1)
+            st.touchConnTrackKey(key(1), UUID.randomUUID(), noPorts)
+            st.touchConnTrackKey(key(2), UUID.randomUUID(), noPorts)
+            st.submit()
+            requests should have size 1
+            st.shouldSubmit() shouldBe false
+
+            requests(0)._2.run()
+            st.shouldSubmit() shouldBe true
+            st.submit()
+            requests should have size 2
+            st.shouldSubmit() shouldBe false
+        }
+    }
+
+    feature("Repeated touches are de-duplicated") {
+        scenario("A key is written once per window") {
+            val st = storage(dedupWindow = 10000L)
+            val port = UUID.randomUUID()
+            val k = key(1)
+            st.touchConnTrackKey(k, port, noPorts)
+            st.submit()
+            requests(0)._2.run()
+            clock.time = 5000L
+            st.touchConnTrackKey(k, port, noPorts)
+            st.submit()
+            requests.map(_._1.size) should be (Seq(1))
+
+            clock.time = 10000L
+            st.touchConnTrackKey(k, port, noPorts)
+            st.submit()
+            requests.map(_._1.size) should be (Seq(1, 1))
+        }
+
+        scenario("A key is not queued again while its write is outstanding") {
+            val st = storage(dedupWindow = 10000L)
+            val port = UUID.randomUUID()
+            val k = key(1)
+            st.touchConnTrackKey(k, port, noPorts)
+            st.submit()
+            clock.time = 20000L
+            st.touchConnTrackKey(k, port, noPorts)
+            st.submit()
+            requests.map(_._1.size) should be (Seq(1))
+        }
+
+        scenario("A key whose write failed is written by the next touch") {
+            val st = storage(dedupWindow = 10000L)
+            val port = UUID.randomUUID()
+            val k = key(1)
+            st.touchConnTrackKey(k, port, noPorts)
+            st.submit()
+            when(futures(0).get()).thenThrow(
+                new ExecutionException(new Exception("write failed")))
+            requests(0)._2.run()
+
+            st.touchConnTrackKey(k, port, noPorts)
+            st.submit()
+            requests.map(_._1.size) should be (Seq(1, 1))
+        }
+
+        scenario("A dropped key is written by the next touch") {
+            val st = storage(maxInFlight = 1, maxPending = 1,
+                             dedupWindow = 10000L)
+            val port = UUID.randomUUID()
+            st.touchConnTrackKey(key(1), port, noPorts)
+            st.submit()
+            val k = key(2)
+            st.touchConnTrackKey(key(3), port, noPorts)
+            st.touchConnTrackKey(k, port, noPorts)
+
+            requests(0)._2.run()
+            st.submit()
+            st.touchConnTrackKey(k, port, noPorts)
+            requests(1)._2.run()
+            st.submit()
+            requests.map(_._1.size) should be (Seq(1, 1, 1))
+        }
+
+        scenario("The window is at most half the TTL of the key") {
+            val st = storage(dedupWindow = 60000L)
+            val port = UUID.randomUUID()
+            val k = key(1)
+            st.touchConnTrackKey(k, port, noPorts)
+            st.submit()
+            requests(0)._2.run()
+            clock.time = k.expiresAfter.toMillis / 2
+            st.touchConnTrackKey(k, port, noPorts)
+            st.submit()
+            requests.map(_._1.size) should be (Seq(1, 1))
+        }
+    }
+}
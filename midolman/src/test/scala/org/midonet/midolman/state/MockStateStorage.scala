@@ -15,8 +15,8 @@
  */
 package org.midonet.midolman.state
 
-import java.util.{UUID, HashMap => JHashMap,
-                  HashSet => JHashSet, Iterator => JIterator}
+import java.util.{UUID, HashMap => JHashMap, HashSet => JHashSet,
+                  Iterator => JIterator, Map => JMap, Set => JSet}
 import scala.concurrent.{ExecutionContext, Future}
 
 import akka.actor.ActorSystem
@@ -35,6 +35,8 @@ class MockStateStorage extends FlowStateStorage {
 
     override def submit(): Unit = {}
 
+    override def shouldSubmit(): Boolean = false
+
     override def fetchStrongConnTrackRefs(port: UUID)
             (implicit ec: ExecutionContext, as: ActorSystem) =
                 Future.successful(new JHashSet[ConnTrackKey]())
@@ -50,4 +52,14 @@ class MockStateStorage extends FlowStateStorage {
     override def fetchWeakNatRefs(port: UUID)
             (implicit ec: ExecutionContext, as: ActorSystem) =
                 Future.successful(new JHashMap[NatKey, NatBinding]())
+
+    override def streamConnTrackRefs(port: UUID, strong: Boolean, pageSize: Int)
+            (onPage: JSet[ConnTrackKey] => Unit)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+                Future.successful(0)
+
+    override def streamNatRefs(port: UUID, strong: Boolean, pageSize: Int)
+            (onPage: JMap[NatKey, NatBinding] => Unit)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+                Future.successful(0)
 }
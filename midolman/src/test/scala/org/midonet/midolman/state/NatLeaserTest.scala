@@ -338,4 +338,139 @@ class NatLeaserTest extends FeatureSpec
             }
         }
     }
+
+    feature("Blocks are reserved ahead of demand") {
+        scenario("A burst of allocations to the same destination") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          11008,
+                                          30000)
+            val ip = IPv4Addr.random
+
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            natLeaser.reservoirMisses should be (1)
+            allocatedBlocks should have size 1
+
+            for (i <- 0 until NatBlock.BLOCK_SIZE) {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+
+            // The second block consumed in the window reserves another one.
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            natLeaser.reservoirMisses should be (2)
+            allocatedBlocks should have size 3
+
+            // The block fetched by the allocation is used before the
+            // reserved one.
+            natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            natLeaser.reservoirHits should be (0)
+
+            for (i <- 1 until NatBlock.BLOCK_SIZE) {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            natLeaser.reservoirHits should be (0)
+
+            natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            natLeaser.reservoirHits should be (1)
+            natLeaser.reservoirMisses should be (2)
+        }
+
+        scenario("Reservoirs are removed with the last block of a device") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          11008,
+                                          30000)
+            val ip = IPv4Addr.random
+
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            val binding = natLeaser.allocateNatBinding(dev, ip, 10,
+                                                       Array(natTarget))
+            natLeaser.reservoirDevices should be (1)
+
+            clock.time += (NatLeaser.BLOCK_EXPIRATION + (10 seconds)).toNanos
+            natLeaser.obliterateUnusedBlocks()
+            natLeaser.reservoirDevices should be (1)
+
+            natLeaser.freeNatBinding(dev, ip, 10, binding)
+            clock.time += (NatLeaser.BLOCK_EXPIRATION + (10 seconds)).toNanos
+            natLeaser.obliterateUnusedBlocks()
+            natLeaser.reservoirDevices should be (0)
+        }
+
+        scenario("A single block is not reserved") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          11008,
+                                          30000)
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, IPv4Addr.random, 10,
+                                             Array(natTarget))
+            }
+            natLeaser.allocateNatBinding(dev, IPv4Addr.random, 10,
+                                         Array(natTarget))
+            allocatedBlocks should have size 1
+            natLeaser.reservoirHits should be (0)
+        }
+    }
+
+    feature("Leased blocks track the port leases") {
+        def uniquefier(ip: IPv4Addr, port: Int): Long =
+            (ip.toInt.toLong << 32) | port
+
+        scenario("Free ports are leased before oversubscribing") {
+            val lease = new NatLeaser.LeasedBlock(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 1))
+            val ip = IPv4Addr.random
+
+            val offsets = (0 until NatBlock.BLOCK_SIZE) map { port =>
+                lease.lease(uniquefier(ip, port), 0, NatBlock.BLOCK_SIZE - 1)
+            }
+            offsets.toSet should have size NatBlock.BLOCK_SIZE
+
+            val shared = lease.lease(uniquefier(ip.next, 0), 0,
+                                     NatBlock.BLOCK_SIZE - 1)
+            shared should be >= 0
+            lease.leaseCount should be (NatBlock.BLOCK_SIZE + 1)
+        }
+
+        scenario("Ports are leased within the requested range") {
+            val lease = new NatLeaser.LeasedBlock(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 1))
+            val ip = IPv4Addr.random
+
+            lease.lease(uniquefier(ip, 1), 10, 10) should be (10)
+            lease.lease(uniquefier(ip, 2), 10, 10) should be (10)
+            lease.lease(uniquefier(ip, 1), 10, 10) should be (-1)
+            lease.lease(uniquefier(ip, 1), 10, 11) should be (11)
+            lease.lease(uniquefier(ip, 1), 10, 11) should be (-1)
+        }
+
+        scenario("Released ports become free") {
+            val lease = new NatLeaser.LeasedBlock(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 1))
+            val ip = IPv4Addr.random
+
+            val offsets = (0 until 1000) map { port =>
+                port -> lease.lease(uniquefier(ip, port), 5, 5)
+            }
+            offsets foreach { case (_, offset) => offset should be (5) }
+            lease.isLeased(5) should be (true)
+            lease.leaseCount should be (1000)
+
+            for ((port, offset) <- offsets) {
+                lease.release(uniquefier(ip, port), offset)
+            }
+            lease.isLeased(5) should be (false)
+            lease.leaseCount should be (0)
+
+            lease.release(uniquefier(ip, 0), 5)
+            lease.leaseCount should be (0)
+        }
+    }
 }
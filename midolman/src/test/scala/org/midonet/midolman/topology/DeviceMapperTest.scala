@@ -16,6 +16,7 @@
 package org.midonet.midolman.topology
 
 import java.util.UUID
+import java.util.concurrent.TimeUnit.MILLISECONDS
 import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
 
 import com.codahale.metrics.MetricRegistry
@@ -24,10 +25,12 @@ import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 import rx.Observable
 import rx.observers.TestObserver
-import rx.subjects.BehaviorSubject
+import rx.schedulers.Schedulers
+import rx.subjects.{BehaviorSubject, PublishSubject}
 import rx.subscriptions.Subscriptions
 
 import org.midonet.midolman.monitoring.metrics.JmxDeviceMapperMetrics
+import org.midonet.midolman.topology.DeviceMapper.CoalesceOperator
 import org.midonet.midolman.topology.VirtualTopology.Device
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.util.functors._
@@ -706,6 +709,9 @@ class DeviceMapperTest extends MidolmanSpec {
             val metrics = mapper.metrics.asInstanceOf[JmxDeviceMapperMetrics[Device]]
             metrics.deviceUpdatedMeter.getCount shouldBe 1
             metrics.deviceErrors.getCount shouldBe 0
+
+            And("The build latency of the device should be recorded")
+            metrics.deviceBuildLatency.getCount shouldBe 1
         }
 
         scenario("An observer receives an error") {
@@ -731,4 +737,71 @@ class DeviceMapperTest extends MidolmanSpec {
             metrics.deviceErrors.getCount shouldBe 1
     }
   }
+
+    feature("Test device update coalescing") {
+        scenario("Updates within the window are coalesced") {
+            Given("A device stream with a coalescing operator")
+            val scheduler = Schedulers.test()
+            val coalesced = new AtomicInteger()
+            val stream = PublishSubject.create[TestableDevice]()
+            val observer = new TestObserver[TestableDevice]()
+            stream.lift(new CoalesceOperator[TestableDevice](
+                    10, scheduler, () => coalesced.incrementAndGet()))
+                .subscribe(observer)
+            val id = UUID.randomUUID
+
+            When("Emitting a first device")
+            stream onNext TestableDevice(id, 0)
+
+            Then("The device is emitted immediately")
+            observer.getOnNextEvents should contain only TestableDevice(id, 0)
+
+            When("Emitting three devices within the window")
+            stream onNext TestableDevice(id, 1)
+            stream onNext TestableDevice(id, 2)
+            stream onNext TestableDevice(id, 3)
+
+            Then("No device is emitted before the window expires")
+            observer.getOnNextEvents should have size 1
+
+            When("The window expires")
+            scheduler.advanceTimeBy(10, MILLISECONDS)
+
+            Then("Only the last device is emitted")
+            observer.getOnNextEvents should contain inOrderOnly (
+                TestableDevice(id, 0), TestableDevice(id, 3))
+            coalesced.get shouldBe 2
+
+            When("The next window expires without updates")
+            scheduler.advanceTimeBy(10, MILLISECONDS)
+
+            And("Emitting a device after the quiet period")
+            stream onNext TestableDevice(id, 4)
+
+            Then("The device is emitted immediately")
+            observer.getOnNextEvents should have size 3
+            observer.getOnNextEvents.get(2) shouldBe TestableDevice(id, 4)
+        }
+
+        scenario("A pending device is emitted before completion") {
+            Given("A device stream with a coalescing operator")
+            val scheduler = Schedulers.test()
+            val stream = PublishSubject.create[TestableDevice]()
+            val observer = new TestObserver[TestableDevice]()
+            stream.lift(new CoalesceOperator[TestableDevice](
+                    10, scheduler, () => { }))
+                .subscribe(observer)
+            val id = UUID.randomUUID
+
+            When("Emitting two devices and completing the stream")
+            stream onNext TestableDevice(id, 0)
+            stream onNext TestableDevice(id, 1)
+            stream.onCompleted()
+
+            Then("The observer receives both devices and the completion")
+            observer.getOnNextEvents should contain inOrderOnly (
+                TestableDevice(id, 0), TestableDevice(id, 1))
+            observer.getOnCompletedEvents should have size 1
+        }
+    }
 }
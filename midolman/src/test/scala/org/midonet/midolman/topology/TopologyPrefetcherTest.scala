@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.util.UUID
+
+import scala.concurrent.Await.result
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.cluster.data.storage.Storage
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.topology.TopologyBuilder
+import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.midolman.simulation.{Bridge => SimBridge, Chain => SimChain, Port => SimPort, Router => SimRouter}
+import org.midonet.midolman.util.MidolmanSpec
+
+@RunWith(classOf[JUnitRunner])
+class TopologyPrefetcherTest extends MidolmanSpec with TopologyBuilder {
+
+    private var store: Storage = _
+    private val timeout = 5 seconds
+
+    protected override def beforeTest(): Unit = {
+        store = injector.getInstance(classOf[MidonetBackend]).store
+    }
+
+    feature("The prefetcher loads the devices reachable from a port") {
+        scenario("A bridge port with a router peer") {
+            Given("A bridge and a router with filter chains")
+            val bridgeChain = createChain()
+            val routerChain = createChain()
+            val bridge = createBridge(inboundFilterId = Some(bridgeChain.getId))
+            val router = createRouter(outboundFilterId = Some(routerChain.getId))
+            store.create(bridgeChain)
+            store.create(routerChain)
+            store.create(bridge)
+            store.create(router)
+
+            And("A router port connected to an interior bridge port")
+            val routerPort = createRouterPort(routerId = Some(router.getId))
+            val interiorPort = createBridgePort(bridgeId = Some(bridge.getId),
+                                                peerId = Some(routerPort.getId))
+            store.create(routerPort)
+            store.create(interiorPort)
+
+            And("An exterior bridge port")
+            val exteriorPort = createBridgePort(bridgeId = Some(bridge.getId))
+            store.create(exteriorPort)
+
+            And("A topology prefetcher")
+            val prefetcher = new TopologyPrefetcher(UUID.randomUUID)
+
+            When("Prefetching the devices for the exterior port")
+            val count = result(prefetcher.prefetch(exteriorPort.getId),
+                               timeout)
+
+            Then("The prefetcher requested all the devices")
+            count shouldBe 7
+
+            And("The devices are available in the virtual topology")
+            VirtualTopology.tryGet[SimPort](exteriorPort.getId)
+            VirtualTopology.tryGet[SimBridge](bridge.getId)
+            VirtualTopology.tryGet[SimChain](bridgeChain.getId)
+            VirtualTopology.tryGet[SimPort](interiorPort.getId)
+            VirtualTopology.tryGet[SimPort](routerPort.getId)
+            VirtualTopology.tryGet[SimRouter](router.getId)
+            VirtualTopology.tryGet[SimChain](routerChain.getId)
+        }
+
+        scenario("A port that does not exist") {
+            Given("A topology prefetcher")
+            val prefetcher = new TopologyPrefetcher(UUID.randomUUID)
+
+            Then("Prefetching a non-existing port completes")
+            result(prefetcher.prefetch(UUID.randomUUID), timeout) shouldBe 1
+        }
+    }
+}
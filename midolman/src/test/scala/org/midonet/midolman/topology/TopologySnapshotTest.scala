@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.nio.file.{Files, Path}
+import java.util.UUID
+
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest.concurrent.Eventually._
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import rx.observers.TestObserver
+import rx.subjects.PublishSubject
+
+import org.midonet.cluster.data.storage.NotFoundException
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.util.UUIDUtil._
+
+@RunWith(classOf[JUnitRunner])
+class TopologySnapshotTest extends FeatureSpec with Matchers
+                           with GivenWhenThen with BeforeAndAfter {
+
+    private var dir: Path = _
+    private var path: Path = _
+
+    before {
+        dir = Files.createTempDirectory("topology-snapshot")
+        path = dir.resolve("topology.snapshot")
+    }
+
+    after {
+        Files.deleteIfExists(path)
+        Files.deleteIfExists(dir)
+    }
+
+    private def network(id: UUID, name: String): Network = {
+        Network.newBuilder().setId(id.asProto).setName(name).build()
+    }
+
+    feature("The snapshot serves the objects loaded by the previous run") {
+        scenario("An object is served once from the snapshot") {
+            Given("A snapshot recording a network")
+            val id = UUID.randomUUID
+            val storage = PublishSubject.create[Network]
+            val snapshot1 = new TopologySnapshot(path, 1 hour, 1 hour)
+            snapshot1.observable(classOf[Network], id, storage)
+                     .subscribe(new TestObserver[Network])
+            storage onNext network(id, "network")
+            snapshot1.close()
+
+            When("Loading the snapshot")
+            val snapshot2 = new TopologySnapshot(path, 1 hour, 1 hour)
+            snapshot2.size shouldBe 1
+
+            Then("The first observable emits the network from the snapshot")
+            val obs1 = new TestObserver[Network]
+            snapshot2.observable(classOf[Network], id,
+                                 PublishSubject.create[Network])
+                     .subscribe(obs1)
+            obs1.getOnNextEvents should contain only network(id, "network")
+
+            And("The next observable only emits the storage notifications")
+            val obs2 = new TestObserver[Network]
+            snapshot2.observable(classOf[Network], id,
+                                 PublishSubject.create[Network])
+                     .subscribe(obs2)
+            obs2.getOnNextEvents shouldBe empty
+            snapshot2.size shouldBe 0
+            snapshot2.close()
+        }
+
+        scenario("A stale object is replaced by the storage notifications") {
+            Given("A snapshot with a network")
+            val id = UUID.randomUUID
+            val storage1 = PublishSubject.create[Network]
+            val snapshot1 = new TopologySnapshot(path, 1 hour, 1 hour)
+            snapshot1.observable(classOf[Network], id, storage1)
+                     .subscribe(new TestObserver[Network])
+            storage1 onNext network(id, "old")
+            snapshot1.close()
+
+            When("The storage emits a newer version of the network")
+            val storage2 = PublishSubject.create[Network]
+            val snapshot2 = new TopologySnapshot(path, 1 hour, 1 hour)
+            val obs = new TestObserver[Network]
+            snapshot2.observable(classOf[Network], id, storage2).subscribe(obs)
+            storage2 onNext network(id, "new")
+
+            Then("The observer receives both versions in order")
+            obs.getOnNextEvents should contain inOrderOnly (
+                network(id, "old"), network(id, "new"))
+
+            When("The network is deleted")
+            storage2 onError new NotFoundException(classOf[Network], id)
+            snapshot2.close()
+
+            Then("The next snapshot does not contain the network")
+            val snapshot3 = new TopologySnapshot(path, 1 hour, 1 hour)
+            snapshot3.size shouldBe 0
+            snapshot3.close()
+        }
+
+        scenario("An object is recorded while it has subscribers") {
+            Given("A network with two subscribers")
+            val id = UUID.randomUUID
+            val storage = PublishSubject.create[Network]
+            val snapshot1 = new TopologySnapshot(path, 1 hour, 1 hour)
+            val sub1 = snapshot1.observable(classOf[Network], id, storage)
+                                .subscribe(new TestObserver[Network])
+            val sub2 = snapshot1.observable(classOf[Network], id, storage)
+                                .subscribe(new TestObserver[Network])
+            storage onNext network(id, "network")
+
+            When("The first subscriber unsubscribes")
+            sub1.unsubscribe()
+            snapshot1.write()
+
+            Then("The snapshot contains the network")
+            val snapshot2 = new TopologySnapshot(path, 1 hour, 1 hour)
+            snapshot2.size shouldBe 1
+            snapshot2.close()
+
+            When("The second subscriber unsubscribes")
+            sub2.unsubscribe()
+            snapshot1.close()
+
+            Then("The snapshot does not contain the network")
+            val snapshot3 = new TopologySnapshot(path, 1 hour, 1 hour)
+            snapshot3.size shouldBe 0
+            snapshot3.close()
+        }
+
+        scenario("Objects not requested during the warm-up are discarded") {
+            Given("A snapshot with a network")
+            val id = UUID.randomUUID
+            val storage = PublishSubject.create[Network]
+            val snapshot1 = new TopologySnapshot(path, 1 hour, 1 hour)
+            snapshot1.observable(classOf[Network], id, storage)
+                     .subscribe(new TestObserver[Network])
+            storage onNext network(id, "network")
+            snapshot1.close()
+
+            When("Loading the snapshot with a short warm-up period")
+            val snapshot2 = new TopologySnapshot(path, 1 hour, 100 millis)
+            snapshot2.size shouldBe 1
+
+            Then("The network is discarded after the warm-up")
+            eventually { snapshot2.size shouldBe 0 }
+
+            And("The observable only emits the storage notifications")
+            val obs = new TestObserver[Network]
+            snapshot2.observable(classOf[Network], id,
+                                 PublishSubject.create[Network])
+                     .subscribe(obs)
+            obs.getOnNextEvents shouldBe empty
+            snapshot2.close()
+        }
+
+        scenario("A snapshot with an unsupported format is ignored") {
+            Given("A snapshot file with an unknown format")
+            Files.write(path, Array[Byte](1, 2, 3, 4, 5, 6, 7, 8))
+
+            Then("The snapshot is empty")
+            val snapshot = new TopologySnapshot(path, 1 hour, 1 hour)
+            snapshot.size shouldBe 0
+            snapshot.close()
+        }
+    }
+}
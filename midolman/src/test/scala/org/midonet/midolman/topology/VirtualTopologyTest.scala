@@ -16,12 +16,16 @@
 package org.midonet.midolman.topology
 
 import java.util.UUID
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
 
 import scala.concurrent.Await.{ready, result}
-import scala.concurrent.Future
+import scala.concurrent.{Future, Promise}
 import scala.concurrent.duration._
 import scala.reflect._
+import scala.util.Try
 
+import com.codahale.metrics.MetricRegistry
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
@@ -34,8 +38,11 @@ import org.midonet.cluster.topology.TopologyBuilder
 import org.midonet.midolman.NotYetException
 import org.midonet.midolman.topology.TopologyTest.DeviceObserver
 import org.midonet.midolman.topology.VirtualTopology.Key
-import org.midonet.midolman.simulation.{Port => SimulationPort}
+import org.midonet.midolman.topology.devices.BgpPort
+import org.midonet.midolman.simulation.{Bridge => SimulationBridge, Port => SimulationPort}
 import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.util.concurrent.NamedThreadFactory
+import org.midonet.util.functors.makeRunnable
 
 @RunWith(classOf[JUnitRunner])
 class VirtualTopologyTest extends MidolmanSpec with TopologyBuilder {
@@ -456,4 +463,112 @@ class VirtualTopologyTest extends MidolmanSpec with TopologyBuilder {
             vt.observablesGauge.getValue shouldBe 0
       }
     }
+
+    feature("The topology builds devices on partitions") {
+        val factory = new NamedThreadFactory("partition-test", isDaemon = true)
+
+        def partitionedTopology(threads: Int): VirtualTopology = {
+            val vtThread = new AtomicLong(-1)
+            val vtFactory = new NamedThreadFactory("partition-test-vt",
+                                                   isDaemon = true) {
+                override def newThread(r: Runnable): Thread = {
+                    val thread = super.newThread(r)
+                    vtThread.set(thread.getId)
+                    thread
+                }
+            }
+            new VirtualTopology(vt.backend, vt.config, vt.state,
+                                vt.connectionWatcher, vt.simBackChannel,
+                                new MetricRegistry,
+                                Executors.newSingleThreadExecutor(vtFactory),
+                                () => vtThread.get == Thread.currentThread.getId,
+                                Executors.newCachedThreadPool(factory),
+                                (1 until threads).map(_ =>
+                                    Executors.newSingleThreadExecutor(factory)))
+        }
+
+        scenario("Devices are assigned to partitions by identifier") {
+            Given("A virtual topology with four partitions")
+            val topology = partitionedTopology(4)
+
+            Then("The bridges are spread across the partitions")
+            val ids = (0 until 64).map(_ => UUID.randomUUID)
+            ids.map(id => topology.partitionOf(
+                Key(classTag[SimulationBridge], id)).index).toSet.size should be > 1
+
+            And("The same device is always on the same partition")
+            for (id <- ids) {
+                topology.partitionOf(Key(classTag[SimulationBridge], id)) shouldBe
+                    topology.partitionOf(Key(classTag[SimulationBridge], id))
+            }
+
+            And("The BGP ports are on the first partition")
+            for (id <- ids) {
+                topology.partitionOf(Key(classTag[BgpPort], id))
+                    .index shouldBe 0
+            }
+        }
+
+        scenario("Calls are checked against the partition of the device") {
+            Given("A virtual topology with four partitions")
+            val topology = partitionedTopology(4)
+
+            And("Two bridges on different partitions other than the first")
+            def partitionOf(id: UUID) =
+                topology.partitionOf(Key(classTag[SimulationBridge], id))
+            val ids = Iterator.continually(UUID.randomUUID)
+                .filter(partitionOf(_).index > 0)
+            val partition1 = partitionOf(ids.next())
+            val partition2 = ids.map(partitionOf).find(_ ne partition1).get
+
+            def assertOn(caller: VirtualTopology.Partition,
+                         expected: VirtualTopology.Partition): Try[Unit] = {
+                val promise = Promise[Unit]()
+                caller.execute(makeRunnable {
+                    promise complete Try(topology.assertThread(expected))
+                })
+                ready(promise.future, timeout).value.get
+            }
+
+            Then("A call on the partition of the device succeeds")
+            assertOn(partition1, partition1).isSuccess shouldBe true
+
+            And("A call on another partition fails")
+            assertOn(partition2, partition1).failed.get shouldBe
+                a [DeviceMapperException]
+
+            And("A call from a thread outside the partitions fails")
+            intercept[DeviceMapperException] {
+                topology.assertThread(partition1)
+            }
+            intercept[DeviceMapperException] {
+                topology.assertThread()
+            }
+        }
+
+        scenario("A bridge is built from ports on other partitions") {
+            Given("A virtual topology with four partitions")
+            val topology = partitionedTopology(4)
+
+            And("A bridge with several ports")
+            val portIds = (0 until 8).map(_ => UUID.randomUUID)
+            for (portId <- portIds) {
+                store.create(createBridgePort(id = portId,
+                                              bridgeId = Some(bridgeId)))
+            }
+
+            When("Requesting the bridge")
+            val bridge = result(VirtualTopology.get[SimulationBridge](bridgeId),
+                                timeout)
+
+            Then("The bridge is built")
+            bridge.id shouldBe bridgeId
+
+            And("The ports are available from the topology")
+            for (portId <- portIds) {
+                result(VirtualTopology.get[SimulationPort](portId), timeout)
+                    .id shouldBe portId
+            }
+        }
+    }
 }
@@ -40,15 +40,11 @@ class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null)
         flowCreateCb = cb
 
     override def handoff(context: PacketContext): Long = {
-        if (!context.packetActions.isEmpty) {
+        if (context.packet eq null) {
+            executeState(context)
+        } else if (!context.packetActions.isEmpty) {
             packetsSent.add(context.packet)
-            if (context.stateMessageLength > 0) {
-                val statePacket = prepareStatePacket(context.stateMessage,
-                                                     context.stateMessageLength)
-                if (packetExecCb ne null) {
-                    packetExecCb(statePacket, context.stateActions)
-                }
-            }
+            executeState(context)
             if (packetExecCb ne null) {
                 packetExecCb(context.packet, context.packetActions)
             }
@@ -68,6 +64,15 @@ class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null)
         0
     }
 
+    private def executeState(context: PacketContext): Unit =
+        if (context.stateMessageLength > 0) {
+            val statePacket = prepareStatePacket(context.stateMessage,
+                                                 context.stateMessageLength)
+            if (packetExecCb ne null) {
+                packetExecCb(statePacket, context.stateActions)
+            }
+        }
+
     override def start(): Unit = { }
     override def stop(): Unit = { }
 }
@@ -126,6 +126,7 @@ class RestApiConfig(val conf: Config) extends MinionConfig[Vladimir] {
     def httpsPort = conf.getInt(s"$Prefix.https_port")
     def rootUri = conf.getString(s"$Prefix.root_uri")
     def nsdbLockTimeoutMs = conf.getDuration(s"$Prefix.nsdb_lock_timeout", TimeUnit.MILLISECONDS)
+    def cacheEnabled = conf.getBoolean(s"$Prefix.cache_enabled")
 }
 
 class ContainersConfig(val conf: Config) extends MinionConfig[ContainerService] {
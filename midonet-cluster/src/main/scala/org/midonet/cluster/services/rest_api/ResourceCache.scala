@@ -0,0 +1,371 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.rest_api
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ConcurrentHashMap, CountDownLatch, TimeUnit, TimeoutException}
+import javax.ws.rs.core.EntityTag
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+import scala.util.control.NonFatal
+
+import com.google.inject.{Inject, Singleton}
+import com.google.protobuf.Message
+
+import org.slf4j.LoggerFactory.getLogger
+
+import rx.subscriptions.CompositeSubscription
+import rx.{Observable, Observer}
+
+import org.midonet.cluster.data.storage.TransactionManager.getIdString
+import org.midonet.cluster.data.storage._
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.{RestApiConfig, restApiLog}
+
+object ResourceCache {
+
+    /** The maximum time a write committed by the REST API takes precedence
+      * over the storage notifications for the same object. */
+    final val WriteTimeout = 2 seconds
+
+    /** The maximum number of list responses kept by the cache. */
+    final val MaxResponses = 256
+
+    private final val LoadTimeout = 30 seconds
+
+    private case class Key(clazz: Class[_], id: String)
+
+    /** A write committed by this API server: the written message, or null
+      * if the object was deleted. */
+    private case class Write(message: Message, expires: Long)
+
+    private case class CachedResponse(generation: Long, entity: AnyRef)
+
+}
+
+/**
+ * An in-memory cache of the NSDB topology objects read by the REST API.
+ *
+ * The cache loads the objects of a class on the first read for that class,
+ * and then keeps them up to date from the storage notifications of the
+ * class-wide observable. Objects not yet in the cache, such as objects
+ * created by another API server whose notification did not arrive, are read
+ * from storage.
+ *
+ * To provide read-your-writes consistency, the objects written through the
+ * REST API are applied to the cache when the transaction commits, and take
+ * precedence over the cached version until storage notifies the same
+ * version of the object, or until [[ResourceCache.WriteTimeout]] expires.
+ * The changes that a write causes to other objects, such as updating their
+ * back-references, are visible once storage notifies them.
+ *
+ * Every change to the cache increments a generation number, which is used
+ * to tag and cache the responses of the list requests, such that clients
+ * can revalidate a list with `If-None-Match`.
+ */
+@Singleton
+class ResourceCache @Inject()(backend: MidonetBackend, config: RestApiConfig) {
+
+    import ResourceCache._
+
+    private val log = getLogger(restApiLog)
+    private val store = backend.store
+
+    /** Whether the REST API serves reads from this cache. */
+    val enabled = config.cacheEnabled
+
+    // Distinguishes the tags issued by different server instances, such that
+    // a restarted server does not match a tag with the same generation.
+    private val epoch = System.currentTimeMillis()
+    private val generationCounter = new AtomicLong()
+
+    private val classes = new ConcurrentHashMap[Class[_], ClassCache]()
+    private val writes = new ConcurrentHashMap[Key, Write]()
+    private val responses = new ConcurrentHashMap[String, CachedResponse]()
+
+    /**
+     * The objects of a class, updated from the class observable. The initial
+     * objects are loaded with a single read, without waiting for the
+     * notifications of every object. While loading, deleted objects are
+     * recorded, such that the read does not add them back to the cache.
+     */
+    private class ClassCache(clazz: Class[_]) extends Observer[Observable[_]] {
+
+        val objects = new ConcurrentHashMap[String, Message]()
+        private val deleted = new java.util.HashSet[String]()
+        private var loading = true
+        private val ready = new CountDownLatch(1)
+        @volatile private var failure: Throwable = null
+        private val subscriptions = new CompositeSubscription()
+
+        /** Loads the objects of the class. The load must not hold any lock
+          * while reading from storage, since the storage callbacks update
+          * the cache. */
+        def load(): Unit = {
+            try {
+                subscriptions.add(store.observable(clazz)
+                                       .asInstanceOf[Observable[Observable[_]]]
+                                       .subscribe(this))
+                val all = Await.result(store.getAllLatest(clazz), LoadTimeout)
+                synchronized {
+                    for (obj <- all) {
+                        val message = obj.asInstanceOf[Message]
+                        val id = idOf(message)
+                        if (!deleted.contains(id)) {
+                            objects.putIfAbsent(id, message)
+                        }
+                    }
+                    loading = false
+                    deleted.clear()
+                }
+                changed()
+                log.debug("Cached {} objects of class {}",
+                          Int.box(objects.size), clazz.getSimpleName)
+            } catch {
+                case NonFatal(e) =>
+                    failure = e
+                    classes.remove(clazz, this)
+                    close()
+                    throw e
+            } finally {
+                ready.countDown()
+            }
+        }
+
+        /** Waits for the class to load, and returns this cache. */
+        def await(): ClassCache = {
+            if (!ready.await(LoadTimeout.toMillis, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException(
+                    s"Loading class ${clazz.getSimpleName} timed out")
+            }
+            if (failure ne null) {
+                throw failure
+            }
+            this
+        }
+
+        def close(): Unit = {
+            subscriptions.unsubscribe()
+        }
+
+        override def onNext(observable: Observable[_]): Unit = {
+            var id: String = null
+            subscriptions.add(observable.subscribe(new Observer[Any] {
+                override def onNext(obj: Any): Unit = {
+                    val message = obj.asInstanceOf[Message]
+                    id = idOf(message)
+                    ClassCache.this.synchronized { objects.put(id, message) }
+                    notified(Key(clazz, id), message)
+                }
+                override def onCompleted(): Unit = removed(id)
+                override def onError(e: Throwable): Unit = removed(id)
+            }))
+        }
+
+        override def onCompleted(): Unit = invalidate()
+
+        override def onError(e: Throwable): Unit = {
+            log.warn("Cache for class {} failed", clazz.getSimpleName, e)
+            invalidate()
+        }
+
+        private def removed(id: String): Unit = {
+            if (id eq null) return
+            synchronized {
+                if (loading) deleted.add(id)
+                objects.remove(id)
+            }
+            notified(Key(clazz, id), null)
+        }
+
+        /** Removes this class from the cache, such that the next read loads
+          * the class again. */
+        private def invalidate(): Unit = {
+            classes.remove(clazz, this)
+            close()
+            changed()
+        }
+    }
+
+    /** The current generation of the cache, incremented on every change. */
+    def generation: Long = generationCounter.get
+
+    /** Returns the tag of a response with the given key, for the given
+      * cache generation. */
+    def entityTag(key: String, generation: Long): EntityTag = {
+        new EntityTag(f"$epoch%x-$generation%x-${key.hashCode}%08x")
+    }
+
+    /**
+     * Returns the response with the given key computed for the given cache
+     * generation, or computes and caches the response if the cache changed
+     * since. The generation must be read before the response is computed.
+     */
+    def response[R <: AnyRef](key: String, generation: Long)(f: => R): R = {
+        val cached = responses.get(key)
+        if ((cached ne null) && cached.generation == generation) {
+            return cached.entity.asInstanceOf[R]
+        }
+        val entity = f
+        if (responses.size >= MaxResponses) {
+            responses.clear()
+        }
+        responses.put(key, CachedResponse(generation, entity))
+        entity
+    }
+
+    /** Returns the object with the given class and identifier. */
+    def get[T](clazz: Class[T], id: Any): Future[T] = {
+        try {
+            lookup(clazz, getIdString(clazz, id)) match {
+                case Some(null) =>
+                    Future.failed(new NotFoundException(clazz, id))
+                case Some(obj) => Future.successful(obj.asInstanceOf[T])
+                case None => store.get(clazz, id)
+            }
+        } catch {
+            case NonFatal(e) => Future.failed(e)
+        }
+    }
+
+    /** Returns the objects with the given class and identifiers. */
+    def getAll[T](clazz: Class[T], ids: Seq[_]): Future[Seq[T]] = {
+        try {
+            val objects = new ArrayBuffer[T](ids.size)
+            for (id <- ids) {
+                lookup(clazz, getIdString(clazz, id)) match {
+                    case Some(obj) if obj ne null =>
+                        objects += obj.asInstanceOf[T]
+                    case _ =>
+                        return store.getAllLatest(clazz, ids)
+                }
+            }
+            Future.successful(objects)
+        } catch {
+            case NonFatal(e) => Future.failed(e)
+        }
+    }
+
+    /** Returns all the objects with the given class. */
+    def getAll[T](clazz: Class[T]): Future[Seq[T]] = {
+        try {
+            val cache = classCache(clazz)
+            val now = System.nanoTime()
+            val objects = cache.objects.asScala.toMap
+            val written = writes.asScala.collect {
+                case (key, write) if key.clazz == clazz && write.expires > now =>
+                    key.id -> write.message
+            }
+            val all = (objects ++ written).values.filter(_ ne null)
+            Future.successful(all.toSeq.asInstanceOf[Seq[T]])
+        } catch {
+            case NonFatal(e) => Future.failed(e)
+        }
+    }
+
+    /** Applies to the cache an object created or updated by a committed
+      * transaction. */
+    def written(message: Message): Unit = {
+        write(Key(message.getClass, idOf(message)), message)
+    }
+
+    /** Applies to the cache an object deleted by a committed transaction. */
+    def deleted(clazz: Class[_], id: Any): Unit = {
+        write(Key(clazz, getIdString(clazz, id)), null)
+    }
+
+    /** Applies to the cache the objects written by a committed multi
+      * operation. */
+    def committed(ops: Seq[PersistenceOp]): Unit = ops foreach {
+        case CreateOp(obj) => written(obj.asInstanceOf[Message])
+        case UpdateOp(obj, _) => written(obj.asInstanceOf[Message])
+        case DeleteOp(clazz, id, _) => deleted(clazz, id)
+        case _ =>
+    }
+
+    /** Stops updating the cache. */
+    def close(): Unit = {
+        for (cache <- classes.values.asScala) {
+            cache.close()
+        }
+        classes.clear()
+        writes.clear()
+        responses.clear()
+    }
+
+    /**
+     * Looks up an object in the cache. Returns `Some(null)` if the object
+     * was deleted by a write of this server, or `None` if the cache does not
+     * contain the object.
+     */
+    private def lookup(clazz: Class[_], id: String): Option[Message] = {
+        val key = Key(clazz, id)
+        val write = writes.get(key)
+        if (write ne null) {
+            if (write.expires > System.nanoTime()) {
+                return Some(write.message)
+            }
+            writes.remove(key, write)
+        }
+        Option(classCache(clazz).objects.get(id))
+    }
+
+    /** Returns the cache for the given class, loading the class if this is
+      * the first read, or waiting for a concurrent load to complete. */
+    private def classCache(clazz: Class[_]): ClassCache = {
+        val cache = classes.get(clazz)
+        if (cache ne null) {
+            return cache.await()
+        }
+        val newCache = new ClassCache(clazz)
+        val current = classes.putIfAbsent(clazz, newCache)
+        if (current ne null) {
+            return current.await()
+        }
+        newCache.load()
+        newCache
+    }
+
+    private def write(key: Key, message: Message): Unit = {
+        val expires = System.nanoTime() + WriteTimeout.toNanos
+        writes.put(key, Write(message, expires))
+        changed()
+    }
+
+    /** Removes a write of this server once storage notifies the same
+      * version of the object. */
+    private def notified(key: Key, message: Message): Unit = {
+        val write = writes.get(key)
+        if ((write ne null) && write.message == message) {
+            writes.remove(key, write)
+        }
+        changed()
+    }
+
+    private def changed(): Unit = {
+        generationCounter.incrementAndGet()
+    }
+
+    private def idOf(message: Message): String = {
+        val field = message.getDescriptorForType.findFieldByName("id")
+        getIdString(message.getClass, message.getField(field))
+    }
+
+}
@@ -103,6 +103,7 @@ object Vladimir {
                                                        sequenceDispenser,
                                                        paths))
             bind(classOf[ResourceProvider]).toInstance(resProvider)
+            bind(classOf[ResourceCache])
             bind(classOf[ApplicationResource])
             bind(classOf[Validator])
                 .toProvider(classOf[ValidatorProvider])
@@ -135,6 +136,7 @@ class Vladimir @Inject()(nodeContext: ClusterNode.Context,
     import Vladimir._
 
     private var server: Server = _
+    @volatile private var injector: Injector = _
     private val log = Logger(LoggerFactory.getLogger(restApiLog))
     private val executor = Executors.newCachedThreadPool(
         new NamedThreadFactory("rest-api", isDaemon = true))
@@ -169,6 +171,9 @@ class Vladimir @Inject()(nodeContext: ClusterNode.Context,
     override def doStop(): Unit = {
         try {
             executor.shutdown()
+            if (injector ne null) {
+                injector.getInstance(classOf[ResourceCache]).close()
+            }
             if (server ne null) {
                 server.stop()
                 server.join()
@@ -190,8 +195,10 @@ class Vladimir @Inject()(nodeContext: ClusterNode.Context,
 
         context.addEventListener(new GuiceServletContextListener {
             override def getInjector: Injector = {
-                createInjector(servletModule(backend, executionContext, curator,
-                                             config, reflections, authService, log))
+                injector = createInjector(
+                    servletModule(backend, executionContext, curator, config,
+                                  reflections, authService, log))
+                injector
             }
         })
         val allDispatchers = util.EnumSet.allOf(classOf[DispatcherType])
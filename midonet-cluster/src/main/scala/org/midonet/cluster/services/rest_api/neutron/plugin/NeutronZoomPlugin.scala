@@ -218,7 +218,7 @@ class NeutronZoomPlugin @Inject()(resourceContext: ResourceContext,
         log.debug(s"List ${dtoClass.getSimpleName}: $ids")
 
         val dtos = tryRead {
-            store.getAll(protoClass, ids).await(timeout)
+            store.getAllLatest(protoClass, ids).await(timeout)
                  .map(fromProto(_, dtoClass)).toList
         }
 
@@ -231,7 +231,7 @@ class NeutronZoomPlugin @Inject()(resourceContext: ResourceContext,
         log.debug(s"List all ${dtoClass.getSimpleName}")
 
         val dtos = tryRead {
-            store.getAll(protoClass).await(timeout)
+            store.getAllLatest(protoClass).await(timeout)
                  .map(fromProto(_, dtoClass))
                  .toList
         }
@@ -70,6 +70,7 @@ class IpAddrGroupResource @Inject()(resContext: ResourceContext)
 
 sealed trait IpAddrGroupAddrSubResource {
 
+    protected[this] val resContext: ResourceContext
     protected[this] val store: Storage
     protected[this] val ipAddrGroupId: UUID
     protected[this] val uriInfo: UriInfo
@@ -84,6 +85,14 @@ sealed trait IpAddrGroupAddrSubResource {
                                             ipAddrGroupId)
     }
 
+    /** Updates the IP address group, and applies the update to the cache
+      * of the REST API, such that the following reads return it. */
+    protected[this] def updateIpg(ipg: Topology.IPAddrGroup): Unit = {
+        store.update(ipg)
+        val cache = resContext.cache
+        if ((cache ne null) && cache.enabled) cache.written(ipg)
+    }
+
     protected[this] def extractAddresses(from: Topology.IPAddrGroup.IPAddrPorts)
     : IpAddrGroupAddr = {
         val res = toIpGroupAddr(toIPAddr(from.getIpAddress))
@@ -103,7 +112,8 @@ sealed trait IpAddrGroupAddrSubResource {
 
 @RequestScoped
 class IpAddrGroupAddrVersionResource @Inject()(
-          protected[this] val ipAddrGroupId: UUID, resContext: ResourceContext)
+          protected[this] val ipAddrGroupId: UUID,
+          protected[this] val resContext: ResourceContext)
 extends IpAddrGroupAddrSubResource {
 
     protected[this] val store = resContext.backend.store
@@ -147,9 +157,9 @@ extends IpAddrGroupAddrSubResource {
         }
         MidonetResource.tryWrite {
             if (doUpdate) {
-                store.update(ipg.toBuilder.clearIpAddrPorts()
-                                          .addAllIpAddrPorts(newList)
-                                          .build())
+                updateIpg(ipg.toBuilder.clearIpAddrPorts()
+                                       .addAllIpAddrPorts(newList)
+                                       .build())
             }
             MidonetResource.OkNoContentResponse
         }
@@ -159,7 +169,7 @@ extends IpAddrGroupAddrSubResource {
 
 @RequestScoped
 class IpAddrGroupAddrResource @Inject()(protected[this] val ipAddrGroupId: UUID,
-                                        resContext: ResourceContext)
+                                        protected[this] val resContext: ResourceContext)
     extends IpAddrGroupAddrSubResource {
 
     protected[this] val store = resContext.backend.store
@@ -192,7 +202,7 @@ class IpAddrGroupAddrResource @Inject()(protected[this] val ipAddrGroupId: UUID,
             toIPAddr(p.getIpAddress).toString == addr.addr
         ) match {
             case None =>
-                store.update(ipg.toBuilder.addIpAddrPorts(
+                updateIpg(ipg.toBuilder.addIpAddrPorts(
                     IPAddrPorts.newBuilder()
                         .setIpAddress(canonicalAddr)
                         .build()
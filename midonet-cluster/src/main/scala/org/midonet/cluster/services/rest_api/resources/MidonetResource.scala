@@ -18,15 +18,17 @@ package org.midonet.cluster.services.rest_api.resources
 
 import java.lang.annotation.Annotation
 import java.net.URI
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.{ConcurrentModificationException, List => JList, Set => JSet}
+import javax.servlet.http.HttpServletResponse
 import javax.validation.{ConstraintViolation, Validator}
 import javax.ws.rs._
 import javax.ws.rs.core.Response.Status._
 import javax.ws.rs.core._
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
 import scala.concurrent._
 import scala.concurrent.duration._
 import scala.reflect.ClassTag
@@ -47,6 +49,7 @@ import org.midonet.cluster.rest_api._
 import org.midonet.cluster.rest_api.annotation.{AllowCreate, AllowGet, AllowList, AllowUpdate}
 import org.midonet.cluster.rest_api.models.UriResource
 import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.services.rest_api.ResourceCache
 import org.midonet.cluster.services.rest_api.resources.MidonetResource._
 import org.midonet.cluster.util.SequenceDispenser
 import org.midonet.cluster.util.logging.ProtoTextPrettifier.makeReadable
@@ -61,6 +64,9 @@ object MidonetResource {
 
     private final val lockOpNumber = new AtomicInteger(1)
 
+    private final val filteredLists =
+        new ConcurrentHashMap[Class[_], java.lang.Boolean]()
+
     final val Timeout = 30 seconds
     final val OkResponse = Response.ok().build()
     final val OkNoContentResponse = Response.noContent().build()
@@ -157,6 +163,19 @@ object MidonetResource {
         }
     }
 
+    /** Returns whether the resource class overrides the list filter, which
+      * may add data that is not in the cache, such as the object state. */
+    private def filtersList(clazz: Class[_]): Boolean = {
+        var filters = filteredLists.get(clazz)
+        if (filters eq null) {
+            filters = Boolean.box(
+                clazz.getMethod("listFilter", classOf[Seq[_]])
+                     .getDeclaringClass != classOf[MidonetResource[_]])
+            filteredLists.putIfAbsent(clazz, filters)
+        }
+        filters.booleanValue()
+    }
+
     protected def tryResponse(handler: PartialFunction[Response, Response],
                               catcher: PartialFunction[Throwable, Response])
                              (f: => Response): Response = {
@@ -169,7 +188,10 @@ object MidonetResource {
                                           lockFactory: ZookeeperLockFactory,
                                           uriInfo: UriInfo,
                                           validator: Validator,
-                                          seqDispenser: SequenceDispenser)
+                                          seqDispenser: SequenceDispenser,
+                                          cache: ResourceCache = null,
+                                          request: Request = null,
+                                          response: HttpServletResponse = null)
 
 }
 
@@ -193,6 +215,8 @@ abstract class MidonetResource[T >: Null <: UriResource]
     protected val store = resContext.backend.store
     protected val stateStore = resContext.backend.stateStore
     protected val uriInfo = resContext.uriInfo
+    private val cache = resContext.cache
+    private val cacheEnabled = (cache ne null) && cache.enabled
 
     /* Determines whether a zookeeper lock is needed when performing
        CRUD operations. This variable can be overridden in subclasses. */
@@ -200,6 +224,11 @@ abstract class MidonetResource[T >: Null <: UriResource]
 
     class ResourceTransaction(val tx: Transaction) {
 
+        // The objects written by this transaction, applied to the cache
+        // when the transaction commits.
+        private val written = new ArrayBuffer[Message]
+        private val deleted = new ArrayBuffer[(Class[_ <: Message], Any)]
+
         def get[U >: Null <: UriResource](clazz: Class[U], id: Any): U = tryRead {
             fromProto(tx.get(UriResource.getZoomClass(clazz), id), clazz)
         }
@@ -219,22 +248,29 @@ abstract class MidonetResource[T >: Null <: UriResource]
             val message = toProto(resource)
             log.debug("TX CREATE: {}", makeReadable(message))
             tx.create(message)
+            if (cacheEnabled) written += message
         }
 
         def update[U >: Null <: UriResource](resource: U): Unit = {
             val message = toProto(resource)
             log.debug("TX UPDATE: {}", makeReadable(message))
             tx.update(message, null)
+            if (cacheEnabled) written += message
         }
 
         def delete(clazz: Class[_ <: UriResource], id: Any): Unit = {
             log.debug("TX DELETE: {}: {}", UriResource.getZoomClass(clazz),
                       id.asInstanceOf[AnyRef])
             tx.delete(UriResource.getZoomClass(clazz), id, ignoresNeo = true)
+            if (cacheEnabled) deleted += ((UriResource.getZoomClass(clazz), id))
         }
 
         def commit(): Unit = {
             tx.commit()
+            if (cacheEnabled) {
+                written foreach cache.written
+                for ((clazz, id) <- deleted) cache.deleted(clazz, id)
+            }
         }
 
     }
@@ -251,6 +287,9 @@ abstract class MidonetResource[T >: Null <: UriResource]
     def list(@HeaderParam("Accept") accept: String): JList[T] = {
         validateMediaType(accept, getAnnotation(classOf[AllowList]).value())
         val ids = listIds
+        if ((ids eq null) && cacheEnabled && !filtersList(getClass)) {
+            return cachedList(accept)
+        }
         val list = if (ids eq null) {
             listFilter(listResources(tag.runtimeClass.asInstanceOf[Class[T]]))
         } else {
@@ -259,6 +298,29 @@ abstract class MidonetResource[T >: Null <: UriResource]
         list.asJava
     }
 
+    /**
+      * Lists all resources from the cache. The response is tagged with the
+      * cache generation, and it is computed again only when the cache
+      * changes. If the client already has the current list, the method
+      * returns 304 Not Modified. Resources with a list filter are not
+      * cached as a response, since the filter may read data that does not
+      * change the cache generation.
+      */
+    private def cachedList(accept: String): JList[T] = {
+        val key = s"${uriInfo.getRequestUri} $accept"
+        val generation = cache.generation
+        val etag = cache.entityTag(key, generation)
+        val notModified = resContext.request.evaluatePreconditions(etag)
+        if (notModified ne null) {
+            throw new WebApplicationException(notModified.tag(etag).build())
+        }
+        resContext.response.setHeader(HttpHeaders.ETAG, etag.toString)
+        cache.response(key, generation) {
+            listFilter(listResources(tag.runtimeClass.asInstanceOf[Class[T]]))
+                .asJava
+        }
+    }
+
     @POST
     def create(t: T, @HeaderParam("Content-Type") contentType: String)
     : Response = {
@@ -353,37 +415,46 @@ abstract class MidonetResource[T >: Null <: UriResource]
         DefaultCatcher
 
 
+    /** Writes the given operations to storage outside a transaction, and
+      * applies them to the cache, such that the following reads return the
+      * written objects. */
+    protected def multi(ops: Seq[PersistenceOp]): Unit = {
+        store.multi(ops)
+        if (cacheEnabled) cache.committed(ops)
+    }
+
     protected def transaction(): ResourceTransaction = {
         new ResourceTransaction(store.transaction())
     }
 
     protected def listResources[U >: Null <: UriResource](clazz: Class[U])
     : Seq[U] = {
-        store.getAll(UriResource.getZoomClass(clazz))
-             .map(_.map(fromProto(_, clazz)))
-             .getOrThrow
+        val zoomClass = UriResource.getZoomClass(clazz)
+        val objects = if (cacheEnabled) cache.getAll(zoomClass)
+                      else store.getAllLatest(zoomClass)
+        objects.map(_.map(fromProto(_, clazz))).getOrThrow
     }
 
     protected def listResources[U >: Null <: UriResource](clazz: Class[U],
                                                           ids: Seq[Any])
     : Seq[U] = {
-        store.getAll(UriResource.getZoomClass(clazz), ids)
-             .map(_.map(fromProto(_, clazz)))
-             .getOrThrow
+        getResources(clazz, ids)
     }
 
     protected def getResource[U >: Null <: UriResource](clazz: Class[U], id: Any)
     : U = {
-        store.get(UriResource.getZoomClass(clazz), id)
-             .map(fromProto(_, clazz))
-             .getOrThrow
+        val zoomClass = UriResource.getZoomClass(clazz)
+        val obj = if (cacheEnabled) cache.get(zoomClass, id)
+                  else store.get(zoomClass, id)
+        obj.map(fromProto(_, clazz)).getOrThrow
     }
 
     protected def getResources[U >: Null <: UriResource](clazz: Class[U], ids: Seq[Any])
     : Seq[U] = {
-        store.getAll(UriResource.getZoomClass(clazz), ids)
-             .map { r => r.map(fromProto(_, clazz)) }
-             .getOrThrow
+        val zoomClass = UriResource.getZoomClass(clazz)
+        val objects = if (cacheEnabled) cache.getAll(zoomClass, ids)
+                      else store.getAllLatest(zoomClass, ids)
+        objects.map { r => r.map(fromProto(_, clazz)) }.getOrThrow
     }
 
     protected def getResourceState[U >: Null <: UriResource](host: String,
@@ -105,7 +105,7 @@ class TunnelZoneResource @Inject()(resContext: ResourceContext)
 
     private def throwIfTunnelZoneNameUsed(tz: TunnelZone): Unit = {
         val store = resContext.backend.store
-        val nameCollision = store.getAll(classOf[Topology.TunnelZone])
+        val nameCollision = store.getAllLatest(classOf[Topology.TunnelZone])
                                  .getOrThrow.find ( _.getName == tz.name )
         if (nameCollision.nonEmpty) {
             throw new ConflictHttpException(
@@ -151,7 +151,7 @@ class VtepBindingResource @Inject()(vtepId: UUID, resContext: ResourceContext,
                 // vxlan and network ids.
                 findVxPortForVtep(network, vtepId) match {
                     case Some(p) =>
-                        store.update(newVtep)
+                        multi(Seq(UpdateOp(newVtep)))
                     case None =>
                         val vni = if (!network.hasVni) {
                             seqDispenser.next(VxgwVni).getOrThrow
@@ -164,7 +164,7 @@ class VtepBindingResource @Inject()(vtepId: UUID, resContext: ResourceContext,
                                        .setVni(vni)
                                        .addVxlanPortIds(p.getId)
                                        .build()
-                        store.multi (
+                        multi(
                             Seq(UpdateOp(newVtep), UpdateOp(n), CreateOp(p))
                         )
                 }
@@ -231,7 +231,7 @@ class VtepBindingResource @Inject()(vtepId: UUID, resContext: ResourceContext,
     : Option[Topology.Port] = {
         val protoVtepId = uuidToProto(vtepId)
         val ids = n.getVxlanPortIdsList
-        val ports = store.getAll(classOf[Topology.Port], ids).getOrThrow
+        val ports = store.getAllLatest(classOf[Topology.Port], ids).getOrThrow
         ports.find { _.getVtepId == protoVtepId }
     }
 
@@ -298,7 +298,7 @@ class VtepBindingResource @Inject()(vtepId: UUID, resContext: ResourceContext,
         }
 
         ops.add(UpdateOp(newVtep))
-        store.multi(ops)
+        multi(ops)
         OkNoContentResponse
     }
 
@@ -30,7 +30,7 @@ import org.midonet.cluster.services.topology.common.ProtocolFactory.State
 import org.midonet.cluster.services.topology.common.TopologyMappings.klassOf
 import org.midonet.cluster.services.topology.server.ServerState.SessionInfo
 import org.midonet.cluster.util.UUIDUtil.fromProto
-import org.midonet.util.functors.makeAction0
+import org.midonet.util.functors.{makeAction0, makeFunc1}
 
 import scala.concurrent.Promise
 
@@ -104,9 +104,11 @@ final case class Active(s: SessionInfo) extends State {
                     session.noOp(makeNAck(m.getGet.getReqId, "invalid type"))
                 case Some(k) if m.getGet.hasId =>
                     session.watch(fromProto(m.getGet.getId), k,
-                                  fromProto(m.getGet.getReqId))
+                                  fromProto(m.getGet.getReqId),
+                                  m.getGet.getDeltas)
                 case Some(k) =>
-                    session.watchAll(k, fromProto(m.getGet.getReqId))
+                    session.watchAll(k, fromProto(m.getGet.getReqId),
+                                     m.getGet.getDeltas)
             }
             this
         case m: Request if m.hasGet =>
@@ -174,6 +176,10 @@ class ServerProtocolFactory(private val sMgr: SessionInventory)
     extends ProtocolFactory {
     private val log = LoggerFactory.getLogger(topologyApiServerProtocolFactoryLog)
 
+    /* Updates sent to the client use the encoding shared by all sessions */
+    private val wireFormat =
+        makeFunc1 { rsp: Response => sMgr.updates.wireFormat(rsp) }
+
     /**
      * Return the initial state and the future subscription to the client's
      * session.
@@ -189,6 +195,7 @@ class ServerProtocolFactory(private val sMgr: SessionInventory)
                 val completionAction =
                     makeAction0 {subscription.foreach({_.unsubscribe()})}
                 val subs = session.observable(start)
+                                  .map[Response](wireFormat)
                                   .doOnCompleted(completionAction)
                                   .subscribe(out)
                 ready.success(session)
@@ -35,12 +35,15 @@ trait Session {
      /** Express interest in an element of the topology. ACK is not required
       * because the data itself will serve as the ACK, given that subscriptions
       * guarantee the latest state of the entity will always be streamed as
-      * soon as the subscription is made. */
-    def watch[T <: Message](id: UUID, ofType: Class[T], reqId: UUID)
+      * soon as the subscription is made. With deltas, the updates after the
+      * first one only contain the changes from the previous update. */
+    def watch[T <: Message](id: UUID, ofType: Class[T], reqId: UUID,
+                            deltas: Boolean = false)
     /** Express interest in all the entities of the given type
       * The ACK is necessary so that we can inform the client that the
       * full subscription was received */
-    def watchAll[T <: Message](ofType: Class[T], reqId: UUID)
+    def watchAll[T <: Message](ofType: Class[T], reqId: UUID,
+                               deltas: Boolean = false)
     /** Cancel interest in an element of the topology. ACK confirms that the
       * unsubscription happened. */
     def unwatch[T <: Message](id: UUID, ofType: Class[T], reqId: UUID)
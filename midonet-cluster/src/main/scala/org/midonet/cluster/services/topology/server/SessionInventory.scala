@@ -38,7 +38,7 @@ import org.midonet.cluster.topologyApiSessionInventoryLog
 import org.midonet.cluster.data.storage.{NotFoundException, Storage}
 import org.midonet.cluster.models.Commons
 import org.midonet.cluster.models.Topology._
-import org.midonet.cluster.rpc.Commands.Response.{Info, Redirect, Snapshot, Update}
+import org.midonet.cluster.rpc.Commands.Response.{Delta, Info, Redirect, Snapshot, Update}
 import org.midonet.cluster.rpc.Commands.{Response, ResponseType}
 import org.midonet.cluster.services.topology.common.TopologyMappings.typeOf
 import org.midonet.cluster.util.UUIDUtil.{fromProto, toProto}
@@ -58,8 +58,38 @@ object SessionInventory {
         extends TimeoutException("session expired")
 
     /** generate an update response */
-    def updateBuilder(m: Message, reqId: UUID = null): Response.Builder = {
-        val u: Update = m match {
+    def updateBuilder(m: Message, reqId: UUID = null): Response.Builder =
+        updateBuilder(m, updateOf(m), reqId)
+
+    /** generate an update response for a previously built update */
+    def updateBuilder(m: Message, u: Update, reqId: UUID): Response.Builder = {
+        val objInfo = extractId(m)
+        val response = Response.newBuilder()
+                               .setType(ResponseType.UPDATE)
+                               .setObjType(typeOf(objInfo.ofType).get)
+                               .setObjId(toProto(objInfo.id))
+                               .setUpdate(u)
+        if (reqId != null)
+            response.setReqId(toProto(reqId))
+        response
+    }
+
+    /** generate a delta response */
+    def deltaBuilder(m: Message, d: Delta, reqId: UUID): Response.Builder = {
+        val objInfo = extractId(m)
+        val response = Response.newBuilder()
+                               .setType(ResponseType.DELTA)
+                               .setObjType(typeOf(objInfo.ofType).get)
+                               .setObjId(toProto(objInfo.id))
+                               .setDelta(d)
+        if (reqId != null)
+            response.setReqId(toProto(reqId))
+        response
+    }
+
+    /** generate the update payload for a message */
+    def updateOf(m: Message): Update = {
+        m match {
             case h: BgpNetwork => Update.newBuilder().setBgpNetwork(h).build()
             case h: BgpPeer => Update.newBuilder().setBgpPeer(h).build()
             case h: Chain => Update.newBuilder().setChain(h).build()
@@ -88,15 +118,6 @@ object SessionInventory {
             case h: Vtep => Update.newBuilder().setVtep(h).build()
             case _ => throw new UnknownTopologyEntityException
         }
-        val objInfo = extractId(m)
-        val response = Response.newBuilder()
-                               .setType(ResponseType.UPDATE)
-                               .setObjType(typeOf(objInfo.ofType).get)
-                               .setObjId(toProto(objInfo.id))
-                               .setUpdate(u)
-        if (reqId != null)
-            response.setReqId(toProto(reqId))
-        response
     }
 
     /** generate a deletion response */
@@ -185,8 +206,13 @@ object SessionInventory {
  *
  * @param reqId is the request originating this stream (used for notifications
  *              to user)
+ * @param updates is the cache of updates shared by all sessions
+ * @param deltas indicates whether the updates following the first one are
+ *               sent as deltas from the previous update
  */
-protected class StorageTransformer(val reqId: UUID)
+protected class StorageTransformer(val reqId: UUID,
+                                   val updates: UpdateCache,
+                                   val deltas: Boolean = false)
     extends Observable.Transformer[Message, Response.Builder] {
 
     override def call(s: Observable[Message])
@@ -233,10 +259,14 @@ protected class StorageTransformer(val reqId: UUID)
         import org.midonet.cluster.services.topology.server.SessionInventory._
 
         private var oId: ObservableId = null
+        private var last: Message = null
+        private var version = 0L
 
         override def onCompleted(): Unit = {
-            if (oId != null)
+            if (oId != null) {
+                updates.remove(oId)
                 observer.onNext(deletionBuilder(oId.id, oId.ofType, reqId))
+            }
             observer.onCompleted()
         }
         override def onError(exc: Throwable): Unit = exc match {
@@ -250,7 +280,19 @@ protected class StorageTransformer(val reqId: UUID)
         override def onNext(data: Message): Unit = {
             if (oId == null)
                 oId = extractId(data)
-            observer.onNext(updateBuilder(data, reqId))
+            val update = updates.update(data)
+            if (deltas) {
+                val delta =
+                    if (last ne null) updates.delta(oId, last, data) else null
+                last = data
+                version += 1
+                val response =
+                    if (delta ne null) deltaBuilder(data, delta, reqId)
+                    else updateBuilder(data, update, reqId)
+                observer.onNext(response.setObjVersion(version))
+            } else {
+                observer.onNext(updateBuilder(data, update, reqId))
+            }
         }
     }
 }
@@ -351,6 +393,10 @@ class SessionInventory(private val store: Storage,
     private val bufferSize: Int = SessionInventory.SESSION_BUFFER_SIZE) {
     private val log = LoggerFactory.getLogger(topologyApiSessionInventoryLog)
 
+    /** The updates shared by all sessions, such that an update to an object
+      * watched by many sessions is built and encoded once. */
+    val updates = new UpdateCache
+
     /** A class that encapsulates the funnel of a bunch of individual low
       * level subscriptions into a single channel, anend exposes an observable
       * that can at most be subscribed by a single Observer at a given
@@ -471,7 +517,7 @@ class SessionInventory(private val store: Storage,
             // Get the item from the storage, and forward
             store.get(ofType, id).onComplete {
                 case Success(m) =>
-                    funnel.inject(updateBuilder(m, reqId))
+                    funnel.inject(updateBuilder(m, updates.update(m), reqId))
                 case Failure(exc) => exc match {
                     case nf: NotFoundException =>
                         funnel.inject(
@@ -504,13 +550,15 @@ class SessionInventory(private val store: Storage,
         }
 
         override def watch[M <: Message](id: UUID, ofType: Class[M],
-                                         reqId: UUID): Unit = {
+                                         reqId: UUID, deltas: Boolean)
+            : Unit = {
             log.debug("Watch: " + id + " ({})",  ofType)
             val obsId = ObservableId(id, ofType)
             val src = store.observable(ofType.asInstanceOf[Class[Message]], id)
+                           .compose(new StorageTransformer(reqId, updates,
+                                                           deltas))
             try {
-                val oldReq = funnel.add(
-                    obsId, src.compose(new StorageTransformer(reqId)), reqId)
+                val oldReq = funnel.add(obsId, src, reqId)
                 if (reqId == oldReq)
                     funnel.inject(ackBuilder(accept = true, reqId))
                 else
@@ -532,13 +580,14 @@ class SessionInventory(private val store: Storage,
         }
 
         /** Express interest in all the entities of the given type */
-        override def watchAll[M <: Message](ofType: Class[M], reqId: UUID)
-            : Unit = {
+        override def watchAll[M <: Message](ofType: Class[M], reqId: UUID,
+                                            deltas: Boolean): Unit = {
             log.debug("WatchAll: {}", ofType)
             val obsId = ObservableId(null, ofType)
             val src: Observable[Observable[Response.Builder]] =
                 store.observable(ofType.asInstanceOf[Class[Message]]).map(
-                    makeFunc1 {_.compose(new StorageTransformer(reqId))}
+                    makeFunc1 {_.compose(new StorageTransformer(reqId, updates,
+                                                                 deltas))}
                 )
             try {
                 val oldReq = funnel.add(obsId, Observable.merge(src), reqId)
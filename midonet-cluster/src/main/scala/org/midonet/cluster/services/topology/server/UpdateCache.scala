@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.server
+
+import java.util.concurrent.ConcurrentHashMap
+
+import com.google.protobuf.{ByteString, Message, UnknownFieldSet}
+
+import org.midonet.cluster.rpc.Commands.Response
+import org.midonet.cluster.rpc.Commands.Response.{Delta, Update}
+import org.midonet.cluster.services.topology.common.TopologyDeltas
+import org.midonet.cluster.services.topology.common.TopologyMappings.klassOf
+import org.midonet.cluster.services.topology.server.SessionInventory.{ObservableId, extractId, updateOf}
+import org.midonet.cluster.util.UUIDUtil.fromProto
+
+object UpdateCache {
+
+    /** The update for a given version of an object, and its encoding, which
+      * is computed once when first needed. The entry also keeps the delta
+      * from the previous version of the object, computed once for all the
+      * sessions requesting deltas. */
+    private final class Entry(val message: Message, val update: Update,
+                              val previous: Message) {
+        @volatile private var bytes: ByteString = null
+        @volatile private var diff: Option[Delta] = null
+
+        def encoded: ByteString = {
+            var b = bytes
+            if (b eq null) {
+                b = update.toByteString
+                bytes = b
+            }
+            b
+        }
+
+        def delta: Delta = {
+            var d = diff
+            if (d eq null) {
+                d = Option(TopologyDeltas.diff(previous, message))
+                diff = d
+            }
+            d.orNull
+        }
+    }
+
+}
+
+/**
+ * A cache of the topology updates shared by all the sessions of a session
+ * inventory. The storage observables emit the same message instance to every
+ * session watching an object, such that the instance identifies a version of
+ * the object. The cache builds the [[Update]] for the latest version of each
+ * object once, and encodes it once for all the sessions that send it.
+ *
+ * Because responses carry per-session fields, such as the request identifier
+ * and the sequence number, only the update payload is shared: the
+ * [[UpdateCache.wireFormat()]] method replaces the update of an outgoing
+ * response with its pre-encoded bytes, which are written as is by the
+ * protocol buffer encoder.
+ */
+class UpdateCache {
+
+    import UpdateCache._
+
+    private val entries = new ConcurrentHashMap[ObservableId, Entry]()
+
+    /** Returns the update for the given object, built once per version. */
+    def update(m: Message): Update = {
+        val id = extractId(m)
+        if (id eq null) {
+            return updateOf(m)
+        }
+        val entry = entries.get(id)
+        if ((entry ne null) && (entry.message eq m)) {
+            entry.update
+        } else {
+            val previous = if (entry ne null) entry.message else null
+            val newEntry = new Entry(m, updateOf(m), previous)
+            entries.put(id, newEntry)
+            newEntry.update
+        }
+    }
+
+    /**
+     * Returns the delta between two versions of the given object, or null if
+     * the delta is not smaller than the object. The delta is shared by the
+     * sessions when the versions are the latest two seen by the cache.
+     */
+    def delta(id: ObservableId, previous: Message, m: Message): Delta = {
+        val entry = entries.get(id)
+        if ((entry ne null) && (entry.message eq m) &&
+            (entry.previous eq previous)) {
+            entry.delta
+        } else {
+            TopologyDeltas.diff(previous, m)
+        }
+    }
+
+    /** Discards the update of a deleted object. */
+    def remove(id: ObservableId): Unit = {
+        entries.remove(id)
+    }
+
+    /** Returns the number of cached updates. */
+    def size: Int = entries.size()
+
+    /**
+     * Returns a response equivalent on the wire to the given one, where the
+     * update payload is replaced by its shared encoding, if the update is the
+     * latest cached version of the object. Otherwise, the method returns the
+     * same response.
+     */
+    def wireFormat(rsp: Response): Response = {
+        if (!rsp.hasUpdate || !rsp.hasObjId || !rsp.hasObjType) {
+            return rsp
+        }
+        val entry = klassOf(rsp.getObjType) match {
+            case Some(clazz) =>
+                entries.get(ObservableId(fromProto(rsp.getObjId), clazz))
+            case None => null
+        }
+        if ((entry eq null) || (entry.update ne rsp.getUpdate)) {
+            return rsp
+        }
+        val payload = UnknownFieldSet.Field.newBuilder()
+                                           .addLengthDelimited(entry.encoded)
+                                           .build()
+        rsp.toBuilder
+           .clearUpdate()
+           .setUnknownFields(UnknownFieldSet.newBuilder()
+                                 .addField(Response.UPDATE_FIELD_NUMBER, payload)
+                                 .build())
+           .build()
+    }
+}
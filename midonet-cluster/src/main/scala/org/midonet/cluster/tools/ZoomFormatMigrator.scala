@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.tools
+
+import scala.util.control.NonFatal
+
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.retry.ExponentialBackoffRetry
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper
+import org.midonet.cluster.services.{MidonetBackend, MidonetBackendService}
+import org.midonet.cluster.storage.MidonetBackendConfig
+import org.midonet.conf.{HostIdGenerator, MidoNodeConfigurator}
+
+/**
+ * Stand-alone application that rewrites the topology objects stored in the
+ * protocol buffer text format to the binary format, under the current version
+ * of the ZOOM storage. The migration can run while the MidoNet nodes are
+ * online: the objects are read in either format, and an object modified
+ * concurrently is migrated again. The nodes should be configured with
+ * `zookeeper.binary_serialization` before running the migration, otherwise
+ * they keep writing the text format for the objects they update.
+ */
+object ZoomFormatMigrator extends App {
+    private val log = LoggerFactory.getLogger(this.getClass)
+
+    MidonetBackend.isCluster = true
+
+    private val configurator =
+        if (args.length > 0) MidoNodeConfigurator(args(0))
+        else MidoNodeConfigurator(MidoNodeConfigurator.bootstrapConfig())
+    private val config = new MidonetBackendConfig(
+        configurator.runtimeConfig(HostIdGenerator.getHostId))
+
+    private val curator = CuratorFrameworkFactory.newClient(
+        config.hosts,
+        new ExponentialBackoffRetry(config.retryMs.toInt, config.maxRetries))
+    private val backend = new MidonetBackendService(config, curator, curator,
+                                                    metricRegistry = null)
+
+    private val code = try {
+        backend.startAsync().awaitRunning()
+        val count = backend.store.asInstanceOf[ZookeeperObjectMapper]
+                                 .migrateToBinary()
+        log.info(s"Migrated $count objects to the binary format")
+        0
+    } catch {
+        case NonFatal(e) =>
+            log.error("Failed to migrate the objects to the binary format", e)
+            1
+    } finally {
+        if (backend.isRunning)
+            backend.stopAsync().awaitTerminated()
+    }
+    System.exit(code)
+}
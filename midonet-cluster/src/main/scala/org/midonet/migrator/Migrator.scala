@@ -175,6 +175,8 @@ object Migrator extends App {
               |    base_retry = ${opts.baseRetryTime()}s
               |    base_retry_type = "duration"
               |    buffer_size = ${opts.bufferSize() * 1024}
+              |    binary_serialization = false
+              |    optimistic_transactions = false
               |}
             """.stripMargin)
 
@@ -18,6 +18,7 @@ package org.midonet.cluster.rest_api.filter;
 import java.net.URI;
 
 import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.test.framework.AppDescriptor;
 import com.sun.jersey.test.framework.JerseyTest;
 
 import org.junit.Before;
@@ -60,6 +61,10 @@ public class TestIpAddrGroup {
             super(FuncTest.appDesc);
         }
 
+        protected TestCrud(AppDescriptor desc) {
+            super(desc);
+        }
+
         @Before
         public void before() {
 
@@ -244,4 +249,16 @@ public class TestIpAddrGroup {
             return addrs;
         }
     }
+
+    /**
+     * Runs the same tests with the API serving reads from its topology
+     * cache, such that the reads following the address writes must return
+     * them.
+     */
+    public static class TestCrudCacheEnabled extends TestCrud {
+
+        public TestCrudCacheEnabled() {
+            super(FuncTest.appDescCacheEnabled);
+        }
+    }
 }
@@ -24,6 +24,8 @@ import javax.ws.rs.core.Response.Status;
 import scala.concurrent.Await;
 import scala.concurrent.duration.Duration;
 
+import com.sun.jersey.test.framework.AppDescriptor;
+
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -89,6 +91,10 @@ public class TestVtep extends RestApiTestBase {
         super(FuncTest.appDesc);
     }
 
+    protected TestVtep(AppDescriptor desc) {
+        super(desc);
+    }
+
     private UUID goodTunnelZone = null;
     private UUID badTunnelZone = null;
 
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.rest_api.network;
+
+import org.midonet.cluster.rest_api.rest_api.FuncTest;
+
+/**
+ * Runs the VTEP tests with the API serving reads from its topology cache,
+ * such that every read following a binding write must return the write.
+ */
+public class TestVtepCacheEnabled extends TestVtep {
+
+    public TestVtepCacheEnabled() {
+        super(FuncTest.appDescCacheEnabled);
+    }
+}
@@ -73,6 +73,7 @@ public class FuncTest {
     public static final String ZK_ROOT_MIDOLMAN = "/test/midolman";
 
     public final static String BASE_URI_CONFIG = "rest_api-base_uri";
+    public final static String CACHE_ENABLED_CONFIG = "rest_api-cache_enabled";
     public final static String CONTEXT_PATH = "/test";
     public final static String OVERRIDE_BASE_URI =
             "http://127.0.0.1:9998" + CONTEXT_PATH;
@@ -108,6 +109,7 @@ public class FuncTest {
         extends GuiceServletContextListener {
 
         private TestingServer testZk;
+        private boolean cacheEnabled = false;
 
         public VladimirServletContextListener () {
             try {
@@ -121,6 +123,8 @@ public class FuncTest {
 
         @Override
         public void contextInitialized(ServletContextEvent sce) {
+            cacheEnabled = Boolean.parseBoolean(
+                sce.getServletContext().getInitParameter(CACHE_ENABLED_CONFIG));
             super.contextInitialized(sce);
         }
 
@@ -151,6 +155,7 @@ public class FuncTest {
                     "zookeeper.root_key = " + ZK_ROOT_MIDOLMAN + "\n" +
                     "cluster.rest_api.root_uri = " + CONTEXT_PATH + "\n" +
                     "cluster.rest_api.nsdb_lock_timeout = 30s\n" +
+                    "cluster.rest_api.cache_enabled = " + cacheEnabled + "\n" +
                     "cluster.auth.provider_class = \"org.midonet.cluster.auth.MockAuthService\" "
                 )
             );
@@ -198,6 +203,9 @@ public class FuncTest {
     public static final AppDescriptor appDescOverrideBaseUri =
         getBuilder().contextParam(BASE_URI_CONFIG, OVERRIDE_BASE_URI).build();
 
+    public static final AppDescriptor appDescCacheEnabled =
+        getBuilder().contextParam(CACHE_ENABLED_CONFIG, "true").build();
+
     public static UUID getUuidFromLocation(URI location) {
         if (location == null) {
             return null;
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.rest_api
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+import com.typesafe.config.ConfigFactory
+
+import org.junit.runner.RunWith
+import org.mockito.Mockito.when
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.mock.MockitoSugar
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.cluster.RestApiConfig
+import org.midonet.cluster.data.storage.{CreateOp, DeleteOp, InMemoryStorage, NotFoundException, UpdateOp}
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.topology.TopologyBuilder
+
+@RunWith(classOf[JUnitRunner])
+class ResourceCacheTest extends FeatureSpec with Matchers with GivenWhenThen
+                        with BeforeAndAfter with MockitoSugar
+                        with TopologyBuilder {
+
+    private val timeout = 5 seconds
+    private var store: InMemoryStorage = _
+    private var cache: ResourceCache = _
+
+    before {
+        store = new InMemoryStorage
+        MidonetBackend.setupBindings(store, store)
+        val backend = mock[MidonetBackend]
+        when(backend.store).thenReturn(store)
+        val config = new RestApiConfig(ConfigFactory.parseString(
+            "cluster.rest_api.cache_enabled : true"))
+        cache = new ResourceCache(backend, config)
+    }
+
+    after {
+        cache.close()
+    }
+
+    private def get(id: Any): Network = {
+        Await.result(cache.get(classOf[Network], id), timeout)
+    }
+
+    private def getAll: Seq[Network] = {
+        Await.result(cache.getAll(classOf[Network]), timeout)
+    }
+
+    feature("The cache serves the objects from storage") {
+        scenario("The cache follows the storage updates") {
+            Given("A network in storage")
+            val network1 = createBridge(name = Some("network1"))
+            store.create(network1)
+
+            Then("The cache returns the network")
+            get(network1.getId) shouldBe network1
+            getAll should contain only network1
+
+            When("Storage creates and updates networks")
+            val generation = cache.generation
+            val network2 = createBridge(name = Some("network2"))
+            val network3 = network1.toBuilder.setName("network3").build()
+            store.create(network2)
+            store.update(network3)
+
+            Then("The cache returns the current networks")
+            getAll should contain theSameElementsAs Seq(network2, network3)
+            cache.generation should be > generation
+
+            When("Storage deletes a network")
+            store.delete(classOf[Network], network1.getId)
+
+            Then("The cache does not return the network")
+            getAll should contain only network2
+            intercept[NotFoundException] {
+                get(network1.getId)
+            }
+        }
+    }
+
+    feature("The cache returns the writes of the API") {
+        scenario("An updated object") {
+            Given("A network in storage")
+            val network1 = createBridge(name = Some("network1"))
+            store.create(network1)
+            get(network1.getId) shouldBe network1
+
+            When("The API commits an update not yet notified by storage")
+            val network2 = network1.toBuilder.setName("network2").build()
+            cache.written(network2)
+
+            Then("The cache returns the written network")
+            get(network1.getId) shouldBe network2
+            getAll should contain only network2
+
+            When("Storage notifies the same version")
+            store.update(network2)
+
+            And("Storage notifies a later version")
+            val network3 = network1.toBuilder.setName("network3").build()
+            store.update(network3)
+
+            Then("The cache returns the later version")
+            get(network1.getId) shouldBe network3
+        }
+
+        scenario("A deleted object") {
+            Given("A network in storage")
+            val network = createBridge()
+            store.create(network)
+            get(network.getId) shouldBe network
+
+            When("The API commits a deletion not yet notified by storage")
+            cache.deleted(classOf[Network], network.getId)
+
+            Then("The cache does not return the network")
+            intercept[NotFoundException] {
+                get(network.getId)
+            }
+            getAll shouldBe empty
+        }
+
+        scenario("A multi operation written outside a transaction") {
+            Given("Two networks in storage")
+            val network1 = createBridge(name = Some("network1"))
+            val network2 = createBridge(name = Some("network2"))
+            store.create(network1)
+            store.create(network2)
+            getAll should have size 2
+
+            When("The API commits a multi not yet notified by storage")
+            val network3 = network1.toBuilder.setName("network3").build()
+            val network4 = createBridge(name = Some("network4"))
+            cache.committed(Seq(UpdateOp(network3), CreateOp(network4),
+                                DeleteOp(classOf[Network], network2.getId)))
+
+            Then("The cache returns the written networks")
+            get(network1.getId) shouldBe network3
+            get(network4.getId) shouldBe network4
+            getAll should contain theSameElementsAs Seq(network3, network4)
+        }
+    }
+
+    feature("The cache tags the list responses") {
+        scenario("A response is computed again when the cache changes") {
+            Given("A cached network")
+            store.create(createBridge())
+            getAll should have size 1
+
+            When("Requesting the same response twice")
+            var computed = 0
+            val generation1 = cache.generation
+            cache.response("key", generation1) { computed += 1; "a" } shouldBe "a"
+            cache.response("key", generation1) { computed += 1; "b" } shouldBe "a"
+
+            Then("The response is computed once")
+            computed shouldBe 1
+
+            When("Storage creates a network")
+            store.create(createBridge())
+            val generation2 = cache.generation
+
+            Then("The response has a different tag and is computed again")
+            cache.entityTag("key", generation2) should not be
+                cache.entityTag("key", generation1)
+            cache.response("key", generation2) { computed += 1; "c" } shouldBe "c"
+            computed shouldBe 2
+        }
+    }
+}
@@ -205,7 +205,7 @@ class ServerStateTest extends FlatSpec with Matchers {
         Mockito.verify(lastSession).watch(
             UUIDUtil.fromProto(sub.getGet.getId),
             TopologyMappings.klassOf(sub.getGet.getType).get,
-            UUIDUtil.fromProto(sub.getGet.getReqId))
+            UUIDUtil.fromProto(sub.getGet.getReqId), deltas = false)
         Mockito.verifyZeroInteractions(lastSubscription)
     }
     it should "process subscribe all" in {
@@ -213,7 +213,7 @@ class ServerStateTest extends FlatSpec with Matchers {
         Active(sfactory).after(subAll).remains
         Mockito.verify(lastSession).watchAll(
             TopologyMappings.klassOf(subAll.getGet.getType).get,
-            UUIDUtil.fromProto(subAll.getGet.getReqId))
+            UUIDUtil.fromProto(subAll.getGet.getReqId), deltas = false)
         Mockito.verifyZeroInteractions(lastSubscription)
     }
     it should "process unsubscribe" in {
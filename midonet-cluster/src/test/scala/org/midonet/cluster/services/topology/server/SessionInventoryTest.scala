@@ -33,6 +33,7 @@ import org.midonet.cluster.data.storage.{InMemoryStorage, Storage}
 import org.midonet.cluster.models.Topology
 import org.midonet.cluster.models.Topology._
 import org.midonet.cluster.rpc.Commands.{Response, ResponseType}
+import org.midonet.cluster.services.topology.client.UpdateAssembler
 import org.midonet.cluster.util.UUIDUtil
 import org.midonet.util.reactivex.HermitObservable.HermitOversubscribedException
 import org.midonet.util.reactivex.TestAwaitableObserver
@@ -778,4 +779,121 @@ class SessionInventoryTest extends FeatureSpec
             events.exists(rsp => isBridge(rsp, b1, "bridge1-update1")) shouldBe true
         }
     }
+
+    feature("shared updates")
+    {
+        scenario("sessions watching an object share its updates")
+        {
+            val collector1 = new TestAwaitableObserver[Response]
+            val collector2 = new TestAwaitableObserver[Response]
+            val session1 = inv.claim(UUID.randomUUID())
+            val session2 = inv.claim(UUID.randomUUID())
+            val subs1 = session1.observable().subscribe(collector1)
+            val subs2 = session2.observable().subscribe(collector2)
+
+            val oId = UUID.randomUUID()
+            store.create(bridge(oId, "bridge"))
+
+            session1.watch(oId, classOf[Network], UUID.randomUUID())
+            session2.watch(oId, classOf[Network], UUID.randomUUID())
+
+            collector1.awaitOnNext(2, WAIT_TIME) shouldBe true
+            collector2.awaitOnNext(2, WAIT_TIME) shouldBe true
+            subs1.unsubscribe()
+            subs2.unsubscribe()
+
+            val update1 = collector1.getOnNextEvents.find(isBridge(_, oId, "bridge")).get
+            val update2 = collector2.getOnNextEvents.find(isBridge(_, oId, "bridge")).get
+            update1.getReqId should not be update2.getReqId
+            update1.getUpdate should be theSameInstanceAs update2.getUpdate
+            inv.updates.size shouldBe 1
+        }
+
+        scenario("shared updates are sent pre-encoded")
+        {
+            val collector = new TestAwaitableObserver[Response]
+            val session = inv.claim(UUID.randomUUID())
+            val subs = session.observable().subscribe(collector)
+
+            val oId = UUID.randomUUID()
+            store.create(bridge(oId, "bridge"))
+            session.watch(oId, classOf[Network], UUID.randomUUID())
+
+            collector.awaitOnNext(2, WAIT_TIME) shouldBe true
+            subs.unsubscribe()
+
+            val update = collector.getOnNextEvents.find(isBridge(_, oId, "bridge")).get
+            val encoded = inv.updates.wireFormat(update)
+            encoded.hasUpdate shouldBe false
+            encoded.toByteArray.length shouldBe update.toByteArray.length
+            Response.parseFrom(encoded.toByteArray) shouldBe update
+        }
+
+        scenario("updates of deleted objects are discarded")
+        {
+            val collector = new TestAwaitableObserver[Response]
+            val session = inv.claim(UUID.randomUUID())
+            val subs = session.observable().subscribe(collector)
+
+            val oId = UUID.randomUUID()
+            store.create(bridge(oId, "bridge"))
+            session.watch(oId, classOf[Network], UUID.randomUUID())
+            store.delete(classOf[Network], UUIDUtil.toProto(oId))
+
+            collector.awaitOnNext(3, WAIT_TIME) shouldBe true
+            subs.unsubscribe()
+            inv.updates.size shouldBe 0
+        }
+    }
+
+    feature("delta updates")
+    {
+        scenario("a subscription requesting deltas receives the changes")
+        {
+            val collector = new TestAwaitableObserver[Response]
+            val session = inv.claim(UUID.randomUUID())
+            val subs = session.observable().subscribe(collector)
+
+            val oId = UUID.randomUUID()
+            store.create(bridge(oId, "bridge"))
+            session.watch(oId, classOf[Network], UUID.randomUUID(),
+                          deltas = true)
+            collector.awaitOnNext(2, WAIT_TIME) shouldBe true
+            store.update(bridge(oId, "renamed"))
+
+            collector.awaitOnNext(3, WAIT_TIME) shouldBe true
+            subs.unsubscribe()
+
+            val events = collector.getOnNextEvents
+            val update = events.find(isBridge(_, oId, "bridge")).get
+            update.getObjVersion shouldBe 1
+            val delta = events.find(_.getType == ResponseType.DELTA).get
+            delta.getObjVersion shouldBe 2
+            delta.getDelta.getChanged.getNetwork.hasId shouldBe false
+
+            val assembler = new UpdateAssembler
+            assembler.assemble(update)
+            isBridge(assembler.assemble(delta), oId, "renamed") shouldBe true
+        }
+
+        scenario("other subscriptions receive whole objects")
+        {
+            val collector = new TestAwaitableObserver[Response]
+            val session = inv.claim(UUID.randomUUID())
+            val subs = session.observable().subscribe(collector)
+
+            val oId = UUID.randomUUID()
+            store.create(bridge(oId, "bridge"))
+            session.watch(oId, classOf[Network], UUID.randomUUID())
+            collector.awaitOnNext(2, WAIT_TIME) shouldBe true
+            store.update(bridge(oId, "renamed"))
+
+            collector.awaitOnNext(3, WAIT_TIME) shouldBe true
+            subs.unsubscribe()
+
+            val update = collector.getOnNextEvents.find(
+                isBridge(_, oId, "renamed")).get
+            update.hasObjVersion shouldBe false
+        }
+    }
 }
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.ArrayList
+import java.util.concurrent.locks.StampedLock
+
+import scala.concurrent.duration.Duration
+
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.util.collection.Reducer
+
+object CompactExpirationMap {
+
+    /** The number of 64-bit words of an encoded key. */
+    final val KeyWords = 4
+
+    /**
+     * Encodes keys in [[KeyWords]] 64-bit words, and values in a single
+     * 64-bit word. Keys that cannot be encoded are stored in a regular
+     * [[TimedExpirationMap]].
+     */
+    trait Codec[K, V] {
+        def encodable(key: K): Boolean
+        def keyWord(key: K, index: Int): Long
+        def decodeKey(words: Array[Long], offset: Int): K
+        def encodeValue(value: V): Long
+        def decodeValue(value: Long): V
+    }
+
+    final val DefaultCapacity = 1 << 12
+
+    // Reference counts of the free slots of the table, and of the entries
+    // being passed to the reducer before their removal.
+    private final val Empty = -1
+    private final val Deleted = -2
+    private final val Expiring = -3
+
+    // Next entry values of the entries not in the timer wheel.
+    private final val NotScheduled = -2
+    private final val EndOfSlot = -1
+
+    // The timer wheel has 512 slots of 1024 milliseconds, which covers the
+    // longest flow state expiration. Longer expirations wrap around it.
+    private final val TickShift = 10
+    private final val WheelSlots = 512
+    private final val WheelMask = WheelSlots - 1
+
+    private final val MaxLoad = 0.75
+
+    /**
+     * The entries of the table, in parallel arrays such that they can be
+     * swapped atomically when the table is resized.
+     */
+    private final class Entries(val capacity: Int) {
+        val keys = new Array[Long](capacity * KeyWords)
+        val values = new Array[Long](capacity)
+        val refCounts = new Array[Int](capacity)
+        val deadlines = new Array[Long](capacity)
+        val next = new Array[Int](capacity)
+        var size = 0
+        var used = 0
+
+        java.util.Arrays.fill(refCounts, Empty)
+        java.util.Arrays.fill(next, NotScheduled)
+    }
+
+    private def mix(h: Long, word: Long): Long =
+        (h ^ word) * 0x9E3779B97F4A7C15L
+
+    private def fold(h: Long): Int = (h ^ (h >>> 32)).toInt
+}
+
+/**
+ * An [[ExpirationMap]] that stores its entries in primitive arrays, such that
+ * it holds no object per entry. Keys are encoded in a fixed number of 64-bit
+ * words and values in a single word by a [[CompactExpirationMap.Codec]], and
+ * are decoded when read: the map is meant for keys and values that are small
+ * value objects, such as flow state keys.
+ *
+ * The entries are kept in an open addressing table with linear probing, with
+ * the reference count of each entry stored inline. Entries whose count drops
+ * to 0 are scheduled in a timer wheel, through an intrusive list of entry
+ * indices. An entry that is referenced again is left in its wheel slot, and
+ * unscheduled when the slot is next processed.
+ *
+ * Writes are serialized by a lock, such that the map supports concurrent
+ * writers. Reads are optimistic and don't block, unless they race with a
+ * write. As in the [[TimedExpirationMap]], an expired entry is passed to the
+ * reducer before it is removed from the map, and a put of the same key
+ * waits for the removal, such that the reducer never sees an entry that has
+ * been added back. The reducer is called without holding the lock, so that
+ * it may operate on the map. Expirations have a granularity of about one
+ * second, and entries are never expired before their expiration.
+ */
+final class CompactExpirationMap[K <: AnyRef, V >: Null](
+        codec: CompactExpirationMap.Codec[K, V],
+        log: Logger,
+        expirationFor: K => Duration,
+        initialCapacity: Int = CompactExpirationMap.DefaultCapacity)
+    extends ExpirationMap[K, V] {
+
+    import CompactExpirationMap._
+
+    private val lock = new StampedLock
+    @volatile private var entries = new Entries(
+        Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1)
+
+    private val wheel = Array.fill(WheelSlots)(EndOfSlot)
+    private var cursor = Long.MinValue
+
+    private val fallback = new TimedExpirationMap[K, V](log, expirationFor)
+
+    def size: Int = entries.size
+
+    def capacity: Int = entries.capacity
+
+    private def hash(key: K): Int = {
+        var h = 0L
+        var i = 0
+        while (i < KeyWords) {
+            h = mix(h, codec.keyWord(key, i))
+            i += 1
+        }
+        fold(h)
+    }
+
+    private def hash(e: Entries, index: Int): Int = {
+        var h = 0L
+        var i = 0
+        while (i < KeyWords) {
+            h = mix(h, e.keys(index * KeyWords + i))
+            i += 1
+        }
+        fold(h)
+    }
+
+    private def matches(e: Entries, index: Int, key: K): Boolean = {
+        var i = 0
+        while (i < KeyWords) {
+            if (e.keys(index * KeyWords + i) != codec.keyWord(key, i))
+                return false
+            i += 1
+        }
+        true
+    }
+
+    /**
+     * Returns the index of the key, or -1. The search is bounded, such that
+     * it can run concurrently with a write and be validated afterwards.
+     */
+    private def indexOf(e: Entries, key: K, hash: Int): Int = {
+        val mask = e.capacity - 1
+        var index = hash & mask
+        var probes = 0
+        while (probes < e.capacity) {
+            val refCount = e.refCounts(index)
+            if (refCount == Empty)
+                return -1
+            if (refCount != Deleted && matches(e, index, key))
+                return index
+            index = (index + 1) & mask
+            probes += 1
+        }
+        -1
+    }
+
+    /**
+     * Returns the index of the key, or -(i + 1) where i is the index of the
+     * free entry at which the key should be inserted.
+     */
+    private def slotFor(e: Entries, key: K, hash: Int): Int = {
+        val mask = e.capacity - 1
+        var index = hash & mask
+        var free = -1
+        while (true) {
+            val refCount = e.refCounts(index)
+            if (refCount == Empty)
+                return -((if (free >= 0) free else index) + 1)
+            if (refCount == Deleted) {
+                if (free < 0)
+                    free = index
+            } else if (matches(e, index, key)) {
+                return index
+            }
+            index = (index + 1) & mask
+        }
+        -1 // not reached
+    }
+
+    /** Returns the first empty entry for the hash, when rehashing. */
+    private def freeSlot(e: Entries, hash: Int): Int = {
+        val mask = e.capacity - 1
+        var index = hash & mask
+        while (e.refCounts(index) != Empty) {
+            index = (index + 1) & mask
+        }
+        index
+    }
+
+    override def putAndRef(key: K, value: V): V = {
+        if (!codec.encodable(key))
+            return fallback.putAndRef(key, value)
+
+        val h = hash(key)
+        while (true) {
+            val stamp = lock.writeLock()
+            try {
+                var e = entries
+                var slot = slotFor(e, key, h)
+                if (slot >= 0 && e.refCounts(slot) != Expiring) {
+                    val old = e.values(slot)
+                    e.values(slot) = codec.encodeValue(value)
+                    e.refCounts(slot) += 1
+                    return codec.decodeValue(old)
+                }
+                if (slot < 0) {
+                    if (e.used + 1 > e.capacity * MaxLoad) {
+                        e = resize(e)
+                        slot = slotFor(e, key, h)
+                    }
+                    val index = -slot - 1
+                    var i = 0
+                    while (i < KeyWords) {
+                        e.keys(index * KeyWords + i) = codec.keyWord(key, i)
+                        i += 1
+                    }
+                    e.values(index) = codec.encodeValue(value)
+                    if (e.refCounts(index) == Empty)
+                        e.used += 1
+                    e.refCounts(index) = 1
+                    e.next(index) = NotScheduled
+                    e.size += 1
+                    log.debug(s"Incrementing reference count of $key to 1")
+                    return null
+                }
+            } finally {
+                lock.unlockWrite(stamp)
+            }
+            // The entry is being expired: retry once it has been removed.
+            Thread.`yield`()
+        }
+        null // not reached
+    }
+
+    override def get(key: K): V = {
+        if (!codec.encodable(key))
+            return fallback.get(key)
+
+        val h = hash(key)
+        var stamp = lock.tryOptimisticRead()
+        var e = entries
+        var index = indexOf(e, key, h)
+        var value = if (index >= 0) e.values(index) else 0L
+        var count = if (index >= 0) e.refCounts(index) else 0
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock()
+            try {
+                e = entries
+                index = indexOf(e, key, h)
+                value = if (index >= 0) e.values(index) else 0L
+                count = if (index >= 0) e.refCounts(index) else 0
+            } finally {
+                lock.unlockRead(stamp)
+            }
+        }
+        if (index >= 0 && count != Expiring) codec.decodeValue(value)
+        else null
+    }
+
+    override def getRefCount(key: K): Int = {
+        if (!codec.encodable(key))
+            return fallback.getRefCount(key)
+
+        val h = hash(key)
+        var stamp = lock.tryOptimisticRead()
+        var e = entries
+        var index = indexOf(e, key, h)
+        var count = if (index >= 0) e.refCounts(index) else 0
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock()
+            try {
+                e = entries
+                index = indexOf(e, key, h)
+                count = if (index >= 0) e.refCounts(index) else 0
+            } finally {
+                lock.unlockRead(stamp)
+            }
+        }
+        if (count == Expiring) -1 else count
+    }
+
+    override def ref(key: K): V = {
+        if (!codec.encodable(key))
+            return fallback.ref(key)
+
+        val h = hash(key)
+        val stamp = lock.writeLock()
+        try {
+            val e = entries
+            val index = indexOf(e, key, h)
+            if (index < 0 || e.refCounts(index) == Expiring)
+                return null
+            e.refCounts(index) += 1
+            if (e.refCounts(index) == 1)
+                log.debug(s"Unscheduling removal of $key")
+            codec.decodeValue(e.values(index))
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    override def unref(key: K, currentTimeMillis: Long): V = {
+        if (!codec.encodable(key))
+            return fallback.unref(key, currentTimeMillis)
+
+        val h = hash(key)
+        val stamp = lock.writeLock()
+        try {
+            val e = entries
+            val index = indexOf(e, key, h)
+            if (index < 0)
+                return null
+            val count = e.refCounts(index)
+            if (count <= 0) {
+                log.error(s"Decrement a ref count past 0 for $key")
+            } else if (count == 1) {
+                log.debug(s"Scheduling removal of $key")
+                e.refCounts(index) = 0
+                val expiration = currentTimeMillis +
+                                 expirationFor(key).toMillis
+                e.deadlines(index) =
+                    (expiration + (1L << TickShift) - 1) >> TickShift
+                // An entry still in the wheel is moved when its slot is
+                // processed, if its deadline is later than the slot.
+                if (e.next(index) == NotScheduled)
+                    schedule(e, index)
+            } else {
+                e.refCounts(index) = count - 1
+            }
+            codec.decodeValue(e.values(index))
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    private def schedule(e: Entries, index: Int): Unit = {
+        val tick = if (e.deadlines(index) < cursor) cursor
+                   else e.deadlines(index)
+        val slot = (tick & WheelMask).toInt
+        e.next(index) = wheel(slot)
+        wheel(slot) = index
+    }
+
+    private def resize(e: Entries): Entries = {
+        val capacity = if (e.size + 1 > e.capacity * MaxLoad / 2)
+                           e.capacity * 2
+                       else e.capacity
+        val resized = new Entries(capacity)
+        java.util.Arrays.fill(wheel, EndOfSlot)
+        var index = 0
+        while (index < e.capacity) {
+            if (e.refCounts(index) >= 0 || e.refCounts(index) == Expiring) {
+                val slot = freeSlot(resized, hash(e, index))
+                System.arraycopy(e.keys, index * KeyWords,
+                                 resized.keys, slot * KeyWords, KeyWords)
+                resized.values(slot) = e.values(index)
+                resized.refCounts(slot) = e.refCounts(index)
+                resized.deadlines(slot) = e.deadlines(index)
+                resized.size += 1
+                resized.used += 1
+                if (e.next(index) != NotScheduled)
+                    schedule(resized, slot)
+            }
+            index += 1
+        }
+        log.debug(s"Resized flow state table to $capacity entries")
+        entries = resized
+        resized
+    }
+
+    override def fold[U](seed: U, func: Reducer[K, V, U]): U = {
+        // Decode the entries first, so that the reducer may use the map.
+        val keys = new ArrayList[K]()
+        val values = new ArrayList[V]()
+        val stamp = lock.readLock()
+        try {
+            val e = entries
+            var index = 0
+            while (index < e.capacity) {
+                if (e.refCounts(index) >= 0) {
+                    keys.add(codec.decodeKey(e.keys, index * KeyWords))
+                    values.add(codec.decodeValue(e.values(index)))
+                }
+                index += 1
+            }
+        } finally {
+            lock.unlockRead(stamp)
+        }
+        var acc = fallback.fold(seed, func)
+        var i = 0
+        while (i < keys.size) {
+            acc = func(acc, keys.get(i), values.get(i))
+            i += 1
+        }
+        acc
+    }
+
+    private val identityReducer = new Reducer[K, V, Unit] {
+        override def apply(acc: Unit, key: K, value: V): Unit = ()
+    }
+
+    override def obliterateIdleEntries(currentTimeMillis: Long): Unit =
+        obliterateIdleEntries(currentTimeMillis, (), identityReducer)
+
+    override def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                          reducer: Reducer[K, V, U]): U = {
+        val now = currentTimeMillis >> TickShift
+        val expiredKeys = new ArrayList[K]()
+        val expiredValues = new ArrayList[V]()
+
+        val stamp = lock.writeLock()
+        try {
+            val e = entries
+            var tick = if (cursor == Long.MinValue || now - cursor >= WheelSlots)
+                           now - WheelSlots + 1
+                       else cursor
+            while (tick <= now) {
+                processSlot(e, (tick & WheelMask).toInt, now,
+                            expiredKeys, expiredValues)
+                tick += 1
+            }
+            cursor = now
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+
+        var acc = fallback.obliterateIdleEntries(currentTimeMillis, seed,
+                                                 reducer)
+        var i = 0
+        while (i < expiredKeys.size) {
+            acc = reducer(acc, expiredKeys.get(i), expiredValues.get(i))
+            remove(expiredKeys.get(i))
+            i += 1
+        }
+        acc
+    }
+
+    /** Removes an entry that has been passed to the reducer. */
+    private def remove(key: K): Unit = {
+        val h = hash(key)
+        val stamp = lock.writeLock()
+        try {
+            val e = entries
+            val index = indexOf(e, key, h)
+            if (index >= 0 && e.refCounts(index) == Expiring) {
+                e.refCounts(index) = Deleted
+                e.size -= 1
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    private def processSlot(e: Entries, slot: Int, now: Long,
+                            expiredKeys: ArrayList[K],
+                            expiredValues: ArrayList[V]): Unit = {
+        var prev = EndOfSlot
+        var index = wheel(slot)
+        while (index != EndOfSlot) {
+            val next = e.next(index)
+            val deadlineSlot = (e.deadlines(index) & WheelMask).toInt
+            if (e.refCounts(index) == 0 && e.deadlines(index) <= now) {
+                val key = codec.decodeKey(e.keys, index * KeyWords)
+                log.debug(s"Forgetting entry $key")
+                expiredKeys.add(key)
+                expiredValues.add(codec.decodeValue(e.values(index)))
+                e.refCounts(index) = Expiring
+                e.next(index) = NotScheduled
+                unlink(e, slot, prev, next)
+            } else if (e.refCounts(index) > 0) {
+                e.next(index) = NotScheduled
+                unlink(e, slot, prev, next)
+            } else if (deadlineSlot != slot) {
+                unlink(e, slot, prev, next)
+                e.next(index) = wheel(deadlineSlot)
+                wheel(deadlineSlot) = index
+            } else {
+                prev = index
+            }
+            index = next
+        }
+    }
+
+    private def unlink(e: Entries, slot: Int, prev: Int, next: Int): Unit =
+        if (prev == EndOfSlot) wheel(slot) = next
+        else e.next(prev) = next
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import org.midonet.util.collection.Reducer
+
+/**
+ * A map where each entry has an associated reference counter, and where the
+ * entries are removed after a delay once their counter reaches 0.
+ *
+ * See [[TimedExpirationMap]] and [[CompactExpirationMap]].
+ */
+trait ExpirationMap[K, V] {
+
+    /**
+     * Adds or updates an entry, incrementing its reference count. Returns
+     * the previous value, or null if there was none.
+     */
+    def putAndRef(key: K, value: V): V
+
+    def get(key: K): V
+
+    def getRefCount(key: K): Int
+
+    /**
+     * Increments the reference count of an entry, returning its value, or
+     * null if there is no such entry.
+     */
+    def ref(key: K): V
+
+    /**
+     * Decrements the reference count of an entry, scheduling its removal
+     * if the count reaches 0.
+     */
+    def unref(key: K, currentTimeMillis: Long): V
+
+    def fold[U](seed: U, func: Reducer[K, V, U]): U
+
+    /**
+     * Removes the entries that have had their reference count at 0 for
+     * longer than their expiration. Not thread-safe for multiple callers.
+     */
+    def obliterateIdleEntries(currentTimeMillis: Long): Unit
+
+    /**
+     * Removes the entries that have had their reference count at 0 for
+     * longer than their expiration, passing them to the reducer. Not
+     * thread-safe for multiple callers.
+     */
+    def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                 reducer: Reducer[K, V, U]): U
+}
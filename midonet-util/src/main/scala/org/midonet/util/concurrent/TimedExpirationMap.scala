@@ -82,7 +82,8 @@ import org.midonet.util.collection.Reducer
  *            guaranteeing the happens-before relationship described above.
  */
 final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
-                                             expirationFor: K => Duration) {
+                                             expirationFor: K => Duration)
+        extends ExpirationMap[K, V] {
 
     case class Metadata(var value: V, refCount: AtomicInteger, var expiration: Long)
 
@@ -263,7 +264,7 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
         override def apply(acc: Unit, key: K, value: V): Unit = ()
     }
 
-    def obliterateIdleEntries[U](currentTimeMillis: Long): Unit =
+    def obliterateIdleEntries(currentTimeMillis: Long): Unit =
         obliterateIdleEntries(currentTimeMillis, (), identityReducer)
 
     def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import scala.concurrent.duration._
+
+import com.typesafe.scalalogging.Logger
+import org.slf4j.helpers.NOPLogger
+import org.junit.runner.RunWith
+import org.scalatest.{OneInstancePerTest, Matchers, FeatureSpec}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.util.collection.Reducer
+
+object CompactExpirationMapTest {
+
+    case class Key(a: Long, b: Long)
+
+    // Keys with a negative first word are stored in the fallback map.
+    object KeyCodec extends CompactExpirationMap.Codec[Key, java.lang.Long] {
+        override def encodable(key: Key): Boolean = key.a >= 0
+        override def keyWord(key: Key, index: Int): Long = index match {
+            case 0 => key.a
+            case 1 => key.b
+            case _ => 0L
+        }
+        override def decodeKey(words: Array[Long], offset: Int): Key =
+            Key(words(offset), words(offset + 1))
+        override def encodeValue(value: java.lang.Long): Long = value
+        override def decodeValue(value: Long): java.lang.Long = value
+    }
+}
+
+@RunWith(classOf[JUnitRunner])
+class CompactExpirationMapTest extends FeatureSpec
+                               with Matchers
+                               with OneInstancePerTest {
+
+    import CompactExpirationMapTest._
+
+    val map = new CompactExpirationMap[Key, java.lang.Long](
+        KeyCodec, Logger(NOPLogger.NOP_LOGGER),
+        key => if (key.b == 0) 5 days else 10 seconds, initialCapacity = 16)
+
+    private def collect(time: Long): Set[Key] =
+        map.obliterateIdleEntries(time, Set.empty[Key],
+            new Reducer[Key, java.lang.Long, Set[Key]] {
+                override def apply(acc: Set[Key], key: Key,
+                                   value: java.lang.Long): Set[Key] =
+                    acc + key
+            })
+
+    feature("Normal operations") {
+        scenario("putAndRef") {
+            map.putAndRef(Key(1, 1), 10L) should be (null)
+            map get Key(1, 1) should be (10L)
+            map getRefCount Key(1, 1) should be (1)
+
+            map.putAndRef(Key(1, 1), 20L) should be (10L)
+            map get Key(1, 1) should be (20L)
+            map getRefCount Key(1, 1) should be (2)
+            map get Key(1, 2) should be (null)
+            map getRefCount Key(1, 2) should be (0)
+        }
+
+        scenario("ref and unref") {
+            map.ref(Key(1, 1)) should be (null)
+            map.putAndRef(Key(1, 1), 10L)
+            map.ref(Key(1, 1)) should be (10L)
+            map getRefCount Key(1, 1) should be (2)
+            map.unref(Key(1, 1), 0) should be (10L)
+            map.unref(Key(1, 1), 0) should be (10L)
+            map getRefCount Key(1, 1) should be (0)
+            map get Key(1, 1) should be (10L)
+        }
+
+        scenario("fold") {
+            map.putAndRef(Key(1, 1), 1L)
+            map.putAndRef(Key(2, 1), 2L)
+            map.putAndRef(Key(-1, 1), 3L)
+
+            map.fold(0L, new Reducer[Key, java.lang.Long, Long] {
+                override def apply(acc: Long, key: Key,
+                                   value: java.lang.Long): Long =
+                    acc + value.longValue
+            }) should be (6L)
+        }
+
+        scenario("The table grows") {
+            for (i <- 0 until 1000) {
+                map.putAndRef(Key(i, 1), i.toLong)
+            }
+            map.size should be (1000)
+            map.capacity should be >= 1000
+            for (i <- 0 until 1000) {
+                map get Key(i, 1) should be (i.toLong)
+                map getRefCount Key(i, 1) should be (1)
+            }
+        }
+
+        scenario("Keys that cannot be encoded") {
+            map.putAndRef(Key(-1, 1), 10L)
+            map.size should be (0)
+            map get Key(-1, 1) should be (10L)
+            map.unref(Key(-1, 1), 0)
+            collect(20000) should be (Set(Key(-1, 1)))
+            map get Key(-1, 1) should be (null)
+        }
+    }
+
+    feature("Expiration") {
+        scenario("Entries expire after their expiration") {
+            map.putAndRef(Key(1, 1), 10L)
+            map.putAndRef(Key(2, 0), 20L)
+            map.unref(Key(1, 1), 0)
+            map.unref(Key(2, 0), 0)
+
+            collect(5000) should be (Set.empty)
+            map get Key(1, 1) should be (10L)
+            collect(12000) should be (Set(Key(1, 1)))
+            map get Key(1, 1) should be (null)
+            map get Key(2, 0) should be (20L)
+            collect((5 days).toMillis + 2000) should be (Set(Key(2, 0)))
+            map get Key(2, 0) should be (null)
+            map.size should be (0)
+        }
+
+        scenario("Referenced entries don't expire") {
+            map.putAndRef(Key(1, 1), 10L)
+            map.unref(Key(1, 1), 0)
+            map.ref(Key(1, 1))
+            collect(20000) should be (Set.empty)
+            map get Key(1, 1) should be (10L)
+
+            map.unref(Key(1, 1), 30000)
+            collect(35000) should be (Set.empty)
+            collect(42000) should be (Set(Key(1, 1)))
+        }
+
+        scenario("Re-scheduled entries expire at their last expiration") {
+            map.putAndRef(Key(1, 1), 10L)
+            map.unref(Key(1, 1), 0)
+            map.ref(Key(1, 1))
+            map.unref(Key(1, 1), 8000)
+            collect(12000) should be (Set.empty)
+            map get Key(1, 1) should be (10L)
+            collect(20000) should be (Set(Key(1, 1)))
+        }
+
+        scenario("Entries survive resizing") {
+            map.putAndRef(Key(0, 1), 0L)
+            map.unref(Key(0, 1), 0)
+            for (i <- 1 until 100) {
+                map.putAndRef(Key(i, 1), i.toLong)
+            }
+            collect(12000) should be (Set(Key(0, 1)))
+            map.size should be (99)
+        }
+
+        scenario("Expired entries can be put again") {
+            for (i <- 0 until 100) {
+                map.putAndRef(Key(i, 1), i.toLong)
+                map.unref(Key(i, 1), 0)
+            }
+            collect(12000).size should be (100)
+            for (i <- 0 until 100) {
+                map.putAndRef(Key(i, 1), i.toLong)
+            }
+            map.size should be (100)
+            map get Key(50, 1) should be (50L)
+        }
+
+        scenario("A put of an expiring entry waits for the reducer") {
+            map.putAndRef(Key(1, 1), 10L)
+            map.unref(Key(1, 1), 0)
+
+            val reducing = new CountDownLatch(1)
+            val reduced = new CountDownLatch(1)
+            val obliterator = new Thread() {
+                override def run(): Unit =
+                    map.obliterateIdleEntries(12000, (),
+                        new Reducer[Key, java.lang.Long, Unit] {
+                            override def apply(acc: Unit, key: Key,
+                                               value: java.lang.Long): Unit = {
+                                reducing.countDown()
+                                reduced.await()
+                            }
+                        })
+            }
+            obliterator.start()
+            reducing.await(5, TimeUnit.SECONDS) shouldBe true
+            map get Key(1, 1) should be (null)
+
+            var previous: java.lang.Long = -1L
+            val writer = new Thread() {
+                override def run(): Unit =
+                    previous = map.putAndRef(Key(1, 1), 20L)
+            }
+            writer.start()
+            writer.join(200)
+            writer.isAlive shouldBe true
+
+            reduced.countDown()
+            writer.join(5000)
+            obliterator.join(5000)
+            writer.isAlive shouldBe false
+            previous should be (null)
+            map get Key(1, 1) should be (20L)
+            map getRefCount Key(1, 1) should be (1)
+            map.size should be (1)
+        }
+    }
+}
@@ -69,6 +69,14 @@ public interface Directory {
     Set<String> getChildren(String relativePath, Runnable watcher)
             throws KeeperException, InterruptedException;
 
+    /**
+     * Returns the version of the children of a node, which is incremented
+     * every time a child is created or deleted, without reading their names
+     * or setting a watch.
+     */
+    int getChildrenVersion(String relativePath)
+            throws KeeperException, InterruptedException;
+
     boolean exists(String path, Watcher watcher) throws KeeperException,
             InterruptedException;
 
@@ -88,6 +96,13 @@ public interface Directory {
     List<OpResult> multi(List<Op> ops) throws InterruptedException,
             KeeperException;
 
+    /**
+     * Applies the given operations atomically, as {@link #multi(List)},
+     * without blocking the caller when the directory has an event loop to
+     * make the request from.
+     */
+    void asyncMulti(List<Op> ops, DirectoryCallback<List<OpResult>> callback);
+
     void closeConnection();
 
     // HACK: TypedWatcher is a runnable so that it can be passed to Directory
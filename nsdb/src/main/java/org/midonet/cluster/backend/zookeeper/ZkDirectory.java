@@ -260,6 +260,23 @@ public class ZkDirectory implements Directory {
                 zk.getZooKeeper().getChildren(absPath, wrapCallback(watcher)));
     }
 
+    @Override
+    public int getChildrenVersion(String relativePath)
+        throws KeeperException, InterruptedException {
+        String absPath = getAbsolutePath(relativePath);
+
+        // path cannot end with / so strip it off
+        if (absPath.endsWith("/")) {
+            absPath = absPath.substring(0, absPath.length() - 1);
+        }
+
+        Stat stat = zk.getZooKeeper().exists(absPath, false);
+        if (stat == null) {
+            throw new KeeperException.NoNodeException(absPath);
+        }
+        return stat.getCversion();
+    }
+
     @Override
     public boolean exists(String path, Watcher watcher)
             throws KeeperException, InterruptedException {
@@ -322,6 +339,36 @@ public class ZkDirectory implements Directory {
         return zk.getZooKeeper().multi(ops);
     }
 
+    /**
+     * ZooKeeper 3.4 has no asynchronous multi request: the request is made
+     * from the reactor thread. If the directory has no reactor, the request
+     * is made from the calling thread, which blocks until it completes. If
+     * the request is interrupted, its outcome is unknown and the callback
+     * times out.
+     */
+    @Override
+    public void asyncMulti(final List<Op> ops,
+                           final DirectoryCallback<List<OpResult>> callback) {
+        Runnable request = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callback.onSuccess(multi(ops));
+                } catch (KeeperException e) {
+                    callback.onError(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    callback.onTimeout();
+                }
+            }
+        };
+        if (reactor == null) {
+            request.run();
+        } else {
+            reactor.submit(request);
+        }
+    }
+
     @Override
     public void closeConnection() {
         log.info("Closing the Zookeeper connection.");
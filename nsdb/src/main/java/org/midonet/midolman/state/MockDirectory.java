@@ -70,6 +70,7 @@ public class MockDirectory implements Directory {
         private byte[] data;
         CreateMode mode;
         int sequence;
+        int childrenVersion;
         Map<String, Node> children;
         Set<Watcher> watchers;
 
@@ -110,6 +111,7 @@ public class MockDirectory implements Directory {
             String childPath = path + "/" + name;
             Node child = new Node(childPath, data, mode);
             children.put(name, child);
+            childrenVersion++;
             fireWatchers(multi, EventType.NodeChildrenChanged);
             child.fireWatchers(multi, EventType.NodeCreated);
             return childPath;
@@ -140,6 +142,10 @@ public class MockDirectory implements Directory {
             return new HashSet<>(children.keySet());
         }
 
+        synchronized int getChildrenVersion() {
+            return childrenVersion;
+        }
+
         synchronized boolean exists(Watcher watcher) {
             if (watcher != null)
                 watchers.add(watcher);
@@ -155,6 +161,7 @@ public class MockDirectory implements Directory {
             if (!child.children.isEmpty())
                 throw new NotEmptyException(childPath);
             children.remove(name);
+            childrenVersion++;
 
             child.fireWatchers(multi, EventType.NodeDeleted);
             this.fireWatchers(multi, EventType.NodeChildrenChanged);
@@ -191,11 +198,16 @@ public class MockDirectory implements Directory {
     }
 
     private Node rootNode;
+    // The root of the whole tree, used to resolve the absolute paths of
+    // the multi operations.
+    private final Node topNode;
     private final Map<Watcher, WatchedEvent> multiDataWatchers;
     public boolean enableDebugLog = false;
 
-    private MockDirectory(Node root, Map<Watcher, WatchedEvent> multiWatchers) {
+    private MockDirectory(Node root, Node top,
+                          Map<Watcher, WatchedEvent> multiWatchers) {
         rootNode = root;
+        topNode = top;
         // All the nodes will belong to another MockDirectory whose
         // multiDataWatchers set is initialized, and they will use it.
         multiDataWatchers = multiWatchers;
@@ -203,6 +215,7 @@ public class MockDirectory implements Directory {
 
     public MockDirectory() {
         rootNode = new Node("", null, CreateMode.PERSISTENT);
+        topNode = rootNode;
         multiDataWatchers = new HashMap<>();
     }
 
@@ -245,7 +258,7 @@ public class MockDirectory implements Directory {
 
     @Override
     public String getPath() {
-        return "/";
+        return rootNode.path.isEmpty() ? "/" : rootNode.path;
     }
 
     @Override
@@ -319,6 +332,11 @@ public class MockDirectory implements Directory {
         return getNode(path).getChildren(watcher);
     }
 
+    @Override
+    public int getChildrenVersion(String path) throws NoNodeException {
+        return getNode(path).getChildrenVersion();
+    }
+
     @Override
     public boolean exists(String path, Watcher watcher) {
         try {
@@ -374,12 +392,15 @@ public class MockDirectory implements Directory {
 
     @Override
     public Directory getSubDirectory(String path) throws NoNodeException {
-        return new MockDirectory(getNode(path), multiDataWatchers);
+        return new MockDirectory(getNode(path), topNode, multiDataWatchers);
     }
 
     @Override
     public List<OpResult> multi(List<Op> ops) throws InterruptedException,
                                                      KeeperException {
+        // As in ZooKeeper, the paths of the operations are absolute.
+        MockDirectory top = (rootNode == topNode) ? this :
+            new MockDirectory(topNode, topNode, multiDataWatchers);
         List<OpResult> results = new ArrayList<>();
         // Fire watchers after finishing multi operation.
         // Copy to the local Set to avoid concurrent access.
@@ -393,7 +414,7 @@ public class MockDirectory implements Directory {
                     // unit tests can't purposely make a bad Op.
                     // try {
                     CreateRequest req = CreateRequest.class.cast(record);
-                    String path = this.add(req.getPath(), req.getData(),
+                    String path = top.add(req.getPath(), req.getData(),
                                            CreateMode.fromFlag(req.getFlags()),
                                            true);
                     results.add(new OpResult.CreateResult(path));
@@ -404,13 +425,13 @@ public class MockDirectory implements Directory {
                     // }
                 } else if (record instanceof SetDataRequest) {
                     SetDataRequest req = SetDataRequest.class.cast(record);
-                    this.update(req.getPath(), req.getData(), true);
+                    top.update(req.getPath(), req.getData(), true);
                     // We create the SetDataResult with Stat=null. The
                     // Directory interface doesn't provide the Stat object.
                     results.add(new OpResult.SetDataResult(null));
                 } else if (record instanceof DeleteRequest) {
                     DeleteRequest req = DeleteRequest.class.cast(record);
-                    this.delete(req.getPath(), true);
+                    top.delete(req.getPath(), true);
                     results.add(new OpResult.DeleteResult());
                 } else {
                     // might be CheckVersionRequest or some new type we miss.
@@ -433,6 +454,18 @@ public class MockDirectory implements Directory {
         return results;
     }
 
+    @Override
+    public void asyncMulti(List<Op> ops,
+                           DirectoryCallback<List<OpResult>> callback) {
+        try {
+            callback.onSuccess(multi(ops));
+        } catch (KeeperException e) {
+            callback.onError(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void closeConnection() {
         // Do nothing here.
@@ -35,20 +35,38 @@ trait ReadOnlyStorage {
      * Asynchronously gets the specified instances of the specified class from
      * storage. The future completes when all instances have been successfully
      * retrieved, or fails if any of the requested instances cannot be
-     * retrieved.  Each element will be fetched from the backend storage in
-     * order to retrieve the latest version.
+     * retrieved. The implementation may serve the instances from a cache
+     * that is eventually consistent with the backend storage, such that the
+     * instances may not include the latest writes: callers that must read
+     * their own writes should use [[getAllLatest]].
      */
     def getAll[T](clazz: Class[T], ids: Seq[_ <: ObjId]): Future[Seq[T]]
 
     /**
      * Asynchronously gets all instances of the specified class. The future
      * completes when all instances have been successfully retrieved, or fails
-     * if any of the requested instances cannot be retrieved. Each element
-     * will be fetched from the backend storage in order to retrieve the
-     * latest version.
+     * if any of the requested instances cannot be retrieved. As for the
+     * other [[getAll]], the instances may be served from an eventually
+     * consistent cache.
      */
     def getAll[T](clazz: Class[T]): Future[Seq[T]]
 
+    /**
+     * Asynchronously gets the specified instances of the specified class
+     * from the backend storage, in order to retrieve their latest version as
+     * [[get]] does. By default, this is the same as [[getAll]], for the
+     * implementations that do not serve it from a cache.
+     */
+    def getAllLatest[T](clazz: Class[T],
+                        ids: Seq[_ <: ObjId]): Future[Seq[T]] =
+        getAll(clazz, ids)
+
+    /**
+     * Asynchronously gets all instances of the specified class from the
+     * backend storage, in order to retrieve their latest version.
+     */
+    def getAllLatest[T](clazz: Class[T]): Future[Seq[T]] = getAll(clazz)
+
     /**
      * Asynchronous method that indicated if the specified object exists in the
      * storage.
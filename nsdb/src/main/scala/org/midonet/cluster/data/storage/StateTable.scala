@@ -24,6 +24,10 @@ object StateTable {
 
     case class Update[K, V](key: K, oldValue: V, newValue: V)
 
+    /** The suffix of the change log path of a table, which is a sibling of
+      * the table path. */
+    final val ChangeLogSuffix = "_log"
+
 }
 
 /**
@@ -17,6 +17,8 @@ package org.midonet.cluster.data.storage
 
 import scala.collection.JavaConverters._
 import scala.collection.concurrent.TrieMap
+import scala.concurrent.Future
+import scala.util.Try
 
 import com.google.common.collect.{ArrayListMultimap, Multimaps}
 import com.google.protobuf.Message
@@ -193,6 +195,15 @@ trait Storage extends ReadOnlyStorage {
     @throws[ReferenceConflictException]
     def multi(ops: Seq[PersistenceOp]): Unit
 
+    /**
+     * Asynchronous method that executes multiple create, update, and/or
+     * delete operations atomically. Implementations may execute independent
+     * batches concurrently, and therefore the returned future must complete
+     * before submitting any batch that depends on the current one.
+     */
+    def multiAsync(ops: Seq[PersistenceOp]): Future[Unit] =
+        Future.fromTry(Try(multi(ops)))
+
     /**
      * Creates a new storage transaction that allows multiple read and write
      * operations to be executed atomically. The transaction guarantees that
@@ -131,6 +131,16 @@ class ClassSubscriptionCache[T](val clazz: Class[T],
     def close() = pathCache.close()
 
     def isStarted = pathCache.isStarted
+
+    /** Returns true when the cache holds the current state of the class,
+      * such that it can serve reads. */
+    def isInitialized = pathCache.isInitialized
+
+    /** Returns the cached data of the object at the given path, or null. */
+    def child(path: String): ChildData = pathCache.child(path)
+
+    /** Returns the cached data of all objects. */
+    def allChildren: Seq[ChildData] = pathCache.allChildren
 }
 
 /**
@@ -46,6 +46,9 @@ object TransactionManager {
     case class TxCreate(obj: Obj) extends TxOp
     case class TxUpdate(obj: Obj, version: Int) extends TxOp
     case class TxDelete(version: Int) extends TxOp
+    // Verifies that an object read but not modified by the transaction still
+    // has the version that was read.
+    case class TxCheck(version: Int) extends TxOp
     case class TxCreateNode(value: String = null) extends TxNodeOp
     case class TxUpdateNode(value: String = null) extends TxNodeOp
     case object TxDeleteNode extends TxNodeOp
@@ -434,6 +437,20 @@ abstract class TransactionManager(classes: ClassesMap, bindings: BindingsMap)
         list.toSeq
     }
 
+    /**
+     * Returns a version check operation for every object that was read by
+     * the transaction but that is not modified by it. These allow a backend
+     * to validate the transaction reads at commit time.
+     */
+    protected def readChecks: Seq[(Key, TxOp)] = {
+        val list = new ArrayBuffer[(Key, TxOp)]
+        for ((key, Some(snapshot)) <- objCache
+             if !ops.contains(key) && snapshot.version != NewObjectVersion) {
+            list += ((key, TxCheck(snapshot.version)))
+        }
+        list
+    }
+
     /** Creates a new data node as part of the current transaction. */
     @throws[StorageNodeExistsException]
     override def createNode(path: String, value: String): Unit = {
@@ -18,7 +18,7 @@ package org.midonet.cluster.data.storage
 import java.io.StringWriter
 import java.util.ConcurrentModificationException
 import java.util.concurrent.Executors._
-import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 
 import scala.collection.JavaConversions._
 import scala.collection.JavaConverters._
@@ -33,7 +33,7 @@ import com.codahale.metrics.MetricRegistry
 import com.fasterxml.jackson.core.JsonFactory
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.google.common.annotations.VisibleForTesting
-import com.google.protobuf.{Message, TextFormat}
+import com.google.protobuf.{CodedOutputStream, Message, TextFormat}
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal
 import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent, CuratorEventType}
@@ -103,6 +103,22 @@ import org.midonet.util.functors.makeFunc1
  * declareBinding(Port.class, "peerId", CLEAR,
  * Port.class, "peerId", CLEAR);
  *
+ * Protocol buffer messages are stored either in the text format, or in the
+ * binary format when `binarySerialization` is set. Binary data is prefixed
+ * by a header that distinguishes it from text, such that objects in either
+ * format can always be read. Writing the binary format should be enabled only
+ * after all the nodes sharing the storage have been upgraded, and the
+ * existing objects can be then rewritten using `migrateToBinary()`.
+ *
+ * When `optimisticTransactions` is set, transactions do not create a lock
+ * node to learn the current ZXID. Instead, they verify at commit the version
+ * of every object they read, and `multi()` retries a bounded number of times
+ * when the commit fails due to a concurrent modification.
+ *
+ * When `stateTableChangeLogs` is set, the state tables record the changes of
+ * their entries in a change log next to the table. As with the binary format,
+ * the change logs should be enabled only after all the nodes sharing the
+ * storage have been upgraded.
  */
 class ZookeeperObjectMapper(protected override val rootPath: String,
                             protected override val namespace: String,
@@ -111,7 +127,10 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                             protected override val reactor: Reactor,
                             protected override val connection: ZkConnection,
                             protected override val connectionWatcher: ZkConnectionAwareWatcher,
-                            metricsRegistry: MetricRegistry = null)
+                            metricsRegistry: MetricRegistry = null,
+                            binarySerialization: Boolean = false,
+                            optimisticTransactions: Boolean = false,
+                            protected override val stateTableChangeLogs: Boolean = false)
     extends ZookeeperObjectState with ZookeeperStateTable with Storage {
 
     import ZookeeperObjectMapper._
@@ -125,6 +144,9 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
     private val executor = newSingleThreadExecutor(
         new NamedThreadFactory("zoom", isDaemon = true))
     private implicit val executionContext = fromExecutorService(executor)
+    private lazy val pipelineExecutionContext = fromExecutorService(
+        newFixedThreadPool(PipelineThreads,
+                           new NamedThreadFactory("zoom-multi", isDaemon = true)))
 
     private val simpleNameToClass = new mutable.HashMap[String, Class[_]]()
     private val objectObservables = new TrieMap[Key, ObjectObservable]
@@ -188,17 +210,23 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
         // ZXID. This will allow us to determine if any of the nodes we read
         // have been modified since the TransactionManager was created, allowing
         // us to ensure a consistent read across multiple nodes.
-        private val (lockPath: String, zxid: Long) = try {
-            val path = curator.create().creatingParentsIfNeeded()
-                              .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
-                              .forPath(locksPath)
-            val stat = new Stat()
-            curator.getData.storingStatIn(stat).forPath(path)
-            (path, stat.getCzxid)
-        } catch {
-            case ex: Exception => throw new InternalObjectMapperException(
-                "Could not acquire current zxid.", ex)
-        }
+        //
+        // Optimistic transactions skip the lock node: instead, the commit
+        // checks the version of every object that was read, such that the
+        // transaction fails if any of them was modified.
+        private val (lockPath: String, zxid: Long) =
+            if (optimisticTransactions) (null, Long.MaxValue)
+            else try {
+                val path = curator.create().creatingParentsIfNeeded()
+                                  .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                                  .forPath(locksPath)
+                val stat = new Stat()
+                curator.getData.storingStatIn(stat).forPath(path)
+                (path, stat.getCzxid)
+            } catch {
+                case ex: Exception => throw new InternalObjectMapperException(
+                    "Could not acquire current zxid.", ex)
+            }
 
         private def getPath(clazz: Class[_], id: ObjId) = {
             ZookeeperObjectMapper.this.objectPath(clazz, id, version)
@@ -260,7 +288,10 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
         @throws[StorageNodeExistsException]
         @throws[StorageNodeNotFoundException]
         override def commit(): Unit = {
-            val ops = flattenOps ++ createStateTableOps
+            val ops =
+                if (optimisticTransactions)
+                    flattenOps ++ createStateTableOps ++ readChecks
+                else flattenOps ++ createStateTableOps
             var txn =
                 curator.inTransaction().asInstanceOf[CuratorTransactionFinal]
 
@@ -268,12 +299,13 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                 case TxCreate(obj) =>
                     val path = getPath(clazz, id)
                     log.debug(s"Create: $path")
-                    txn.create.forPath(path, serialize(obj)).and
+                    txn.create
+                        .forPath(path, serialize(obj, binarySerialization)).and
                 case TxUpdate(obj, ver) =>
                     val path = getPath(clazz, id)
                     log.debug(s"Update ($ver): $path")
                     txn.setData().withVersion(ver)
-                        .forPath(path, serialize(obj)).and
+                        .forPath(path, serialize(obj, binarySerialization)).and
                 case TxDelete(ver) =>
                     val path = getPath(clazz, id)
                     log.debug(s"Delete ($ver): $path")
@@ -284,6 +316,10 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                 case TxUpdateNode(value) =>
                     log.debug(s"Update node: $id")
                     txn.setData().forPath(id, asBytes(value)).and
+                case TxCheck(ver) =>
+                    val path = getPath(clazz, id)
+                    log.debug(s"Check ($ver): $path")
+                    txn.check().withVersion(ver).forPath(path).and
                 case TxDeleteNode =>
                     log.debug(s"Delete node: $id")
                     txn.delete.forPath(id).and
@@ -327,7 +363,7 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
             }
         }
 
-        def releaseLock(): Unit = try {
+        def releaseLock(): Unit = if (lockPath ne null) try {
             curator.delete().forPath(lockPath)
         } catch {
             // Not much we can do. Fortunately, it's ephemeral.
@@ -506,22 +542,94 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
         p.future
     }
 
+    /**
+     * Gets the specified instances of the specified class. If the class is
+     * watched by an initialized class observable, the objects are read from
+     * its cache, which is as consistent as the class observable: a [[get]]
+     * following this method may return a newer version of an object.
+     * Otherwise, the objects are read from Zookeeper with at most
+     * [[MultiReadWindow]] reads in flight, as [[getAllLatest]] does.
+     */
     @throws[ServiceUnavailableException]
     override def getAll[T](clazz: Class[T], ids: Seq[_ <: ObjId])
     : Future[Seq[T]] = {
         assertBuilt()
         assert(isRegistered(clazz))
-        Future.sequence(ids.map(get(clazz, _)))
+
+        val idSeq = ids.toIndexedSeq
+        val results = new Array[Any](idSeq.size)
+        val misses = new mutable.ArrayBuffer[Int](idSeq.size)
+        val cache = initializedClassCache(clazz)
+        try {
+            var index = 0
+            while (index < idSeq.size) {
+                val data =
+                    if (cache eq null) null
+                    else cache.child(objectPath(clazz, idSeq(index)))
+                if (data ne null) {
+                    results(index) = deserialize(data.getData, clazz)
+                } else {
+                    misses += index
+                }
+                index += 1
+            }
+        } catch {
+            case NonFatal(e) => return Future.failed(e)
+        }
+        metrics.readCacheHits(idSeq.size - misses.size)
+        metrics.readCacheMisses(misses.size)
+        readPipelined(clazz, idSeq, misses, results)
     }
 
     /**
-     * Gets all instances of the specified class from Zookeeper.
+     * Gets all instances of the specified class, from the cache of the class
+     * observable if initialized, with the same consistency as the other
+     * [[getAll]], or otherwise from Zookeeper.
      */
     @throws[ServiceUnavailableException]
     override def getAll[T](clazz: Class[T]): Future[Seq[T]] = {
         assertBuilt()
         assert(isRegistered(clazz))
 
+        val cache = initializedClassCache(clazz)
+        if (cache ne null) {
+            try {
+                val children = cache.allChildren
+                val objs = children.map(cd => deserialize(cd.getData, clazz))
+                metrics.readCacheHits(objs.size)
+                return Future.successful(objs)
+            } catch {
+                case NonFatal(e) => return Future.failed(e)
+            }
+        }
+        getAllLatest(clazz)
+    }
+
+    /**
+     * Gets the specified instances of the specified class from Zookeeper,
+     * with at most [[MultiReadWindow]] reads in flight, bypassing the class
+     * caches.
+     */
+    @throws[ServiceUnavailableException]
+    override def getAllLatest[T](clazz: Class[T], ids: Seq[_ <: ObjId])
+    : Future[Seq[T]] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+
+        val idSeq = ids.toIndexedSeq
+        readPipelined(clazz, idSeq, idSeq.indices,
+                      new Array[Any](idSeq.size))
+    }
+
+    /**
+     * Gets all instances of the specified class from Zookeeper, bypassing
+     * the class caches.
+     */
+    @throws[ServiceUnavailableException]
+    override def getAllLatest[T](clazz: Class[T]): Future[Seq[T]] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+
         val all = Promise[Seq[T]]()
         val start = System.nanoTime()
         val cb = new BackgroundCallback {
@@ -530,7 +638,7 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
                 val end = System.nanoTime()
                 metrics.addReadChildrenLatency(end-start)
                 assert(CuratorEventType.CHILDREN == evt.getType)
-                getAll(clazz, evt.getChildren).onComplete {
+                getAllLatest(clazz, evt.getChildren).onComplete {
                     case Success(l) => all trySuccess l
                     case Failure(t) => all tryFailure t
                 }
@@ -548,6 +656,77 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
         all.future
     }
 
+    /**
+     * Returns the cache of the class observable for the specified class, if
+     * the observable exists and its cache holds the current state of the
+     * class, or null otherwise.
+     */
+    private def initializedClassCache(clazz: Class[_])
+    : ClassSubscriptionCache[_] = {
+        classObservables.get(clazz) match {
+            case Some(entry) if entry.cache.isInitialized => entry.cache
+            case _ => null
+        }
+    }
+
+    /**
+     * Reads from Zookeeper the objects with the given indices in the `ids`
+     * sequence into the `results` array. The reads are pipelined, such that
+     * at most [[MultiReadWindow]] are in flight at any time, and every
+     * completed read issues the next one. The returned future fails with the
+     * first failed read.
+     */
+    private def readPipelined[T](clazz: Class[T], ids: IndexedSeq[ObjId],
+                                 indices: IndexedSeq[Int],
+                                 results: Array[Any]): Future[Seq[T]] = {
+        if (indices.isEmpty) {
+            return Future.successful(results.toSeq.asInstanceOf[Seq[T]])
+        }
+
+        val promise = Promise[Seq[T]]()
+        val next = new AtomicInteger
+        val pending = new AtomicInteger(indices.size)
+
+        def readNext(): Unit = {
+            val n = next.getAndIncrement()
+            if (n >= indices.size || promise.isCompleted) {
+                return
+            }
+            val index = indices(n)
+            val id = ids(index)
+            val start = System.nanoTime()
+            val cb = new BackgroundCallback {
+                override def processResult(client: CuratorFramework,
+                                           event: CuratorEvent): Unit = {
+                    metrics.addLatency(event.getType, System.nanoTime() - start)
+                    try {
+                        results(index) = tryDeserialize(clazz, id, event)
+                        if (pending.decrementAndGet() == 0) {
+                            promise.trySuccess(
+                                results.toSeq.asInstanceOf[Seq[T]])
+                        } else {
+                            readNext()
+                        }
+                    } catch {
+                        case NonFatal(t) => promise.tryFailure(t)
+                    }
+                }
+            }
+            try {
+                curator.getData.inBackground(cb).forPath(objectPath(clazz, id))
+            } catch {
+                case NonFatal(t) => promise.tryFailure(t)
+            }
+        }
+
+        var window = 0
+        while (window < MultiReadWindow && window < indices.size) {
+            readNext()
+            window += 1
+        }
+        promise.future
+    }
+
     /**
      * Returns true if the specified object exists in Zookeeper.
      */
@@ -584,6 +763,40 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
         assertBuilt()
         if (ops.isEmpty) return
 
+        if (!optimisticTransactions) {
+            tryMulti(ops)
+            return
+        }
+
+        // Optimistic transactions do not detect concurrent modifications
+        // until commit, therefore retry a bounded number of times.
+        var attempt = 0
+        while (true) {
+            try {
+                tryMulti(ops)
+                return
+            } catch {
+                case e: ConcurrentModificationException
+                    if attempt < OptimisticRetries =>
+                    attempt += 1
+                    log.debug(s"Transaction failed due to concurrent " +
+                              s"modification, retrying (attempt $attempt)")
+            }
+        }
+    }
+
+    /**
+     * Executes the specified operations asynchronously. Independent batches
+     * are committed concurrently on a pool of threads, which pipelines their
+     * requests over the Zookeeper connection. Batches that depend on each
+     * other must wait for the completion of the previous ones.
+     */
+    override def multiAsync(ops: Seq[PersistenceOp]): Future[Unit] = {
+        assertBuilt()
+        Future { multi(ops) } (pipelineExecutionContext)
+    }
+
+    private def tryMulti(ops: Seq[PersistenceOp]): Unit = {
         val manager = new ZoomTransactionManager(version.longValue())
         ops.foreach {
             case CreateOp(obj) =>
@@ -677,6 +890,55 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
         }).clazz.asInstanceOf[Observable[Observable[T]]]
     }
 
+    /**
+     * Rewrites in the binary format all the protocol buffer objects that are
+     * stored in the text format under the current version of the storage, and
+     * returns the number of rewritten objects. An object modified
+     * concurrently is read again, while an object deleted concurrently is
+     * skipped. The method is intended for an offline tool, and it is
+     * synchronous.
+     */
+    @throws[InternalObjectMapperException]
+    def migrateToBinary(): Int = {
+        assert(isBuilt)
+        var count = 0
+        for (clazz <- classInfo.keys
+             if classOf[Message].isAssignableFrom(clazz)) {
+            val path = classPath(clazz)
+            for (child <- curator.getChildren.forPath(path).asScala) {
+                if (migrateNodeToBinary(s"$path/$child", clazz)) {
+                    count += 1
+                }
+            }
+            log.info(s"Migrated objects of class ${clazz.getSimpleName} " +
+                     "to the binary format")
+        }
+        count
+    }
+
+    private def migrateNodeToBinary(path: String, clazz: Class[_]): Boolean = {
+        while (true) {
+            val stat = new Stat
+            val data = try curator.getData.storingStatIn(stat).forPath(path)
+                       catch { case e: NoNodeException => return false }
+            if (data == null || isBinary(data)) {
+                return false
+            }
+            val obj = deserialize(data, clazz).asInstanceOf[Obj]
+            try {
+                curator.setData().withVersion(stat.getVersion)
+                       .forPath(path, serialize(obj, binary = true))
+                return true
+            } catch {
+                case e: NoNodeException => return false
+                case e: BadVersionException =>
+                    log.debug(s"Object $path modified during migration, " +
+                              "retrying")
+            }
+        }
+        false
+    }
+
     // We should have public subscription methods, but we don't currently
     // need them, and this is easier to implement for testing.
     @VisibleForTesting
@@ -705,6 +967,14 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
 }
 
 object ZookeeperObjectMapper {
+    /* The maximum number of object reads that a multi-read keeps in flight. */
+    private[storage] final val MultiReadWindow = 128
+    /* The number of times an optimistic multi() is retried when failing due
+       to a concurrent modification. */
+    private[storage] final val OptimisticRetries = 3
+    /* The number of threads committing asynchronous multi() batches. */
+    private final val PipelineThreads = 4
+
     private[storage] final class MessageClassInfo(clazz: Class[_])
         extends ClassInfo(clazz) {
 
@@ -764,8 +1034,21 @@ object ZookeeperObjectMapper {
         }
     }
 
-    private[storage] def serialize(obj: Obj): Array[Byte] = {
+    /* Header of the protocol buffer messages stored in the binary format: a
+       zero byte, which never starts the text format, and the version of the
+       binary format. */
+    private final val BinaryMarker: Byte = 0
+    private final val BinaryVersion: Byte = 1
+    private final val BinaryHeaderSize = 2
+
+    private[storage] def isBinary(data: Array[Byte]): Boolean = {
+        data.length >= BinaryHeaderSize && data(0) == BinaryMarker
+    }
+
+    private[storage] def serialize(obj: Obj, binary: Boolean = false)
+    : Array[Byte] = {
         obj match {
+            case msg: Message if binary => serializeBinaryMessage(msg)
             case msg: Message => serializeMessage(msg)
             case pojo => serializePojo(pojo)
         }
@@ -775,6 +1058,17 @@ object ZookeeperObjectMapper {
         msg.toString.getBytes
     }
 
+    private def serializeBinaryMessage(msg: Message): Array[Byte] = {
+        val data = new Array[Byte](BinaryHeaderSize + msg.getSerializedSize)
+        data(0) = BinaryMarker
+        data(1) = BinaryVersion
+        val output = CodedOutputStream.newInstance(data, BinaryHeaderSize,
+                                                   data.length - BinaryHeaderSize)
+        msg.writeTo(output)
+        output.checkNoSpaceLeft()
+        data
+    }
+
     private def serializePojo(obj: Obj): Array[Byte] = {
         val writer = new StringWriter()
         try {
@@ -809,7 +1103,16 @@ object ZookeeperObjectMapper {
     private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
         val builderObj = clazz.getMethod("newBuilder").invoke(null)
         val builder = builderObj.asInstanceOf[Message.Builder]
-        TextFormat.merge(new String(data), builder)
+        if (isBinary(data)) {
+            if (data(1) != BinaryVersion) {
+                throw new IllegalArgumentException(
+                    s"Unsupported binary format version ${data(1)}")
+            }
+            builder.mergeFrom(data, BinaryHeaderSize,
+                              data.length - BinaryHeaderSize)
+        } else {
+            TextFormat.merge(new String(data), builder)
+        }
         builder.build().asInstanceOf[T]
     }
 
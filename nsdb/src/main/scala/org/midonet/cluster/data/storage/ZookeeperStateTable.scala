@@ -34,6 +34,7 @@ import org.apache.zookeeper.ZooDefs.Ids
 import org.midonet.cluster.backend.Directory
 import org.midonet.cluster.backend.zookeeper.{ZkConnection, ZkConnectionAwareWatcher, ZkDirectory}
 import org.midonet.cluster.data._
+import org.midonet.cluster.data.storage.StateTable.ChangeLogSuffix
 import org.midonet.cluster.data.storage.TransactionManager._
 import org.midonet.util.collection.PathMap
 import org.midonet.util.eventloop.Reactor
@@ -168,6 +169,12 @@ trait ZookeeperStateTable extends StateTableStorage with StateTablePaths with St
 
     protected def connectionWatcher: ZkConnectionAwareWatcher
 
+    /** Whether the state tables record the changes of their entries in a
+      * change log, such that the clients of a table read only the recent
+      * changes instead of all the entries. The table providers must then
+      * have a constructor that also takes the change log directory. */
+    protected def stateTableChangeLogs: Boolean = false
+
     /**
       * Returns a [[StateTable]] instance for the specified object class,
       * table name, object identifier and optional table arguments.
@@ -196,11 +203,25 @@ trait ZookeeperStateTable extends StateTableStorage with StateTablePaths with St
                                         reactor)
 
         // Get the constructor for the provider class and create a new instance.
-        val constructor =
-            provider.clazz.getConstructor(classOf[Directory],
-                                          classOf[ZkConnectionAwareWatcher])
-        constructor.newInstance(directory, connectionWatcher)
-                   .asInstanceOf[StateTable[K, V]]
+        if (stateTableChangeLogs) {
+            val logPath = path + ChangeLogSuffix
+            ZKPaths.mkdirs(curator.getZookeeperClient.getZooKeeper, logPath,
+                           true)
+            val changeLog = new ZkDirectory(connection, logPath,
+                                            Ids.OPEN_ACL_UNSAFE, reactor)
+            val constructor =
+                provider.clazz.getConstructor(classOf[Directory],
+                                              classOf[ZkConnectionAwareWatcher],
+                                              classOf[Directory])
+            constructor.newInstance(directory, connectionWatcher, changeLog)
+                       .asInstanceOf[StateTable[K, V]]
+        } else {
+            val constructor =
+                provider.clazz.getConstructor(classOf[Directory],
+                                              classOf[ZkConnectionAwareWatcher])
+            constructor.newInstance(directory, connectionWatcher)
+                       .asInstanceOf[StateTable[K, V]]
+        }
     }
 
     /** Gets the table provider for the given object, key and value classes. */
@@ -113,6 +113,26 @@ trait ZoomMetrics {
      */
     def zkNoNodeTriggered(): Unit
 
+    /**
+     * The count of objects read by multi-reads from the class caches.
+     */
+    protected val readCacheHitCount = new AtomicLong
+
+    /**
+     * The count of objects read by multi-reads from ZooKeeper.
+     */
+    protected val readCacheMissCount = new AtomicLong
+
+    /**
+     * Increment the count of objects read from the class caches.
+     */
+    def readCacheHits(count: Int): Unit
+
+    /**
+     * Increment the count of objects read from ZooKeeper.
+     */
+    def readCacheMisses(count: Int): Unit
+
     /**
      * A listener for changes in ZooKeeper connection state.
      */
@@ -130,6 +150,8 @@ object BlackHoleZoomMetrics extends ZoomMetrics {
     override def observableClosedPrematurely(): Unit = {}
     override def zkNoNodeTriggered(): Unit = {}
     override def zkNodeExistsTriggered(): Unit = {}
+    override def readCacheHits(count: Int): Unit = {}
+    override def readCacheMisses(count: Int): Unit = {}
     override def zkConnectionStateListener(): ConnectionStateListener =
         new ConnectionStateListener {
             override def stateChanged(client: CuratorFramework,
@@ -188,6 +210,10 @@ class JmxZoomMetrics(zoom: ZookeeperObjectMapper, registry: MetricRegistry)
                           gauge { zkNodeExistsCount.get })
         registry.register(metricPrefix + "ZKConnectionLostExceptionCount",
                           gauge { zkConnectionLossCount.get })
+        registry.register(metricPrefix + "ReadCacheHitCount",
+                          gauge { readCacheHitCount.get })
+        registry.register(metricPrefix + "ReadCacheMissCount",
+                          gauge { readCacheMissCount.get })
 
         readLatencies = registry.histogram(metricPrefix + "readMicroSec")
         readChildrenLatencies = registry.histogram(metricPrefix +
@@ -224,6 +250,10 @@ class JmxZoomMetrics(zoom: ZookeeperObjectMapper, registry: MetricRegistry)
         zkNoNodeCount.incrementAndGet()
     override def zkNodeExistsTriggered(): Unit =
         zkNodeExistsCount.incrementAndGet()
+    override def readCacheHits(count: Int): Unit =
+        readCacheHitCount.addAndGet(count)
+    override def readCacheMisses(count: Int): Unit =
+        readCacheMissCount.addAndGet(count)
 
     override def zkConnectionStateListener(): ConnectionStateListener = {
         new ConnectionStateListener {
@@ -48,8 +48,25 @@ class BinarySerialization {
     val actionsBuffer = ByteBuffer.wrap(actionsBytes)
 
     def bufferToFlowRecord(buffer: Array[Byte]): FlowRecord = {
+        decodeRecord(new DirectBuffer(buffer), 0)
+    }
+
+    /** Decodes the records packed in a datagram of the given length, when
+      * the flow recorder sends several records per datagram. */
+    def bufferToFlowRecords(buffer: Array[Byte], length: Int): JList[FlowRecord] = {
         val directBuffer = new DirectBuffer(buffer)
-        MESSAGE_HEADER.wrap(directBuffer, 0,
+        val records = new ArrayList[FlowRecord]
+        var offset = 0
+        while (offset < length) {
+            records.add(decodeRecord(directBuffer, offset))
+            offset += MESSAGE_HEADER.size + FLOW_SUMMARY.size
+        }
+        records
+    }
+
+    private def decodeRecord(directBuffer: DirectBuffer,
+                             offset: Int): FlowRecord = {
+        MESSAGE_HEADER.wrap(directBuffer, offset,
                             BinarySerialization.MessageTemplateVersion)
         val templateId = MESSAGE_HEADER.templateId()
         if (templateId != FlowSummary.TEMPLATE_ID) {
@@ -60,7 +77,7 @@ class BinarySerialization {
         val actingBlockLength = MESSAGE_HEADER.blockLength()
         val schemaId = MESSAGE_HEADER.schemaId()
         val actingVersion = MESSAGE_HEADER.version()
-        FLOW_SUMMARY.wrapForDecode(directBuffer, MESSAGE_HEADER.size,
+        FLOW_SUMMARY.wrapForDecode(directBuffer, offset + MESSAGE_HEADER.size,
                                    actingBlockLength, actingVersion)
 
         val simResult = FLOW_SUMMARY.simResult match {
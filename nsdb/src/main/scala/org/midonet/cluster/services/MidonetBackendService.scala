@@ -324,7 +324,10 @@ class MidonetBackendService(config: MidonetBackendConfig,
     private val zoom =
         new ZookeeperObjectMapper(s"${config.rootKey}/zoom", namespaceId.toString,
                                   curator, failFastCurator, reactor, connection,
-                                  connectionWatcher, metricRegistry)
+                                  connectionWatcher, metricRegistry,
+                                  config.binarySerialization,
+                                  config.optimisticTransactions,
+                                  config.stateTablesChangeLog)
 
     override def store: Storage = zoom
     override def stateStore: StateStorage = zoom
@@ -87,12 +87,17 @@ import org.midonet.util.netty.{ProtoBufWebSocketClientAdapter, ClientFrontEnd, P
  *                  value to recover a disconnected session).
  * @param startAt is the first event that should be retrieved from a lost
  *                session (usually, the last even before disconnection)
+ * @param assembler if not null, subscriptions request the updates as deltas,
+ *                  and the assembler reconstructs the whole objects emitted
+ *                  by the session observable (a recovered session should use
+ *                  the assembler of the interrupted one).
  */
 class ClientSession(val host: String, val port: Int, val wspath: String,
                     val sessionId: UUID = UUID.randomUUID(),
                     val startAt: Long = 0,
                     val senderFactory: MessageSenderFactory
-                    = MessageSender)
+                    = MessageSender,
+                    val assembler: UpdateAssembler = null)
     extends Observer[CommEvent] {
 
     def this(host: String, port: Int) =
@@ -204,6 +209,10 @@ class ClientSession(val host: String, val port: Int, val wspath: String,
     // completed on reception of the corresponding ack/nack.
     private val pending = new TrieMap[Commons.UUID, Promise[Boolean]]()
 
+    // Types watched as a whole, whose objects are resubscribed by
+    // resubscribing the type
+    private val watchedTypes = new TrieMap[Topology.Type, Boolean]()
+
     // Process communication events received from netty
     override protected def onNext(ev: CommEvent): Unit = ev match {
         case Connect(ctx) =>
@@ -247,7 +256,19 @@ class ClientSession(val host: String, val port: Int, val wspath: String,
                 // check piggy-backed ack
                 if (proto.hasReqId)
                     pending.remove(proto.getReqId).map{_.trySuccess(true)}
-                updateStream.onNext(proto)
+                if (assembler eq null) {
+                    updateStream.onNext(proto)
+                } else assembler.assemble(proto) match {
+                    case null =>
+                        if (assembler.resync(proto.getObjType,
+                                             proto.getObjId)) {
+                            log.warn("delta with unknown base version, " +
+                                     "resubscribing: {} {}", proto.getObjType,
+                                     UUIDUtil.fromProto(proto.getObjId))
+                            resubscribe(proto.getObjType, proto.getObjId)
+                        }
+                    case rsp => updateStream.onNext(rsp)
+                }
         }
     }
     override protected def onCompleted(): Unit = {
@@ -301,6 +322,8 @@ class ClientSession(val host: String, val port: Int, val wspath: String,
             .setReqId(id)
             .setType(tp)
             .setSubscribe(watch)
+        if (watch && assembler != null)
+            getRequest.setDeltas(true)
         if (oid != null)
             getRequest.setId(oid)
         val req = Commands.Request.newBuilder().setGet(
@@ -323,6 +346,16 @@ class ClientSession(val host: String, val port: Int, val wspath: String,
         (id, req)
     }
 
+    /**
+     * Restarts the subscription delivering an object, such that the server
+     * sends the object whole before any further delta.
+     */
+    private def resubscribe(tp: Topology.Type, id: Commons.UUID): Unit = {
+        val oid = if (watchedTypes.contains(tp)) null else id
+        command(newUnsubs(tp, oid))
+        command(newGet(tp, watch = true, oid))
+    }
+
     //
     // Public interface
     //
@@ -405,8 +438,10 @@ class ClientSession(val host: String, val port: Int, val wspath: String,
     /**
      * Watch changes to any object of a given type
      */
-    def watchAll(tp: Topology.Type): RequestState =
+    def watchAll(tp: Topology.Type): RequestState = {
+        watchedTypes.put(tp, true)
         command(newGet(tp, watch = true, null))
+    }
 
     /**
      * Unsubscribe to changes to a given object
@@ -417,8 +452,10 @@ class ClientSession(val host: String, val port: Int, val wspath: String,
     /**
      * Unsubscribe to changes to any object of a given type
      */
-    def unwatchAll(tp: Topology.Type): RequestState =
+    def unwatchAll(tp: Topology.Type): RequestState = {
+        watchedTypes.remove(tp)
         command(newUnsubs(tp, null))
+    }
 
     /**
      * Retrieve the sequence number of the last event received from the server
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.client
+
+import java.util.concurrent.ConcurrentHashMap
+
+import com.google.protobuf.Message
+
+import org.midonet.cluster.models.{Commons, Topology}
+import org.midonet.cluster.rpc.Commands.{Response, ResponseType}
+import org.midonet.cluster.services.topology.common.TopologyDeltas
+
+object UpdateAssembler {
+
+    private case class Key(objType: Topology.Type, objId: Commons.UUID)
+
+    private case class Version(version: Long, message: Message)
+
+}
+
+/**
+ * Reconstructs the whole topology objects from the delta responses of the
+ * subscriptions requesting deltas. The assembler keeps the last version of
+ * every object received with a version number, and converts a delta
+ * response into the equivalent update response, such that the consumers of
+ * a [[ClientSession]] only see updates carrying whole objects.
+ *
+ * The assembler should be shared by the client sessions recovering the same
+ * server session, since the server continues sending the deltas from the
+ * versions received by the previous connection.
+ *
+ * A delta whose base version is unknown, because a version was lost or
+ * arrived out of order, discards the stale base of the object, and the
+ * session must resubscribe the object (see [[resync()]]) to receive a new
+ * whole update. Until then, the deltas of the object are dropped.
+ */
+class UpdateAssembler {
+
+    import UpdateAssembler._
+
+    private val objects = new ConcurrentHashMap[Key, Version]()
+    private val resyncing = ConcurrentHashMap.newKeySet[Key]()
+
+    /**
+     * Processes a response received from the server, returning the response
+     * to emit to the session consumers. The method returns null for a delta
+     * whose base version is unknown, in which case the object must be
+     * resynchronized.
+     */
+    def assemble(rsp: Response): Response = rsp.getType match {
+        case ResponseType.UPDATE if rsp.hasObjVersion && rsp.hasUpdate =>
+            val key = Key(rsp.getObjType, rsp.getObjId)
+            objects.put(key, Version(rsp.getObjVersion,
+                                     TopologyDeltas.messageOf(rsp.getUpdate)))
+            resyncing.remove(key)
+            rsp
+        case ResponseType.DELTA if rsp.hasObjVersion && rsp.hasDelta =>
+            val key = Key(rsp.getObjType, rsp.getObjId)
+            val base = objects.get(key)
+            if ((base eq null) || base.version != rsp.getObjVersion - 1) {
+                objects.remove(key)
+                return null
+            }
+            val message = TopologyDeltas.patch(base.message, rsp.getDelta)
+            objects.put(key, Version(rsp.getObjVersion, message))
+            rsp.toBuilder
+               .setType(ResponseType.UPDATE)
+               .setUpdate(TopologyDeltas.updateOf(message))
+               .build()
+        case ResponseType.DELETION if rsp.hasObjId =>
+            val key = Key(rsp.getObjType, rsp.getObjId)
+            objects.remove(key)
+            resyncing.remove(key)
+            rsp
+        case _ => rsp
+    }
+
+    /**
+     * Marks an object whose delta was dropped as resynchronizing, returning
+     * true if the caller should resubscribe the object. The mark is cleared
+     * by the next whole update or deletion of the object, such that the
+     * deltas still in flight from the previous subscription do not request
+     * another resubscription.
+     */
+    def resync(objType: Topology.Type, objId: Commons.UUID): Boolean =
+        resyncing.add(Key(objType, objId))
+
+    /** Returns the number of objects whose last version is known. */
+    def size: Int = objects.size()
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.common
+
+import java.util.{ArrayList, HashMap, List => JList}
+
+import scala.collection.JavaConversions._
+
+import com.google.protobuf.Descriptors.{Descriptor, FieldDescriptor}
+import com.google.protobuf.Message
+
+import org.midonet.cluster.rpc.Commands.Response.{Delta, Update}
+
+/**
+ * Computes and applies the deltas between two versions of a topology object,
+ * as sent by the topology API to the subscriptions requesting deltas. The
+ * fields are compared using the message descriptors, such that the same code
+ * handles all topology types.
+ *
+ * A repeated field whose new value can be obtained by removing and appending
+ * elements, such as the back-references of an object, is sent as the lists
+ * of removed and added elements. Otherwise, for instance when the elements
+ * are reordered, the whole field is sent.
+ */
+object TopologyDeltas {
+
+    /** The fields of the [[Update]] message, indexed by the type of the
+      * topology object that each one holds. */
+    private val updateFields: Map[Descriptor, FieldDescriptor] =
+        Update.getDescriptor.getFields
+              .map(f => f.getMessageType -> f).toMap
+
+    /** Wraps a topology object in an [[Update]] payload. */
+    def updateOf(m: Message): Update = {
+        updateFields.get(m.getDescriptorForType) match {
+            case Some(field) => Update.newBuilder().setField(field, m).build()
+            case None => throw new IllegalArgumentException(
+                s"Unknown topology type ${m.getDescriptorForType.getName}")
+        }
+    }
+
+    /** Returns the topology object in an [[Update]] payload, or null if the
+      * update is empty. */
+    def messageOf(u: Update): Message = {
+        val it = u.getAllFields.values().iterator()
+        if (it.hasNext) it.next().asInstanceOf[Message] else null
+    }
+
+    /**
+     * Computes the delta that transforms the `from` version of an object into
+     * the `to` version. The method returns null if the delta is not smaller
+     * than the whole object.
+     */
+    def diff(from: Message, to: Message): Delta = {
+        val changed = to.newBuilderForType()
+        val added = to.newBuilderForType()
+        val removed = to.newBuilderForType()
+        val delta = Delta.newBuilder()
+        var hasChanged, hasAdded, hasRemoved = false
+
+        for (field <- to.getDescriptorForType.getFields) {
+            if (field.isRepeated) {
+                val a = from.getField(field).asInstanceOf[JList[AnyRef]]
+                val b = to.getField(field).asInstanceOf[JList[AnyRef]]
+                if (a != b) {
+                    if (b.isEmpty) {
+                        delta.addCleared(field.getNumber)
+                    } else {
+                        val removals = without(a, b)
+                        val kept = without(a, removals)
+                        val additions = without(b, kept)
+                        val patched = new ArrayList[AnyRef](kept)
+                        patched.addAll(additions)
+                        if (patched == b) {
+                            for (e <- removals) {
+                                removed.addRepeatedField(field, e)
+                                hasRemoved = true
+                            }
+                            for (e <- additions) {
+                                added.addRepeatedField(field, e)
+                                hasAdded = true
+                            }
+                        } else {
+                            changed.setField(field, b)
+                            hasChanged = true
+                        }
+                    }
+                }
+            } else if (to.hasField(field)) {
+                if (!from.hasField(field) ||
+                    from.getField(field) != to.getField(field)) {
+                    changed.setField(field, to.getField(field))
+                    hasChanged = true
+                }
+            } else if (from.hasField(field)) {
+                delta.addCleared(field.getNumber)
+            }
+        }
+
+        if (hasChanged) delta.setChanged(updateOf(changed.build()))
+        if (hasAdded) delta.setAdded(updateOf(added.build()))
+        if (hasRemoved) delta.setRemoved(updateOf(removed.build()))
+        val result = delta.build()
+        if (result.getSerializedSize < updateOf(to).getSerializedSize) result
+        else null
+    }
+
+    /**
+     * Applies a delta to the given version of an object, and returns the
+     * next version.
+     */
+    def patch(base: Message, delta: Delta): Message = {
+        val builder = base.toBuilder
+        val descriptor = base.getDescriptorForType
+
+        for (number <- delta.getClearedList) {
+            val field = descriptor.findFieldByNumber(number)
+            if (field ne null) builder.clearField(field)
+        }
+        if (delta.hasRemoved) {
+            for ((field, value) <- messageOf(delta.getRemoved).getAllFields) {
+                builder.setField(field, without(
+                    builder.getField(field).asInstanceOf[JList[AnyRef]],
+                    value.asInstanceOf[JList[AnyRef]]))
+            }
+        }
+        if (delta.hasAdded) {
+            for ((field, value) <- messageOf(delta.getAdded).getAllFields;
+                 e <- value.asInstanceOf[JList[AnyRef]]) {
+                builder.addRepeatedField(field, e)
+            }
+        }
+        if (delta.hasChanged) {
+            for ((field, value) <- messageOf(delta.getChanged).getAllFields) {
+                builder.setField(field, value)
+            }
+        }
+        builder.build()
+    }
+
+    /** Returns the list without one occurrence of each of the given
+      * elements, preserving the order of the remaining ones. */
+    private def without(list: JList[AnyRef], elements: JList[AnyRef])
+    : JList[AnyRef] = {
+        val counts = new HashMap[AnyRef, Integer]()
+        for (e <- elements) {
+            val count = counts.get(e)
+            counts.put(e, if (count eq null) 1 else count + 1)
+        }
+        val result = new ArrayList[AnyRef](list.size)
+        for (e <- list) {
+            val count = counts.get(e)
+            if ((count ne null) && count > 0) counts.put(e, count - 1)
+            else result.add(e)
+        }
+        result
+    }
+
+}
@@ -35,6 +35,12 @@ class MidonetBackendConfig(val conf: Config) {
     def maxRetries = conf.getInt("zookeeper.max_retries")
     def retryMs = conf.getDuration("zookeeper.base_retry", TimeUnit.MILLISECONDS)
     def bufferSize = conf.getInt("zookeeper.buffer_size")
+    def binarySerialization = conf.getBoolean("zookeeper.binary_serialization")
+    def optimisticTransactions = conf.getBoolean("zookeeper.optimistic_transactions")
+    def stateTablesLocalFirst = conf.getBoolean("zookeeper.state_tables_local_first")
+    def stateTablesPublishInterval = conf.getDuration("zookeeper.state_tables_publish_interval", TimeUnit.MILLISECONDS)
+    def stateTablesPublishBatch = conf.getInt("zookeeper.state_tables_publish_batch")
+    def stateTablesChangeLog = conf.getBoolean("zookeeper.state_tables_change_log")
 }
 
 class CassandraConfig(val conf: Config) {
@@ -359,6 +359,10 @@ class OnSubscribeToPathChildren(zk: CuratorFramework, path: String,
     /** Returns true if the underlying cache is connected to ZK. */
     def isStarted = !isFailed
 
+    /** Returns true if the underlying cache is connected to ZK and it has
+      * loaded the initial state of all children. */
+    def isInitialized = initialized && !isFailed
+
 }
 /**
  * The ObservablePathChildrenCache provides a wrapper around an ordinary
@@ -392,6 +396,10 @@ class ObservablePathChildrenCache(onSubscribe: OnSubscribeToPathChildren)
 
     /** Returns true if the underlying cache is connected to ZK. */
     def isStarted = onSubscribe.isStarted
+
+    /** Returns true if the underlying cache is connected to ZK and it has
+      * loaded the initial state of all children. */
+    def isInitialized = onSubscribe.isInitialized
 }
 
 /** Signals that the parent node has been deleted */
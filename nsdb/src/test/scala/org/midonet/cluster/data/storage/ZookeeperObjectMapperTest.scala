@@ -19,20 +19,23 @@ import java.util.{ConcurrentModificationException, UUID}
 
 import scala.concurrent.duration._
 
+import com.codahale.metrics.MetricRegistry
 import org.junit.runner.RunWith
 import org.scalatest.GivenWhenThen
+import org.scalatest.concurrent.Eventually
 import org.scalatest.junit.JUnitRunner
 
 import rx.Observable
 import rx.observers.TestObserver
 
 import org.midonet.cluster.data.storage.StorageTestClasses._
+import org.midonet.cluster.models.Topology.Network
 import org.midonet.cluster.util.MidonetBackendTest
 import org.midonet.util.reactivex.{AwaitableObserver, TestAwaitableObserver}
 
 @RunWith(classOf[JUnitRunner])
 class ZookeeperObjectMapperTest extends StorageTest with MidonetBackendTest
-                                with GivenWhenThen {
+                                with GivenWhenThen with Eventually {
 
     import StorageTest._
 
@@ -603,4 +606,239 @@ class ZookeeperObjectMapperTest extends StorageTest with MidonetBackendTest
             zoom.classPath(classOf[PojoBridge]) shouldBe s"$zkRoot/${zoom.version}/models/PojoBridge"
         }
     }
+
+    feature("Test multi-read") {
+        def meteredStorage(registry: MetricRegistry) = {
+            val zoom = new ZookeeperObjectMapper(zkRoot, hostId, curator, curator,
+                                                 reactor, connection,
+                                                 connectionWatcher, registry)
+            initAndBuildStorage(zoom)
+            zoom
+        }
+
+        def counter(registry: MetricRegistry, zoom: ZookeeperObjectMapper,
+                    name: String): Long =
+            registry.getGauges.get(s"Zoom-${zoom.basePath}/$name")
+                    .getValue.asInstanceOf[Long]
+
+        scenario("Reads more objects than the read window") {
+            Given("More bridges than the read window")
+            val bridges = for (index <- 0 until
+                               ZookeeperObjectMapper.MultiReadWindow + 10)
+                yield createPojoBridge(name = s"bridge$index")
+            storage.multi(bridges.map(CreateOp(_)))
+
+            Then("Reading the bridges returns them in order")
+            await(storage.getAll(classOf[PojoBridge], bridges.map(_.id))) shouldBe bridges
+
+            And("Reading the class returns all bridges")
+            await(storage.getAll(classOf[PojoBridge])) should contain theSameElementsAs bridges
+        }
+
+        scenario("Reads fail if an object does not exist") {
+            val bridge = createPojoBridge()
+            storage.create(bridge)
+            intercept[NotFoundException] {
+                await(storage.getAll(classOf[PojoBridge],
+                                     Seq(bridge.id, UUID.randomUUID)))
+            }
+        }
+
+        scenario("Reads use the cache of a class observable") {
+            Given("A storage with metrics")
+            val registry = new MetricRegistry
+            val zoom = meteredStorage(registry)
+
+            And("Two bridges")
+            val bridge1 = createPojoBridge()
+            val bridge2 = createPojoBridge()
+            zoom.multi(Seq(CreateOp(bridge1), CreateOp(bridge2)))
+
+            When("Reading the bridges without a class observable")
+            await(zoom.getAll(classOf[PojoBridge], Seq(bridge1.id, bridge2.id)))
+
+            Then("The bridges are read from Zookeeper")
+            counter(registry, zoom, "ReadCacheMissCount") shouldBe 2
+            counter(registry, zoom, "ReadCacheHitCount") shouldBe 0
+
+            When("Subscribing to the bridges class")
+            val observer = new TestObserver[Observable[PojoBridge]]
+                               with AwaitableObserver[Observable[PojoBridge]]
+            zoom.observable(classOf[PojoBridge]).subscribe(observer)
+            observer.awaitOnNext(2, timeout)
+            eventually {
+                zoom.getAll(classOf[PojoBridge])
+                counter(registry, zoom, "ReadCacheHitCount") should be > 0L
+            }
+            val hits = counter(registry, zoom, "ReadCacheHitCount")
+
+            Then("The bridges are read from the cache")
+            await(zoom.getAll(classOf[PojoBridge], Seq(bridge1.id, bridge2.id))) shouldBe Seq(bridge1, bridge2)
+            counter(registry, zoom, "ReadCacheHitCount") shouldBe hits + 2
+            counter(registry, zoom, "ReadCacheMissCount") shouldBe 2
+
+            And("A missing object is read from Zookeeper")
+            intercept[NotFoundException] {
+                await(zoom.getAll(classOf[PojoBridge],
+                                  Seq(bridge1.id, UUID.randomUUID)))
+            }
+            counter(registry, zoom, "ReadCacheMissCount") shouldBe 3
+        }
+
+        scenario("Latest reads bypass the cache of a class observable") {
+            Given("A storage with metrics")
+            val registry = new MetricRegistry
+            val zoom = meteredStorage(registry)
+
+            And("A bridge with an initialized class observable")
+            val bridge = createPojoBridge()
+            zoom.create(bridge)
+            val observer = new TestObserver[Observable[PojoBridge]]
+                               with AwaitableObserver[Observable[PojoBridge]]
+            zoom.observable(classOf[PojoBridge]).subscribe(observer)
+            observer.awaitOnNext(1, timeout)
+            eventually {
+                zoom.getAll(classOf[PojoBridge])
+                counter(registry, zoom, "ReadCacheHitCount") should be > 0L
+            }
+            val hits = counter(registry, zoom, "ReadCacheHitCount")
+
+            When("Updating the bridge")
+            val updated = createPojoBridge(id = bridge.id, name = "updated")
+            zoom.update(updated)
+
+            Then("The latest reads return the update at once")
+            await(zoom.getAllLatest(classOf[PojoBridge], Seq(bridge.id))) shouldBe Seq(updated)
+            await(zoom.getAllLatest(classOf[PojoBridge])) shouldBe Seq(updated)
+
+            And("The bridge is not read from the cache")
+            counter(registry, zoom, "ReadCacheHitCount") shouldBe hits
+        }
+    }
+
+    feature("Test optimistic transactions") {
+        def optimisticStorage = {
+            val zoom = new ZookeeperObjectMapper(zkRoot, hostId, curator, curator,
+                                                 reactor, connection,
+                                                 connectionWatcher,
+                                                 optimisticTransactions = true)
+            initAndBuildStorage(zoom)
+            zoom
+        }
+
+        scenario("Transactions do not create lock nodes") {
+            val zoom = optimisticStorage
+            val bridge = createPojoBridge()
+            zoom.create(bridge)
+            val tx = zoom.transaction()
+            tx.update(createPojoBridge(bridge.id, name = "name"))
+            tx.commit()
+
+            await(zoom.get(classOf[PojoBridge], bridge.id)).name shouldBe "name"
+            curator.checkExists().forPath(s"${zoom.basePath}/zoomlocks") shouldBe null
+        }
+
+        scenario("Commit fails if an object read is modified") {
+            val zoom = optimisticStorage
+            val bridge1 = createPojoBridge()
+            val bridge2 = createPojoBridge()
+            zoom.multi(Seq(CreateOp(bridge1), CreateOp(bridge2)))
+
+            val tx = zoom.transaction()
+            tx.get(classOf[PojoBridge], bridge1.id)
+            tx.update(createPojoBridge(bridge2.id, name = "name"))
+
+            zoom.update(createPojoBridge(bridge1.id, name = "modified"))
+            intercept[ConcurrentModificationException] {
+                tx.commit()
+            }
+            await(zoom.get(classOf[PojoBridge], bridge2.id)) shouldBe bridge2
+        }
+
+        scenario("Commit fails if an object read is deleted") {
+            val zoom = optimisticStorage
+            val bridge1 = createPojoBridge()
+            val bridge2 = createPojoBridge()
+            zoom.multi(Seq(CreateOp(bridge1), CreateOp(bridge2)))
+
+            val tx = zoom.transaction()
+            tx.get(classOf[PojoBridge], bridge1.id)
+            tx.update(createPojoBridge(bridge2.id, name = "name"))
+
+            zoom.delete(classOf[PojoBridge], bridge1.id)
+            intercept[ConcurrentModificationException] {
+                tx.commit()
+            }
+        }
+
+        scenario("Independent batches are committed asynchronously") {
+            val zoom = optimisticStorage
+            val bridges = for (index <- 0 until 10)
+                yield createPojoBridge(name = s"bridge$index")
+            val futures = bridges.map(b => zoom.multiAsync(Seq(CreateOp(b))))
+            futures.foreach(await(_))
+
+            await(zoom.getAll(classOf[PojoBridge], bridges.map(_.id))) shouldBe bridges
+        }
+    }
+
+    feature("Test binary serialization") {
+        def binaryStorage = {
+            val zoom = new ZookeeperObjectMapper(zkRoot, hostId, curator, curator,
+                                                 reactor, connection,
+                                                 connectionWatcher,
+                                                 binarySerialization = true)
+            initAndBuildStorage(zoom)
+            zoom
+        }
+
+        def nodeData(zoom: ZookeeperObjectMapper, network: Network) =
+            curator.getData.forPath(
+                zoom.objectPath(classOf[Network], network.getId))
+
+        scenario("Objects are readable in both formats") {
+            Given("A storage writing the binary format")
+            val zoom = binaryStorage
+
+            And("A network in the binary format")
+            val network1 = createProtoNetwork(name = "binary")
+            zoom.create(network1)
+            ZookeeperObjectMapper.isBinary(nodeData(zoom, network1)) shouldBe true
+
+            And("A network in the text format")
+            val network2 = createProtoNetwork(name = "text")
+            storage.create(network2)
+            ZookeeperObjectMapper.isBinary(nodeData(zoom, network2)) shouldBe false
+
+            Then("Both storages read both networks")
+            for (st <- Seq(storage, zoom); network <- Seq(network1, network2)) {
+                await(st.get(classOf[Network], network.getId)) shouldBe network
+            }
+        }
+
+        scenario("Objects are migrated to the binary format") {
+            Given("Networks and a bridge in the text format")
+            val network1 = createProtoNetwork(name = "network1")
+            val network2 = createProtoNetwork(name = "network2")
+            val bridge = createPojoBridge()
+            storage.multi(Seq(CreateOp(network1), CreateOp(network2),
+                              CreateOp(bridge)))
+
+            When("Migrating the objects to the binary format")
+            val zoom = storage.asInstanceOf[ZookeeperObjectMapper]
+            zoom.migrateToBinary() shouldBe 2
+
+            Then("The networks are stored in the binary format")
+            ZookeeperObjectMapper.isBinary(nodeData(zoom, network1)) shouldBe true
+            ZookeeperObjectMapper.isBinary(nodeData(zoom, network2)) shouldBe true
+            await(storage.get(classOf[Network], network1.getId)) shouldBe network1
+            await(storage.get(classOf[Network], network2.getId)) shouldBe network2
+
+            And("The bridge is unchanged")
+            await(storage.get(classOf[PojoBridge], bridge.id)) shouldBe bridge
+
+            And("Migrating again does not rewrite any object")
+            zoom.migrateToBinary() shouldBe 0
+        }
+    }
 }
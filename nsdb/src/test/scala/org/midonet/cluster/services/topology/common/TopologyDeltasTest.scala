@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.common
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.cluster.models.{Commons, Topology}
+import org.midonet.cluster.models.Topology.{Chain, Network}
+import org.midonet.cluster.rpc.Commands.{Response, ResponseType}
+import org.midonet.cluster.services.topology.client.UpdateAssembler
+import org.midonet.cluster.util.UUIDUtil.randomUuidProto
+
+@RunWith(classOf[JUnitRunner])
+class TopologyDeltasTest extends FeatureSpec with Matchers with GivenWhenThen {
+
+    private val NetworkId = randomUuidProto
+    private val ports = (0 until 8).map(_ => randomUuidProto)
+
+    private def network(portIds: Seq[Commons.UUID]): Network =
+        Network.newBuilder()
+               .setId(NetworkId)
+               .setName("network")
+               .setTenantId("tenant")
+               .setAdminStateUp(true)
+               .addAllPortIds(portIds)
+               .build()
+
+    private def response(tp: ResponseType, version: Long) =
+        Response.newBuilder()
+                .setType(tp)
+                .setObjType(Topology.Type.NETWORK)
+                .setObjId(NetworkId)
+                .setObjVersion(version)
+
+    feature("Deltas between object versions") {
+        scenario("Changed fields") {
+            val from = network(ports)
+            val to = from.toBuilder.setName("renamed").build()
+
+            val delta = TopologyDeltas.diff(from, to)
+            delta.getChanged.getNetwork shouldBe
+                Network.newBuilder().setName("renamed").build()
+            delta.hasAdded shouldBe false
+            delta.hasRemoved shouldBe false
+            TopologyDeltas.patch(from, delta) shouldBe to
+        }
+
+        scenario("Cleared fields") {
+            val from = network(ports)
+            val to = from.toBuilder.clearName().clearPortIds().build()
+
+            val delta = TopologyDeltas.diff(from, to)
+            delta.getClearedList.toSet shouldBe Set(
+                Network.NAME_FIELD_NUMBER, Network.PORT_IDS_FIELD_NUMBER)
+            TopologyDeltas.patch(from, delta) shouldBe to
+        }
+
+        scenario("Elements added to and removed from repeated fields") {
+            val from = network(ports.take(7))
+            val to = network(ports.take(3) ++ ports.drop(4))
+
+            val delta = TopologyDeltas.diff(from, to)
+            delta.getAdded.getNetwork.getPortIdsList.toSeq shouldBe
+                Seq(ports(7))
+            delta.getRemoved.getNetwork.getPortIdsList.toSeq shouldBe
+                Seq(ports(3))
+            delta.hasChanged shouldBe false
+            TopologyDeltas.patch(from, delta) shouldBe to
+        }
+
+        scenario("Reordered repeated fields are replaced") {
+            val from = Chain.newBuilder().setId(randomUuidProto)
+                            .setName("chain").addAllRuleIds(ports).build()
+            val to = from.toBuilder.clearRuleIds()
+                         .addAllRuleIds(ports.reverse).build()
+
+            val delta = TopologyDeltas.diff(from, to)
+            delta.getChanged.getChain.getRuleIdsList.toSeq shouldBe
+                ports.reverse
+            TopologyDeltas.patch(from, delta) shouldBe to
+        }
+
+        scenario("No delta larger than the object") {
+            val from = Network.newBuilder().setName("a").build()
+            val to = Network.newBuilder().setName("b").build()
+            TopologyDeltas.diff(from, to) shouldBe null
+        }
+    }
+
+    feature("Objects are reassembled from deltas") {
+        scenario("A delta is applied to the previous version") {
+            val assembler = new UpdateAssembler
+            val from = network(ports)
+            val to = network(ports.drop(1))
+
+            assembler.assemble(
+                response(ResponseType.UPDATE, 1)
+                    .setUpdate(TopologyDeltas.updateOf(from)).build())
+            val rsp = assembler.assemble(
+                response(ResponseType.DELTA, 2)
+                    .setDelta(TopologyDeltas.diff(from, to)).build())
+
+            rsp.getType shouldBe ResponseType.UPDATE
+            rsp.getObjVersion shouldBe 2
+            rsp.getUpdate.getNetwork shouldBe to
+        }
+
+        scenario("A delta with an unknown base version is dropped") {
+            val assembler = new UpdateAssembler
+            val from = network(ports)
+            val to = network(ports.drop(1))
+
+            assembler.assemble(
+                response(ResponseType.UPDATE, 1)
+                    .setUpdate(TopologyDeltas.updateOf(from)).build())
+            assembler.assemble(
+                response(ResponseType.DELTA, 3)
+                    .setDelta(TopologyDeltas.diff(from, to))
+                    .build()) shouldBe null
+        }
+
+        scenario("A missing delta resynchronizes the object") {
+            val assembler = new UpdateAssembler
+            val v1 = network(ports)
+            val v2 = network(ports.drop(1))
+            val v3 = network(ports.drop(2))
+            val v4 = network(ports.drop(3))
+
+            assembler.assemble(
+                response(ResponseType.UPDATE, 1)
+                    .setUpdate(TopologyDeltas.updateOf(v1)).build())
+
+            Given("The delta to version 2 is lost")
+            assembler.assemble(
+                response(ResponseType.DELTA, 3)
+                    .setDelta(TopologyDeltas.diff(v2, v3))
+                    .build()) shouldBe null
+
+            Then("The stale base is discarded and a resync is requested once")
+            assembler.size shouldBe 0
+            assembler.resync(Topology.Type.NETWORK, NetworkId) shouldBe true
+            assembler.resync(Topology.Type.NETWORK, NetworkId) shouldBe false
+
+            And("The deltas in flight are dropped")
+            assembler.assemble(
+                response(ResponseType.DELTA, 4)
+                    .setDelta(TopologyDeltas.diff(v3, v4))
+                    .build()) shouldBe null
+            assembler.resync(Topology.Type.NETWORK, NetworkId) shouldBe false
+
+            When("The resubscription sends the object whole")
+            assembler.assemble(
+                response(ResponseType.UPDATE, 1)
+                    .setUpdate(TopologyDeltas.updateOf(v3)).build())
+
+            Then("The following deltas are applied to the new base")
+            assembler.assemble(
+                response(ResponseType.DELTA, 2)
+                    .setDelta(TopologyDeltas.diff(v3, v4))
+                    .build()).getUpdate.getNetwork shouldBe v4
+        }
+
+        scenario("An out of order delta resynchronizes the object") {
+            val assembler = new UpdateAssembler
+            val v1 = network(ports)
+            val v2 = network(ports.drop(1))
+            val v3 = network(ports.drop(2))
+
+            assembler.assemble(
+                response(ResponseType.UPDATE, 1)
+                    .setUpdate(TopologyDeltas.updateOf(v1)).build())
+            assembler.assemble(
+                response(ResponseType.DELTA, 3)
+                    .setDelta(TopologyDeltas.diff(v2, v3))
+                    .build()) shouldBe null
+            assembler.resync(Topology.Type.NETWORK, NetworkId) shouldBe true
+
+            // The late delta no longer has a base either.
+            assembler.assemble(
+                response(ResponseType.DELTA, 2)
+                    .setDelta(TopologyDeltas.diff(v1, v2))
+                    .build()) shouldBe null
+            assembler.resync(Topology.Type.NETWORK, NetworkId) shouldBe false
+        }
+
+        scenario("Deleted objects are forgotten") {
+            val assembler = new UpdateAssembler
+            assembler.assemble(
+                response(ResponseType.UPDATE, 1)
+                    .setUpdate(TopologyDeltas.updateOf(network(ports))).build())
+            assembler.size shouldBe 1
+            assembler.assemble(response(ResponseType.DELETION, 1).build())
+            assembler.size shouldBe 0
+        }
+    }
+}